@@ -2,6 +2,9 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import simpledb.Predicate.Op;
 
@@ -24,6 +27,31 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private final int[] tieFields;
+
+	/** Page latches, keyed by page number (0 is the root pointer page) */
+	private final ConcurrentHashMap<Integer, ReentrantReadWriteLock> latches =
+			new ConcurrentHashMap<Integer, ReentrantReadWriteLock>();
+	/** Held shared by every operation that crabs down the tree, and exclusive
+	 *  by deletes that rebalance, since those work bottom-up */
+	private final ReentrantReadWriteLock treeLatch = new ReentrantReadWriteLock();
+	/** Serializes allocating and freeing pages (header pages, file growth) */
+	private final Object allocLatch = new Object();
+
+	/** How full compaction packs the leaves it rebalances, leaving room for inserts */
+	public static final double COMPACTION_FILL_FACTOR = 0.9;
+	/** The most pages one compaction step moves toward the start of the file */
+	public static final int COMPACTION_BATCH = 16;
+	/** How long the background compactor rests between passes */
+	public static final long COMPACTOR_IDLE_MS = 1000;
+
+	/** Bumped by every compaction step that moves or frees pages */
+	private volatile int layoutVersion = 0;
+	/** The next leaf the current compaction pass looks at, or null to start a pass */
+	private BTreePageId compactCursor = null;
+	/** Whether the current compaction pass has finished repacking leaves */
+	private boolean compactRepacked = false;
+	private volatile Thread compactor = null;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -34,10 +62,34 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, new int[0]);
+	}
+
+	/**
+	 * Constructs a B+ tree file whose tuples are ordered on the key field and,
+	 * among tuples with equal key fields, on some INT fields that break the
+	 * tie.  If the tie fields tell every tuple apart, each tuple has its own
+	 * place in the tree and {@link #pinTuple} goes straight to it, however
+	 * many tuples share its key field.  Internal pages then store the tie
+	 * fields with every key, and keys are never compressed.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param tieFields - the INT fields breaking ties between equal keys, in order
+	 * @throws IllegalArgumentException if a tie field is not an INT field
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, int[] tieFields) {
+		for (int field : tieFields) {
+			if (td.getFieldType(field) != Type.INT_TYPE)
+				throw new IllegalArgumentException("tie field " + field + " is not an INT field");
+		}
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.tieFields = tieFields.clone();
 	}
 
 	/**
@@ -93,8 +145,7 @@ public class BTreeFile implements DbFile {
 							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
-				return p;
+				return pageFromBytes(id, pageBuf);
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
@@ -112,18 +163,7 @@ public class BTreeFile implements DbFile {
 							+ BufferPool.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-					return p;
-				}
-				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-					return p;
-				}
-				else { // id.pgcateg() == BTreePageId.HEADER
-					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-					return p;
-				}
+				return pageFromBytes(id, pageBuf);
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
@@ -138,6 +178,29 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Build the page with the given id from its on-disk image
+	 * 
+	 * @param id - the id of the page
+	 * @param pageBuf - the page image, as read from disk
+	 * @return the page, of the class matching the id's category
+	 * @throws IOException
+	 */
+	Page pageFromBytes(BTreePageId id, byte[] pageBuf) throws IOException {
+		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+			return new BTreeRootPtrPage(id, pageBuf);
+		}
+		else if(id.pgcateg() == BTreePageId.INTERNAL) {
+			return new BTreeInternalPage(id, pageBuf, keyField);
+		}
+		else if(id.pgcateg() == BTreePageId.LEAF) {
+			return new BTreeLeafPage(id, pageBuf, keyField);
+		}
+		else { // id.pgcateg() == BTreePageId.HEADER
+			return new BTreeHeaderPage(id, pageBuf);
+		}
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -175,6 +238,33 @@ public class BTreeFile implements DbFile {
 		return keyField;
 	}
 
+	/**
+	 * Returns the fields that break ties between equal keys; empty if there are none
+	 */
+	int[] tieFields() {
+		return tieFields;
+	}
+
+	/**
+	 * Returns the key this B+ tree orders a tuple on: its key field, or a
+	 * {@link CompositeKey} of its key field and tie fields if there are any
+	 */
+	public Field keyOf(Tuple t) {
+		return keyOf(t, keyField, tieFields);
+	}
+
+	/**
+	 * @see #keyOf(Tuple)
+	 */
+	static Field keyOf(Tuple t, int keyField, int[] tieFields) {
+		if (tieFields.length == 0)
+			return t.getField(keyField);
+		int[] ties = new int[tieFields.length];
+		for (int i = 0; i < ties.length; i++)
+			ties[i] = ((IntField) t.getField(tieFields[i])).getValue();
+		return new CompositeKey(t.getField(keyField), ties);
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
 	 * the left-most page possibly containing the key field f. It locks all internal
@@ -200,25 +290,395 @@ public class BTreeFile implements DbFile {
 		}
 		Page pp = getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
 		BTreeInternalPage p = (BTreeInternalPage)pp;
-		Iterator<BTreeEntry> it = p.iterator();
-		if (f == null) {
-			return findLeafPage(tid, dirtypages, it.next().getLeftChild(), perm, f);
+		BTreePageId child = childFor(p, f);
+		if (child == null) {
+			return null;
 		}
-		BTreeEntry be = null;
-		while (it.hasNext()) {
-			be = it.next();
-			// FIXME: GREATER_THAN_OR_EQ or GREATER_THAN
-			if (be.getKey().compare(Predicate.Op.GREATER_THAN_OR_EQ, f)) {
-				return findLeafPage(tid, dirtypages, be.getLeftChild(), perm, f);
+		return findLeafPage(tid, dirtypages, child, perm, f);
+	}
+	
+	/**
+	 * The latches one operation holds on the tree, in the order it took them.
+	 * Each latched page is also pinned in the buffer pool, so every thread
+	 * working on it sees the same copy.
+	 */
+	private static class LatchSet {
+		private final ArrayList<Lock> locks = new ArrayList<Lock>();
+		private final ArrayList<PageId> pins = new ArrayList<PageId>();
+
+		void add(Lock l, PageId pid) {
+			locks.add(l);
+			pins.add(pid);
+		}
+
+		/** release everything but the most recently taken latch */
+		void releaseAncestors() {
+			while (locks.size() > 1) {
+				release(0);
 			}
 		}
-		// never occur
-		if (be != null) {
-			return findLeafPage(tid, dirtypages, be.getRightChild(), perm, f);
+
+		void releaseAll() {
+			while (!locks.isEmpty()) {
+				release(locks.size() - 1);
+			}
+		}
+
+		private void release(int i) {
+			locks.remove(i).unlock();
+			Database.getBufferPool().unpinPage(pins.remove(i));
 		}
-		return null;
 	}
-	
+
+	/**
+	 * Get the latch for a page of this tree, creating it if needed.
+	 */
+	private ReentrantReadWriteLock latchFor(BTreePageId pid) {
+		Integer key = pid.pgcateg() == BTreePageId.ROOT_PTR ? 0 : pid.getPageNumber();
+		ReentrantReadWriteLock l = latches.get(key);
+		if (l == null) {
+			l = new ReentrantReadWriteLock();
+			ReentrantReadWriteLock prev = latches.putIfAbsent(key, l);
+			if (prev != null)
+				l = prev;
+		}
+		return l;
+	}
+
+	/**
+	 * Latch a page, pin it, and fetch it.
+	 * 
+	 * @param exclusive - whether to take the latch in exclusive mode
+	 * @param held - the set to record the latch in
+	 */
+	private Page latchPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
+			boolean exclusive, LatchSet held) throws DbException, TransactionAbortedException {
+		ReentrantReadWriteLock rw = latchFor(pid);
+		Lock l = exclusive ? rw.writeLock() : rw.readLock();
+		l.lock();
+		try {
+			Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+		} catch (DbException | TransactionAbortedException | RuntimeException e) {
+			l.unlock();
+			throw e;
+		}
+		held.add(l, pid);
+		return getPage(tid, dirtypages, pid, exclusive && pid.pgcateg() == BTreePageId.LEAF ?
+				Permissions.READ_WRITE : Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Pick the child of an internal page to descend to when looking for the
+	 * left-most leaf possibly containing f (the left-most child if f is null).
+	 */
+	private BTreePageId childFor(BTreeInternalPage p, Field f) {
+		return p.findChildId(f);
+	}
+
+	/**
+	 * Find the left-most leaf possibly containing f by latch crabbing from the
+	 * root pointer: each page is latched before the latch on its parent is let
+	 * go, so the path can't change under us.
+	 * <p>
+	 * Readers and optimistic writers take shared latches on internal pages and
+	 * release the parent as soon as the child is latched; writers take the leaf
+	 * exclusively.  A pessimistic writer, which may have to split, takes every
+	 * page exclusively and only releases the pages above a page that has a free
+	 * slot, since a split can't propagate past that page.  The latches still
+	 * held when this returns are in held, the leaf's last.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param f - the field to search for
+	 * @param write - whether the leaf will be modified
+	 * @param pessimistic - whether the leaf may split
+	 * @param held - the latches held on return
+	 * @return the leaf page, or null if the tree has no root yet and this isn't a pessimistic writer
+	 */
+	private BTreeLeafPage findLeafPageLatched(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			Field f, boolean write, boolean pessimistic, LatchSet held)
+					throws DbException, IOException, TransactionAbortedException {
+		return findLeafPageLatched(tid, dirtypages, f, false, write, pessimistic, held);
+	}
+
+	/**
+	 * Find the left-most or the right-most leaf possibly containing f by latch crabbing.
+	 * @see #findLeafPageLatched(TransactionId, HashMap, Field, boolean, boolean, LatchSet)
+	 * 
+	 * @param last - whether to find the right-most leaf possibly containing f (the
+	 *        right-most leaf of the tree if f is null) rather than the left-most
+	 */
+	private BTreeLeafPage findLeafPageLatched(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			Field f, boolean last, boolean write, boolean pessimistic, LatchSet held)
+					throws DbException, IOException, TransactionAbortedException {
+		getRootPtrPage(tid, dirtypages); // creates the file if needed
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) latchPage(tid, dirtypages,
+				BTreeRootPtrPage.getId(tableid), pessimistic, held);
+		BTreePageId pid = rootPtr.getRootId();
+		if (pid == null && !pessimistic && !write) {
+			// no root yet; the first insert makes the empty leaf at the end of
+			// the file the root, and can't until we let go of the root pointer
+			pid = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+		}
+		if (pid == null) {
+			if (!pessimistic) {
+				return null;
+			}
+			// the root has just been created, so set the root pointer to point to it
+			pid = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			rootPtr.setRootId(pid);
+		}
+		while (true) {
+			boolean leaf = pid.pgcateg() == BTreePageId.LEAF;
+			BTreePage page = (BTreePage) latchPage(tid, dirtypages, pid,
+					pessimistic || (write && leaf), held);
+			if (!pessimistic || page.getNumEmptySlots() > 0) {
+				held.releaseAncestors();
+			}
+			if (leaf) {
+				return (BTreeLeafPage) page;
+			}
+			pid = last ? ((BTreeInternalPage) page).findLastChildId(f)
+					: childFor((BTreeInternalPage) page, f);
+		}
+	}
+
+	/**
+	 * Find the left-most leaf page possibly containing f, for a reader, and pin it.
+	 * No latches are held on return; the leaf can be split afterwards, but the
+	 * tuples that move always move to its right.  The pin keeps compaction from
+	 * moving or freeing the leaf until the caller unpins it.
+	 * 
+	 * @param tid - the transaction id
+	 * @param f - the field to search for, or null for the left-most leaf
+	 * @return the leaf page, pinned
+	 */
+	BTreeLeafPage pinLeafPage(TransactionId tid, Field f)
+			throws DbException, TransactionAbortedException {
+		return pinLeafPage(tid, f, false);
+	}
+
+	/**
+	 * Find the left-most or the right-most leaf page possibly containing f, for a
+	 * reader, and pin it.
+	 * @see #pinLeafPage(TransactionId, Field)
+	 * 
+	 * @param tid - the transaction id
+	 * @param f - the field to search for, or null for the left-most or right-most leaf
+	 * @param last - whether to find the right-most leaf rather than the left-most
+	 * @return the leaf page, pinned
+	 */
+	BTreeLeafPage pinLeafPage(TransactionId tid, Field f, boolean last)
+			throws DbException, TransactionAbortedException {
+		treeLatch.readLock().lock();
+		LatchSet held = new LatchSet();
+		try {
+			BTreePageId leafId = findLeafPageLatched(tid, new HashMap<PageId, Page>(), f, last,
+					false, false, held).getId();
+			return (BTreeLeafPage) Database.getBufferPool().pinPage(tid, leafId, Permissions.READ_ONLY);
+		} catch (IOException e) {
+			throw new DbException("unable to read the root of the B+ tree: " + e);
+		} finally {
+			held.releaseAll();
+			treeLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Find the first tuple whose key equals the given key and pin its leaf.  With
+	 * tie fields that tell the tuples apart there is at most one, and the search
+	 * goes straight to its leaf instead of reading every tuple with an equal key
+	 * field.  The pin keeps compaction from moving the tuple until the caller
+	 * unpins its page, so the tuple can be deleted by its RecordId in between.
+	 *
+	 * @param tid - the transaction id
+	 * @param key - the key to look for, as built by {@link #keyOf}
+	 * @return the tuple, its leaf pinned, or null with nothing pinned if no tuple has the key
+	 */
+	Tuple pinTuple(TransactionId tid, Field key)
+			throws DbException, TransactionAbortedException {
+		BTreeLeafPage page = pinLeafPage(tid, key);
+		while (true) {
+			LeafSnapshot snap = readLeaf(page, key);
+			if (!snap.tuples.isEmpty()) {
+				Tuple t = snap.tuples.get(0);
+				if (keyOf(t).compare(Op.EQUALS, key)) {
+					return t;
+				}
+				Database.getBufferPool().unpinPage(page.getId());
+				return null;
+			}
+			// every key here is smaller: the key separates this leaf from the
+			// next, or a split moved it right after we found the leaf
+			if (snap.rightSiblingId == null) {
+				Database.getBufferPool().unpinPage(page.getId());
+				return null;
+			}
+			BTreeLeafPage next = (BTreeLeafPage) Database.getBufferPool().pinPage(tid,
+					snap.rightSiblingId, Permissions.READ_ONLY);
+			Database.getBufferPool().unpinPage(page.getId());
+			page = next;
+		}
+	}
+
+	/**
+	 * Pin a leaf page found earlier, unless compaction has moved or freed pages
+	 * since it was found.
+	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the leaf page
+	 * @param layout - the value of {@link #layoutVersion()} from before the leaf was found
+	 * @return the leaf page, pinned, or null if the leaf has to be found again
+	 */
+	BTreeLeafPage pinLeafPage(TransactionId tid, BTreePageId pid, int layout)
+			throws DbException, TransactionAbortedException {
+		treeLatch.readLock().lock();
+		try {
+			if (layout != layoutVersion) {
+				return null;
+			}
+			return (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+		} finally {
+			treeLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return a counter bumped every time compaction moves or frees pages; page ids
+	 * read while it had an earlier value may no longer hold what they did
+	 */
+	int layoutVersion() {
+		return layoutVersion;
+	}
+
+	/**
+	 * Find the left-most leaf page possibly containing each of a sorted batch of keys,
+	 * for a reader.  Rather than searching from the root once per key, the batch
+	 * descends the tree together: each internal page on the way is read once, and
+	 * the keys are split among its children, each child being visited once with all
+	 * of its keys.  A batch of keys in order thus reads each internal page at most
+	 * once, however many keys fall under it.
+	 * <p>
+	 * No latch is held across levels, so a page can split between reading a parent
+	 * and reading the child; as with {@link #pinLeafPage}, tuples only ever move
+	 * right, so the leaf found is never to the right of the one holding a key.
+	 * 
+	 * @param tid - the transaction id
+	 * @param keys - the keys to search for, in ascending order
+	 * @return the id of the leaf page for each key, or all nulls if the tree is empty
+	 */
+	BTreePageId[] findLeafPageIds(TransactionId tid, List<Field> keys)
+			throws DbException, TransactionAbortedException {
+		BTreePageId[] leaves = new BTreePageId[keys.size()];
+		if (keys.isEmpty()) {
+			return leaves;
+		}
+		treeLatch.readLock().lock();
+		try {
+			HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+			getRootPtrPage(tid, dirtypages); // creates the file if needed
+			LatchSet held = new LatchSet();
+			BTreePageId root;
+			try {
+				root = ((BTreeRootPtrPage) latchPage(tid, dirtypages,
+						BTreeRootPtrPage.getId(tableid), false, held)).getRootId();
+			} finally {
+				held.releaseAll();
+			}
+			if (root != null) {
+				findLeafPageIds(tid, dirtypages, root, keys, 0, keys.size(), leaves);
+			}
+			return leaves;
+		} catch (IOException e) {
+			throw new DbException("unable to read the root of the B+ tree: " + e);
+		} finally {
+			treeLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Recursive helper for the batched descent: find the leaves for keys[from, to),
+	 * all of which lie under the page pid.
+	 */
+	private void findLeafPageIds(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
+			List<Field> keys, int from, int to, BTreePageId[] leaves)
+					throws DbException, TransactionAbortedException {
+		if (pid.pgcateg() == BTreePageId.LEAF) {
+			Arrays.fill(leaves, from, to, pid);
+			return;
+		}
+		BTreePageId[] children = new BTreePageId[to - from];
+		LatchSet held = new LatchSet();
+		try {
+			BTreeInternalPage p = (BTreeInternalPage) latchPage(tid, dirtypages, pid, false, held);
+			for (int i = from; i < to; i++) {
+				children[i - from] = childFor(p, keys.get(i));
+			}
+		} finally {
+			held.releaseAll();
+		}
+		// the keys are sorted, so the keys going to each child are consecutive
+		int start = from;
+		for (int i = from + 1; i <= to; i++) {
+			if (i == to || !children[i - from].equals(children[start - from])) {
+				findLeafPageIds(tid, dirtypages, children[start - from], keys, start, i, leaves);
+				start = i;
+			}
+		}
+	}
+
+	/**
+	 * A consistent copy of the tuples of a leaf page and its sibling pointers
+	 */
+	static class LeafSnapshot {
+		final ArrayList<Tuple> tuples;
+		final BTreePageId leftSiblingId;
+		final BTreePageId rightSiblingId;
+
+		LeafSnapshot(ArrayList<Tuple> tuples, BTreePageId leftSiblingId, BTreePageId rightSiblingId) {
+			this.tuples = tuples;
+			this.leftSiblingId = leftSiblingId;
+			this.rightSiblingId = rightSiblingId;
+		}
+	}
+
+	/**
+	 * Copy the tuples of a leaf page under a shared latch, so a scan sees each
+	 * page either before or after a concurrent insert or split, never halfway.
+	 * 
+	 * @param page - the leaf page to read
+	 * @return the tuples and sibling pointers of the page
+	 */
+	LeafSnapshot readLeaf(BTreeLeafPage page) {
+		return readLeaf(page, null);
+	}
+
+	/**
+	 * Copy the tuples of a leaf page whose keys are greater than or equal to from,
+	 * under a shared latch. The first such tuple is found by binary search.
+	 * 
+	 * @param page - the leaf page to read
+	 * @param from - the smallest key to copy, or null to copy every tuple
+	 * @return the tuples and sibling pointers of the page
+	 */
+	LeafSnapshot readLeaf(BTreeLeafPage page, Field from) {
+		treeLatch.readLock().lock();
+		Lock l = latchFor(page.getId()).readLock();
+		l.lock();
+		try {
+			ArrayList<Tuple> tuples = new ArrayList<Tuple>(page.getNumTuples());
+			Iterator<Tuple> it = from == null ? page.iterator() : page.iterator(from);
+			while (it.hasNext()) {
+				tuples.add(it.next());
+			}
+			return new LeafSnapshot(tuples, page.getLeftSiblingId(), page.getRightSiblingId());
+		} finally {
+			l.unlock();
+			treeLatch.readLock().unlock();
+		}
+	}
+
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
 	 * Used by the BTreeFile iterator.
@@ -287,9 +747,16 @@ public class BTreeFile implements DbFile {
 		
 		// left and right
 		if (page.getRightSiblingId() != null) {
-			BTreeLeafPage right = (BTreeLeafPage)getPage(tid, dirtypages, page.getRightSiblingId(), Permissions.READ_WRITE);
-			right.setLeftSiblingId(p.getId());
-			dirtypages.put(right.getId(), right);
+			// latches are always taken left to right along the leaves
+			Lock rl = latchFor(page.getRightSiblingId()).writeLock();
+			rl.lock();
+			try {
+				BTreeLeafPage right = (BTreeLeafPage)getPage(tid, dirtypages, page.getRightSiblingId(), Permissions.READ_WRITE);
+				right.setLeftSiblingId(p.getId());
+				dirtypages.put(right.getId(), right);
+			} finally {
+				rl.unlock();
+			}
 		}
 		p.setRightSiblingId(page.getRightSiblingId());
 		page.setRightSiblingId(p.getId());
@@ -297,9 +764,10 @@ public class BTreeFile implements DbFile {
 		p.setParentId(par.getId());
 		dirtypages.put(page.getId(), page);
 		dirtypages.put(p.getId(), p);
-		// insert to parent
+		// insert to parent; string keys are cut down to the shortest key that
+		// still separates the two pages
 		BTreeEntry e = new BTreeEntry(
-			vs.get(x).getField(keyField),
+			BTreeInternalPage.separator(keyOf(vs.get(x - 1)), keyOf(vs.get(x))),
 			page.getId(),
 			p.getId()
 		);
@@ -355,23 +823,21 @@ public class BTreeFile implements DbFile {
 			BTreeEntry t = it.next();
 			vs.add(t);
 		}
-		int x = vs.size()/2;
+		int x = splitPoint(page, vs);
 		BTreeInternalPage p = (BTreeInternalPage)getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+		// every key moving to the new page shares the prefix of the old one
+		p.setKeyPrefix(page.getKeyPrefix());
 		for (int i=x;i<vs.size();i++) {
 			page.deleteKeyAndRightChild(vs.get(i));
 		}
 		// When an internal node is split, you will need to update the parent pointers of all the children that were moved.
 		for (int i=x+1;i<vs.size();i++) {
 			BTreeEntry t = vs.get(i);
-			BTreePage tmp = (BTreePage)getPage(tid, dirtypages, t.getRightChild(), Permissions.READ_WRITE);
-			tmp.setParentId(p.getId());
+			setParentLatched(tid, dirtypages, t.getRightChild(), p.getId());
 			p.insertEntry(t);
-			dirtypages.put(tmp.getId(), tmp);
 		}
 		BTreeEntry t = vs.get(x);
-		BTreePage tmp = (BTreePage)getPage(tid, dirtypages, t.getRightChild(), Permissions.READ_WRITE);
-		tmp.setParentId(p.getId());
-		dirtypages.put(tmp.getId(), tmp);
+		setParentLatched(tid, dirtypages, t.getRightChild(), p.getId());
 		// left and right
 		p.setParentId(par.getId());
 		dirtypages.put(page.getId(), page);
@@ -384,6 +850,7 @@ public class BTreeFile implements DbFile {
 		);
 		par.insertEntry(e);
 		dirtypages.put(page.getParentId(), par);
+		narrowKeyPrefixes(par, e, page, p);
 
 		// findLeafPage
 		if (vs.get(x).getKey().compare(Predicate.Op.EQUALS, field)) {
@@ -395,6 +862,89 @@ public class BTreeFile implements DbFile {
 		}
 	}
 	
+	/**
+	 * Choose the entry of a full internal page to push up when splitting it. Pages
+	 * with fixed-size keys split in the middle; compact pages with string keys split
+	 * where the key bytes on each side are about equal, so both halves have room.
+	 * 
+	 * @param page - the page being split
+	 * @param entries - the entries of the page, in order
+	 * @return the index of the entry to push up
+	 */
+	private static int splitPoint(BTreeInternalPage page, Vector<BTreeEntry> entries) {
+		int x = entries.size()/2;
+		if (!(entries.get(0).getKey() instanceof StringField)) {
+			return x;
+		}
+		int total = 0;
+		for (BTreeEntry e : entries) {
+			total += page.entryKeyBytes(e.getKey());
+		}
+		int bytes = 0;
+		for (x = 0; x < entries.size() - 2; x++) {
+			bytes += page.entryKeyBytes(entries.get(x).getKey());
+			if (2 * bytes >= total) {
+				break;
+			}
+		}
+		return Math.max(1, x);
+	}
+
+	/**
+	 * After splitting an internal page, give each half the longest key prefix its
+	 * keys can have: every key that ends up under a page lies between the keys
+	 * bounding it in the parent, so it starts with their common prefix. A page at
+	 * the edge of its parent is bounded on that side only by the parent's range,
+	 * so it gets the parent's prefix.
+	 * 
+	 * @param par - the parent page
+	 * @param e - the entry just pushed up into the parent
+	 * @param left - the left half of the split page
+	 * @param right - the right half of the split page
+	 */
+	private static void narrowKeyPrefixes(BTreeInternalPage par, BTreeEntry e,
+			BTreeInternalPage left, BTreeInternalPage right) {
+		if (!(e.getKey() instanceof StringField)) {
+			return;
+		}
+		Field lo = null;
+		Field hi = null;
+		Iterator<BTreeEntry> it = par.iterator();
+		while (it.hasNext()) {
+			BTreeEntry cur = it.next();
+			if (cur.getRecordId().equals(e.getRecordId())) {
+				if (it.hasNext()) {
+					hi = it.next().getKey();
+				}
+				break;
+			}
+			lo = cur.getKey();
+		}
+		String mid = ((StringField) e.getKey()).getValue();
+		left.setKeyPrefix(lo == null ? par.getKeyPrefix()
+				: BTreeInternalPage.commonPrefix(((StringField) lo).getValue(), mid));
+		right.setKeyPrefix(hi == null ? par.getKeyPrefix()
+				: BTreeInternalPage.commonPrefix(mid, ((StringField) hi).getValue()));
+	}
+
+	/**
+	 * Point a child at a new parent while holding the child's latch.  The caller
+	 * holds the parent exclusively, so anyone holding the child has already
+	 * let go of the parent and won't wait on us.
+	 */
+	private void setParentLatched(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreePageId child, BTreePageId parent) throws DbException, TransactionAbortedException {
+		Lock l = latchFor(child).writeLock();
+		l.lock();
+		try {
+			BTreePage tmp = (BTreePage)getPage(tid, dirtypages, child, Permissions.READ_WRITE);
+			tmp.setParentId(parent);
+			dirtypages.put(tmp.getId(), tmp);
+		} finally {
+			l.unlock();
+		}
+	}
+
 	/**
 	 * Method to encapsulate the process of getting a parent page ready to accept new entries.
 	 * This may mean creating a page to become the new root of the tree, splitting the existing 
@@ -543,32 +1093,52 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		Field key = keyOf(t);
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
-		}
+		treeLatch.readLock().lock();
+		LatchSet held = new LatchSet();
+		try {
+			// optimistically assume the leaf has room: shared latches down to
+			// the leaf, exclusive on the leaf only
+			BTreeLeafPage leafPage = findLeafPageLatched(tid, dirtypages, key, true, false, held);
+			if(leafPage == null || leafPage.getNumEmptySlots() == 0) {
+				// the leaf must split; start over, keeping exclusive latches on
+				// every page the split can reach
+				held.releaseAll();
+				dirtypages.clear();
+				leafPage = findLeafPageLatched(tid, dirtypages, key, true, true, held);
+				if(leafPage.getNumEmptySlots() == 0) {
+					leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
+				}
+			}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			// insert the tuple into the leaf page
+			leafPage.insertTuple(t);
+			markDirty(tid, dirtypages);
+		} finally {
+			held.releaseAll();
+			treeLatch.readLock().unlock();
 		}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
-
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 		dirtyPagesArr.addAll(dirtypages.values());
 		return dirtyPagesArr;
 	}
 	
+	/**
+	 * Mark the pages an operation changed dirty before it lets go of its latches, so
+	 * that compaction, which leaves pages other transactions have dirtied alone, can't
+	 * take them over in the moment before the buffer pool marks them.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages the operation changed
+	 */
+	private static void markDirty(TransactionId tid, HashMap<PageId, Page> dirtypages) {
+		for(Page p : dirtypages.values()) {
+			p.markDirty(true, tid);
+		}
+	}
+
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -888,7 +1458,7 @@ public class BTreeFile implements DbFile {
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -925,14 +1495,43 @@ public class BTreeFile implements DbFile {
 
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
 
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+		// a delete that leaves the page at least half full only needs the leaf
+		boolean rebalance;
+		treeLatch.readLock().lock();
+		LatchSet held = new LatchSet();
+		try {
+			BTreeLeafPage page = (BTreeLeafPage) latchPage(tid, dirtypages, pageId, true, held);
+			int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+			rebalance = page.getNumEmptySlots() + 1 > maxEmptySlots;
+			if(!rebalance) {
+				page.deleteTuple(t);
+				markDirty(tid, dirtypages);
+			}
+		} finally {
+			held.releaseAll();
+			treeLatch.readLock().unlock();
+		}
+
+		if(rebalance) {
+			// stealing and merging walk up through parent pointers, against the
+			// top-down latch order, so they run with the whole tree to themselves
+			treeLatch.writeLock().lock();
+			try {
+				dirtypages.clear();
+				BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+				page.deleteTuple(t);
+
+				// if the page is below minimum occupancy, get some tuples from its siblings
+				// or merge with one of the siblings
+				int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+				if(page.getNumEmptySlots() > maxEmptySlots) { 
+					handleMinOccupancyPage(tid, dirtypages, page);
+				}
+				markDirty(tid, dirtypages);
+			} finally {
+				treeLatch.writeLock().unlock();
+			}
 		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
@@ -1047,6 +1646,13 @@ public class BTreeFile implements DbFile {
 	 */
 	private Page getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg)
 			throws DbException, IOException, TransactionAbortedException {
+		synchronized(allocLatch) {
+			return getEmptyPageUnlatched(tid, dirtypages, pgcateg);
+		}
+	}
+
+	private Page getEmptyPageUnlatched(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg)
+			throws DbException, IOException, TransactionAbortedException {
 		// create the new page
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
@@ -1151,19 +1757,738 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * get the specified tuples from the file based on its IndexPredicate value on
-	 * behalf of the specified transaction. This method will acquire a read lock on
-	 * the affected pages of the file, and may block until the lock can be
-	 * acquired.
+	 * Do one step of online compaction, holding the whole tree for the length of
+	 * the step only.  A compaction pass first walks the leaves one parent at a
+	 * time, packing the leaves of any parent with an underfull leaf into as few
+	 * leaves as will hold them at COMPACTION_FILL_FACTOR and freeing the rest.  It
+	 * then moves up to COMPACTION_BATCH pages a step from the end of the file into
+	 * the lowest free pages, and finally cuts the free pages off the end of the file.
+	 * <p>
+	 * Deletes leave underfull pages behind (merging and stealing are left to the
+	 * lab), so this is what gives their space back.  Pages pinned by open
+	 * iterators, and the leaves next to them, stay where they are, since the
+	 * iterators hold on to their ids.  The pages a step changes are left dirty in
+	 * the buffer pool on behalf of tid, to be logged and written when it commits.
+	 * Pages another transaction has dirtied are left alone; if that is the root
+	 * pointer page or a header page, which any step may change, the step does
+	 * nothing.
 	 * 
 	 * @param tid - the transaction id
-	 * @param ipred - the index predicate value to filter on
-	 * @return an iterator for the filtered tuples
+	 * @return true if the pass has more to do, false once it is finished (the
+	 * next call starts a new pass) or if it has to wait for another transaction
+	 * to finish (the next call picks it up)
+	 * @see #compact(TransactionId, long)
 	 */
-	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+	public boolean compactStep(TransactionId tid)
+			throws DbException, IOException, TransactionAbortedException {
+		treeLatch.writeLock().lock();
+		try {
+			synchronized(allocLatch) {
+				HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+				if(spaceMapDirtiedByOther(tid, dirtypages)) {
+					return false;
+				}
+				HashSet<Integer> stale = new HashSet<Integer>();
+				boolean more = true;
+				if(!compactRepacked) {
+					repackStep(tid, dirtypages, stale);
+					compactRepacked = compactCursor == null;
+				}
+				else if(!relocateStep(tid, dirtypages, stale)) {
+					truncateTail(tid, dirtypages, stale);
+					compactRepacked = false;
+					more = false;
+				}
+				cacheCompacted(tid, dirtypages, stale);
+				return more;
+			}
+		} finally {
+			treeLatch.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Run a compaction pass to the end, pausing between steps so that other
+	 * operations on the tree get their turn.  If the thread is interrupted, the
+	 * pass stops and the next call picks it up where it left off.
+	 * 
+	 * @param tid - the transaction id
+	 * @param pauseMillis - how long to pause between steps
+	 * @return the number of steps taken
+	 * @see #compactStep(TransactionId)
+	 */
+	public int compact(TransactionId tid, long pauseMillis)
+			throws DbException, IOException, TransactionAbortedException {
+		int steps = 0;
+		boolean more = true;
+		while(more) {
+			more = compactStep(tid);
+			steps++;
+			if(more && pauseMillis > 0) {
+				try {
+					Thread.sleep(pauseMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		return steps;
+	}
+
+	/**
+	 * Start compacting this file in the background, if it isn't already: one
+	 * step every pauseMillis, resting COMPACTOR_IDLE_MS between passes.
+	 * 
+	 * @param pauseMillis - how long to pause between steps
+	 */
+	public synchronized void startCompactor(final long pauseMillis) {
+		if(compactor != null)
+			return;
+		compactor = new Thread("BTreeFile compactor") {
+				public void run() {
+					while(compactor == this) {
+						try {
+							Transaction t = new Transaction();
+							t.start();
+							boolean more;
+							try {
+								more = compactStep(t.getId());
+							} catch (DbException | IOException | TransactionAbortedException | RuntimeException e) {
+								t.abort();
+								throw e;
+							}
+							t.commit();
+							Thread.sleep(more ? pauseMillis : COMPACTOR_IDLE_MS);
+						} catch (InterruptedException e) {
+							break;
+						} catch (DbException | IOException | TransactionAbortedException | RuntimeException e) {
+							// e.g. the file was removed from the catalog under us
+							Debug.log("compactor: " + e);
+						}
+					}
+				}
+			};
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	/** Stop the background compactor.  It finishes the step it is on, if any. */
+	public synchronized void stopCompactor() {
+		Thread t = compactor;
+		compactor = null;
+		if(t != null) {
+			t.interrupt();
+		}
+	}
+
+	/**
+	 * Repack the leaves under the parent of the leaf at the compaction cursor, and
+	 * move the cursor on to the first leaf under the next parent.
+	 * @see #repackLeaves(TransactionId, HashMap, BTreeInternalPage, ArrayList, Set)
+	 */
+	private void repackStep(TransactionId tid, HashMap<PageId, Page> dirtypages, Set<Integer> stale)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+		if(rootId == null || rootId.pgcateg() == BTreePageId.LEAF) {
+			// a root leaf has nothing to be packed with
+			compactCursor = null;
+			return;
+		}
+		BTreePageId leafId = compactCursor;
+		if(leafId != null && (leafId.getPageNumber() > numPages() || ((BTreePage) getPage(tid, dirtypages,
+				leafId, Permissions.READ_ONLY)).getParentId().pgcateg() != BTreePageId.INTERNAL)) {
+			// freed since the last step; start the pass over
+			leafId = null;
+		}
+		if(leafId == null) {
+			leafId = findLeafPage(tid, dirtypages, rootId, Permissions.READ_ONLY, null).getId();
+		}
+
+		BTreePageId parentId = ((BTreePage) getPage(tid, dirtypages, leafId, Permissions.READ_ONLY)).getParentId();
+		BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_ONLY);
+		ArrayList<BTreeLeafPage> leaves = new ArrayList<BTreeLeafPage>();
+		Iterator<BTreeEntry> it = parent.iterator();
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			if(leaves.isEmpty()) {
+				leaves.add((BTreeLeafPage) getPage(tid, dirtypages, e.getLeftChild(), Permissions.READ_ONLY));
+			}
+			leaves.add((BTreeLeafPage) getPage(tid, dirtypages, e.getRightChild(), Permissions.READ_ONLY));
+		}
+		compactCursor = leaves.get(leaves.size() - 1).getRightSiblingId();
+		repackLeaves(tid, dirtypages, parent, leaves, stale);
+	}
+
+	/**
+	 * Pack the leaves of a parent into as few leaves as will hold their tuples at
+	 * COMPACTION_FILL_FACTOR, and free the rest.  Leaves that are pinned, or next to
+	 * a pinned leaf, stay as they are (an open iterator holds the ids of the leaves
+	 * next to the one it is on), as do leaves that another transaction has dirtied
+	 * and the leaves next to them; each run of the others is packed into its left-most
+	 * leaves, if one of them is underfull and at least one leaf would be freed.  The
+	 * parent's entries are rebuilt to match, and it always keeps at least two children.
+	 * Nothing is done if another transaction has dirtied the parent.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param parent - the parent page
+	 * @param leaves - the children of the parent, in order
+	 * @param stale - the numbers of the pages freed are added here
+	 */
+	private void repackLeaves(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeInternalPage parent,
+			ArrayList<BTreeLeafPage> leaves, Set<Integer> stale)
+					throws DbException, IOException, TransactionAbortedException {
+		if(dirtiedByOther(tid, parent.getId())) {
+			return;
+		}
+		int n = leaves.size();
+		int maxTuples = leaves.get(0).getMaxTuples();
+		int maxEmptySlots = maxTuples - maxTuples/2; // ceiling
+		int perPage = Math.max(1, (int) (maxTuples * COMPACTION_FILL_FACTOR));
+		ArrayList<BTreeEntry> entries = entries(parent);
+		boolean[] movable = new boolean[n];
+		for(int i = 0; i < n; i++) {
+			BTreeLeafPage leaf = leaves.get(i);
+			movable[i] = !isPinned(leaf.getId()) && !isPinned(leaf.getLeftSiblingId())
+					&& !isPinned(leaf.getRightSiblingId()) && !dirtiedByOther(tid, leaf.getId())
+					&& !dirtiedByOther(tid, leaf.getLeftSiblingId())
+					&& !dirtiedByOther(tid, leaf.getRightSiblingId());
+		}
+
+		// the children and keys of the rebuilt parent; keys.get(j) separates children j-1 and j
+		ArrayList<BTreePageId> children = new ArrayList<BTreePageId>();
+		ArrayList<Field> keys = new ArrayList<Field>();
+		ArrayList<BTreeLeafPage> packed = new ArrayList<BTreeLeafPage>();
+		ArrayList<BTreeLeafPage> freed = new ArrayList<BTreeLeafPage>();
+		int i = 0;
+		while(i < n) {
+			int end = i + 1;
+			if(movable[i]) {
+				while(end < n && movable[end]) {
+					end++;
+				}
+			}
+			ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+			boolean underfull = false;
+			for(int j = i; j < end; j++) {
+				underfull |= leaves.get(j).getNumEmptySlots() > maxEmptySlots;
+				Iterator<Tuple> it = leaves.get(j).iterator();
+				while(it.hasNext()) {
+					tuples.add(it.next());
+				}
+			}
+			int needed = Math.max(i == 0 && end == n ? 2 : 1, (tuples.size() + perPage - 1) / perPage);
+			if(!movable[i] || !underfull || needed >= end - i || tuples.size() < needed) {
+				// leave the run as it is
+				for(int j = i; j < end; j++) {
+					children.add(leaves.get(j).getId());
+					keys.add(j == 0 ? null : entries.get(j - 1).getKey());
+				}
+				i = end;
+				continue;
+			}
+
+			BTreePageId leftId = leaves.get(i).getLeftSiblingId();
+			BTreePageId rightId = leaves.get(end - 1).getRightSiblingId();
+			for(int j = 0; j < needed; j++) {
+				BTreePageId id = leaves.get(i + j).getId();
+				BTreeLeafPage page = new BTreeLeafPage(id, BTreeLeafPage.createEmptyPageData(), keyField);
+				page.setBeforeImage(leaves.get(i + j).getBeforeImage().getPageData());
+				page.setParentId(parent.getId());
+				page.setLeftSiblingId(j == 0 ? leftId : leaves.get(i + j - 1).getId());
+				page.setRightSiblingId(j == needed - 1 ? rightId : leaves.get(i + j + 1).getId());
+				int from = j * tuples.size() / needed;
+				int to = (j + 1) * tuples.size() / needed;
+				for(int k = from; k < to; k++) {
+					Tuple t = new Tuple(td);
+					for(int field = 0; field < td.numFields(); field++) {
+						t.setField(field, tuples.get(k).getField(field));
+					}
+					page.insertTuple(t);
+				}
+				children.add(id);
+				if(j > 0) {
+					keys.add(BTreeInternalPage.separator(keyOf(tuples.get(from - 1)),
+							keyOf(tuples.get(from))));
+				}
+				else {
+					keys.add(i == 0 ? null : entries.get(i - 1).getKey());
+				}
+				packed.add(page);
+			}
+			if(rightId != null) {
+				BTreeLeafPage right = end < n ? leaves.get(end) : (BTreeLeafPage) getPage(tid, dirtypages,
+						rightId, Permissions.READ_ONLY);
+				right = (BTreeLeafPage) getPage(tid, dirtypages, right.getId(), Permissions.READ_WRITE);
+				right.setLeftSiblingId(leaves.get(i + needed - 1).getId());
+			}
+			for(int j = i + needed; j < end; j++) {
+				freed.add(leaves.get(j));
+			}
+			i = end;
+		}
+		if(freed.isEmpty()) {
+			return;
+		}
+
+		BTreeInternalPage newParent = new BTreeInternalPage(parent.getId(),
+				BTreeInternalPage.createEmptyPageData(), keyField);
+		newParent.setBeforeImage(parent.getBeforeImage().getPageData());
+		newParent.setParentId(parent.getParentId());
+		newParent.setKeyPrefix(parent.getKeyPrefix());
+		for(int j = 1; j < children.size(); j++) {
+			newParent.insertEntry(new BTreeEntry(keys.get(j), children.get(j - 1), children.get(j)));
+		}
+		dirtypages.put(newParent.getId(), newParent);
+		for(BTreeLeafPage page : packed) {
+			dirtypages.put(page.getId(), page);
+		}
+		for(BTreeLeafPage leaf : freed) {
+			int pageNo = leaf.getId().getPageNumber();
+			setEmptyPage(tid, dirtypages, pageNo);
+			stale.add(pageNo);
+		}
+	}
+
+	/**
+	 * Move up to COMPACTION_BATCH pages from the end of the file into the lowest
+	 * free pages.  Stops at the first page from the end that can't be moved.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param stale - the numbers of the pages moved from and to are added here
+	 * @return true if any page was moved
+	 */
+	private boolean relocateStep(TransactionId tid, HashMap<PageId, Page> dirtypages, Set<Integer> stale)
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<Integer, BTreePageId> pages = pagesInUse(tid, dirtypages);
+		int moved = 0;
+		for(int pageNo = numPages(); pageNo > 1 && moved < COMPACTION_BATCH; pageNo--) {
+			if(isPageFree(tid, dirtypages, pageNo)) {
+				continue;
+			}
+			BTreePageId pid = pages.get(pageNo);
+			int to = firstFreePage(tid, dirtypages, pageNo);
+			if(pid == null || to < 0 || !movePage(tid, dirtypages, pid, to, stale)) {
+				break;
+			}
+			pages.put(to, new BTreePageId(tableid, to, pid.pgcateg()));
+			moved++;
+		}
+		return moved > 0;
+	}
+
+	/**
+	 * Move a page to a free page number: copy it there, point everything that
+	 * refers to it at the copy, and free the old page.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the page to move
+	 * @param to - the free page number to move it to
+	 * @param stale - the numbers of the pages moved from and to are added here
+	 * @return false if the page was left where it is, because an iterator may hold its id
+	 * or another transaction has dirtied one of the pages the move would change
+	 */
+	private boolean movePage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, int to,
+			Set<Integer> stale) throws DbException, IOException, TransactionAbortedException {
+		if(isPinned(pid)) {
+			return false;
+		}
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			if(isPinned(leaf.getLeftSiblingId()) || isPinned(leaf.getRightSiblingId())) {
+				return false;
+			}
+		}
+		Page page = getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		ArrayList<BTreePageId> changed = new ArrayList<BTreePageId>();
+		changed.add(pid);
+		if(pid.pgcateg() == BTreePageId.HEADER) {
+			changed.add(((BTreeHeaderPage) page).getPrevPageId());
+			changed.add(((BTreeHeaderPage) page).getNextPageId());
+		}
+		else {
+			changed.add(((BTreePage) page).getParentId());
+			if(pid.pgcateg() == BTreePageId.LEAF) {
+				changed.add(((BTreeLeafPage) page).getLeftSiblingId());
+				changed.add(((BTreeLeafPage) page).getRightSiblingId());
+			}
+			else {
+				for(BTreeEntry e : entries((BTreeInternalPage) page)) {
+					changed.add(e.getLeftChild());
+					changed.add(e.getRightChild());
+				}
+			}
+		}
+		for(BTreePageId id : changed) {
+			if(dirtiedByOther(tid, id)) {
+				return false;
+			}
+		}
+
+		BTreePageId newId = new BTreePageId(tableid, to, pid.pgcateg());
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		markPageUsed(tid, dirtypages, to);
+
+		if(pid.pgcateg() == BTreePageId.HEADER) {
+			BTreeHeaderPage header = (BTreeHeaderPage) page;
+			if(header.getPrevPageId() == null) {
+				((BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE)).setHeaderId(newId);
+			}
+			else {
+				((BTreeHeaderPage) getPage(tid, dirtypages, header.getPrevPageId(),
+						Permissions.READ_WRITE)).setNextPageId(newId);
+			}
+			if(header.getNextPageId() != null) {
+				((BTreeHeaderPage) getPage(tid, dirtypages, header.getNextPageId(),
+						Permissions.READ_WRITE)).setPrevPageId(newId);
+			}
+		}
+		else {
+			BTreePageId parentId = ((BTreePage) page).getParentId();
+			if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+				((BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE)).setRootId(newId);
+			}
+			else {
+				BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId,
+						Permissions.READ_WRITE);
+				for(BTreeEntry e : entries(parent)) {
+					if(e.getLeftChild().equals(pid) || e.getRightChild().equals(pid)) {
+						if(e.getLeftChild().equals(pid))
+							e.setLeftChild(newId);
+						if(e.getRightChild().equals(pid))
+							e.setRightChild(newId);
+						parent.updateEntry(e);
+					}
+				}
+			}
+			if(pid.pgcateg() == BTreePageId.LEAF) {
+				BTreeLeafPage leaf = (BTreeLeafPage) page;
+				if(leaf.getLeftSiblingId() != null) {
+					((BTreeLeafPage) getPage(tid, dirtypages, leaf.getLeftSiblingId(),
+							Permissions.READ_WRITE)).setRightSiblingId(newId);
+				}
+				if(leaf.getRightSiblingId() != null) {
+					((BTreeLeafPage) getPage(tid, dirtypages, leaf.getRightSiblingId(),
+							Permissions.READ_WRITE)).setLeftSiblingId(newId);
+				}
+			}
+			else {
+				ArrayList<BTreeEntry> children = entries((BTreeInternalPage) page);
+				((BTreePage) getPage(tid, dirtypages, children.get(0).getLeftChild(),
+						Permissions.READ_WRITE)).setParentId(newId);
+				for(BTreeEntry e : children) {
+					((BTreePage) getPage(tid, dirtypages, e.getRightChild(),
+							Permissions.READ_WRITE)).setParentId(newId);
+				}
+			}
+		}
+
+		// the copy takes the place of a free page
+		Page copy = pageFromBytes(newId, page.getPageData());
+		if(copy instanceof BTreeHeaderPage) {
+			((BTreeHeaderPage) copy).setBeforeImage(BTreeHeaderPage.createEmptyPageData());
+		}
+		else {
+			((BTreePage) copy).setBeforeImage(BTreePage.createEmptyPageData());
+		}
+		dirtypages.remove(pid);
+		dirtypages.put(newId, copy);
+		setEmptyPage(tid, dirtypages, pid.getPageNumber());
+		stale.add(pid.getPageNumber());
+		stale.add(to);
+		return true;
+	}
+
+	/**
+	 * @return the entries of an internal page, in order
+	 */
+	private static ArrayList<BTreeEntry> entries(BTreeInternalPage page) {
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while(it.hasNext()) {
+			entries.add(it.next());
+		}
+		return entries;
+	}
+
+	/**
+	 * Cut the pages the tree doesn't use off the end of the file, stopping at any
+	 * page another transaction has dirtied.  Their header slots are marked used
+	 * again: pages past the end of the file count as used, so that new pages get
+	 * added at the end of the file rather than handed out past it.
+	 * <p>
+	 * The header pages are logged and written before the file is cut, so the header
+	 * pages on disk never have a page past the end of the file marked free.  If the
+	 * file isn't cut after all (say the system crashes first), the pages at its end
+	 * are left marked used but not in the tree, and the next pass cuts them off.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param stale - the numbers of the pages cut off are added here
+	 */
+	private void truncateTail(TransactionId tid, HashMap<PageId, Page> dirtypages, Set<Integer> stale)
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<Integer, BTreePageId> pages = pagesInUse(tid, dirtypages);
+		int last = numPages();
+		int keep = last;
+		while(keep > 1 && !pages.containsKey(keep) && !dirtiedByOther(tid, keep)) {
+			keep--;
+		}
+		if(keep == last) {
+			return;
+		}
+		for(int pageNo = keep + 1; pageNo <= last; pageNo++) {
+			markPageUsed(tid, dirtypages, pageNo);
+			stale.add(pageNo);
+		}
+		BufferPool pool = Database.getBufferPool();
+		pool.cacheDirtyPages(tid, dirtypages.values());
+		pool.flushPages(tid);
+		dirtypages.clear(); // on disk already
+		synchronized(this) {
+			RandomAccessFile rf = new RandomAccessFile(f, "rw");
+			rf.setLength(BTreeRootPtrPage.getPageSize() + (long) keep * BufferPool.getPageSize());
+			rf.close();
+		}
+	}
+
+	/**
+	 * Put the pages a compaction step changed in the buffer pool, dirtied by tid, so
+	 * that they are logged and written when it commits.  The buffer pool first drops
+	 * whatever it held for the page numbers whose contents went away or changed
+	 * identity.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages the step changed
+	 * @param stale - the numbers of the pages freed, moved or cut off
+	 */
+	private void cacheCompacted(TransactionId tid, HashMap<PageId, Page> dirtypages, Set<Integer> stale)
+			throws DbException {
+		BufferPool pool = Database.getBufferPool();
+		for(int pageNo : stale) {
+			pool.discardPage(new BTreePageId(tableid, pageNo, BTreePageId.LEAF));
+			pool.discardPage(new BTreePageId(tableid, pageNo, BTreePageId.INTERNAL));
+			pool.discardPage(new BTreePageId(tableid, pageNo, BTreePageId.HEADER));
+		}
+		pool.cacheDirtyPages(tid, dirtypages.values());
+		if(!stale.isEmpty()) {
+			// tuples have moved, so anything holding their record ids is out of date
+			layoutVersion++;
+			BufferPool.tableChanged(tableid);
+		}
+	}
+
+	/**
+	 * @return true if pid is not null and the page is pinned in the buffer pool
+	 */
+	private boolean isPinned(BTreePageId pid) {
+		return pid != null && Database.getBufferPool().getPinCount(pid) > 0;
+	}
+
+	/**
+	 * @return true if pid is not null and a transaction other than tid has dirtied
+	 * the page in the buffer pool
+	 */
+	private boolean dirtiedByOther(TransactionId tid, BTreePageId pid) {
+		if(pid == null) {
+			return false;
+		}
+		TransactionId dirtier = Database.getBufferPool().dirtier(pid);
+		return dirtier != null && !dirtier.equals(tid);
+	}
+
+	/**
+	 * @return true if a transaction other than tid has dirtied the page with the given
+	 * number, whatever kind of page it is
+	 */
+	private boolean dirtiedByOther(TransactionId tid, int pageNo) {
+		return dirtiedByOther(tid, new BTreePageId(tableid, pageNo, BTreePageId.LEAF))
+				|| dirtiedByOther(tid, new BTreePageId(tableid, pageNo, BTreePageId.INTERNAL))
+				|| dirtiedByOther(tid, new BTreePageId(tableid, pageNo, BTreePageId.HEADER));
+	}
+
+	/**
+	 * @return true if a transaction other than tid has dirtied the root pointer page
+	 * or one of the header pages
+	 */
+	private boolean spaceMapDirtiedByOther(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		if(dirtiedByOther(tid, BTreeRootPtrPage.getId(tableid))) {
+			return true;
+		}
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		while(headerId != null) {
+			if(dirtiedByOther(tid, headerId)) {
+				return true;
+			}
+			headerId = ((BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY)).getNextPageId();
+		}
+		return false;
+	}
+
+	/**
+	 * Find the header page holding the slot for a page.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pageNo - the page number
+	 * @param perm - the permissions to get the header page with
+	 * @return the header page, or null if there is none yet, in which case the page is in use
+	 */
+	private BTreeHeaderPage headerPageFor(TransactionId tid, HashMap<PageId, Page> dirtypages, int pageNo,
+			Permissions perm) throws DbException, IOException, TransactionAbortedException {
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		for(int i = 0; headerId != null && i < pageNo / BTreeHeaderPage.getNumSlots(); i++) {
+			headerId = ((BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY)).getNextPageId();
+		}
+		return headerId == null ? null : (BTreeHeaderPage) getPage(tid, dirtypages, headerId, perm);
+	}
+
+	/**
+	 * @return true if the header pages have the page marked free
+	 */
+	private boolean isPageFree(TransactionId tid, HashMap<PageId, Page> dirtypages, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeHeaderPage header = headerPageFor(tid, dirtypages, pageNo, Permissions.READ_ONLY);
+		return header != null && !header.isSlotUsed(pageNo % BTreeHeaderPage.getNumSlots());
+	}
+
+	/**
+	 * Mark a page used in the header pages
+	 */
+	private void markPageUsed(TransactionId tid, HashMap<PageId, Page> dirtypages, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeHeaderPage header = headerPageFor(tid, dirtypages, pageNo, Permissions.READ_WRITE);
+		if(header != null) {
+			header.markSlotUsed(pageNo % BTreeHeaderPage.getNumSlots(), true);
+		}
+	}
+
+	/**
+	 * @return the lowest free page number below the given one, or -1 if there is none
+	 */
+	private int firstFreePage(TransactionId tid, HashMap<PageId, Page> dirtypages, int below)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		for(int base = 0; headerId != null && base < below; base += BTreeHeaderPage.getNumSlots()) {
+			BTreeHeaderPage header = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			int slot = header.getEmptySlot();
+			if(slot != -1) {
+				return base + slot < below ? base + slot : -1;
+			}
+			headerId = header.getNextPageId();
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the id of every page of this file in use, by page number: the pages
+	 * of the tree and the header pages
+	 */
+	private HashMap<Integer, BTreePageId> pagesInUse(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<Integer, BTreePageId> pages = new HashMap<Integer, BTreePageId>();
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		BTreePageId headerId = rootPtr.getHeaderId();
+		while(headerId != null) {
+			pages.put(headerId.getPageNumber(), headerId);
+			headerId = ((BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY)).getNextPageId();
+		}
+		if(rootPtr.getRootId() == null) {
+			return pages;
+		}
+		// breadth first through the internal pages
+		ArrayList<BTreePageId> queue = new ArrayList<BTreePageId>();
+		queue.add(rootPtr.getRootId());
+		for(int i = 0; i < queue.size(); i++) {
+			BTreePageId pid = queue.get(i);
+			pages.put(pid.getPageNumber(), pid);
+			if(pid.pgcateg() != BTreePageId.INTERNAL) {
+				continue;
+			}
+			ArrayList<BTreeEntry> entries = entries((BTreeInternalPage) getPage(tid, dirtypages, pid,
+					Permissions.READ_ONLY));
+			queue.add(entries.get(0).getLeftChild());
+			for(BTreeEntry e : entries) {
+				queue.add(e.getRightChild());
+			}
+		}
+		return pages;
+	}
+
+	/**
+	 * get the specified tuples from the file based on its IndexPredicate value on
+	 * behalf of the specified transaction. This method will acquire a read lock on
+	 * the affected pages of the file, and may block until the lock can be
+	 * acquired.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on
+	 * @return an iterator for the filtered tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
 		return new BTreeSearchIterator(this, tid, ipred);
 	}
 
+	/**
+	 * Get the tuples whose keys lie between two bounds, in ascending or descending
+	 * key order, on behalf of the specified transaction.  The scan starts at the
+	 * leaf holding the first key in range, found by a search from the root, and
+	 * stops at the first key past the other bound.  A descending scan follows the
+	 * left sibling pointers of the leaves.
+	 * 
+	 * @param tid - the transaction id
+	 * @param lower - the lower bound, with op GREATER_THAN or GREATER_THAN_OR_EQ, or null for none
+	 * @param upper - the upper bound, with op LESS_THAN or LESS_THAN_OR_EQ, or null for none
+	 * @param descending - whether to return the tuples in descending key order
+	 * @return an iterator for the tuples in range
+	 * @throws IllegalArgumentException if a bound has the wrong op
+	 */
+	public DbFileIterator rangeIterator(TransactionId tid, IndexPredicate lower, IndexPredicate upper,
+			boolean descending) {
+		if (lower != null && lower.getOp() != Op.GREATER_THAN && lower.getOp() != Op.GREATER_THAN_OR_EQ) {
+			throw new IllegalArgumentException("lower bound must be > or >=, got " + lower.getOp());
+		}
+		if (upper != null && upper.getOp() != Op.LESS_THAN && upper.getOp() != Op.LESS_THAN_OR_EQ) {
+			throw new IllegalArgumentException("upper bound must be < or <=, got " + upper.getOp());
+		}
+		return new BTreeRangeIterator(this, tid, lower, upper, descending);
+	}
+
+	/**
+	 * Look up a batch of keys at once on behalf of the specified transaction,
+	 * returning every tuple whose key is one of them, in key order.  The keys are
+	 * sorted and then resolved to leaf pages in a single shared descent of the tree
+	 * (see {@link #findLeafPageIds}), and consecutive keys on the same leaf are
+	 * read from it without fetching it again, so probing with many keys, as an
+	 * index nested-loops join or an IN-list does, costs about one read per internal
+	 * page and per leaf involved rather than one root-to-leaf search per key.
+	 * 
+	 * @param tid - the transaction id
+	 * @param keys - the keys to look up, in any order; duplicates are ignored
+	 * @return an iterator for the tuples matching any of the keys
+	 */
+	public DbFileIterator batchIterator(TransactionId tid, List<Field> keys) {
+		ArrayList<Field> sorted = new ArrayList<Field>(keys);
+		Collections.sort(sorted, new Comparator<Field>() {
+			public int compare(Field a, Field b) {
+				if (a.compare(Op.LESS_THAN, b))
+					return -1;
+				return a.compare(Op.GREATER_THAN, b) ? 1 : 0;
+			}
+		});
+		ArrayList<Field> distinct = new ArrayList<Field>(sorted.size());
+		for (Field k : sorted) {
+			if (distinct.isEmpty() || !distinct.get(distinct.size() - 1).compare(Op.EQUALS, k)) {
+				distinct.add(k);
+			}
+		}
+		return new BTreeBatchIterator(this, tid, distinct);
+	}
+
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method 
 	 * will acquire a read lock on the affected pages of the file, and may block until 
@@ -1185,6 +2510,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	BTreePageId nextp = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1203,11 +2529,17 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		it = curp.iterator();
+		curp = f.pinLeafPage(tid, null);
+		load();
+	}
+
+	/**
+	 * take a consistent copy of the current page's tuples
+	 */
+	private void load() {
+		BTreeFile.LeafSnapshot snap = f.readLeaf(curp);
+		it = snap.tuples.iterator();
+		nextp = snap.rightSiblingId;
 	}
 
 	/**
@@ -1222,14 +2554,15 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			it = null;
 
 		while (it == null && curp != null) {
-			BTreePageId nextp = curp.getRightSiblingId();
 			if(nextp == null) {
-				curp = null;
+				unpin();
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				BTreeLeafPage nextPage = (BTreeLeafPage) Database.getBufferPool().pinPage(tid,
 						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
+				unpin();
+				curp = nextPage;
+				load();
 				if (!it.hasNext())
 					it = null;
 			}
@@ -1254,7 +2587,17 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
-		curp = null;
+		unpin();
+	}
+
+	/**
+	 * release the pin on the current leaf page, if any
+	 */
+	private void unpin() {
+		if (curp != null) {
+			Database.getBufferPool().unpinPage(curp.getId());
+			curp = null;
+		}
 	}
 }
 
@@ -1266,6 +2609,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	BTreePageId nextp = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1288,17 +2632,24 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		Field from = null;
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
-		}
-		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			from = ipred.getField();
 		}
-		it = curp.iterator();
+		curp = f.pinLeafPage(tid, from);
+		// skip straight to the first tuple that can match on the first page
+		load(from);
+	}
+
+	/**
+	 * take a consistent copy of the current page's tuples, starting at the
+	 * first key greater than or equal to from (or at the first tuple if from is null)
+	 */
+	private void load(Field from) {
+		BTreeFile.LeafSnapshot snap = f.readLeaf(curp, from);
+		it = snap.tuples.iterator();
+		nextp = snap.rightSiblingId;
 	}
 
 	/**
@@ -1320,25 +2671,32 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
 					// if the predicate was not satisfied and the operation is less than, we have
 					// hit the end
+					it = null;
+					unpin();
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
 						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
+					it = null;
+					unpin();
 					return null;
 				}
 			}
 
-			BTreePageId nextp = curp.getRightSiblingId();
 			// if there are no more pages to the right, end the iteration
 			if(nextp == null) {
+				it = null;
+				unpin();
 				return null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				BTreeLeafPage nextPage = (BTreeLeafPage) Database.getBufferPool().pinPage(tid,
 						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
+				unpin();
+				curp = nextPage;
+				load(null);
 			}
 		}
 
@@ -1359,5 +2717,332 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		unpin();
+	}
+
+	/**
+	 * release the pin on the current leaf page, if any
+	 */
+	private void unpin() {
+		if (curp != null) {
+			Database.getBufferPool().unpinPage(curp.getId());
+			curp = null;
+		}
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for a range of keys of a
+ * B+ Tree File, in either direction
+ */
+class BTreeRangeIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+	BTreePageId nextp = null;
+
+	TransactionId tid;
+	BTreeFile f;
+	IndexPredicate lower;
+	IndexPredicate upper;
+	boolean descending;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param lower - the lower bound, or null for none
+	 * @param upper - the upper bound, or null for none
+	 * @param descending - whether to go from the upper bound down
+	 */
+	public BTreeRangeIterator(BTreeFile f, TransactionId tid, IndexPredicate lower,
+			IndexPredicate upper, boolean descending) {
+		this.f = f;
+		this.tid = tid;
+		this.lower = lower;
+		this.upper = upper;
+		this.descending = descending;
+	}
+
+	/**
+	 * Open this iterator on the leaf page holding the first key in range: the
+	 * left-most leaf possibly holding the lower bound going up, or the right-most
+	 * leaf possibly holding the upper bound going down
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		IndexPredicate start = descending ? upper : lower;
+		Field from = start == null ? null : start.getField();
+		curp = f.pinLeafPage(tid, from, descending);
+		load(descending ? null : from);
+	}
+
+	/**
+	 * take a consistent copy of the current page's tuples in scan order, starting
+	 * at the first key greater than or equal to from when going up
+	 */
+	private void load(Field from) {
+		BTreeFile.LeafSnapshot snap = f.readLeaf(curp, from);
+		if (descending) {
+			Collections.reverse(snap.tuples);
+			nextp = snap.leftSiblingId;
+		}
+		else {
+			nextp = snap.rightSiblingId;
+		}
+		it = snap.tuples.iterator();
+	}
+
+	/**
+	 * Move to the page before the current one in scan order.  Going down, the
+	 * left sibling may have split since its pointer was read, leaving its upper
+	 * half on new pages between it and the current page; those are visited first
+	 * by following right sibling pointers back towards the current page.
+	 */
+	private void advance() throws TransactionAbortedException, DbException {
+		BTreePageId from = curp.getId();
+		BTreeLeafPage nextPage = (BTreeLeafPage) Database.getBufferPool().pinPage(tid,
+				nextp, Permissions.READ_ONLY);
+		unpin();
+		curp = nextPage;
+		if (!descending) {
+			load(null);
+			return;
+		}
+		while (true) {
+			BTreeFile.LeafSnapshot snap = f.readLeaf(curp);
+			if (snap.rightSiblingId == null || snap.rightSiblingId.equals(from)) {
+				Collections.reverse(snap.tuples);
+				it = snap.tuples.iterator();
+				nextp = snap.leftSiblingId;
+				return;
+			}
+			nextPage = (BTreeLeafPage) Database.getBufferPool().pinPage(tid,
+					snap.rightSiblingId, Permissions.READ_ONLY);
+			unpin();
+			curp = nextPage;
+		}
+	}
+
+	/**
+	 * Read the next tuple in range, moving to the next page in scan order when
+	 * the current one runs out.
+	 * 
+	 * @return the next tuple in range, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		IndexPredicate start = descending ? upper : lower;
+		IndexPredicate end = descending ? lower : upper;
+		while (it != null) {
+
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				Field key = t.getField(f.keyField());
+				if (start != null && !key.compare(start.getOp(), start.getField())) {
+					// keys equal to an exclusive bound, or past it on the first page
+					continue;
+				}
+				if (end != null && !key.compare(end.getOp(), end.getField())) {
+					// past the far bound, so every key after this one is too
+					it = null;
+					unpin();
+					return null;
+				}
+				return t;
+			}
+
+			if(nextp == null) {
+				it = null;
+				unpin();
+				return null;
+			}
+			advance();
+		}
+
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the range
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		unpin();
+	}
+
+	/**
+	 * release the pin on the current leaf page, if any
+	 */
+	private void unpin() {
+		if (curp != null) {
+			Database.getBufferPool().unpinPage(curp.getId());
+			curp = null;
+		}
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for a batch of key lookups
+ * on a B+ Tree File
+ */
+class BTreeBatchIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+	BTreePageId nextp = null;
+
+	TransactionId tid;
+	BTreeFile f;
+	List<Field> keys;
+	BTreePageId[] leaves;
+	int layout; // the tree's layout version when the leaves were found
+	int k; // the key being looked up
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param keys - the keys to look up, sorted and without duplicates
+	 */
+	public BTreeBatchIterator(BTreeFile f, TransactionId tid, List<Field> keys) {
+		this.f = f;
+		this.tid = tid;
+		this.keys = keys;
+	}
+
+	/**
+	 * Open this iterator by finding the leaf page for every key
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		layout = f.layoutVersion();
+		leaves = f.findLeafPageIds(tid, keys);
+		k = 0;
+	}
+
+	/**
+	 * Move to a leaf page, keeping the current one if it is the same page
+	 */
+	private void moveTo(BTreePageId pid) throws DbException, TransactionAbortedException {
+		if (curp != null && curp.getId().equals(pid))
+			return;
+		BTreeLeafPage page = (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+		unpin();
+		curp = page;
+	}
+
+	/**
+	 * Move to the leaf page found for the current key, unless compaction has
+	 * moved pages since the leaves were found
+	 * 
+	 * @return false if the leaves have to be found again
+	 */
+	private boolean moveToLeaf() throws DbException, TransactionAbortedException {
+		if (curp != null && curp.getId().equals(leaves[k]))
+			return true;
+		BTreeLeafPage page = f.pinLeafPage(tid, leaves[k], layout);
+		if (page == null)
+			return false;
+		unpin();
+		curp = page;
+		return true;
+	}
+
+	/**
+	 * take a consistent copy of the current page's tuples, starting at the first
+	 * key greater than or equal to the key being looked up
+	 */
+	private void load() {
+		BTreeFile.LeafSnapshot snap = f.readLeaf(curp, keys.get(k));
+		it = snap.tuples.iterator();
+		nextp = snap.rightSiblingId;
+	}
+
+	/**
+	 * Read the next tuple matching the current key, moving on to the next key
+	 * at the first greater key, and to the right sibling if a page runs out
+	 * before then.
+	 * 
+	 * @return the next matching tuple, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		while (leaves != null && k < keys.size()) {
+			if (it == null) {
+				if (leaves[k] == null) {
+					k++;
+					continue;
+				}
+				if (!moveToLeaf()) {
+					// find the leaves of the keys still to go again
+					layout = f.layoutVersion();
+					BTreePageId[] found = f.findLeafPageIds(tid, keys.subList(k, keys.size()));
+					System.arraycopy(found, 0, leaves, k, found.length);
+					continue;
+				}
+				load();
+			}
+			Field key = keys.get(k);
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (t.getField(f.keyField()).compare(Op.EQUALS, key)) {
+					return t;
+				}
+				// past the key
+				it = null;
+				break;
+			}
+			if (it == null) {
+				k++;
+			}
+			else if (nextp == null) {
+				it = null;
+				k++;
+			}
+			else {
+				moveTo(nextp);
+				load();
+			}
+		}
+		unpin();
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the first key
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		leaves = null;
+		unpin();
+	}
+
+	/**
+	 * release the pin on the current leaf page, if any
+	 */
+	private void unpin() {
+		if (curp != null) {
+			Database.getBufferPool().unpinPage(curp.getId());
+			curp = null;
+		}
 	}
 }
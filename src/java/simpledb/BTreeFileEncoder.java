@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.text.ParseException;
 import java.util.*;
 
 import simpledb.Predicate.Op;
@@ -14,10 +15,10 @@ import simpledb.Predicate.Op;
 public class BTreeFileEncoder {
 
 	/**
-	 * Encode the file using the BTreeFile's Insert method.
+	 * Encode the file by bulk loading the sorted tuples into a B+ tree.
 	 * 
 	 * @param tuples - list of tuples to add to the file
-	 * @param hFile - the file to temporarily store the data as a heap file on disk
+	 * @param hFile - unused; no intermediate heap file is built any more
 	 * @param bFile - the file on disk to back the resulting BTreeFile
 	 * @param keyField - the index of the key field for this B+ tree
 	 * @param numFields - the number of fields in each tuple
@@ -49,62 +50,502 @@ public class BTreeFileEncoder {
 	}
 
 	/**
-	 * Encode the file using the BTreeFile's Insert method.
+	 * Encode the file by bulk loading the sorted tuples into a B+ tree.  The
+	 * text file is read a run of RUN_TUPLES lines at a time; each run is sorted
+	 * on the key and, unless it is the only one, spilled to a temporary file.
+	 * The runs are then merged straight into the leaf pages, so no more than
+	 * one run of tuples is ever held in memory.
 	 * 
-	 * @param inFile - the raw text file containing the tuples
-	 * @param hFile - the file to temporarily store the data as a heap file on disk
+	 * @param inFile - the raw text file containing the tuples, one per line,
+	 *   with comma separated integer fields
+	 * @param hFile - unused; no intermediate heap file is built any more
 	 * @param bFile - the file on disk to back the resulting BTreeFile
 	 * @param keyField - the index of the key field for this B+ tree
 	 * @param numFields - the number of fields in each tuple
 	 * @return the BTreeFile
+	 * @throws IOException if a file can't be read or written, or a line is
+	 *   malformed
+	 * @see #bulkLoad(ArrayList, File, TupleDesc, int, double)
 	 */
 	public static BTreeFile convert(File inFile, File hFile, File bFile,
 			int keyField, int numFields)
 					throws IOException {
-		// convert the inFile to HeapFile first.
-		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields);
-		HeapFile heapf = Utility.openHeapFile(numFields, hFile);
+		TupleDesc td = Utility.getTupleDesc(numFields);
+		BTreeFile bf = new BTreeFile(bFile, keyField, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		TupleComparator comparator = new TupleComparator(keyField, bf.tieFields());
+
+		ArrayList<File> runs = new ArrayList<File>();
+		ArrayList<Tuple> run = new ArrayList<Tuple>();
+		int n = 0;
+		SortedInput input = null;
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(inFile));
+			try {
+				String line;
+				while ((line = br.readLine()) != null) {
+					if (line.trim().isEmpty()) {
+						continue;
+					}
+					run.add(parseLine(line, td));
+					n++;
+					if (run.size() == RUN_TUPLES) {
+						runs.add(spillRun(run, comparator));
+						run.clear();
+					}
+				}
+			} finally {
+				br.close();
+			}
+			if (runs.isEmpty()) {
+				Collections.sort(run, comparator);
+				input = new ListInput(run);
+			}
+			else {
+				if (!run.isEmpty()) {
+					runs.add(spillRun(run, comparator));
+				}
+				run = null;
+				input = new RunMerger(runs, n, td, comparator);
+			}
+			load(bf, input, DEFAULT_FILL_FACTOR);
+		} finally {
+			if (input != null) {
+				input.close();
+			}
+			for (File f : runs) {
+				f.delete();
+			}
+		}
+		return bf;
+	}
 
-		// add the heap file to B+ tree file
-		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
+	/** Most tuples convert holds in memory, as one sorted run */
+	static final int RUN_TUPLES = 1 << 16;
+
+	/** Parse a line of comma separated integers into a tuple */
+	private static Tuple parseLine(String line, TupleDesc td) throws IOException {
+		String[] fields = line.split(",");
+		if (fields.length != td.numFields()) {
+			throw new IOException("expected " + td.numFields() + " fields: " + line);
+		}
+		Tuple t = new Tuple(td);
+		for (int i = 0; i < fields.length; i++) {
+			try {
+				t.setField(i, new IntField(Integer.parseInt(fields[i].trim())));
+			} catch (NumberFormatException e) {
+				throw new IOException("bad field " + (i + 1) + ": " + line);
+			}
+		}
+		return t;
+	}
 
+	/** Sort a run of tuples and write it to a temporary file */
+	private static File spillRun(ArrayList<Tuple> run, TupleComparator comparator) throws IOException {
+		Collections.sort(run, comparator);
+		File f = File.createTempFile("run", ".dat");
+		f.deleteOnExit();
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
 		try {
-			TransactionId tid = new TransactionId();
-			DbFileIterator it = Database.getCatalog().getDatabaseFile(heapf.getId()).iterator(tid);
-			it.open();
-			int count = 0;
-			Transaction t = new Transaction();
-			while (it.hasNext()) {
-				Tuple tup = it.next();
-				Database.getBufferPool().insertTuple(t.getId(), bf.getId(), tup);
-				count++;
-				if(count >= 40) {
-					Database.getBufferPool().flushAllPages();
-					count = 0;
+			for (Tuple t : run) {
+				for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+					t.getField(i).serialize(dos);
 				}
-				t.commit();
-				t = new Transaction();
 			}
-			it.close();
-		} catch(TransactionAbortedException te){
-			te.printStackTrace();
-			return bf;
-		} catch(DbException e) {
-			e.printStackTrace();
-			return bf;
-		} catch(IOException e) {
-			e.printStackTrace();
-			return bf;
+		} finally {
+			dos.close();
 		}
+		return f;
+	}
 
-		try {
-			Database.getBufferPool().flushAllPages();
-		} catch(Exception e) {
-			e.printStackTrace();
+	/**
+	 * Tuples in key order, for the bulk loader to read through twice: once
+	 * for the keys between the leaves, and once to write the leaves.
+	 */
+	private interface SortedInput {
+		/** @return the number of tuples */
+		int size();
+
+		/** Go back to the first tuple */
+		void rewind() throws IOException;
+
+		/** @return the next tuple, or null after the last */
+		Tuple next() throws IOException;
+
+		void close() throws IOException;
+	}
+
+	/** Tuples already sorted in memory */
+	private static class ListInput implements SortedInput {
+		private final ArrayList<Tuple> tuples;
+		private int pos = 0;
+
+		ListInput(ArrayList<Tuple> tuples) {
+			this.tuples = tuples;
 		}
 
+		public int size() {
+			return tuples.size();
+		}
+
+		public void rewind() {
+			pos = 0;
+		}
+
+		public Tuple next() {
+			return pos < tuples.size() ? tuples.get(pos++) : null;
+		}
+
+		public void close() {
+		}
+	}
+
+	/** Sorted runs on disk, merged as they are read */
+	private static class RunMerger implements SortedInput {
+		private final ArrayList<File> runs;
+		private final int n;
+		private final TupleDesc td;
+		private final Comparator<Tuple> comparator;
+		private final ArrayList<DataInputStream> streams = new ArrayList<DataInputStream>();
+		private final ArrayList<Integer> left = new ArrayList<Integer>();
+		/** The next tuple of each run that has one */
+		private PriorityQueue<Head> heads;
+
+		private static class Head {
+			final Tuple t;
+			final int run;
+
+			Head(Tuple t, int run) {
+				this.t = t;
+				this.run = run;
+			}
+		}
+
+		RunMerger(ArrayList<File> runs, int n, TupleDesc td, Comparator<Tuple> comparator) {
+			this.runs = runs;
+			this.n = n;
+			this.td = td;
+			this.comparator = comparator;
+		}
+
+		public int size() {
+			return n;
+		}
+
+		public void rewind() throws IOException {
+			close();
+			heads = new PriorityQueue<Head>(Math.max(1, runs.size()), new Comparator<Head>() {
+				public int compare(Head a, Head b) {
+					int cmp = comparator.compare(a.t, b.t);
+					// equal keys come out in run order, as a stable sort would have it
+					return cmp != 0 ? cmp : Integer.compare(a.run, b.run);
+				}
+			});
+			for (int i = 0; i < runs.size(); i++) {
+				streams.add(new DataInputStream(new BufferedInputStream(new FileInputStream(runs.get(i)), 1 << 16)));
+				left.add((int) (runs.get(i).length() / td.getSize()));
+				advance(i);
+			}
+		}
+
+		/** Read run i's next tuple into the heap, if it has one */
+		private void advance(int i) throws IOException {
+			int l = left.get(i);
+			if (l == 0) {
+				return;
+			}
+			left.set(i, l - 1);
+			DataInputStream dis = streams.get(i);
+			Tuple t = new Tuple(td);
+			try {
+				for (int f = 0; f < td.numFields(); f++) {
+					t.setField(f, td.getFieldType(f).parse(dis));
+				}
+			} catch (ParseException e) {
+				throw new IOException(e);
+			}
+			heads.add(new Head(t, i));
+		}
+
+		public Tuple next() throws IOException {
+			Head head = heads.poll();
+			if (head == null) {
+				return null;
+			}
+			advance(head.run);
+			return head.t;
+		}
+
+		public void close() throws IOException {
+			for (DataInputStream dis : streams) {
+				dis.close();
+			}
+			streams.clear();
+			left.clear();
+		}
+	}
+
+	/** Default fraction of each page the bulk loader fills */
+	public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+	/**
+	 * Build a B+ tree bottom-up from a set of tuples.  The tuples are sorted on
+	 * the key field and cut into leaf pages holding fillFactor of a page's
+	 * capacity each; then each level of internal pages is built over the level
+	 * below it until a single root remains.  Page numbers are assigned level by
+	 * level before anything is written, so every parent and sibling pointer is
+	 * known up front and the pages are written out in one sequential pass,
+	 * without going through the BufferPool.
+	 * <p>
+	 * A fill factor below 1 leaves room on every page for later inserts before
+	 * the first splits.  It may not be below 0.5, since pages must stay at least
+	 * half full.  The resulting file is added to the Catalog.
+	 * 
+	 * @param tuples - the tuples to load; sorted in place
+	 * @param bFile - the file on disk to back the resulting BTreeFile (overwritten)
+	 * @param td - the tuple descriptor of the tuples
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @param fillFactor - fraction of each page to fill, in [0.5, 1]
+	 * @return the BTreeFile
+	 * @throws IOException
+	 */
+	public static BTreeFile bulkLoad(ArrayList<Tuple> tuples, File bFile, TupleDesc td,
+			int keyField, double fillFactor) throws IOException {
+		if(fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1, got " + fillFactor);
+		}
+		BTreeFile bf = new BTreeFile(bFile, keyField, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		bulkLoad(bf, tuples, fillFactor);
 		return bf;
+	}
+
+	/**
+	 * Bulk load a set of tuples into a BTreeFile that is already known to the
+	 * Catalog, overwriting its backing file.  No pages of the file may be in
+	 * the BufferPool.
+	 * 
+	 * @param bf - the BTreeFile to load
+	 * @param tuples - the tuples to load; sorted in place
+	 * @param fillFactor - fraction of each page to fill, in [0.5, 1]
+	 * @throws IOException
+	 * @see #bulkLoad(ArrayList, File, TupleDesc, int, double)
+	 */
+	public static void bulkLoad(BTreeFile bf, ArrayList<Tuple> tuples, double fillFactor) throws IOException {
+		if(fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1, got " + fillFactor);
+		}
+		Collections.sort(tuples, new TupleComparator(bf.keyField(), bf.tieFields()));
+		load(bf, new ListInput(tuples), fillFactor);
+	}
+
+	/**
+	 * Bulk load tuples already in key order into a BTreeFile, overwriting its
+	 * backing file.  The input is read through twice, and besides it only the
+	 * keys between the leaves, and one leaf's tuples at a time, are kept.
+	 */
+	private static void load(BTreeFile bf, SortedInput input, double fillFactor) throws IOException {
+		File bFile = bf.getFile();
+		TupleDesc td = bf.getTupleDesc();
+		int keyField = bf.keyField();
+		int[] tieFields = bf.tieFields();
+		int npagebytes = BufferPool.getPageSize();
+		int numFields = td.numFields();
+		Type[] typeAr = new Type[numFields];
+		for (int i = 0; i < numFields; i++) {
+			typeAr[i] = td.getFieldType(i);
+		}
+		Type keyType = typeAr[keyField];
+		int tableid = bf.getId();
+
+		int nrecbytes = td.getSize();
+		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
+		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
+		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
+		int nentries = BTreeInternalPage.maxEntries(keyType, tieFields.length, npagebytes);
+		boolean compact = tieFields.length == 0 && BTreeInternalPage.isCompact(keyType);
+
+		// 1. cut the tuples into leaves
+		ArrayList<int[]> leafRanges = packLevel(input.size(), nrecords,
+				Math.max(1, (int) (nrecords * fillFactor)), nrecords / 2);
+		int nextPageNo = 1;
+
+		// for each level: page numbers of the nodes, and the key separating each
+		// node from the one before it (the first node's is never used)
+		ArrayList<Integer> levelPages = new ArrayList<Integer>();
+		ArrayList<Field> levelKeys = new ArrayList<Field>();
+		for (int i = 0; i < leafRanges.size(); i++) {
+			levelPages.add(nextPageNo++);
+		}
+		levelKeys.add(null);
+		input.rewind();
+		Tuple prev = null;
+		int t = 0;
+		for (Tuple tup = input.next(); tup != null; tup = input.next(), t++) {
+			if (levelKeys.size() < leafRanges.size() && t == leafRanges.get(levelKeys.size())[0]) {
+				levelKeys.add(BTreeInternalPage.separator(bf.keyOf(prev), bf.keyOf(tup)));
+			}
+			prev = tup;
+		}
+		int numLeaves = levelPages.size();
+		int[] parentOf = new int[numLeaves + 1]; // grows as levels are added
+
+		// 2. build internal levels until one node is left
+		ArrayList<ArrayList<BTreeEntry>> internalPages = new ArrayList<ArrayList<BTreeEntry>>();
+		ArrayList<Integer> internalChildCategories = new ArrayList<Integer>();
+		// for string keys: the keys bounding each internal page in its parent
+		ArrayList<Field[]> internalFences = new ArrayList<Field[]>();
+		int childCategory = BTreePageId.LEAF;
+		while (levelPages.size() > 1) {
+			// counted in children, which is one more than the entries
+			int cap = nentries + 1;
+			ArrayList<int[]> groups;
+			while (true) {
+				groups = packLevel(levelPages.size(), cap,
+						Math.max(2, (int) (cap * fillFactor)), Math.max(2, (cap - 1) / 2 + 1));
+				// string keys vary in length, so the slots may not be what runs out
+				if (!compact || keysFit(groups, levelKeys, npagebytes)) {
+					break;
+				}
+				cap = Math.max(2, cap * 3 / 4);
+			}
+			ArrayList<Integer> upPages = new ArrayList<Integer>();
+			ArrayList<Field> upKeys = new ArrayList<Field>();
+			for (int j = 0; j < groups.size(); j++) {
+				int[] g = groups.get(j);
+				internalFences.add(new Field[] {
+						j == 0 ? null : levelKeys.get(g[0]),
+						j == groups.size() - 1 ? null : levelKeys.get(groups.get(j + 1)[0])});
+				int pageNo = nextPageNo++;
+				ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+				for (int c = g[0] + 1; c < g[1]; c++) {
+					entries.add(new BTreeEntry(levelKeys.get(c),
+							new BTreePageId(tableid, levelPages.get(c - 1), childCategory),
+							new BTreePageId(tableid, levelPages.get(c), childCategory)));
+				}
+				if (parentOf.length <= pageNo) {
+					parentOf = Arrays.copyOf(parentOf, Math.max(pageNo + 1, parentOf.length * 2));
+				}
+				for (int c = g[0]; c < g[1]; c++) {
+					parentOf[levelPages.get(c)] = pageNo;
+				}
+				internalPages.add(entries);
+				internalChildCategories.add(childCategory);
+				upPages.add(pageNo);
+				upKeys.add(levelKeys.get(g[0]));
+			}
+			levelPages = upPages;
+			levelKeys = upKeys;
+			childCategory = BTreePageId.INTERNAL;
+		}
+		int root = levelPages.get(0);
+		int rootCategory = (root > numLeaves ? BTreePageId.INTERNAL : BTreePageId.LEAF);
+		if (parentOf.length <= nextPageNo) {
+			parentOf = Arrays.copyOf(parentOf, nextPageNo + 1);
+		}
 
+		// 3. write everything out in page number order
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		input.rewind();
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(bFile), 1 << 16);
+		try {
+			os.write(convertToRootPtrPage(root, rootCategory, 0));
+			for (int i = 0; i < numLeaves; i++) {
+				int[] r = leafRanges.get(i);
+				int pageNo = i + 1;
+				ArrayList<Tuple> pageTuples = new ArrayList<Tuple>(r[1] - r[0]);
+				for (int j = r[0]; j < r[1]; j++) {
+					pageTuples.add(input.next());
+				}
+				BTreeLeafPage page = new BTreeLeafPage(new BTreePageId(tableid, pageNo, BTreePageId.LEAF),
+						convertToLeafPage(pageTuples, npagebytes, numFields, typeAr, keyField), keyField);
+				page.setParentId(parentId(tableid, parentOf[pageNo], rootPtrId));
+				page.setLeftSiblingId(pageNo > 1 ? new BTreePageId(tableid, pageNo - 1, BTreePageId.LEAF) : null);
+				page.setRightSiblingId(pageNo < numLeaves ? new BTreePageId(tableid, pageNo + 1, BTreePageId.LEAF) : null);
+				os.write(page.getPageData());
+			}
+			// the prefix shared by all keys under each page: that of the keys bounding
+			// it, or failing those its parent's; parents come later in the file
+			String[] prefixes = new String[internalPages.size()];
+			for (int i = internalPages.size() - 1; i >= 0; i--) {
+				Field[] fence = internalFences.get(i);
+				int parentNo = parentOf[numLeaves + 1 + i];
+				if (!compact) {
+					prefixes[i] = "";
+				}
+				else if (fence[0] != null && fence[1] != null) {
+					prefixes[i] = BTreeInternalPage.commonPrefix(((StringField) fence[0]).getValue(),
+							((StringField) fence[1]).getValue());
+				}
+				else {
+					prefixes[i] = parentNo == 0 ? "" : prefixes[parentNo - numLeaves - 1];
+				}
+			}
+			for (int i = 0; i < internalPages.size(); i++) {
+				int pageNo = numLeaves + 1 + i;
+				BTreeInternalPage page = new BTreeInternalPage(new BTreePageId(tableid, pageNo, BTreePageId.INTERNAL),
+						convertToInternalPage(internalPages.get(i), npagebytes, keyType, tieFields.length,
+								internalChildCategories.get(i)),
+						keyField);
+				page.setParentId(parentId(tableid, parentOf[pageNo], rootPtrId));
+				page.setKeyPrefix(prefixes[i]);
+				os.write(page.getPageData());
+			}
+		} catch (DbException e) {
+			throw new IOException(e);
+		} finally {
+			os.close();
+			BufferPool.tableChanged(tableid);
+		}
+	}
+
+	/**
+	 * Check that the string keys of each group of nodes fit on one compact
+	 * internal page, counting them without any prefix.
+	 */
+	private static boolean keysFit(ArrayList<int[]> groups, ArrayList<Field> levelKeys, int npagebytes) {
+		int area = BTreeInternalPage.compactKeyAreaSize(npagebytes);
+		for (int[] g : groups) {
+			int bytes = 1;
+			for (int c = g[0] + 1; c < g[1]; c++) {
+				bytes += 1 + ((StringField) levelKeys.get(c)).getValue().length();
+			}
+			if (bytes > area) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static BTreePageId parentId(int tableid, int parentNo, BTreePageId rootPtrId) {
+		return parentNo == 0 ? rootPtrId : new BTreePageId(tableid, parentNo, BTreePageId.INTERNAL);
+	}
+
+	/**
+	 * Cut n consecutive items into pages of about the target size, spread as
+	 * evenly as possible.  No page gets more than cap items, and unless there
+	 * is only one page, none gets fewer than min.
+	 * 
+	 * @param n - the number of items
+	 * @param cap - the most items a page can hold
+	 * @param target - the number of items to aim for on each page
+	 * @param min - the fewest items a page other than the only one may hold
+	 * @return [start, end) item ranges, one per page
+	 */
+	private static ArrayList<int[]> packLevel(int n, int cap, int target, int min) {
+		int pages = Math.max((n + cap - 1) / cap, n / target);
+		pages = Math.max(pages, 1);
+		while (pages > 1 && n / pages < min && (n + pages - 2) / (pages - 1) <= cap) {
+			pages--;
+		}
+		ArrayList<int[]> ranges = new ArrayList<int[]>();
+		int start = 0;
+		for (int i = 0; i < pages; i++) {
+			int size = n / pages + (i < n % pages ? 1 : 0);
+			ranges.add(new int[] {start, start + size});
+			start += size;
+		}
+		return ranges;
 	}
 
 	/** 
@@ -112,6 +553,7 @@ public class BTreeFileEncoder {
 	 */
 	public static class TupleComparator implements Comparator<Tuple> {
 		private int keyField;
+		private int[] tieFields;
 
 		/** 
 		 * Construct a TupleComparator
@@ -119,7 +561,19 @@ public class BTreeFileEncoder {
 		 * @param keyField - the index of the field the tuples are keyed on
 		 */
 		public TupleComparator(int keyField) {
+			this(keyField, new int[0]);
+		}
+
+		/** 
+		 * Construct a TupleComparator for a tree with tie fields
+		 * 
+		 * @param keyField - the index of the field the tuples are keyed on
+		 * @param tieFields - the fields breaking ties between equal keys
+		 * @see BTreeFile#keyOf(Tuple)
+		 */
+		public TupleComparator(int keyField, int[] tieFields) {
 			this.keyField = keyField;
+			this.tieFields = tieFields;
 		}
 
 		/**
@@ -128,11 +582,13 @@ public class BTreeFileEncoder {
 		 * @return -1 if t1 < t2, 1 if t1 > t2, 0 if t1 == t2
 		 */
 		public int compare(Tuple t1, Tuple t2) {
+			Field k1 = BTreeFile.keyOf(t1, keyField, tieFields);
+			Field k2 = BTreeFile.keyOf(t2, keyField, tieFields);
 			int cmp = 0;
-			if(t1.getField(keyField).compare(Op.LESS_THAN, t2.getField(keyField))) {
+			if(k1.compare(Op.LESS_THAN, k2)) {
 				cmp = -1;
 			}
-			else if(t1.getField(keyField).compare(Op.GREATER_THAN, t2.getField(keyField))) {
+			else if(k1.compare(Op.GREATER_THAN, k2)) {
 				cmp = 1;
 			}
 			return cmp;
@@ -228,10 +684,11 @@ public class BTreeFileEncoder {
 		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
 		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
-		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
+		int nentries = BTreeInternalPage.maxEntries(keyType, npagebytes);
+		if (BTreeInternalPage.isCompact(keyType)) {
+			// full-length keys go up here, so only count on what fits whatever their length
+			nentries = BTreeInternalPage.compactGuaranteedEntries(npagebytes);
+		}
 
 		ArrayList<ArrayList<BTreeEntry>> entries = new ArrayList<ArrayList<BTreeEntry>>();
 
@@ -624,7 +1081,25 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		return convertToInternalPage(entries, npagebytes, keyType, 0, childPageCategory);
+	}
+
+	/**
+	 * Convert a set of entries of a tree with tie fields to a byte array in the
+	 * format of a BTreeInternalPage
+	 * 
+	 * @param ties - the number of tie fields stored with each key
+	 * @see #convertToInternalPage(ArrayList, int, Type, int)
+	 * @see BTreeFile#keyOf(Tuple)
+	 */
+	static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
+			Type keyType, int ties, int childPageCategory)
+					throws IOException {
+		if (ties == 0 && BTreeInternalPage.isCompact(keyType)) {
+			return convertToCompactInternalPage(entries, npagebytes, childPageCategory);
+		}
+		int keyLen = BTreeInternalPage.keyLen(keyType, ties);
+		int nentrybytes = keyLen + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
@@ -673,7 +1148,7 @@ public class BTreeFileEncoder {
 		}
 
 		for(int e = entrycount; e < nentries; e++) {
-			for (int j=0; j<keyType.getLen(); j++) {
+			for (int j=0; j<keyLen; j++) {
 				dos.writeByte(0);
 			}
 		}
@@ -697,6 +1172,31 @@ public class BTreeFileEncoder {
 
 	}
 
+	/**
+	 * Convert a set of entries with string keys to a byte array in the compact format
+	 * of a BTreeInternalPage, with no key prefix.
+	 * 
+	 * @see #convertToInternalPage(ArrayList, int, Type, int)
+	 */
+	private static byte[] convertToCompactInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
+			int childPageCategory) {
+		int nslots = BTreeInternalPage.maxEntries(Type.STRING_TYPE, npagebytes) + 1;
+		int entrycount = Math.min(entries.size(), nslots - 1);
+		Collections.sort(entries, new EntryComparator());
+
+		byte[] header = new byte[(nslots + 7) / 8];
+		Field[] keys = new Field[nslots];
+		int[] children = new int[nslots];
+		header[0] |= 1;
+		children[0] = entries.get(0).getLeftChild().getPageNumber();
+		for (int e = 0; e < entrycount; e++) {
+			header[(e + 1) / 8] |= 1 << ((e + 1) % 8);
+			keys[e + 1] = entries.get(e).getKey();
+			children[e + 1] = entries.get(e).getRightChild().getPageNumber();
+		}
+		return BTreeInternalPage.compactPageData(0, childPageCategory, header, keys, children, "", npagebytes);
+	}
+
 	/**
 	 * Create a byte array in the format of a BTreeRootPtrPage
 	 * 
@@ -24,7 +24,7 @@ public class BTreeHeaderPage implements Page {
 	private int prevPage; // previous header page or 0
 
 	byte[] oldData;
-	private final Byte oldDataLock=new Byte((byte)0);
+	private final Object oldDataLock=new Object();
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
@@ -61,13 +61,15 @@ public class BTreeHeaderPage implements Page {
 
 		dis.close();
 
-		setBeforeImage();
+		// the image we were read from is the before-image; nothing writes
+		// to it, so share it instead of re-serializing and copying the page
+		oldData = data;
 	}
 
 	/**
 	 * Initially mark all slots in the header used.
 	 */
-	public void init() {
+	public synchronized void init() {
 		for (int i=0; i<header.length; i++)
 			header[i] = (byte) 0xFF;
 	}
@@ -109,7 +111,19 @@ public class BTreeHeaderPage implements Page {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = getPageData(); // already a fresh array
+		}
+	}
+
+	/**
+	 * Set the image this page is logged as having had before it was modified,
+	 * for a page built afresh to take the place of another
+	 * @param data - the before image
+	 */
+	void setBeforeImage(byte[] data) {
+		synchronized(oldDataLock)
+		{
+			oldData = data;
 		}
 	}
 
@@ -131,7 +145,7 @@ public class BTreeHeaderPage implements Page {
 	 * @see #BTreeHeaderPage
 	 * @return A byte array correspond to the bytes of this page.
 	 */
-	public byte[] getPageData() {
+	public synchronized byte[] getPageData() {
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -210,7 +224,7 @@ public class BTreeHeaderPage implements Page {
 	 * @param id - the page id of the previous header page
 	 * @throws DbException
 	 */
-	public void setPrevPageId(BTreePageId id) throws DbException {
+	public synchronized void setPrevPageId(BTreePageId id) throws DbException {
 		if(id == null) {
 			prevPage = 0;
 		}
@@ -230,7 +244,7 @@ public class BTreeHeaderPage implements Page {
 	 * @param id - the page id of the next header page
 	 * @throws DbException
 	 */
-	public void setNextPageId(BTreePageId id) throws DbException {
+	public synchronized void setNextPageId(BTreePageId id) throws DbException {
 		if(id == null) {
 			nextPage = 0;
 		}
@@ -249,7 +263,7 @@ public class BTreeHeaderPage implements Page {
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
 	 */
-	public void markDirty(boolean dirty, TransactionId tid) {
+	public synchronized void markDirty(boolean dirty, TransactionId tid) {
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
 	}
@@ -257,7 +271,7 @@ public class BTreeHeaderPage implements Page {
 	/**
 	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
 	 */
-	public TransactionId isDirty() {
+	public synchronized TransactionId isDirty() {
 		if (this.dirty)
 			return this.dirtier;
 		else
@@ -276,7 +290,7 @@ public class BTreeHeaderPage implements Page {
 	/**
 	 * Abstraction to mark a page of the BTreeFile used or unused
 	 */
-	public void markSlotUsed(int i, boolean value) {
+	public synchronized void markSlotUsed(int i, boolean value) {
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
 
@@ -21,6 +21,19 @@ public class BTreeInternalPage extends BTreePage {
 	
 	private int childCategory; // either leaf or internal
 
+	// string keys are stored compactly: a prefix shared by every key that can
+	// ever be on this page, then each key's remaining suffix at its own length
+	private final boolean compact;
+	private String keyPrefix = "";
+
+	/**
+	 * The key bytes per entry that the slot count of a page with string keys is
+	 * sized for. Separators are truncated and share the page's prefix, so they
+	 * are usually much shorter than Type.STRING_LEN; longer keys still fit, the
+	 * page just reports itself full after fewer entries.
+	 */
+	public static final int NOMINAL_STRING_KEY_BYTES = 12;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -37,7 +50,17 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		if (checkOccupancy && depth > 0) {
-			assert (getNumEntries() >= getMaxEntries() / 2);
+			// a page of long string keys fills its key area before its slots; count
+			// the keys at full length, since a split may lengthen the prefix afterwards
+			assert (getNumEntries() >= getMaxEntries() / 2
+					|| (compact && 4 * (keyBytesUsed() + getNumEntries() * keyPrefix.length()) >= keyAreaSize()));
+		}
+
+		if (compact) {
+			for (int i = 1; i < numSlots; i++) {
+				if (isSlotUsed(i))
+					assert(((StringField) keys[i]).getValue().startsWith(keyPrefix));
+			}
 		}
 	}
 	
@@ -67,6 +90,7 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
+		this.compact = tieFields.length == 0 && isCompact(td.getFieldType(keyField));
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -87,6 +111,13 @@ public class BTreeInternalPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if (compact) {
+			readCompactBody(dis);
+			dis.close();
+			oldData = data;
+			return;
+		}
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -98,7 +129,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -108,28 +138,95 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		dis.close();
 
-		setBeforeImage();
+		// the image we were read from is the before-image; nothing writes
+		// to it, so share it instead of re-serializing and copying the page
+		oldData = data;
 	}
 
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {
-		int keySize = td.getFieldType(keyField).getLen();
+		return maxEntries(td.getFieldType(keyField), tieFields.length, BufferPool.getPageSize());
+	}
+
+	/**
+	 * Retrieve the number of entry slots on an internal page with keys of the given type.
+	 * @param keyType - the type of the key field
+	 * @param pageSize - the number of bytes per page
+	 */
+	public static int maxEntries(Type keyType, int pageSize) {
+		return maxEntries(keyType, 0, pageSize);
+	}
+
+	/**
+	 * Retrieve the number of entry slots on an internal page of a tree with tie fields.
+	 * @param keyType - the type of the key field
+	 * @param ties - the number of tie fields, each stored with every key
+	 * @param pageSize - the number of bytes per page
+	 * @see BTreeFile#keyOf(Tuple)
+	 */
+	static int maxEntries(Type keyType, int ties, int pageSize) {
+		boolean compact = ties == 0 && isCompact(keyType);
+		int keySize = compact ? NOMINAL_STRING_KEY_BYTES : keyLen(keyType, ties);
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
 		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1; 
-		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
+		if (compact) {
+			// the length of the key prefix
+			extraBits += 8;
+		}
+		int entriesPerPage = (pageSize*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
 		return entriesPerPage;
 	}
 
+	/**
+	 * @return whether internal pages with keys of the given type use the compact
+	 * prefix-compressed key layout, unless the tree has tie fields
+	 */
+	static boolean isCompact(Type keyType) {
+		return keyType == Type.STRING_TYPE;
+	}
+
+	/**
+	 * @return the number of bytes a key takes up on an internal page that isn't compact
+	 */
+	static int keyLen(Type keyType, int ties) {
+		return keyType.getLen() + ties * INDEX_SIZE;
+	}
+
+	private int keyLen() {
+		return keyLen(td.getFieldType(keyField), tieFields.length);
+	}
+
+	/**
+	 * Retrieve the number of bytes the prefix and keys of a compact page may take up.
+	 * @param pageSize - the number of bytes per page
+	 */
+	static int compactKeyAreaSize(int pageSize) {
+		int slots = maxEntries(Type.STRING_TYPE, pageSize) + 1;
+		return pageSize - INDEX_SIZE - 1 - headerSize(slots) - INDEX_SIZE * slots;
+	}
+
+	/**
+	 * Retrieve the number of entries a compact page can hold whatever the length of their keys.
+	 * @param pageSize - the number of bytes per page
+	 */
+	static int compactGuaranteedEntries(int pageSize) {
+		return Math.min(maxEntries(Type.STRING_TYPE, pageSize),
+				(compactKeyAreaSize(pageSize) - 1) / (1 + Type.STRING_LEN));
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		return headerSize(getMaxEntries() + 1);
+	}
+
+	private static int headerSize(int slotsPerPage) {
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
@@ -157,7 +254,179 @@ public class BTreeInternalPage extends BTreePage {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = getPageData(); // already a fresh array
+		}
+	}
+
+	/**
+	 * Read the child pointers, the key prefix and the key suffixes of a compact page.
+	 * Child pointers come first since they are fixed size; the prefix and the
+	 * suffixes of the keys in used slots follow, each preceded by its length.
+	 */
+	private void readCompactBody(DataInputStream dis) throws IOException {
+		for (int i=0; i<children.length; i++)
+			children[i] = readNextChild(dis,i);
+		keyPrefix = readShortString(dis);
+		for (int i=1; i<numSlots; i++) {
+			if (isSlotUsed(i))
+				keys[i] = new StringField(keyPrefix + readShortString(dis), Type.STRING_LEN);
+		}
+	}
+
+	private static String readShortString(DataInputStream dis) throws IOException {
+		byte[] bs = new byte[dis.readUnsignedByte()];
+		dis.readFully(bs);
+		// the inverse of DataOutputStream.writeBytes, which wrote them
+		return new String(bs, "ISO-8859-1");
+	}
+
+	/**
+	 * Generates the bytes of a compact page (one whose keys are strings). Used by
+	 * getPageData and by BTreeFileEncoder.
+	 * 
+	 * @param parent - the parent page number
+	 * @param childCategory - the category of the child pages
+	 * @param header - the header bits
+	 * @param keys - the keys, slot 0 unused
+	 * @param children - the child pointers
+	 * @param prefix - the prefix shared by every key
+	 * @param pageSize - the number of bytes per page
+	 * @return the page data
+	 * @throws IllegalArgumentException if the keys don't fit on the page
+	 */
+	static byte[] compactPageData(int parent, int childCategory, byte[] header,
+			Field[] keys, int[] children, String prefix, int pageSize) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(parent);
+			dos.writeByte((byte) childCategory);
+			dos.write(header);
+			for (int i=0; i<children.length; i++) {
+				dos.writeInt(isUsed(header, i) ? children[i] : 0);
+			}
+			dos.writeByte(prefix.length());
+			dos.writeBytes(prefix);
+			for (int i=1; i<keys.length; i++) {
+				if (isUsed(header, i)) {
+					String suffix = ((StringField) keys[i]).getValue().substring(prefix.length());
+					dos.writeByte(suffix.length());
+					dos.writeBytes(suffix);
+				}
+			}
+			if (dos.size() > pageSize)
+				throw new IllegalArgumentException("keys take up " + dos.size()
+						+ " bytes, more than fit on a page of " + pageSize);
+			dos.write(new byte[pageSize - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			// writing to a byte array doesn't fail
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	private static boolean isUsed(byte[] header, int i) {
+		return (header[i / 8] & (1 << (i % 8))) != 0;
+	}
+
+	/**
+	 * @return the number of bytes the key prefix and the key suffixes of this
+	 * compact page take up
+	 */
+	int keyBytesUsed() {
+		int bytes = 1 + keyPrefix.length();
+		for (int i=1; i<numSlots; i++) {
+			if (isSlotUsed(i))
+				bytes += entryKeyBytes(keys[i]);
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the number of bytes the prefix and keys of this compact page may take up
+	 */
+	int keyAreaSize() {
+		return compactKeyAreaSize(BufferPool.getPageSize());
+	}
+
+	/**
+	 * @param key - a key on, or bound for, this page
+	 * @return the number of key bytes an entry with this key takes up on this page
+	 */
+	int entryKeyBytes(Field key) {
+		if (!compact)
+			return keyLen();
+		return 1 + ((StringField) key).getValue().length() - keyPrefix.length();
+	}
+
+	/**
+	 * @return the prefix every key on this page starts with; always empty
+	 * unless the keys are strings
+	 */
+	public String getKeyPrefix() {
+		return keyPrefix;
+	}
+
+	/**
+	 * Set the prefix that every key on this page, now and later, starts with. The
+	 * caller derives it from the keys bounding this page in its parent: every key
+	 * that can ever be stored here lies between them, and so shares their common
+	 * prefix. The prefix is cut back to what the keys already on the page share,
+	 * and to nothing if the keys are not strings.
+	 * @param prefix - the prefix
+	 */
+	public synchronized void setKeyPrefix(String prefix) {
+		if (!compact)
+			return;
+		for (int i=1; i<numSlots; i++) {
+			if (isSlotUsed(i))
+				prefix = commonPrefix(prefix, ((StringField) keys[i]).getValue());
+		}
+		keyPrefix = prefix;
+	}
+
+	/**
+	 * @return the longest common prefix of a and b
+	 */
+	static String commonPrefix(String a, String b) {
+		int n = Math.min(a.length(), b.length());
+		int i = 0;
+		while (i < n && a.charAt(i) == b.charAt(i))
+			i++;
+		return a.substring(0, i);
+	}
+
+	/**
+	 * Choose the separator to push up when splitting a leaf between left and right, the
+	 * largest key staying on the left page and the smallest key moving to the right page.
+	 * For string keys this is the shortest prefix of right that is still greater than
+	 * left (suffix truncation); searches only need a key that falls between the two
+	 * pages, and shorter separators mean more entries per internal page. For other
+	 * keys it is right itself.
+	 * 
+	 * @param left - the largest key on the left page
+	 * @param right - the smallest key on the right page
+	 * @return the separator
+	 */
+	public static Field separator(Field left, Field right) {
+		if (!(right instanceof StringField) || !left.compare(Op.LESS_THAN, right))
+			return right;
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		// r is greater, so either it differs from l at some position or l is a prefix of r
+		int len = commonPrefix(l, r).length() + 1;
+		return new StringField(r.substring(0, len), Type.STRING_LEN);
+	}
+
+	/**
+	 * Check that a key can be stored on this page.
+	 */
+	private void checkKey(Field key) throws DbException {
+		if (compact && !((StringField) key).getValue().startsWith(keyPrefix)) {
+			throw new DbException("key " + key + " does not start with the prefix \"" + keyPrefix +
+					"\" shared by every key on page " + pid.getPageNumber() +
+					" HINT: keys must lie between the keys bounding this page in its parent");
 		}
 	}
 
@@ -168,7 +437,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<keyLen(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -181,7 +450,8 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = tieFields.length == 0 ? td.getFieldType(keyField).parse(dis)
+					: CompositeKey.parse(td.getFieldType(keyField), tieFields.length, dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -231,7 +501,11 @@ public class BTreeInternalPage extends BTreePage {
 	 * @see #BTreeInternalPage
 	 * @return A byte array correspond to the bytes of this page.
 	 */
-	public byte[] getPageData() {
+	public synchronized byte[] getPageData() {
+		if (compact) {
+			return compactPageData(parent, childCategory, header, keys, children,
+					keyPrefix, BufferPool.getPageSize());
+		}
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -269,7 +543,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<keyLen(); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -316,7 +590,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// padding
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+				keyLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -376,7 +650,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *         already empty.
 	 * @param e The entry to delete
 	 */
-	public void deleteKeyAndRightChild(BTreeEntry e) throws DbException {
+	public synchronized void deleteKeyAndRightChild(BTreeEntry e) throws DbException {
 		deleteEntry(e, true);
 	}
 	
@@ -389,7 +663,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *         already empty.
 	 * @param e The entry to delete
 	 */
-	public void deleteKeyAndLeftChild(BTreeEntry e) throws DbException {
+	public synchronized void deleteKeyAndLeftChild(BTreeEntry e) throws DbException {
 		deleteEntry(e, false);
 	}
 	
@@ -401,7 +675,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *         already empty, or updating this key would put the entry out of 
 	 *         order on the page
 	 */
-	public void updateEntry(BTreeEntry e) throws DbException {
+	public synchronized void updateEntry(BTreeEntry e) throws DbException {
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to update entry with null rid");
@@ -409,6 +683,10 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		checkKey(e.getKey());
+		if (compact && keyBytesUsed() - entryKeyBytes(keys[rid.getTupleNumber()])
+				+ entryKeyBytes(e.getKey()) > keyAreaSize())
+			throw new DbException("no room on page for the updated key " + e.getKey());
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -440,8 +718,9 @@ public class BTreeInternalPage extends BTreePage {
 	 *         table id, or child page category is a mismatch, or the entry is invalid
 	 * @param e The entry to add.
 	 */
-	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+	public synchronized void insertEntry(BTreeEntry e) throws DbException {
+		if (!e.getKey().getType().equals(td.getFieldType(keyField))
+				|| (tieFields.length > 0) != (e.getKey() instanceof CompositeKey))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -456,8 +735,12 @@ public class BTreeInternalPage extends BTreePage {
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
 
+		checkKey(e.getKey());
+		if (compact && keyBytesUsed() + entryKeyBytes(e.getKey()) > keyAreaSize())
+			throw new DbException("called insertEntry on page with no room for key " + e.getKey());
+
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
@@ -562,13 +845,24 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		return numSlots - getNumFreeSlots() - 1;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. On a compact page this is
+	 * the number of entries that are sure to fit, however long their keys are,
+	 * which may be fewer than the number of unused slots.
 	 */
 	public int getNumEmptySlots() {
+		int free = getNumFreeSlots();
+		if (compact) {
+			int worstCase = 1 + Type.STRING_LEN - keyPrefix.length();
+			free = Math.min(free, (keyAreaSize() - keyBytesUsed()) / worstCase);
+		}
+		return free;
+	}
+
+	private int getNumFreeSlots() {
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -617,6 +911,52 @@ public class BTreeInternalPage extends BTreePage {
 		return new BTreeInternalPageReverseIterator(this);
 	}
 
+	protected Field slotKey(int i) {
+		return keys[i];
+	}
+
+	/**
+	 * Find the child to descend to when searching for the left-most leaf possibly
+	 * containing f: the left child of the first entry whose key is greater than or
+	 * equal to f, or the right-most child if there is no such entry. Keys are found by
+	 * binary search rather than by iterating over the entries.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child page, or null if the page has no entries
+	 */
+	public BTreePageId findChildId(Field f) {
+		int slot;
+		if (f == null) {
+			slot = 0;
+		}
+		else {
+			int found = searchSlots(f, false, 1, numSlots);
+			// the left child of the entry in slot found is the child pointer of the used slot before it
+			slot = found - 1;
+			while (slot > 0 && !isSlotUsed(slot))
+				slot--;
+		}
+		if (!isSlotUsed(slot))
+			return null;
+		return new BTreePageId(pid.getTableId(), children[slot], childCategory);
+	}
+
+	/**
+	 * Find the child to descend to when searching for the right-most leaf possibly
+	 * containing f: the left child of the first entry whose key is strictly greater
+	 * than f, or the right-most child if there is no such entry.
+	 * @param f - the key to search for, or null for the right-most child
+	 * @return the id of the child page, or null if the page has no entries
+	 */
+	public BTreePageId findLastChildId(Field f) {
+		int found = f == null ? numSlots : searchSlots(f, true, 1, numSlots);
+		int slot = found - 1;
+		while (slot > 0 && !isSlotUsed(slot))
+			slot--;
+		if (!isSlotUsed(slot))
+			return null;
+		return new BTreePageId(pid.getTableId(), children[slot], childCategory);
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith key out of this page
 	 * @param i - the index of the key
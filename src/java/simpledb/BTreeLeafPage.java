@@ -26,8 +26,9 @@ public class BTreeLeafPage extends BTreePage {
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			Field key = fieldid == keyField ? keyOf(t) : t.getField(fieldid);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, key));
+			prev = key;
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
@@ -103,7 +104,9 @@ public class BTreeLeafPage extends BTreePage {
 		}
 		dis.close();
 
-		setBeforeImage();
+		// the image we were read from is the before-image; nothing writes
+		// to it, so share it instead of re-serializing and copying the page
+		oldData = data;
 	}
 
 	/** 
@@ -149,7 +152,7 @@ public class BTreeLeafPage extends BTreePage {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = getPageData(); // already a fresh array
 		}
 	}
 
@@ -198,7 +201,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @see #BTreeLeafPage
 	 * @return A byte array corresponding to the bytes of this page.
 	 */
-	public byte[] getPageData() {
+	public synchronized byte[] getPageData() {
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -286,7 +289,7 @@ public class BTreeLeafPage extends BTreePage {
 	 *         already empty.
 	 * @param t The tuple to delete
 	 */
-	public void deleteTuple(Tuple t) throws DbException {
+	public synchronized void deleteTuple(Tuple t) throws DbException {
 		RecordId rid = t.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to delete tuple with null rid");
@@ -306,7 +309,7 @@ public class BTreeLeafPage extends BTreePage {
 	 *         is mismatch.
 	 * @param t The tuple to add.
 	 */
-	public void insertTuple(Tuple t) throws DbException {
+	public synchronized void insertTuple(Tuple t) throws DbException {
 		if (!t.getTupleDesc().equals(td))
 			throw new DbException("type mismatch, in addTuple");
 
@@ -323,16 +326,9 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int lessOrEqKey = searchSlots(keyOf(t), true, 0, numSlots) - 1;
+		while (lessOrEqKey >= 0 && !isSlotUsed(lessOrEqKey))
+			lessOrEqKey--;
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -399,7 +395,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param id - the new left sibling id
 	 * @throws DbException if the id is not valid
 	 */
-	public void setLeftSiblingId(BTreePageId id) throws DbException {
+	public synchronized void setLeftSiblingId(BTreePageId id) throws DbException {
 		if(id == null) {
 			leftSibling = 0;
 		}
@@ -419,7 +415,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param id - the new right sibling id
 	 * @throws DbException if the id is not valid
 	 */
-	public void setRightSiblingId(BTreePageId id) throws DbException {
+	public synchronized void setRightSiblingId(BTreePageId id) throws DbException {
 		if(id == null) {
 			rightSibling = 0;
 		}
@@ -483,6 +479,29 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @param f - the key to start from
+	 * @return an iterator over the tuples on this page whose keys are greater than or
+	 * equal to f, found by binary search (calling remove on this iterator throws an
+	 * UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		return new BTreeLeafPageIterator(this, findSlot(f));
+	}
+
+	/**
+	 * Binary search for the first tuple on this page whose key is greater than or equal to f.
+	 * @param f - the key to search for
+	 * @return the slot of that tuple, or getMaxTuples() if every key on the page is smaller
+	 */
+	public int findSlot(Field f) {
+		return searchSlots(f, false, 0, numSlots);
+	}
+
+	protected Field slotKey(int i) {
+		return keyOf(tuples[i]);
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -529,6 +548,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int firstSlot) {
+		this.p = p;
+		this.curTuple = firstSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
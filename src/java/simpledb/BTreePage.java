@@ -19,10 +19,11 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	protected final int[] tieFields; // see BTreeFile#keyOf
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
-	protected final Byte oldDataLock=new Byte((byte)0);
+	protected final Object oldDataLock=new Object();
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -51,7 +52,17 @@ public abstract class BTreePage implements Page {
 	public BTreePage(BTreePageId id, int key) throws IOException {
 		this.pid = id;
 		this.keyField = key;
-		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		DbFile file = Database.getCatalog().getDatabaseFile(id.getTableId());
+		this.td = file.getTupleDesc();
+		this.tieFields = file instanceof BTreeFile ? ((BTreeFile) file).tieFields() : new int[0];
+	}
+
+	/**
+	 * @return the key the tree orders t on
+	 * @see BTreeFile#keyOf(Tuple)
+	 */
+	protected Field keyOf(Tuple t) {
+		return BTreeFile.keyOf(t, keyField, tieFields);
 	}
 
 	/**
@@ -91,7 +102,7 @@ public abstract class BTreePage implements Page {
 	 * @param id - the id of the parent of this page
 	 * @throws DbException if the id is not valid
 	 */
-	public void setParentId(BTreePageId id) throws DbException {
+	public synchronized void setParentId(BTreePageId id) throws DbException {
 		if(id == null) {
 			throw new DbException("parent id must not be null");
 		}
@@ -113,7 +124,7 @@ public abstract class BTreePage implements Page {
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
 	 */
-	public void markDirty(boolean dirty, TransactionId tid) {
+	public synchronized void markDirty(boolean dirty, TransactionId tid) {
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
 	}
@@ -121,13 +132,25 @@ public abstract class BTreePage implements Page {
 	/**
 	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
 	 */
-	public TransactionId isDirty() {
+	public synchronized TransactionId isDirty() {
 		if (this.dirty)
 			return this.dirtier;
 		else
 			return null;
 	}
 
+	/**
+	 * Set the image this page is logged as having had before it was modified,
+	 * for a page built afresh to take the place of another
+	 * @param data - the before image
+	 */
+	void setBeforeImage(byte[] data) {
+		synchronized(oldDataLock)
+		{
+			oldData = data;
+		}
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
@@ -138,5 +161,48 @@ public abstract class BTreePage implements Page {
 	 */
 	public abstract boolean isSlotUsed(int i);
 
+	/**
+	 * Returns the key stored in a used slot of this page.
+	 * @param i - the index of the slot, which must be in use
+	 */
+	protected abstract Field slotKey(int i);
+
+	/**
+	 * Binary search over the slots of this page for the first used slot in [from, to)
+	 * whose key is greater than or equal to f, or strictly greater than f if strict is set.
+	 * Used slots are always in key order, but deletions leave empty slots between them,
+	 * so a probe that lands on an empty slot moves right to the next used one.
+	 *
+	 * @param f - the key to search for
+	 * @param strict - whether the key found must be strictly greater than f
+	 * @param from - the first slot to consider
+	 * @param to - one past the last slot to consider
+	 * @return the slot found, or to if every key in the range is smaller
+	 */
+	protected int searchSlots(Field f, boolean strict, int from, int to) {
+		Predicate.Op op = strict ? Predicate.Op.GREATER_THAN : Predicate.Op.GREATER_THAN_OR_EQ;
+		// used slots below lo have keys before f; used slots at or above hi have keys at or after f
+		int lo = from;
+		int hi = to;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int s = mid;
+			while (s < hi && !isSlotUsed(s))
+				s++;
+			if (s == hi) {
+				hi = mid;
+			}
+			else if (slotKey(s).compare(op, f)) {
+				hi = s;
+			}
+			else {
+				lo = s + 1;
+			}
+		}
+		while (lo < to && !isSlotUsed(lo))
+			lo++;
+		return lo;
+	}
+
 }
 
@@ -0,0 +1,77 @@
+package simpledb;
+
+/**
+ * A BloomFilter is a compact summary of a set of field values that can tell
+ * for certain that a value is not in the set, and otherwise says that it may
+ * be (Bloom, "Space/time trade-offs in hash coding with allowable errors",
+ * 1970).
+ * <p>
+ * Each value sets <tt>k</tt> bits of the filter, picked by double hashing of
+ * its 64 bit hash (see {@link HyperLogLog#hash}).  With about ten bits per
+ * value and seven hashes, about one value in a hundred that isn't in the set
+ * is let through.
+ * <p>
+ * A {@link HashEquiJoin} builds one over the join keys of its build side and
+ * hands it to the scan of its probe side, so that the scan can drop tuples
+ * that can't join before they are built (see {@link SeqScan#setBloomFilter}).
+ */
+public class BloomFilter {
+
+    /** The number of bits a filter uses for each value it is sized for */
+    public static final int BITS_PER_VALUE = 10;
+
+    private static final int HASHES = 7;
+
+    private final long[] bits;
+    private final int numBits;
+
+    /**
+     * Create an empty filter.
+     *
+     * @param values the number of distinct values the filter will hold
+     */
+    public BloomFilter(int values) {
+        int n = (int) Math.min(Integer.MAX_VALUE - 63L,
+                Math.max(64L, (long) values * BITS_PER_VALUE));
+        bits = new long[(n + 63) / 64];
+        numBits = bits.length * 64;
+    }
+
+    /** Add a field value to the set. */
+    public void add(Field f) {
+        addHash(HyperLogLog.hash(f));
+    }
+
+    /** Add a value to the set, given its hash from {@link HyperLogLog#hash}. */
+    public void addHash(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if the field value is certainly not in the set, true if
+     *         it may be
+     */
+    public boolean mightContain(Field f) {
+        return mightContainHash(HyperLogLog.hash(f));
+    }
+
+    /**
+     * @return false if the value with the given hash is certainly not in the
+     *         set, true if it may be
+     */
+    public boolean mightContainHash(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+}
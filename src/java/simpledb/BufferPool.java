@@ -2,10 +2,16 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -15,6 +21,11 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Committing a transaction forces its dirty pages to disk.  Every write of
+ * a dirty page, whether at commit, on eviction or by the background writer,
+ * logs the page as an update by the transaction that dirtied it and forces
+ * the log first, so the log always covers what is on disk.
  * 
  * @Threadsafe, all fields are final
  */
@@ -29,9 +40,48 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** The background writer tries to keep at least this fraction of the
+    pool clean, so that a miss can evict without a synchronous write.  It
+    writes pages before the transactions that dirtied them commit, so it is
+    off unless a pool is built with a ratio of its own. */
+    public static final double DEFAULT_CLEAN_RATIO = 0;
+
+    /** How long the background writer sleeps between passes, in ms. */
+    static final long FLUSHER_INTERVAL_MS = 50;
+
+    /** Most pages the background writer writes in one pass. */
+    static final int FLUSHER_BATCH = 32;
+
     int numPages;
 
-    HashMap<PageId, Page> cache;
+    ConcurrentHashMap<PageId, Page> cache;
+
+    /** Pin count of each frame.  A count of -1 means the frame is being
+    evicted and can't be pinned until it's gone. */
+    ConcurrentHashMap<PageId, AtomicInteger> pinCounts;
+
+    private final double cleanRatio;
+    private volatile Thread flusher;
+
+    /** Off-heap store for images of evicted clean pages, or null */
+    private final FrameArena arena;
+
+    /** The version of each table that has been changed, drawn from
+    versionClock; tables that never were are at version 0.  They outlive
+    any one pool, like the files they describe. */
+    private static final ConcurrentHashMap<Integer, Long> tableVersions =
+        new ConcurrentHashMap<Integer, Long>();
+    private static final AtomicLong versionClock = new AtomicLong();
+
+    /** The tables each running transaction has inserted tuples into or
+    deleted tuples from through this pool. */
+    private final ConcurrentHashMap<TransactionId, Set<Integer>> written =
+        new ConcurrentHashMap<TransactionId, Set<Integer>>();
+
+    /** The before images of pages the background writer has written for each
+    running transaction, so that they can be put back if it aborts. */
+    private final ConcurrentHashMap<TransactionId, Map<PageId, Page>> stolen =
+        new ConcurrentHashMap<TransactionId, Map<PageId, Page>>();
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -39,8 +89,38 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, DEFAULT_CLEAN_RATIO);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, with a
+     * background writer that keeps at least cleanRatio of them clean.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param cleanRatio target fraction of clean pages; 0 disables the writer.
+     */
+    public BufferPool(int numPages, double cleanRatio) {
+        this(numPages, cleanRatio, 0);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages live pages and parks
+     * the images of up to offHeapFrames more in an off-heap FrameArena.
+     * Only the live pages count against the Java heap, so numPages can be
+     * kept small and offHeapFrames made large.
+     *
+     * @param numPages maximum number of live pages in this buffer pool.
+     * @param cleanRatio target fraction of clean pages; 0 disables the writer.
+     * @param offHeapFrames number of off-heap frames; 0 disables the arena.
+     */
+    public BufferPool(int numPages, double cleanRatio, int offHeapFrames) {
         this.numPages = numPages;
-        cache = new HashMap<>();
+        this.cleanRatio = cleanRatio;
+        this.arena = offHeapFrames > 0 ? new FrameArena(offHeapFrames, pageSize) : null;
+        cache = new ConcurrentHashMap<>();
+        pinCounts = new ConcurrentHashMap<>();
+        if (cleanRatio > 0)
+            startFlusher();
     }
     
     public static int getPageSize() {
@@ -57,6 +137,49 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /**
+     * Return the version of a table's contents, which changes each time a
+     * tuple is inserted into or deleted from it through the buffer pool, a
+     * transaction that did so aborts, or its file is written directly, so
+     * that anything computed from the table can tell whether it still holds.
+     *
+     * @param tableId the table
+     */
+    public static long getTableVersion(int tableId) {
+        Long v = tableVersions.get(tableId);
+        return v == null ? 0 : v;
+    }
+
+    /**
+     * Move a table's version on.  Called by the pool for changes made
+     * through it, and by files for changes they write straight to disk.
+     *
+     * @param tableId the table
+     */
+    static void tableChanged(int tableId) {
+        tableVersions.put(tableId, versionClock.incrementAndGet());
+    }
+
+    /**
+     * Return true if the transaction has inserted or deleted tuples through
+     * this pool and hasn't completed yet, so that what it reads may hold
+     * changes nobody else should see.
+     */
+    public boolean hasWritten(TransactionId tid) {
+        return written.containsKey(tid);
+    }
+
+    private void writing(TransactionId tid, int tableId) {
+        Set<Integer> tables = written.get(tid);
+        if (tables == null) {
+            tables = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+            Set<Integer> prev = written.putIfAbsent(tid, tables);
+            if (prev != null)
+                tables = prev;
+        }
+        tables.add(tableId);
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -79,9 +202,15 @@ public class BufferPool {
         Page p = cache.get(pid);
         if (p != null) return p;
         
-        // 2. get from disk
+        // 2. get from the off-heap arena, or from disk
         DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        p = f.readPage(pid);
+        if (arena != null) {
+            byte[] data = arena.take(pid);
+            if (data != null)
+                p = pageFromFrame(f, pid, data);
+        }
+        if (p == null)
+            p = f.readPage(pid);
         
         // 3. set cache
         if (cache.size() >= numPages) {
@@ -93,6 +222,88 @@ public class BufferPool {
         return p;
     }
 
+    /**
+     * Rebuild a page from an image taken out of the arena.
+     *
+     * @return the page, or null if f doesn't support building pages from bytes
+     */
+    private Page pageFromFrame(DbFile f, PageId pid, byte[] data) {
+        try {
+            if (f instanceof BTreeFile)
+                return ((BTreeFile) f).pageFromBytes((BTreePageId) pid, data);
+            if (f instanceof HeapFile)
+                return new HeapPage((HeapPageId) pid, data);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /** Return the off-heap arena backing this pool, or null if there is none */
+    public FrameArena getFrameArena() {
+        return arena;
+    }
+
+    /**
+     * Retrieve the specified page, as getPage does, and pin it so that it
+     * can't be evicted until a matching call to unpinPage.  Pins nest;
+     * the page stays pinned until every pin has been released.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        // pin first, so the frame can't be evicted between the lookup and the pin
+        while (true) {
+            AtomicInteger count = pinCounts.get(pid);
+            if (count == null) {
+                count = new AtomicInteger();
+                AtomicInteger prev = pinCounts.putIfAbsent(pid, count);
+                if (prev != null)
+                    count = prev;
+            }
+            int n = count.get();
+            if (n < 0) {
+                Thread.yield(); // being evicted; its entry goes away shortly
+                continue;
+            }
+            if (count.compareAndSet(n, n + 1))
+                break;
+        }
+        try {
+            return getPage(tid, pid, perm);
+        } catch (TransactionAbortedException | DbException | RuntimeException e) {
+            unpinPage(pid);
+            throw e;
+        }
+    }
+
+    /**
+     * Release one pin on the specified page.  Unpinning a page that isn't
+     * pinned (e.g. after the pool was reset under an open iterator) is a
+     * no-op.
+     *
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(PageId pid) {
+        AtomicInteger count = pinCounts.get(pid);
+        if (count == null)
+            return;
+        while (true) {
+            int n = count.get();
+            if (n <= 0 || count.compareAndSet(n, n - 1))
+                return;
+        }
+    }
+
+    /** Return the number of outstanding pins on the specified page */
+    public int getPinCount(PageId pid) {
+        AtomicInteger count = pinCounts.get(pid);
+        return count == null ? 0 : Math.max(count.get(), 0);
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -108,13 +319,14 @@ public class BufferPool {
     }
 
     /**
-     * Release all locks associated with a given transaction.
+     * Release all locks associated with a given transaction, and commit it.
      *
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
@@ -126,7 +338,11 @@ public class BufferPool {
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction.  On commit, the pages it dirtied are written to disk
+     * by {@link #flushPages}; on abort, they are dropped from the pool, any
+     * the background writer already wrote are put back as they were, and
+     * the tables it changed move on to a new version.  Its inserts and
+     * deletes count in the tables' statistics only if it commits.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
@@ -135,6 +351,18 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        if (commit) {
+            flushPages(tid);
+            stolen.remove(tid);
+        } else {
+            discardPages(tid);
+        }
+        TableStats.transactionComplete(tid, commit);
+        Set<Integer> tables = written.remove(tid);
+        if (!commit && tables != null) {
+            for (int tableId : tables)
+                tableChanged(tableId);
+        }
     }
 
     /**
@@ -147,6 +375,9 @@ public class BufferPool {
      * their markDirty bit, and adds versions of any pages that have 
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
+     * Any secondary indexes over the table get an entry for the new tuple,
+     * the table's statistics count it once tid commits, and its version
+     * moves on.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -157,17 +388,13 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile f = Database.getCatalog().getDatabaseFile(tableId);
-        ArrayList<Page> al = f.insertTuple(tid, t);
-        for (int i=0;i<al.size();i++) {
-            Page p = al.get(i);
-            p.markDirty(true, tid);
-            if (cache.size() >= numPages) {
-                // cache.remove();
-                evictPage();
-                // throw new DbException("cache too much");
-            }
-            cache.put(p.getId(), p);
+        writing(tid, tableId);
+        cacheDirtyPages(tid, f.insertTuple(tid, t));
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.insert(tid, t);
         }
+        TableStats.tupleChanged(tid, tableId, t, true);
+        tableChanged(tableId);
     }
 
     /**
@@ -179,6 +406,9 @@ public class BufferPool {
      * their markDirty bit, and adds versions of any pages that have 
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
+     * The tuple's entries in any secondary indexes over its table are removed,
+     * the table's statistics stop counting it once tid commits, and its
+     * version moves on.
      *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
@@ -187,20 +417,48 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        DbFile f = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-        ArrayList<Page> al = f.deleteTuple(tid, t);
-        for (int i=0;i<al.size();i++) {
-            Page p = al.get(i);
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        writing(tid, tableId);
+        cacheDirtyPages(tid, f.deleteTuple(tid, t));
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.delete(tid, t);
+        }
+        TableStats.tupleChanged(tid, tableId, t, false);
+        tableChanged(tableId);
+    }
+
+    /**
+     * Mark the pages a transaction changed dirty, and add them to the cache in
+     * place of any other versions of them, so that future requests see them.
+     *
+     * @param tid the transaction that changed the pages
+     * @param pages the pages it changed
+     */
+    void cacheDirtyPages(TransactionId tid, Collection<? extends Page> pages)
+        throws DbException {
+        for (Page p : pages) {
             p.markDirty(true, tid);
             if (cache.size() >= numPages) {
                 // cache.remove();
                 evictPage();
                 // throw new DbException("cache too much");
             }
+            if (arena != null)
+                arena.remove(p.getId());
             cache.put(p.getId(), p);
         }
     }
 
+    /**
+     * Return the transaction that has dirtied the cached copy of a page, or
+     * null if the page is clean or not in the pool.
+     */
+    TransactionId dirtier(PageId pid) {
+        Page p = cache.get(pid);
+        return p == null ? null : p.isDirty();
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
@@ -228,10 +486,33 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         cache.remove(pid);
+        if (arena != null)
+            arena.remove(pid);
+    }
+
+    /**
+     * Drop the pages an aborting transaction dirtied from the pool, and write
+     * back the before images of those the background writer wrote for it,
+     * so that the next reader gets them as they were before it ran.
+     */
+    private synchronized void discardPages(TransactionId tid) throws IOException {
+        for (Page p : cache.values()) {
+            if (tid.equals(p.isDirty()))
+                discardPage(p.getId());
+        }
+        Map<PageId, Page> befores = stolen.remove(tid);
+        if (befores == null)
+            return;
+        for (Page before : befores.values()) {
+            discardPage(before.getId());
+            Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
+        }
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk.  A dirty page is logged as an update by
+     * the transaction that dirtied it, and the log forced, before it is
+     * written, and is clean afterwards.
      * @param pid an ID indicating the page to flush
      */
     private synchronized  void flushPage(PageId pid) throws IOException {
@@ -240,36 +521,256 @@ public class BufferPool {
         Page p = cache.get(pid);
         if (p == null) return ;
         DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        TransactionId tid = p.isDirty();
+        if (tid != null) {
+            Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
+            Database.getLogFile().force();
+        }
         f.writePage(p);
+        p.markDirty(false, null);
     }
 
-    /** Write all pages of the specified transaction to disk.
+    /** Write all pages of the specified transaction to disk.  Each page's
+     * image is logged as an update, and the log forced once, before any of
+     * them is written.  A page is marked clean, with that image as its new
+     * before image, only if it still holds it once it is on disk.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        ArrayList<Page> pages = new ArrayList<Page>();
+        ArrayList<Page> images = new ArrayList<Page>();
+        for (Page p : cache.values()) {
+            byte[] image;
+            Page before;
+            synchronized (p) {
+                if (!tid.equals(p.isDirty()))
+                    continue;
+                image = p.getPageData();
+                before = p.getBeforeImage();
+            }
+            DbFile f = Database.getCatalog().getDatabaseFile(p.getId().getTableId());
+            Page after = pageFromFrame(f, p.getId(), image);
+            if (after == null)
+                continue;
+            Database.getLogFile().logWrite(tid, before, after);
+            pages.add(p);
+            images.add(after);
+        }
+        if (pages.isEmpty())
+            return;
+        Database.getLogFile().force();
+        for (int i = 0; i < pages.size(); i++) {
+            Page p = pages.get(i);
+            byte[] image = images.get(i).getPageData();
+            Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(images.get(i));
+            synchronized (p) {
+                if (tid.equals(p.isDirty()) && Arrays.equals(p.getPageData(), image)) {
+                    p.markDirty(false, null);
+                    p.setBeforeImage();
+                }
+            }
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * A clean page is preferred, since it can be dropped without a write;
+     * the background writer works to keep some around.
      */
     private synchronized  void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        Iterator it = cache.entrySet().iterator();
-        if (!it.hasNext()) {
-            return;
+        PageId victim = null;
+        AtomicInteger victimCount = null;
+        for (Map.Entry<PageId, Page> entry : cache.entrySet()) {
+            boolean clean = entry.getValue().isDirty() == null;
+            if (victim != null && !clean)
+                continue;
+            AtomicInteger count = claimFrame(entry.getKey());
+            if (count == null)
+                continue; // pinned
+            if (victim != null)
+                victimCount.set(0); // give back the dirty one we were holding
+            victim = entry.getKey();
+            victimCount = count;
+            if (clean)
+                break;
+        }
+        if (victim == null) {
+            if (cache.isEmpty())
+                return;
+            throw new DbException("all pages in the buffer pool are pinned");
         }
-        Map.Entry entry = (Map.Entry)it.next();
         try {
             // flush
-            flushPage((PageId)entry.getKey());
+            flushPage(victim);
         } catch (IOException e) {
             e.printStackTrace();
         }
-        // discard
-        discardPage((PageId)entry.getKey());
+        // discard, parking the (now clean on disk) image off-heap
+        Page evicted = cache.remove(victim);
+        if (arena != null && evicted != null)
+            arena.put(victim, evicted.getPageData());
+        // the old counter stays at -1, so a pinner still holding it retries
+        // and picks up a fresh one
+        pinCounts.remove(victim, victimCount);
+        notifyAll(); // running short of clean pages, wake the writer
+    }
+
+    /**
+     * Take an unpinned frame's pin count from 0 to -1 so that nobody can
+     * pin it while it is evicted.
+     *
+     * @return the claimed counter, or null if the frame is pinned
+     */
+    private AtomicInteger claimFrame(PageId pid) {
+        AtomicInteger count = pinCounts.get(pid);
+        if (count == null) {
+            count = new AtomicInteger();
+            AtomicInteger prev = pinCounts.putIfAbsent(pid, count);
+            if (prev != null)
+                count = prev;
+        }
+        return count.compareAndSet(0, -1) ? count : null;
+    }
+
+    /** Number of frames the background writer wants clean before it rests. */
+    int cleanTarget() {
+        return (int) Math.ceil(numPages * cleanRatio);
+    }
+
+    /**
+     * One pass of the background writer: if fewer than cleanTarget() frames
+     * are clean (free frames count as clean), write out up to
+     * FLUSHER_BATCH dirty, unpinned pages in (table, page number) order so
+     * the writes are mostly sequential.
+     *
+     * @return the number of pages written
+     */
+    synchronized int flushDirtyPages() throws IOException {
+        ArrayList<Page> dirty = new ArrayList<Page>();
+        int numDirty = 0;
+        for (Page p : cache.values()) {
+            if (p.isDirty() == null)
+                continue;
+            numDirty++;
+            if (getPinCount(p.getId()) == 0)
+                dirty.add(p);
+        }
+        int clean = numPages - numDirty;
+        if (clean >= cleanTarget())
+            return 0;
+        Collections.sort(dirty, new Comparator<Page>() {
+                public int compare(Page a, Page b) {
+                    PageId x = a.getId(), y = b.getId();
+                    if (x.getTableId() != y.getTableId())
+                        return x.getTableId() < y.getTableId() ? -1 : 1;
+                    return Integer.compare(x.getPageNumber(), y.getPageNumber());
+                }
+            });
+        int n = Math.min(dirty.size(), Math.max(cleanTarget() - clean, FLUSHER_BATCH));
+        int written = 0;
+        for (int i = 0; i < n; i++) {
+            Page p = dirty.get(i);
+            if (cache.get(p.getId()) != p)
+                continue; // evicted or replaced while we were sorting
+            if (writeBack(p))
+                written++;
+        }
+        return written;
+    }
+
+    /**
+     * Write a dirty page to disk for the background writer, while it stays
+     * in use.  The page's image and the transaction that dirtied it are
+     * taken together under the page's lock, with the frame claimed so that
+     * it can't be pinned meanwhile.  The image is logged as an update by
+     * that transaction, and the log forced, before it is written, and the
+     * before image kept in case the transaction aborts.  The page
+     * is marked clean only if it still holds that image once it is on disk;
+     * if it was changed in the meantime it stays dirty.
+     *
+     * @return true if the page was written
+     */
+    private boolean writeBack(Page p) throws IOException {
+        PageId pid = p.getId();
+        AtomicInteger count = claimFrame(pid);
+        if (count == null)
+            return false; // pinned
+        TransactionId tid;
+        byte[] image;
+        Page before;
+        try {
+            synchronized (p) {
+                tid = p.isDirty();
+                if (tid == null)
+                    return false;
+                image = p.getPageData();
+                before = p.getBeforeImage();
+            }
+        } finally {
+            count.set(0);
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        Page after = pageFromFrame(f, pid, image);
+        if (after == null)
+            return false;
+        Map<PageId, Page> befores = stolen.get(tid);
+        if (befores == null) {
+            befores = new ConcurrentHashMap<PageId, Page>();
+            Map<PageId, Page> prev = stolen.putIfAbsent(tid, befores);
+            if (prev != null)
+                befores = prev;
+        }
+        if (!befores.containsKey(pid))
+            befores.put(pid, before);
+        Database.getLogFile().logWrite(tid, before, after);
+        Database.getLogFile().force();
+        f.writePage(after);
+        synchronized (p) {
+            if (tid.equals(p.isDirty()) && Arrays.equals(p.getPageData(), image))
+                p.markDirty(false, null);
+        }
+        return true;
+    }
+
+    /** Start the background writer, if it isn't already running. */
+    public synchronized void startFlusher() {
+        if (flusher != null)
+            return;
+        flusher = new Thread("BufferPool flusher") {
+                public void run() {
+                    while (flusher == this) {
+                        try {
+                            flushDirtyPages();
+                            synchronized (BufferPool.this) {
+                                if (flusher == this)
+                                    BufferPool.this.wait(FLUSHER_INTERVAL_MS);
+                            }
+                        } catch (InterruptedException e) {
+                            break;
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        } catch (RuntimeException e) {
+                            // e.g. a table dropped from the catalog under us
+                            Debug.log("flusher: " + e);
+                        }
+                    }
+                }
+            };
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /** Stop the background writer.  Dirty pages stay in the pool. */
+    public synchronized void stopFlusher() {
+        Thread t = flusher;
+        flusher = null;
+        if (t != null) {
+            t.interrupt();
+        }
     }
 
 }
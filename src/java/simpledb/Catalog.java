@@ -21,6 +21,7 @@ public class Catalog {
     private Map<Integer, String> idTables; // id -> names
     private Map<String, DbFile> tables; // name -> DbFile
     private Map<String, String> pkeyFields; // id -> pkeyFields
+    private Map<Integer, SecondaryIndex> indexes; // index file id -> index
 
     /**
      * Constructor.
@@ -30,6 +31,7 @@ public class Catalog {
         idTables = new HashMap<Integer, String>();
         tables = new HashMap<String, DbFile>();
         pkeyFields = new HashMap<String, String>();
+        indexes = new LinkedHashMap<Integer, SecondaryIndex>();
     }
 
     /**
@@ -64,6 +66,34 @@ public class Catalog {
         return name;
     }
 
+    /**
+     * Add a secondary index over one of the tables in the catalog.  The
+     * index file can be reached by its id through {@link #getDatabaseFile}
+     * and {@link #getTupleDesc} like a table's, but it is not listed as a
+     * table.  Adding an index with the same file replaces the old one.
+     * @param index the index to add
+     * @throws NoSuchElementException if the indexed table doesn't exist
+     */
+    public void addIndex(SecondaryIndex index) throws NoSuchElementException {
+        getDatabaseFile(index.getTableId());
+        indexes.put(index.getFile().getId(), index);
+    }
+
+    /**
+     * Returns the secondary indexes over the specified table, in the order
+     * they were added.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> l = new ArrayList<SecondaryIndex>();
+        for (SecondaryIndex index : indexes.values()) {
+            if (index.getTableId() == tableid)
+                l.add(index);
+        }
+        return l;
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -99,7 +129,11 @@ public class Catalog {
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
         String name = this.getTableName(tableid);
         if (name == null) {
-            throw new NoSuchElementException();
+            SecondaryIndex index = this.indexes.get(tableid);
+            if (index == null) {
+                throw new NoSuchElementException();
+            }
+            return index.getFile();
         }
         DbFile file = this.tables.get(name);
         if (file == null) {
@@ -128,6 +162,7 @@ public class Catalog {
     /** Delete all tables from the catalog */
     public void clear() {
         this.tables.clear();
+        this.indexes.clear();
     }
     
     /**
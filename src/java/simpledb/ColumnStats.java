@@ -0,0 +1,692 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * ColumnStats summarizes the values of one column of a table for selectivity
+ * estimation.  It keeps
+ * <ul>
+ * <li>a list of the most common values (MCVs) and how often each occurs,</li>
+ * <li>an equi-depth histogram over the remaining values, whose buckets each
+ * hold about the same number of tuples, so that skewed columns get narrow
+ * buckets where the values are dense, and</li>
+ * <li>a {@link HyperLogLog} sketch of the number of distinct values.</li>
+ * </ul>
+ * String columns are histogrammed on their whole value, not a prefix of it.
+ * <p>
+ * A ColumnStats is built by adding each value of the column to a
+ * {@link Collector}.  Afterwards it can be kept roughly up to date as tuples
+ * are inserted and deleted, with {@link #add} and {@link #remove}, and saved
+ * and loaded with {@link #write} and {@link #read}.
+ */
+public class ColumnStats {
+
+    /** The most common values kept for each column */
+    public static final int NUM_MCVS = 20;
+
+    /** The values of each column a Collector keeps for the histogram */
+    public static final int DEFAULT_SAMPLE_SIZE = 30000;
+
+    private final Type type;
+    private long count;
+    private long ndv;
+    private long sketchNdv;           // the sketch's estimate when ndv was set
+    private boolean ndvStale;         // values were added since
+    private Field min;
+    private Field max;
+    private HyperLogLog sketch;
+
+    private final Field[] mcvs;       // most common first
+    private final double[] mcvCounts; // tuples equal to each MCV
+    private double mcvCount;
+
+    private Field[] lo;               // inclusive bounds of each bucket
+    private Field[] hi;
+    private double[] bucketCounts;    // tuples in each bucket
+    private double[] bucketNdvs;      // distinct values in each bucket
+    private double restNdv;           // distinct values that aren't MCVs
+
+    /**
+     * Accumulates the values of one column, one at a time, and then builds
+     * the ColumnStats for them.  Every value goes into the distinct value
+     * sketch, but only a uniform random sample of them (a reservoir) is kept
+     * for the histogram and common values, so memory stays bounded however
+     * long the column is.
+     */
+    public static class Collector {
+        private final Type type;
+        private final int capacity;
+        private int[] ints = new int[64];
+        private final ArrayList<String> strings = new ArrayList<String>();
+        private int n = 0;
+        private final HyperLogLog sketch = new HyperLogLog();
+        // fixed, so that the same table always gets the same statistics
+        private final Random random = new Random(0x5ca1ab1e);
+
+        /**
+         * @param type the type of the column
+         * @param capacity the most values to keep for the histogram
+         */
+        public Collector(Type type, int capacity) {
+            this.type = type;
+            this.capacity = capacity;
+        }
+
+        public Collector(Type type) {
+            this(type, DEFAULT_SAMPLE_SIZE);
+        }
+
+        public void add(Field f) {
+            sketch.add(f);
+            int slot = n;
+            if (n >= capacity) {
+                slot = random.nextInt(n + 1);
+                if (slot >= capacity) {
+                    n++;
+                    return;
+                }
+            }
+            if (type == Type.INT_TYPE) {
+                if (slot == ints.length)
+                    ints = Arrays.copyOf(ints, Math.min(capacity, slot * 2));
+                ints[slot] = ((IntField) f).getValue();
+            } else if (slot == strings.size()) {
+                strings.add(((StringField) f).getValue());
+            } else {
+                strings.set(slot, ((StringField) f).getValue());
+            }
+            n++;
+        }
+
+        /**
+         * @param buckets the number of histogram buckets to use
+         * @return the statistics of the values added so far
+         */
+        public ColumnStats finish(int buckets) {
+            return finish(buckets, n);
+        }
+
+        /**
+         * @param buckets the number of histogram buckets to use
+         * @param population the number of values in the whole column, when
+         *        only some of them were added
+         * @return the estimated statistics of the whole column
+         */
+        public ColumnStats finish(int buckets, long population) {
+            int sampled = Math.min(n, capacity);
+            // the distinct values in order, with how often each occurs
+            ArrayList<Field> values = new ArrayList<Field>();
+            ArrayList<Integer> counts = new ArrayList<Integer>();
+            if (type == Type.INT_TYPE) {
+                int[] sorted = Arrays.copyOf(ints, sampled);
+                Arrays.sort(sorted);
+                for (int i = 0; i < sampled; i++) {
+                    if (i > 0 && sorted[i] == sorted[i - 1])
+                        counts.set(counts.size() - 1, counts.get(counts.size() - 1) + 1);
+                    else {
+                        values.add(new IntField(sorted[i]));
+                        counts.add(1);
+                    }
+                }
+            } else {
+                ArrayList<String> sorted = new ArrayList<String>(strings);
+                Collections.sort(sorted);
+                for (int i = 0; i < sampled; i++) {
+                    if (i > 0 && sorted.get(i).equals(sorted.get(i - 1)))
+                        counts.set(counts.size() - 1, counts.get(counts.size() - 1) + 1);
+                    else {
+                        values.add(new StringField(sorted.get(i), Type.STRING_LEN));
+                        counts.add(1);
+                    }
+                }
+            }
+            return new ColumnStats(type, values, counts, sampled, n, Math.max(population, n),
+                    sketch, buckets);
+        }
+    }
+
+    /**
+     * @param values the distinct values of the sample, in order
+     * @param counts how often each occurs in the sample
+     * @param sampled the number of values in the sample
+     * @param seen the number of values the sketch saw
+     * @param population the number of values in the column
+     */
+    private ColumnStats(Type type, ArrayList<Field> values, ArrayList<Integer> counts, int sampled,
+            int seen, long population, HyperLogLog sketch, int buckets) {
+        this.type = type;
+        this.count = population;
+        this.sketch = sketch;
+        int distinct = values.size();
+        long d = Math.max(distinct, Math.min(sketch.estimate(), seen));
+        if (population > seen && sampled > 0) {
+            // only part of the column was read; scale up from how many values
+            // the sample saw just once (Haas and Stokes' Duj1 estimator)
+            int once = 0;
+            for (int c : counts) {
+                if (c == 1)
+                    once++;
+            }
+            double duj1 = (double) sampled * distinct
+                    / (sampled - once + (double) once * sampled / population);
+            d = Math.max(d, Math.round(duj1));
+        }
+        this.ndv = Math.min(d, population);
+        this.sketchNdv = sketch.estimate();
+        this.min = distinct > 0 ? values.get(0) : null;
+        this.max = distinct > 0 ? values.get(distinct - 1) : null;
+
+        // a value is worth listing if it is well above the average frequency;
+        // short columns list every value and need no histogram
+        boolean[] isMcv = new boolean[distinct];
+        Integer[] byCount = new Integer[distinct];
+        for (int i = 0; i < distinct; i++) {
+            byCount[i] = i;
+        }
+        final ArrayList<Integer> c = counts;
+        Arrays.sort(byCount, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return c.get(b) - c.get(a);
+            }
+        });
+        double threshold = distinct <= NUM_MCVS && ndv == distinct ? 0 : Math.max(1, 1.25 * sampled / ndv);
+        int k = 0;
+        while (k < Math.min(NUM_MCVS, distinct) && counts.get(byCount[k]) > threshold) {
+            isMcv[byCount[k]] = true;
+            k++;
+        }
+        double scale = sampled == 0 ? 0 : (double) population / sampled;
+        mcvs = new Field[k];
+        mcvCounts = new double[k];
+        for (int i = 0; i < k; i++) {
+            mcvs[i] = values.get(byCount[i]);
+            mcvCounts[i] = counts.get(byCount[i]) * scale;
+            mcvCount += mcvCounts[i];
+        }
+
+        // equi-depth buckets over the rest, never splitting a value
+        int rest = 0;
+        int restDistinct = 0;
+        for (int i = 0; i < distinct; i++) {
+            if (!isMcv[i]) {
+                rest += counts.get(i);
+                restDistinct++;
+            }
+        }
+        restNdv = Math.max(restDistinct, ndv - k);
+        Field[] l = new Field[Math.min(buckets, restDistinct)];
+        Field[] h = new Field[l.length];
+        double[] bc = new double[l.length];
+        double[] ndvs = new double[l.length];
+        int[] once = new int[l.length];
+        int onceTotal = 0;
+        int b = 0;
+        int seenRest = 0;
+        for (int i = 0; i < distinct && l.length > 0; i++) {
+            if (isMcv[i])
+                continue;
+            if (l[b] == null)
+                l[b] = values.get(i);
+            h[b] = values.get(i);
+            bc[b] += counts.get(i) * scale;
+            ndvs[b]++;
+            if (counts.get(i) == 1) {
+                once[b]++;
+                onceTotal++;
+            }
+            seenRest += counts.get(i);
+            if (b < l.length - 1 && seenRest >= (long) (b + 1) * rest / l.length)
+                b++;
+        }
+        // a heavy value can fill several buckets' worth, leaving the last empty
+        int nb = l.length > 0 && l[b] != null ? b + 1 : b;
+        // the distinct values the sample missed are most likely where it saw
+        // values only once
+        double unseen = restNdv - restDistinct;
+        for (int i = 0; i < nb && unseen > 0; i++) {
+            ndvs[i] += onceTotal > 0 ? unseen * once[i] / onceTotal : unseen * ndvs[i] / restDistinct;
+        }
+        lo = Arrays.copyOf(l, nb);
+        hi = Arrays.copyOf(h, nb);
+        bucketCounts = Arrays.copyOf(bc, nb);
+        bucketNdvs = Arrays.copyOf(ndvs, nb);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /** @return the number of values in the column */
+    public long getCount() {
+        return count;
+    }
+
+    /** @return the estimated number of distinct values in the column */
+    public synchronized long getNdv() {
+        if (ndvStale) {
+            // count the new distinct values the sketch has seen since
+            long now = sketch.estimate();
+            ndv = Math.min(count, ndv + Math.max(0, now - sketchNdv));
+            sketchNdv = Math.max(sketchNdv, now);
+            ndvStale = false;
+        }
+        return ndv;
+    }
+
+    /** @return the smallest value, or null if the column is empty */
+    public synchronized Field getMin() {
+        return min;
+    }
+
+    /** @return the largest value, or null if the column is empty */
+    public synchronized Field getMax() {
+        return max;
+    }
+
+    /** @return the sketch of the column's distinct values */
+    public HyperLogLog getSketch() {
+        return sketch;
+    }
+
+    /** @return the most common values of the column, most common first */
+    public Field[] getMostCommonValues() {
+        return mcvs.clone();
+    }
+
+    /**
+     * Estimate the selectivity of predicate <tt>column op v</tt>.
+     *
+     * @return the estimated fraction of the column's values satisfying it
+     */
+    public synchronized double estimateSelectivity(Predicate.Op op, Field v) {
+        if (count == 0)
+            return 0;
+        double s;
+        switch (op) {
+        case EQUALS:
+            s = equal(v);
+            break;
+        case NOT_EQUALS:
+            s = 1 - equal(v);
+            break;
+        case LESS_THAN:
+            s = below(v);
+            break;
+        case LESS_THAN_OR_EQ:
+            s = below(v) + equal(v);
+            break;
+        case GREATER_THAN:
+            s = 1 - below(v) - equal(v);
+            break;
+        case GREATER_THAN_OR_EQ:
+            s = 1 - below(v);
+            break;
+        case LIKE:
+            s = type == Type.STRING_TYPE ? like((StringField) v) : equal(v);
+            break;
+        default:
+            throw new UnsupportedOperationException("unknown operator " + op);
+        }
+        return Math.max(0, Math.min(1, s));
+    }
+
+    /**
+     * The average selectivity of <tt>column op v</tt> over the values v of
+     * the column itself.
+     */
+    public synchronized double avgSelectivity(Predicate.Op op) {
+        if (count == 0)
+            return 1.0;
+        long ndv = getNdv();
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return 1.0 / ndv;
+        case NOT_EQUALS:
+            return 1 - 1.0 / ndv;
+        default:
+            // a random value of the column splits it in half on average
+            return 0.5;
+        }
+    }
+
+    /** The fraction of the column equal to v */
+    private double equal(Field v) {
+        if (v.compare(Predicate.Op.LESS_THAN, min) || v.compare(Predicate.Op.GREATER_THAN, max))
+            return 0;
+        for (int i = 0; i < mcvs.length; i++) {
+            if (mcvs[i].equals(v))
+                return mcvCounts[i] / count;
+        }
+        if (restNdv <= 0)
+            return 0;
+        int i = bucketOf(v);
+        if (i >= 0)
+            return bucketCounts[i] / bucketNdvs[i] / count;
+        // between buckets
+        return (count - mcvCount) / restNdv / count;
+    }
+
+    /** The fraction of the column strictly less than v */
+    private double below(Field v) {
+        if (!v.compare(Predicate.Op.GREATER_THAN, min))
+            return 0;
+        if (v.compare(Predicate.Op.GREATER_THAN, max))
+            return 1;
+        double s = 0;
+        for (int i = 0; i < mcvs.length; i++) {
+            if (mcvs[i].compare(Predicate.Op.LESS_THAN, v))
+                s += mcvCounts[i];
+        }
+        for (int i = 0; i < lo.length; i++) {
+            if (hi[i].compare(Predicate.Op.LESS_THAN, v))
+                s += bucketCounts[i];
+            else if (lo[i].compare(Predicate.Op.LESS_THAN, v))
+                s += bucketCounts[i] * within(i, v);
+        }
+        return s / count;
+    }
+
+    /**
+     * The fraction of bucket i strictly less than v, where lo &lt; v &lt;= hi,
+     * assuming its values are spread evenly between its bounds.
+     */
+    private double within(int i, Field v) {
+        if (type == Type.INT_TYPE) {
+            double l = ((IntField) lo[i]).getValue();
+            double h = ((IntField) hi[i]).getValue();
+            return (((IntField) v).getValue() - l) / (h - l + 1);
+        }
+        String l = ((StringField) lo[i]).getValue();
+        String h = ((StringField) hi[i]).getValue();
+        // every string between the bounds shares their common prefix, so
+        // place it by the characters after that
+        int p = 0;
+        while (p < l.length() && p < h.length() && l.charAt(p) == h.charAt(p))
+            p++;
+        double pl = position(l, p);
+        double ph = position(h, p);
+        double f = ph > pl ? (position(((StringField) v).getValue(), p) - pl) / (ph - pl) : 0;
+        // the values equal to hi aren't below it
+        return f * (bucketNdvs[i] - 1) / bucketNdvs[i];
+    }
+
+    /** Map the characters of s from index from on to a number in [0, 1), preserving order */
+    private static double position(String s, int from) {
+        double pos = 0;
+        double scale = 1;
+        for (int i = from; i < from + 4; i++) {
+            scale /= 65536;
+            if (i < s.length())
+                pos += s.charAt(i) * scale;
+        }
+        return pos;
+    }
+
+    /** The fraction of the column containing v, judged by the MCVs and the bucket bounds */
+    private double like(StringField v) {
+        double s = 0;
+        for (int i = 0; i < mcvs.length; i++) {
+            if (mcvs[i].compare(Predicate.Op.LIKE, v))
+                s += mcvCounts[i];
+        }
+        int nb = lo.length;
+        if (nb > 0) {
+            int matches = 0;
+            for (int i = 0; i < nb; i++) {
+                if (lo[i].compare(Predicate.Op.LIKE, v))
+                    matches++;
+                if (hi[i].compare(Predicate.Op.LIKE, v))
+                    matches++;
+            }
+            s += (count - mcvCount) * matches / (2.0 * nb);
+        }
+        return s / count;
+    }
+
+    /** @return the bucket whose bounds hold v, or -1 if none does */
+    private int bucketOf(Field v) {
+        for (int i = 0; i < lo.length; i++) {
+            if (!v.compare(Predicate.Op.LESS_THAN, lo[i]) && !v.compare(Predicate.Op.GREATER_THAN, hi[i]))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Account for a value inserted into the column.  It is counted against
+     * its common value or histogram bucket; a value beyond the histogram
+     * widens the nearest bucket to take it.
+     */
+    public synchronized void add(Field v) {
+        count++;
+        sketch.add(v);
+        ndvStale = true;
+        if (min == null || v.compare(Predicate.Op.LESS_THAN, min))
+            min = v;
+        if (max == null || v.compare(Predicate.Op.GREATER_THAN, max))
+            max = v;
+        for (int i = 0; i < mcvs.length; i++) {
+            if (mcvs[i].equals(v)) {
+                mcvCounts[i]++;
+                mcvCount++;
+                return;
+            }
+        }
+        int i = bucketOf(v);
+        if (i < 0) {
+            if (lo.length == 0) {
+                lo = new Field[] {v};
+                hi = new Field[] {v};
+                bucketCounts = new double[1];
+                bucketNdvs = new double[1];
+                i = 0;
+            } else {
+                // the last bucket below v, or the first if v is below them all
+                i = 0;
+                while (i < lo.length - 1 && !v.compare(Predicate.Op.LESS_THAN, lo[i + 1]))
+                    i++;
+                if (v.compare(Predicate.Op.LESS_THAN, lo[i]))
+                    lo[i] = v;
+                else
+                    hi[i] = v;
+            }
+            // v is a value the histogram hasn't seen
+            bucketNdvs[i]++;
+            restNdv++;
+        }
+        bucketCounts[i]++;
+    }
+
+    /**
+     * Account for a value deleted from the column.  The distinct value
+     * estimate and the bounds stay as they are.
+     */
+    public synchronized void remove(Field v) {
+        if (count == 0)
+            return;
+        count--;
+        for (int i = 0; i < mcvs.length; i++) {
+            if (mcvs[i].equals(v)) {
+                if (mcvCounts[i] >= 1) {
+                    mcvCounts[i]--;
+                    mcvCount--;
+                }
+                return;
+            }
+        }
+        int i = bucketOf(v);
+        if (i >= 0 && bucketCounts[i] >= 1)
+            bucketCounts[i]--;
+    }
+
+    /**
+     * Estimate the selectivity of an equi-join between two columns, as a
+     * fraction of their cross product.  Values listed as common on both sides
+     * are matched exactly; the rest are assumed to match as often as the
+     * distinct value counts allow.
+     */
+    public static double equiJoinSelectivity(ColumnStats a, ColumnStats b) {
+        long ndvA = a.getNdv();
+        long ndvB = b.getNdv();
+        double[] freqsA = a.mcvFreqs();
+        double[] freqsB = b.mcvFreqs();
+        if (freqsA == null || freqsB == null)
+            return 0;
+        if (a.type != b.type)
+            return 1.0 / Math.max(ndvA, ndvB);
+
+        HashMap<Field, Double> bFreqs = new HashMap<Field, Double>();
+        double totalB = 0;
+        for (int i = 0; i < b.mcvs.length; i++) {
+            bFreqs.put(b.mcvs[i], freqsB[i]);
+            totalB += freqsB[i];
+        }
+        double totalA = 0;
+        double matchProd = 0;
+        double matchA = 0;
+        double matchB = 0;
+        int matches = 0;
+        for (int i = 0; i < a.mcvs.length; i++) {
+            totalA += freqsA[i];
+            Double fb = bFreqs.get(a.mcvs[i]);
+            if (fb != null) {
+                matchProd += freqsA[i] * fb;
+                matchA += freqsA[i];
+                matchB += fb;
+                matches++;
+            }
+        }
+        double unmatchA = totalA - matchA;
+        double unmatchB = totalB - matchB;
+        double otherA = 1 - totalA;
+        double otherB = 1 - totalB;
+
+        // each side's unmatched values pair up with the other side's values
+        // outside its matched MCVs, spread over its distinct values
+        double selA = matchProd;
+        if (ndvB > b.mcvs.length)
+            selA += unmatchA * otherB / (ndvB - b.mcvs.length);
+        if (ndvB > matches)
+            selA += otherA * (otherB + unmatchB) / (ndvB - matches);
+        double selB = matchProd;
+        if (ndvA > a.mcvs.length)
+            selB += unmatchB * otherA / (ndvA - a.mcvs.length);
+        if (ndvA > matches)
+            selB += otherB * (otherA + unmatchA) / (ndvA - matches);
+        return Math.max(0, Math.min(1, Math.min(selA, selB)));
+    }
+
+    /** @return the fraction of the column equal to each MCV, or null if it is empty */
+    private synchronized double[] mcvFreqs() {
+        if (count == 0)
+            return null;
+        double[] freqs = new double[mcvs.length];
+        for (int i = 0; i < freqs.length; i++) {
+            freqs[i] = mcvCounts[i] / count;
+        }
+        return freqs;
+    }
+
+    /**
+     * Write the statistics out, to be loaded again with {@link #read}.
+     */
+    public synchronized void write(DataOutputStream dos) throws IOException {
+        dos.writeInt(type.ordinal());
+        dos.writeLong(count);
+        dos.writeLong(getNdv());
+        dos.writeBoolean(min != null);
+        if (min != null) {
+            min.serialize(dos);
+            max.serialize(dos);
+        }
+        dos.writeInt(mcvs.length);
+        for (int i = 0; i < mcvs.length; i++) {
+            mcvs[i].serialize(dos);
+            dos.writeDouble(mcvCounts[i]);
+        }
+        dos.writeInt(lo.length);
+        for (int i = 0; i < lo.length; i++) {
+            lo[i].serialize(dos);
+            hi[i].serialize(dos);
+            dos.writeDouble(bucketCounts[i]);
+            dos.writeDouble(bucketNdvs[i]);
+        }
+        dos.writeDouble(restNdv);
+        sketch.write(dos);
+    }
+
+    /**
+     * Load statistics written by {@link #write}.
+     */
+    public static ColumnStats read(DataInputStream dis) throws IOException {
+        Type type = Type.values()[dis.readInt()];
+        long count = dis.readLong();
+        long ndv = dis.readLong();
+        Field min = null;
+        Field max = null;
+        if (dis.readBoolean()) {
+            min = parse(type, dis);
+            max = parse(type, dis);
+        }
+        Field[] mcvs = new Field[dis.readInt()];
+        double[] mcvCounts = new double[mcvs.length];
+        for (int i = 0; i < mcvs.length; i++) {
+            mcvs[i] = parse(type, dis);
+            mcvCounts[i] = dis.readDouble();
+        }
+        int nb = dis.readInt();
+        ColumnStats s = new ColumnStats(type, count, ndv, mcvs, mcvCounts, nb);
+        s.min = min;
+        s.max = max;
+        for (int i = 0; i < nb; i++) {
+            s.lo[i] = parse(type, dis);
+            s.hi[i] = parse(type, dis);
+            s.bucketCounts[i] = dis.readDouble();
+            s.bucketNdvs[i] = dis.readDouble();
+        }
+        s.restNdv = dis.readDouble();
+        s.sketch = HyperLogLog.read(dis);
+        s.sketchNdv = s.sketch.estimate();
+        return s;
+    }
+
+    private ColumnStats(Type type, long count, long ndv, Field[] mcvs, double[] mcvCounts, int buckets) {
+        this.type = type;
+        this.count = count;
+        this.ndv = ndv;
+        this.mcvs = mcvs;
+        this.mcvCounts = mcvCounts;
+        for (double c : mcvCounts) {
+            mcvCount += c;
+        }
+        lo = new Field[buckets];
+        hi = new Field[buckets];
+        bucketCounts = new double[buckets];
+        bucketNdvs = new double[buckets];
+    }
+
+    private static Field parse(Type type, DataInputStream dis) throws IOException {
+        try {
+            return type.parse(dis);
+        } catch (java.text.ParseException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("count=").append(count).append(" ndv=").append(getNdv()).append(" mcvs=[");
+        for (int i = 0; i < mcvs.length; i++) {
+            sb.append(i > 0 ? ", " : "").append(mcvs[i]).append(':').append(mcvCounts[i]);
+        }
+        sb.append("] buckets=[");
+        for (int i = 0; i < lo.length; i++) {
+            sb.append(i > 0 ? ", " : "").append(lo[i]).append("..").append(hi[i]).append(':').append(bucketCounts[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
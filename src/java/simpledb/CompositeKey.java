@@ -0,0 +1,114 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * The key a BTreeFile with tie fields orders a tuple on: the value of its key
+ * field, then the values of its tie fields, compared in that order.
+ * <p>
+ * Compared to a plain Field, only the key field counts, so a search on the
+ * key field alone treats every tuple with that key field as equal and finds
+ * the left-most of them, as it would in a tree without tie fields.
+ *
+ * @see BTreeFile#keyOf
+ */
+public class CompositeKey implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field key;
+    private final int[] ties;
+
+    /**
+     * @param key the value of the key field
+     * @param ties the values of the tie fields
+     */
+    public CompositeKey(Field key, int[] ties) {
+        this.key = key;
+        this.ties = ties;
+    }
+
+    /** @return the value of the key field */
+    public Field getKey() {
+        return key;
+    }
+
+    /**
+     * Read a key written by {@link #serialize}.
+     *
+     * @param keyType the type of the key field
+     * @param numTies the number of tie fields
+     */
+    static CompositeKey parse(Type keyType, int numTies, DataInputStream dis) throws ParseException {
+        Field key = keyType.parse(dis);
+        int[] ties = new int[numTies];
+        try {
+            for (int i = 0; i < numTies; i++)
+                ties[i] = dis.readInt();
+        } catch (IOException e) {
+            throw new ParseException("couldn't parse", 0);
+        }
+        return new CompositeKey(key, ties);
+    }
+
+    /** Writes the key field, then each tie field as an int. */
+    public void serialize(DataOutputStream dos) throws IOException {
+        key.serialize(dos);
+        for (int tie : ties)
+            dos.writeInt(tie);
+    }
+
+    /**
+     * @return a negative number, zero or a positive number as this key is less
+     *         than, equal to or greater than value
+     */
+    private int compareTo(Field value) {
+        Field other = value instanceof CompositeKey ? ((CompositeKey) value).key : value;
+        if (key.compare(Predicate.Op.LESS_THAN, other))
+            return -1;
+        if (key.compare(Predicate.Op.GREATER_THAN, other))
+            return 1;
+        if (!(value instanceof CompositeKey))
+            return 0;
+        int[] otherTies = ((CompositeKey) value).ties;
+        for (int i = 0; i < ties.length; i++) {
+            if (ties[i] != otherTies[i])
+                return ties[i] < otherTies[i] ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Compare this key to a CompositeKey of the same tree, or its key field
+     * alone to a plain Field.
+     *
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field value) {
+        if (op == Predicate.Op.LIKE)
+            return key.compare(op, value instanceof CompositeKey ? ((CompositeKey) value).key : value);
+        return IntField.compare(compareTo(value), op, 0);
+    }
+
+    /** @return the type of the key field */
+    public Type getType() {
+        return key.getType();
+    }
+
+    public boolean equals(Object field) {
+        if (!(field instanceof CompositeKey))
+            return false;
+        CompositeKey other = (CompositeKey) field;
+        return key.equals(other.key) && Arrays.equals(ties, other.ties);
+    }
+
+    public int hashCode() {
+        return 31 * key.hashCode() + Arrays.hashCode(ties);
+    }
+
+    public String toString() {
+        return key + " " + Arrays.toString(ties);
+    }
+}
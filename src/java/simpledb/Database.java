@@ -55,11 +55,34 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return installBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * whose background writer keeps cleanRatio of its pages clean, and
+     * return it
+     */
+    public static BufferPool resetBufferPool(int pages, double cleanRatio) {
+        return installBufferPool(new BufferPool(pages, cleanRatio));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * that parks evicted pages in an off-heap arena of offHeapFrames frames,
+     * without a background writer, and return it
+     */
+    public static BufferPool resetBufferPoolWithArena(int pages, int offHeapFrames) {
+        return installBufferPool(new BufferPool(pages, 0, offHeapFrames));
+    }
+
+    private static BufferPool installBufferPool(BufferPool bp) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            _instance.get()._bufferpool.stopFlusher();
+            bufferPoolF.set(_instance.get(), bp);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,7 +98,7 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        _instance.getAndSet(new Database())._bufferpool.stopFlusher();
     }
 
 }
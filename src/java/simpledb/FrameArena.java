@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FrameArena is an off-heap store of page images for the BufferPool.  It is
+ * one direct ByteBuffer cut into fixed-size frames, so the memory it holds
+ * is not part of the Java heap and is never scanned by the garbage
+ * collector.
+ * <p>
+ * The BufferPool keeps a small number of live Page objects on the heap and
+ * parks the bytes of clean pages it evicts here.  A later miss on such a
+ * page rebuilds it from its frame instead of reading the file.  A page is
+ * either live in the BufferPool or parked in the arena, never both.
+ * Frames are reused in least-recently-parked order when the arena is full.
+ *
+ * @Threadsafe
+ */
+public class FrameArena {
+
+    private final ByteBuffer arena;
+    private final int frameSize;
+    private final int numFrames;
+
+    private final ArrayDeque<Integer> freeFrames;
+    // pid -> frame; insertion order is the reuse order
+    private final LinkedHashMap<PageId, Frame> frames;
+
+    private static class Frame {
+        final int index;
+        final int length;
+
+        Frame(int index, int length) {
+            this.index = index;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Allocate an arena of numFrames frames of frameSize bytes each.
+     *
+     * @param numFrames number of page images the arena can hold
+     * @param frameSize bytes per frame, normally BufferPool.getPageSize()
+     */
+    public FrameArena(int numFrames, int frameSize) {
+        if ((long) numFrames * frameSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("arena of " + numFrames + " frames of "
+                    + frameSize + " bytes is larger than a single direct buffer");
+        this.numFrames = numFrames;
+        this.frameSize = frameSize;
+        this.arena = ByteBuffer.allocateDirect(numFrames * frameSize);
+        this.freeFrames = new ArrayDeque<Integer>(numFrames);
+        for (int i = 0; i < numFrames; i++)
+            freeFrames.add(i);
+        this.frames = new LinkedHashMap<PageId, Frame>();
+    }
+
+    /**
+     * Park a page image in the arena, replacing any older image of the same
+     * page.  If the arena is full, the image parked longest ago is dropped.
+     *
+     * @param pid the page the image belongs to
+     * @param data the page image; must not be longer than a frame
+     */
+    public synchronized void put(PageId pid, byte[] data) {
+        if (data.length > frameSize)
+            throw new IllegalArgumentException("page image of " + data.length
+                    + " bytes does not fit in a " + frameSize + " byte frame");
+        if (numFrames == 0)
+            return;
+        Frame old = frames.remove(pid);
+        if (old != null)
+            freeFrames.add(old.index);
+        if (freeFrames.isEmpty()) {
+            Iterator<Map.Entry<PageId, Frame>> it = frames.entrySet().iterator();
+            freeFrames.add(it.next().getValue().index);
+            it.remove();
+        }
+        int index = freeFrames.poll();
+        ByteBuffer dst = arena.duplicate();
+        dst.position(index * frameSize);
+        dst.put(data);
+        frames.put(pid, new Frame(index, data.length));
+    }
+
+    /**
+     * Take a page image out of the arena.  The frame is freed.
+     *
+     * @param pid the page to look up
+     * @return a copy of the image, or null if the page isn't parked here
+     */
+    public synchronized byte[] take(PageId pid) {
+        Frame f = frames.remove(pid);
+        if (f == null)
+            return null;
+        byte[] data = new byte[f.length];
+        ByteBuffer src = arena.duplicate();
+        src.position(f.index * frameSize);
+        src.get(data);
+        freeFrames.add(f.index);
+        return data;
+    }
+
+    /**
+     * Drop the image of the specified page, if there is one.
+     */
+    public synchronized void remove(PageId pid) {
+        Frame f = frames.remove(pid);
+        if (f != null)
+            freeFrames.add(f.index);
+    }
+
+    /** Return true if an image of the specified page is parked here */
+    public synchronized boolean contains(PageId pid) {
+        return frames.containsKey(pid);
+    }
+
+    /** Return the number of page images currently parked */
+    public synchronized int size() {
+        return frames.size();
+    }
+
+    /** Return the number of frames in the arena */
+    public int capacity() {
+        return numFrames;
+    }
+}
@@ -53,6 +53,11 @@ public class HashEquiJoin extends Operator {
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
     public final static int MAP_SIZE = 20000;
 
+    /** The scan child2 reads, if the keys of the map can be pushed into it */
+    transient private SeqScan probeScan = null;
+    /** The index of the join field in the tuples probeScan returns */
+    transient private int probeField;
+
     private boolean loadMap() throws DbException, TransactionAbortedException {
         int cnt = 0;
         map.clear();
@@ -65,22 +70,67 @@ public class HashEquiJoin extends Operator {
             }
             list.add(t1);
             if (cnt++ == MAP_SIZE)
-                return true;
+                break;
         }
+        publishKeys();
         return cnt > 0;
 
     }
 
+    /**
+     * Hand the probe scan a Bloom filter of the keys in the map, so that it
+     * drops the tuples that can't match any of them before they are built
+     * and passed up to here.
+     */
+    private void publishKeys() {
+        if (probeScan == null)
+            return;
+        BloomFilter bloom = new BloomFilter(map.size());
+        for (Object key : map.keySet())
+            bloom.add((Field) key);
+        probeScan.setBloomFilter(probeField, bloom);
+    }
+
+    /**
+     * Find the scan that child2 reads its tuples from one by one, through
+     * filters and projections, and the join field's index in its tuples.
+     * Any other operator on the way may hold on to tuples read before the
+     * map changes, so none is looked through.
+     */
+    private void findProbeScan() {
+        probeScan = null;
+        OpIterator op = child2;
+        int field = pred.getField2();
+        while (true) {
+            if (op instanceof SeqScan) {
+                probeScan = (SeqScan) op;
+                probeField = field;
+                return;
+            } else if (op instanceof Filter) {
+                op = ((Filter) op).getChildren()[0];
+            } else if (op instanceof Project) {
+                field = ((Project) op).childField(field);
+                op = ((Project) op).getChildren()[0];
+            } else {
+                return;
+            }
+        }
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
+        findProbeScan();
         loadMap();
         super.open();
     }
 
     public void close() {
         super.close();
+        if (probeScan != null)
+            probeScan.setBloomFilter(probeField, null);
+        probeScan = null;
         child2.close();
         child1.close();
         this.t1=null;
@@ -92,6 +142,8 @@ public class HashEquiJoin extends Operator {
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        this.listIt=null;
+        loadMap();
     }
 
     transient Iterator<Tuple> listIt = null;
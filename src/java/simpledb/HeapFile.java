@@ -17,6 +17,7 @@ public class HeapFile implements DbFile {
     private File f;
     private TupleDesc td;
     private String tbName;
+    private final ZoneMap zones;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -28,6 +29,7 @@ public class HeapFile implements DbFile {
     public HeapFile(File f, TupleDesc td) {
         this.f = f;
         this.td = td;
+        this.zones = new ZoneMap(td);
         tbName = Database.getCatalog().addTable(this);
     }
 
@@ -57,6 +59,14 @@ public class HeapFile implements DbFile {
         return this.f.getAbsoluteFile().hashCode();
     }
 
+    /**
+     * Returns the range of the integer fields on each page of this file, which
+     * scans with predicates use to skip pages.
+     */
+    public ZoneMap getZoneMap() {
+        return this.zones;
+    }
+
     /**
      * Returns the TupleDesc of the table stored in this DbFile.
      * 
@@ -90,6 +100,8 @@ public class HeapFile implements DbFile {
         raf.seek(page.getId().getPageNumber() * BufferPool.getPageSize());
         raf.write(page.getPageData());
         raf.close();
+        // whatever is on disk may be read back, say by a rollback
+        zones.cover(page.getId().getPageNumber(), (HeapPage) page);
     }
 
     /**
@@ -110,6 +122,7 @@ public class HeapFile implements DbFile {
         for (int i=0;i<al.size();i++) {
             writePage(al.get(i));
         }
+        BufferPool.tableChanged(getId());
         return al;
     }
 
@@ -167,6 +180,7 @@ public class HeapFile implements DbFile {
         for (int i=0;i<al.size();i++) {
             writePage(al.get(i));
         }
+        BufferPool.tableChanged(getId());
         return al;
     }
 
@@ -196,90 +210,41 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
-        return new HeapFileIterator(this, tid);
+        return new HeapFileIterator(this, tid, null, null);
     }
 
-}
-
-/**
- * Helper class that implements the Java Iterator for tuples on a HeapFile
- */
-class HeapFileIterator extends AbstractDbFileIterator {
-	TransactionId tid;
-    HeapFile f;
-    
-    HeapPageId pid;
-    int pgNo;
-    HeapPage page;
-    Iterator<Tuple> it;
-    
-
-	/**
-	 * Constructor for this iterator
-	 * @param f - the HeapFile containing the tuples
-	 * @param tid - the transaction id
-	 */
-	public HeapFileIterator(HeapFile f, TransactionId tid) {
-		this.f = f;
-        this.tid = tid;
-	}
-
-	/**
-	 * Open this iterator
-	 */
-	public void open() throws DbException, TransactionAbortedException {
-        int tbId = Database.getCatalog().getTableId(f.getTbName());
-        pgNo = 0;
-        pid = new HeapPageId(tbId, pgNo);
-        page = (HeapPage)Database.getBufferPool().getPage(tid, pid, null);
-        it = page.iterator();
-	}
-
-	/**
-	 * Read the next tuple either from the current page if it has more tuples or
-	 * from the next page by following the right sibling pointer.
-	 * 
-	 * @return the next tuple, or null if none exists
-	 */
-	@Override
-	protected Tuple readNext() throws TransactionAbortedException, DbException {
-        if (pid == null) return null;;
-        if (it.hasNext()) {
-            return it.next();
-        }
-        // next
-        int tbId = Database.getCatalog().getTableId(f.getTbName());
-        pgNo++;
+    /**
+     * Returns an iterator over the tuples of this file that satisfy every one
+     * of the given predicates, with only the given fields.  The predicates
+     * are evaluated on each page as it is read, so tuples that don't satisfy
+     * them are never built, and only the requested fields are decoded.
+     *
+     * @param tid the transaction reading the file
+     * @param predicates predicates on the fields of the file, all of which a
+     *            tuple must satisfy to be returned; null or empty for all tuples
+     * @param fields the fields of the file to return, in order, or null for
+     *            all of them
+     */
+    public HeapFileIterator iterator(TransactionId tid, Predicate[] predicates, int[] fields) {
+        if (predicates != null && predicates.length == 0)
+            predicates = null;
+        return new HeapFileIterator(this, tid, predicates, fields);
+    }
 
-        if (pgNo >= f.numPages()) return null;
-        pid = new HeapPageId(tbId, pgNo);
-        // page = (HeapPage)f.readPage((PageId)pid);
-        page = (HeapPage)Database.getBufferPool().getPage(tid, pid, null);
-        if (page == null) return null;
-        it = page.iterator();
-        if (it.hasNext()) {
-            return it.next();
+    /**
+     * @return the tuple descriptor of the given fields of this file, or of all
+     *         of them if fields is null
+     */
+    TupleDesc getTupleDesc(int[] fields) {
+        if (fields == null)
+            return td;
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            types[i] = td.getFieldType(fields[i]);
+            names[i] = td.getFieldName(fields[i]);
         }
-        return null;
-	}
-
-	/**
-	 * rewind this iterator back to the beginning of the tuples
-	 */
-	public void rewind() throws DbException, TransactionAbortedException {
-		close();
-		open();
-	}
-
-	/**
-	 * close the iterator
-	 */
-	public void close() {
-        super.close();
-		pid = null;
-        pgNo = 0;
-        page = null;
-        it = null;
+        return new TupleDesc(types, names);
     }
-}
 
+}
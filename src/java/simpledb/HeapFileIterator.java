@@ -0,0 +1,161 @@
+package simpledb;
+
+/**
+ * Helper class that implements the Java Iterator for tuples on a HeapFile
+ */
+public class HeapFileIterator extends AbstractDbFileIterator {
+	TransactionId tid;
+    HeapFile f;
+    
+    HeapPageId pid;
+    int pgNo;
+    HeapPage page;
+    /** The slots of the page that were in use when it was pinned */
+    int[] slots;
+    int slot;
+
+    final Predicate[] predicates;
+    final int[] fields;
+    final TupleDesc outTd;
+
+    /**
+     * A Bloom filter on the values of one field, which a tuple's value of
+     * that field must pass.  The two are published together, so a reader
+     * never sees the filter of one field paired with another.
+     */
+    static final class BloomProbe {
+        final int field;
+        final BloomFilter filter;
+
+        BloomProbe(int field, BloomFilter filter) {
+            this.field = field;
+            this.filter = filter;
+        }
+    }
+
+    /** The filter tuples must pass, or null */
+    volatile BloomProbe probe;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the HeapFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param predicates - the predicates a tuple must satisfy, or null
+	 * @param fields - the fields to return, or null for all of them
+	 */
+	public HeapFileIterator(HeapFile f, TransactionId tid, Predicate[] predicates, int[] fields) {
+		this.f = f;
+        this.tid = tid;
+        this.predicates = predicates;
+        this.fields = fields;
+        this.outTd = f.getTupleDesc(fields);
+	}
+
+	/**
+	 * Open this iterator
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+        int tbId = Database.getCatalog().getTableId(f.getTbName());
+        pgNo = skipPages(0);
+        if (pgNo > 0 && pgNo >= f.numPages()) {
+            // every page was skipped
+            pid = null;
+            return;
+        }
+        pid = new HeapPageId(tbId, pgNo);
+        pin();
+	}
+
+	/**
+	 * Read the next tuple that satisfies the predicates, either from the
+	 * current page if it has more tuples or from the next page.
+	 * 
+	 * @return the next tuple, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+        while (pid != null && page != null) {
+            BloomProbe probe = this.probe;
+            while (slot < slots.length) {
+                int i = slots[slot++];
+                if (predicates != null && !page.matches(i, predicates))
+                    continue;
+                if (probe != null && !probe.filter.mightContainHash(page.hashField(i, probe.field)))
+                    continue;
+                return page.getTuple(i, fields, outTd);
+            }
+            // next
+            int tbId = Database.getCatalog().getTableId(f.getTbName());
+            pgNo = skipPages(pgNo + 1);
+
+            // done with the current page; let it be evicted
+            unpin();
+            if (pgNo >= f.numPages()) {
+                pid = null;
+                return null;
+            }
+            pid = new HeapPageId(tbId, pgNo);
+            pin();
+        }
+        return null;
+	}
+
+    private void pin() throws TransactionAbortedException, DbException {
+        page = (HeapPage)Database.getBufferPool().pinPage(tid, pid, null);
+        if (page != null) {
+            slots = page.usedSlots();
+            f.getZoneMap().record(pgNo, page);
+        }
+        slot = 0;
+    }
+
+    /**
+     * Drop the tuples whose value of a field the probe's filter says is not
+     * in its set, from the next tuple read on; null lets every tuple through
+     * again.
+     */
+    void setBloomProbe(BloomProbe probe) {
+        this.probe = probe;
+    }
+
+    /**
+     * @return the first page from pgNo on that the zone map says may hold a
+     *         tuple satisfying the predicates, or the number of pages if none
+     *         does
+     */
+    private int skipPages(int pgNo) {
+        if (predicates == null)
+            return pgNo;
+        int n = f.numPages();
+        while (pgNo < n && !f.getZoneMap().mayMatch(pgNo, predicates))
+            pgNo++;
+        return pgNo;
+    }
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+        super.close();
+        unpin();
+		pid = null;
+        pgNo = 0;
+        slots = null;
+    }
+
+    private void unpin() {
+        if (page != null) {
+            Database.getBufferPool().unpinPage(page.getId());
+            page = null;
+        }
+    }
+}
+
@@ -21,6 +21,12 @@ public class HeapPage implements Page {
     final int numSlots;
     DataInputStream dis;
 
+    /** The image this page was read from.  A used slot whose tuple is null
+        still holds what the image does, and is decoded from it when asked */
+    private final byte[] data;
+    /** The offset of each field within a tuple */
+    private final int[] fieldOffsets;
+
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
@@ -53,17 +59,17 @@ public class HeapPage implements Page {
         for (int i=0; i<header.length; i++)
             header[i] = dis.readByte();
         
+        // the records are decoded as they are read (see getTuple), and those
+        // a scan's predicates reject never are (see matches)
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
+        this.data = data;
+        fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
+
+        // the image we were read from is the before-image; nothing writes
+        // to it, so share it instead of re-serializing and copying the page
+        oldData = data;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -102,7 +108,7 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = getPageData(); // already a fresh array
         }
     }
 
@@ -151,6 +157,133 @@ public class HeapPage implements Page {
         return t;
     }
 
+    /**
+     * @return the tuple in slot i, which must be in use, decoding it from the
+     *         page image if it hasn't been yet
+     */
+    Tuple getTuple(int i) {
+        Tuple t = tuples[i];
+        if (t == null) {
+            t = new Tuple(td);
+            t.setRecordId(new RecordId(pid, i));
+            for (int j=0; j<td.numFields(); j++)
+                t.setField(j, readField(i, j));
+            tuples[i] = t;
+        }
+        return t;
+    }
+
+    /**
+     * Build a tuple of some of the fields of the tuple in slot i, which must
+     * be in use, decoding just those fields if the tuple hasn't been decoded.
+     *
+     * @param fields the fields to return, or null for all of them
+     * @param outTd the tuple descriptor of the fields
+     */
+    Tuple getTuple(int i, int[] fields, TupleDesc outTd) {
+        if (fields == null)
+            return getTuple(i);
+        Tuple whole = tuples[i];
+        Tuple t = new Tuple(outTd);
+        t.setRecordId(new RecordId(pid, i));
+        for (int k=0; k<fields.length; k++)
+            t.setField(k, whole != null ? whole.getField(fields[k]) : readField(i, fields[k]));
+        return t;
+    }
+
+    /**
+     * @return true if the tuple in slot i, which must be in use, satisfies
+     *         every one of the predicates.  Integer fields of a tuple that
+     *         hasn't been decoded are compared in place in the page image.
+     */
+    boolean matches(int i, Predicate[] predicates) {
+        Tuple t = tuples[i];
+        for (Predicate p : predicates) {
+            boolean match;
+            if (t != null) {
+                match = p.filter(t);
+            } else if (td.getFieldType(p.getField()) == Type.INT_TYPE) {
+                match = IntField.compare(readInt(i, p.getField()), p.getOp(),
+                        ((IntField) p.getOperand()).getValue());
+            } else {
+                match = readField(i, p.getField()).compare(p.getOp(), p.getOperand());
+            }
+            if (!match)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the value of field j, which must be an INT_TYPE field, of the
+     *         tuple in slot i, which must be in use
+     */
+    int getInt(int i, int j) {
+        Tuple t = tuples[i];
+        if (t != null)
+            return ((IntField) t.getField(j)).getValue();
+        return readInt(i, j);
+    }
+
+    /**
+     * @return the hash of field j of the tuple in slot i, which must be in
+     *         use, as {@link HyperLogLog#hash} gives it, reading an integer
+     *         field in place if the tuple hasn't been decoded
+     */
+    long hashField(int i, int j) {
+        Tuple t = tuples[i];
+        if (t != null)
+            return HyperLogLog.hash(t.getField(j));
+        if (td.getFieldType(j) == Type.INT_TYPE)
+            return HyperLogLog.hash(readInt(i, j));
+        return HyperLogLog.hash(readField(i, j));
+    }
+
+    /** @return the zone map of the file this page belongs to, or null */
+    private ZoneMap zoneMap() {
+        try {
+            DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            return f instanceof HeapFile ? ((HeapFile) f).getZoneMap() : null;
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    /** @return the slots in use on this page, in order */
+    int[] usedSlots() {
+        int[] slots = new int[numSlots - getNumEmptySlots()];
+        int n = 0;
+        for (int i = 0; i < numSlots && n < slots.length; i++) {
+            if (isSlotUsed(i))
+                slots[n++] = i;
+        }
+        return slots;
+    }
+
+    private int fieldOffset(int i, int j) {
+        return header.length + i * td.getSize() + fieldOffsets[j];
+    }
+
+    private int readInt(int i, int j) {
+        int off = fieldOffset(i, j);
+        return ((data[off] & 0xff) << 24) | ((data[off+1] & 0xff) << 16)
+                | ((data[off+2] & 0xff) << 8) | (data[off+3] & 0xff);
+    }
+
+    /** Decode field j of the tuple in slot i from the page image */
+    private Field readField(int i, int j) {
+        Type type = td.getFieldType(j);
+        if (type == Type.INT_TYPE)
+            return new IntField(readInt(i, j));
+        try {
+            return type.parse(new DataInputStream(new ByteArrayInputStream(
+                    data, fieldOffset(i, j), type.getLen())));
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -162,7 +295,7 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
+    public synchronized byte[] getPageData() {
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -188,7 +321,15 @@ public class HeapPage implements Page {
                 }
                 continue;
             }
-            // non-empty slot
+            // non-empty slot, still as it was read
+            if (tuples[i] == null) {
+                try {
+                    dos.write(data, header.length + i * td.getSize(), td.getSize());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
                 try {
@@ -233,30 +374,33 @@ public class HeapPage implements Page {
 
     /**
      * Delete the specified tuple from the page; the corresponding header bit should be updated to reflect
-     *   that it is no longer stored on any page.
+     *   that it is no longer stored on any page.  The file's {@link ZoneMap} is kept up to date.
      * @throws DbException if this tuple is not on this page, or tuple slot is
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         RecordId id = t.getRecordId();
         if (!id.getPageId().equals(getId())) throw new DbException("tuple not exist in this page");
         if (getNumEmptySlots() == getNumTuples()) throw new DbException("page already empty");
         int slotId = id.getTupleNumber();
+        ZoneMap zones = zoneMap();
+        if (zones != null && isSlotUsed(slotId))
+            zones.deleting(pid.getPageNumber(), this, slotId);
         // set header
         markSlotUsed(slotId, false);
     }
 
     /**
      * Adds the specified tuple to the page;  the tuple should be updated to reflect
-     *  that it is now stored on this page.
+     *  that it is now stored on this page.  The file's {@link ZoneMap} is kept up to date.
      * @throws DbException if the page is full (no empty slots) or tupledesc
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         RecordId id = t.getRecordId();
@@ -276,17 +420,20 @@ public class HeapPage implements Page {
 
     // add by liaojianqi, insert t in slotId.
     // !!! Note this method not actually add in disk
-    public void insertTuple(Tuple t, int slotId) throws DbException {
+    public synchronized void insertTuple(Tuple t, int slotId) throws DbException {
         tuples[slotId] = t;
         t.setRecordId(new RecordId(pid, slotId));
         markSlotUsed(slotId, true);
+        ZoneMap zones = zoneMap();
+        if (zones != null)
+            zones.inserted(pid.getPageNumber(), t);
     }
 
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
      */
-    public void markDirty(boolean dirty, TransactionId tid) {
+    public synchronized void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
         // not necessary for lab1
         if (dirty) {
@@ -299,7 +446,7 @@ public class HeapPage implements Page {
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
-    public TransactionId isDirty() {
+    public synchronized TransactionId isDirty() {
         // some code goes here
 	    // Not necessary for lab1
         return dirtier;  
@@ -362,7 +509,7 @@ public class HeapPage implements Page {
         Vector<Tuple> v = new Vector<Tuple>();
         for (int i = 0; i < this.numSlots; i++) {
             if (this.isSlotUsed(i)) {
-                v.add(this.tuples[i]);
+                v.add(getTuple(i));
             }
         }
         return v.iterator();
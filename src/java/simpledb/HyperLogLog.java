@@ -0,0 +1,167 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * HyperLogLog estimates the number of distinct values added to it, using a
+ * fixed amount of memory however many values it sees (Flajolet et al.,
+ * "HyperLogLog: the analysis of a near-optimal cardinality estimation
+ * algorithm", 2007).
+ * <p>
+ * Each value is hashed to 64 bits; the first <tt>precision</tt> bits pick one
+ * of 2^precision registers, and the register keeps the longest run of leading
+ * zeros seen in the rest of the hash.  The relative error of the estimate is
+ * about 1.04 / sqrt(2^precision), so the default of 12 uses 4KB and is within
+ * a couple of percent.  Two sketches of the same precision can be merged,
+ * which gives the sketch of the union of their values.
+ */
+public class HyperLogLog {
+
+    /** The precision used by the no-argument constructor */
+    public static final int DEFAULT_PRECISION = 12;
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * Create an empty sketch with the default precision.
+     */
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * Create an empty sketch.
+     *
+     * @param precision the number of hash bits used to pick a register, from 4 to 16
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16)
+            throw new IllegalArgumentException("precision must be between 4 and 16");
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Add a field value to the sketch.
+     */
+    public void add(Field f) {
+        addHash(hash(f));
+    }
+
+    /**
+     * Add a value to the sketch, given a well-mixed 64 bit hash of it.
+     */
+    public void addHash(long hash) {
+        int idx = (int) (hash >>> (64 - precision));
+        // a sentinel bit keeps the run of zeros within the remaining bits
+        long rest = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[idx])
+            registers[idx] = rank;
+    }
+
+    /**
+     * Fold another sketch into this one, so that this one estimates the
+     * distinct values added to either.
+     *
+     * @throws IllegalArgumentException if the sketches have different precisions
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision)
+            throw new IllegalArgumentException("cannot merge sketches of different precision");
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values added so far
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0)
+                zeros++;
+        }
+        double alpha;
+        switch (m) {
+        case 16:
+            alpha = 0.673;
+            break;
+        case 32:
+            alpha = 0.697;
+            break;
+        case 64:
+            alpha = 0.709;
+            break;
+        default:
+            alpha = 0.7213 / (1 + 1.079 / m);
+        }
+        double e = alpha * m * m / sum;
+        // small cardinalities are better estimated by counting empty registers
+        if (e <= 2.5 * m && zeros > 0)
+            e = m * Math.log((double) m / zeros);
+        return Math.round(e);
+    }
+
+    /**
+     * Write the sketch out, to be loaded again with {@link #read}.
+     */
+    public void write(DataOutputStream dos) throws IOException {
+        dos.writeByte(precision);
+        dos.write(registers);
+    }
+
+    /**
+     * Load a sketch written by {@link #write}.
+     */
+    public static HyperLogLog read(DataInputStream dis) throws IOException {
+        HyperLogLog h = new HyperLogLog(dis.readByte());
+        dis.readFully(h.registers);
+        return h;
+    }
+
+    /**
+     * @return a 64 bit hash of a field value, spread well enough for the sketch
+     */
+    public static long hash(Field f) {
+        if (f.getType() == Type.INT_TYPE)
+            return hash(((IntField) f).getValue());
+        // FNV-1a over the characters, then mixed
+        long h = 0xcbf29ce484222325L;
+        String s = ((StringField) f).getValue();
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * @return the hash of an int, the same as that of an IntField holding it
+     */
+    public static long hash(int v) {
+        return mix(v);
+    }
+
+    /** The finalizer of MurmurHash3, which spreads every input bit over the output */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb3fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,172 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexScan reads the tuples of a table out of one of its secondary indexes,
+ * without touching the table itself.  It returns only the table fields that
+ * the index stores, in the order they appear in the table, in ascending or
+ * descending order of the index's leading key field.  Each tuple carries the
+ * RecordId of the heap tuple it came from.
+ *
+ * @see SecondaryIndex
+ */
+public class IndexScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private boolean isOpen = false;
+    private TransactionId tid;
+    private SecondaryIndex index;
+    private IndexPredicate ipred;
+    private IndexPredicate lower;
+    private IndexPredicate upper;
+    private boolean descending;
+    private String alias;
+    private TupleDesc myTd;
+    private int[] columns; // index column feeding each output field
+    private transient DbFileIterator it;
+
+    /**
+     * Creates a scan over a secondary index as a part of the specified
+     * transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to scan.
+     * @param tableAlias
+     *            the alias of the indexed table; the returned tupleDesc has
+     *            fields named tableAlias.fieldName
+     * @param ipred
+     *            a predicate on the leading key field of the index, or null
+     *            to return every tuple
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+        this(tid, index, tableAlias, null, null, false);
+        this.ipred = ipred;
+    }
+
+    /**
+     * Creates a scan over a range of a secondary index as a part of the
+     * specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to scan.
+     * @param tableAlias
+     *            the alias of the indexed table; the returned tupleDesc has
+     *            fields named tableAlias.fieldName
+     * @param lower
+     *            the lower bound on the leading key field, or null for none
+     * @param upper
+     *            the upper bound on the leading key field, or null for none
+     * @param descending
+     *            whether to return the tuples in descending key order
+     * @see BTreeFile#rangeIterator
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias,
+            IndexPredicate lower, IndexPredicate upper, boolean descending) {
+        this.tid = tid;
+        this.index = index;
+        this.alias = tableAlias;
+        this.lower = lower;
+        this.upper = upper;
+        this.descending = descending;
+
+        TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+        ArrayList<Integer> cols = new ArrayList<Integer>();
+        ArrayList<Type> types = new ArrayList<Type>();
+        ArrayList<String> names = new ArrayList<String>();
+        for (int i = 0; i < td.numFields(); i++) {
+            int col = index.columnOf(i);
+            if (col >= 0) {
+                cols.add(col);
+                types.add(td.getFieldType(i));
+                names.add(tableAlias + "." + td.getFieldName(i));
+            }
+        }
+        columns = new int[cols.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = cols.get(i);
+        }
+        myTd = new TupleDesc(types.toArray(new Type[0]), names.toArray(new String[0]));
+    }
+
+    /**
+     * @return the index this operator scans
+     */
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return true if the tuples come out in descending key order
+     */
+    public boolean isDescending() {
+        return descending;
+    }
+
+    /**
+     * @return the name of the table the index is over
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /**
+     * @return Return the alias of the table this operator scans.
+     */
+    public String getAlias() {
+        return alias;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one OpIterator.");
+        BTreeFile bf = index.getFile();
+        if (ipred != null)
+            it = bf.indexIterator(tid, ipred);
+        else if (lower == null && upper == null && !descending)
+            it = bf.iterator(tid);
+        else
+            it = bf.rangeIterator(tid, lower, upper, descending);
+        it.open();
+        isOpen = true;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return myTd;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        Tuple entry = it.next();
+        Tuple t = new Tuple(myTd);
+        for (int i = 0; i < columns.length; i++) {
+            t.setField(i, entry.getField(columns[i]));
+        }
+        t.setRecordId(index.recordId(entry));
+        return t;
+    }
+
+    public void close() {
+        if (it != null)
+            it.close();
+        it = null;
+        isOpen = false;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
+        close();
+        open();
+    }
+}
@@ -13,9 +13,38 @@ import simpledb.Predicate.Op;
  * logical plan.
  */
 public class JoinOptimizer {
+    /** Joins over at most this many relations have every order tried */
+    public static final int DEFAULT_EXHAUSTIVE_THRESHOLD = 18;
+    /** How long, in milliseconds, to look for orders over more relations */
+    public static final long DEFAULT_PLANNING_BUDGET = 100;
+
+    /** Past this many pairs of subplans, planning every one is given up */
+    private static final int MAX_SUBPLAN_PAIRS = 1 << 21;
+
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    private int exhaustiveThreshold = DEFAULT_EXHAUSTIVE_THRESHOLD;
+    private long planningBudget = DEFAULT_PLANNING_BUDGET;
+
+    /** The relations of the query, by number; a subquery's subplan is null */
+    private ArrayList<String> relations;
+    /** The relations each join is over, as a mask */
+    private long[] joinRelations;
+    /** The relation of the left-hand side (t1) of each join, as a mask */
+    private long[] outerRelations;
+    /** The joins each relation takes part in, by number */
+    private int[][] incidentJoins;
+    /** The relations joined to each relation, by number */
+    private long[] adjacentRelations;
+    /** The cost and cardinality of scanning each relation, by number */
+    private double[] scanCosts;
+    private int[] scanCards;
+    /** The pairs of subplans to plan, by the size of their union */
+    private long[][] pairs;
+    private int[] pairCounts;
+    private int totalPairs;
+
     /**
      * Constructor
      * 
@@ -151,25 +180,56 @@ public class JoinOptimizer {
     }
 
     /**
-     * Estimate the join cardinality of two tables.
+     * Estimate the join cardinality of two tables.  An equi-join on a primary
+     * key yields at most one tuple per tuple of the other side; other
+     * equi-joins are estimated from the columns' most common values and
+     * distinct value counts, when there are statistics for both.
      * */
     public static int estimateTableJoinCardinality(Predicate.Op joinOp,
             String table1Alias, String table2Alias, String field1PureName,
             String field2PureName, int card1, int card2, boolean t1pkey,
             boolean t2pkey, Map<String, TableStats> stats,
             Map<String, Integer> tableAliasToId) {
-        int card = card1*card2;
+        double card = (double) card1 * card2;
         if (joinOp == Op.EQUALS && t1pkey) {
             card = Math.min(card, card2);
         }
         if (joinOp == Op.EQUALS && t2pkey) {
             card = Math.min(card, card1);
         }
+        if (joinOp == Op.EQUALS && !t1pkey && !t2pkey) {
+            ColumnStats c1 = columnStats(table1Alias, field1PureName, stats, tableAliasToId);
+            ColumnStats c2 = columnStats(table2Alias, field2PureName, stats, tableAliasToId);
+            if (c1 != null && c2 != null) {
+                card *= ColumnStats.equiJoinSelectivity(c1, c2);
+            }
+        }
         if (joinOp != Op.EQUALS) {
             card/=0.3;
         }
-        // some code goes here
-        return card <= 0 ? 1 : card;
+        return card < 1 ? 1 : (int) Math.min(card, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the statistics of a field of an aliased table, or null if
+     *         there are none
+     */
+    private static ColumnStats columnStats(String tableAlias, String fieldPureName,
+            Map<String, TableStats> stats, Map<String, Integer> tableAliasToId) {
+        if (stats == null || tableAliasToId == null)
+            return null;
+        Integer tableId = tableAliasToId.get(tableAlias);
+        if (tableId == null)
+            return null;
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null)
+            return null;
+        try {
+            return s.getColumnStats(Database.getCatalog().getTupleDesc(tableId)
+                    .fieldNameToIndex(fieldPureName));
+        } catch (NoSuchElementException e) {
+            return null;
+        }
     }
 
     /**
@@ -208,6 +268,23 @@ public class JoinOptimizer {
     /**
      * Compute a logical, reasonably efficient join on the specified tables. See
      * PS4 for hints on how this should be implemented.
+     * <p>
+     * The relations of the query are numbered, and a set of them is a bitmask
+     * of their numbers.  Plans are built by dynamic programming over the
+     * connected subgraphs of the join graph, smallest first: the best plan
+     * for each connected set of relations is the cheapest join of the best
+     * plans for two smaller connected sets that make it up, which may both
+     * be joins themselves, so the plan may be a bushy tree rather than a
+     * left-deep one.  Sets that would need a cross product are never looked
+     * at, and the plans are kept in a {@link PlanCache} of flat arrays keyed
+     * on the masks, so ordering a chain or a star of a dozen or more
+     * relations only costs a few thousand steps.
+     * <p>
+     * Past {@link #setExhaustiveThreshold a threshold} on the number of
+     * relations, or when the join graph is so dense that the pairs of
+     * connected sets are too many, a left-deep order is searched for instead
+     * -- greedily, then by iterative improvement -- for as long as
+     * {@link #setPlanningBudget the planning budget} allows.
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -219,8 +296,10 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed.  Each join is over the plans
+     *         built so far for its two tables, so the joins before it on
+     *         either side may have built a subtree of their own.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -229,206 +308,506 @@ public class JoinOptimizer {
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
-        //Not necessary for labs 1--3
-
-        // some code goes here
-        //Replace the following
+        if (joins.isEmpty())
+            return joins;
+        buildJoinGraph();
+        estimateScans(stats, filterSelectivities);
+        int n = relations.size();
         PlanCache pc = new PlanCache();
-        double minV = Double.MAX_VALUE;
-        for (int i=1;i<=joins.size();i++) {
-            Set<Set<LogicalJoinNode>> ss = enumerateSubsets(joins, i);
-            for (Set<LogicalJoinNode> s : ss) {
-                double last = Double.MAX_VALUE;
-                CostCard cc = null;
-                for (LogicalJoinNode node : s) {
-                    CostCard tmp = computeCostAndCardOfSubplan(
-                        stats,
-                        filterSelectivities,
-                        node,
-                        s,
-                        last,
-                        pc
-                    );
-                    if (tmp != null) {
-                        cc = tmp;
-                        last = cc.cost;
-                    }
-                }
-                if (cc != null) {
-                    pc.addPlan(s, cc.cost, cc.card, cc.plan);
-                    // result
-                    if (i == joins.size() && cc.cost < minV) {
-                        minV = cc.cost;
-                        joins = cc.plan;
-                    }
-                }
-            }
+
+        if (n > exhaustiveThreshold || !enumerateConnectedSubsets(stats, pc)) {
+            long deadline = System.nanoTime() + planningBudget * 1000000L;
+            int[] order = searchJoinOrder(stats, deadline);
+            if (order != null)
+                orderCost(stats, order, pc);
         }
-        return joins;
+
+        long all = n == 64 ? -1L : (1L << n) - 1;
+        if (!pc.contains(all)) {
+            // the joins don't connect every relation; leave them be, and let
+            // the plan builder report it
+            return joins;
+        }
+        Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>();
+        addJoins(all, pc, order);
+        return order;
+    }
+
+    /**
+     * Set the number of relations above which this optimizer's
+     * {@link #orderJoins} stops trying every connected join order, and
+     * searches for a good one within the planning budget instead.
+     */
+    public void setExhaustiveThreshold(int relations) {
+        exhaustiveThreshold = relations;
+    }
+
+    /**
+     * Set roughly how long this optimizer's {@link #orderJoins} may search
+     * for a join order over more relations than the exhaustive threshold.
+     * The greedy plan it starts from is always finished, however long that
+     * takes.
+     */
+    public void setPlanningBudget(long millis) {
+        planningBudget = millis;
     }
 
     // ===================== Private Methods =================================
 
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
+     * Find the best plan for every connected set of relations, bushy or not,
+     * by dynamic programming over the pairs of disjoint connected sets with a
+     * join between them (DPccp: Moerkotte and Neumann, "Analysis of Two
+     * Existing and One New Dynamic Programming Algorithm for the Generation
+     * of Optimal Bushy Join Trees without Cross Products", VLDB 2006).  Each
+     * such pair is enumerated exactly once; they are then planned in order
+     * of the size of their union, so both halves of a pair have their best
+     * plans by the time it is planned.
      * 
-     * @param stats
-     *            table stats for all of the tables, referenced by table names
-     *            rather than alias (see {@link #orderJoins})
-     * @param filterSelectivities
-     *            the selectivities of the filters over each of the tables
-     *            (where tables are indentified by their alias or name if no
-     *            alias is given)
-     * @param joinToRemove
-     *            the join to remove from joinSet
-     * @param joinSet
-     *            the set of joins being considered
-     * @param bestCostSoFar
-     *            the best way to join joinSet so far (minimum of previous
-     *            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *            from returned CostCard)
-     * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
-     * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     * @return false, leaving pc alone, if the join graph has too many pairs
+     *         to plan exhaustively
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
-            HashMap<String, TableStats> stats,
-            HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        Vector<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
+    private boolean enumerateConnectedSubsets(HashMap<String, TableStats> stats,
+            PlanCache pc) {
+        int n = relations.size();
+        pairs = new long[n + 1][];
+        pairCounts = new int[n + 1];
+        totalPairs = 0;
+        try {
+            for (int i = n - 1; i >= 0 && totalPairs <= MAX_SUBPLAN_PAIRS; i--) {
+                long r = 1L << i;
+                emitConnectedSubset(r);
+                enumerateConnectedSubsets(r, (r << 1) - 1);
+            }
+            if (totalPairs > MAX_SUBPLAN_PAIRS)
+                return false;
 
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
+            addScans(pc);
+            for (int size = 2; size <= n; size++) {
+                for (int k = 0; k < pairCounts[size]; k += 2) {
+                    joinSubplans(stats, pairs[size][k], pairs[size][k + 1], pc);
+                }
+            }
+            return true;
+        } finally {
+            pairs = null;
+            pairCounts = null;
+        }
+    }
+
+    /**
+     * Emit every connected set that grows s with relations outside x, and
+     * the pairs they form.
+     */
+    private void enumerateConnectedSubsets(long s, long x) {
+        long nb = neighbours(s) & ~x;
+        for (long sub = nb; sub != 0 && totalPairs <= MAX_SUBPLAN_PAIRS; sub = (sub - 1) & nb) {
+            emitConnectedSubset(s | sub);
+        }
+        for (long sub = nb; sub != 0 && totalPairs <= MAX_SUBPLAN_PAIRS; sub = (sub - 1) & nb) {
+            enumerateConnectedSubsets(s | sub, x | nb);
+        }
+    }
+
+    /**
+     * Emit the pairs of the connected set s1 with the connected sets joined
+     * to it, counting each pair once: the other set holds only relations
+     * numbered above the lowest one in s1.
+     */
+    private void emitConnectedSubset(long s1) {
+        long x = s1 | ((Long.lowestOneBit(s1) << 1) - 1);
+        long nb = neighbours(s1) & ~x;
+        for (long rest = nb; rest != 0 && totalPairs <= MAX_SUBPLAN_PAIRS;) {
+            long r = Long.highestOneBit(rest);
+            rest &= ~r;
+            addPair(s1, r);
+            enumerateComplements(s1, r, x | (((r << 1) - 1) & nb));
+        }
+    }
+
+    /**
+     * Emit the pairs of s1 with every connected set that grows s2 with
+     * relations outside x.
+     */
+    private void enumerateComplements(long s1, long s2, long x) {
+        long nb = neighbours(s2) & ~x;
+        for (long sub = nb; sub != 0 && totalPairs <= MAX_SUBPLAN_PAIRS; sub = (sub - 1) & nb) {
+            addPair(s1, s2 | sub);
+        }
+        for (long sub = nb; sub != 0 && totalPairs <= MAX_SUBPLAN_PAIRS; sub = (sub - 1) & nb) {
+            enumerateComplements(s1, s2 | sub, x | nb);
+        }
+    }
+
+    private void addPair(long s1, long s2) {
+        int size = Long.bitCount(s1 | s2);
+        long[] bucket = pairs[size];
+        if (bucket == null)
+            bucket = pairs[size] = new long[32];
+        else if (pairCounts[size] == bucket.length)
+            bucket = pairs[size] = Arrays.copyOf(bucket, bucket.length * 2);
+        bucket[pairCounts[size]++] = s1;
+        bucket[pairCounts[size]++] = s2;
+        totalPairs++;
+    }
+
+    /**
+     * Search for a cheap left-deep order of the relations, for joins over too
+     * many relations to try them all.  Every relation is tried as the start
+     * of a greedy order, which adds whichever neighbouring relation is
+     * cheapest to join next; then the best of those is improved by moving
+     * single relations to other places in the order, with random restarts
+     * whenever no move has helped for a while, until the deadline.
+     * 
+     * @return the best order found, by relation number, or null if the joins
+     *         don't connect every relation
+     */
+    private int[] searchJoinOrder(HashMap<String, TableStats> stats,
+            long deadline) {
+        int n = relations.size();
+        PlanCache pc = new PlanCache();
+        int[] best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (int start = 0; start < n; start++) {
+            if (best != null && System.nanoTime() > deadline)
+                break;
+            int[] order = greedyOrder(stats, start, pc);
+            if (order == null)
                 return null;
+            double cost = orderCost(stats, order, pc);
+            if (cost < bestCost) {
+                best = order;
+                bestCost = cost;
             }
+        }
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
+        // a fixed seed keeps the plans repeatable, up to the deadline
+        Random rand = new Random(n);
+        int[] current = best.clone();
+        double currentCost = bestCost;
+        int stale = 0;
+        while (System.nanoTime() < deadline) {
+            int from = rand.nextInt(n);
+            int to = rand.nextInt(n);
+            if (from == to)
+                continue;
+            int[] next = current.clone();
+            int r = next[from];
+            if (from < to)
+                System.arraycopy(next, from + 1, next, from, to - from);
+            else
+                System.arraycopy(next, to, next, to + 1, from - to);
+            next[to] = r;
+            double cost = orderCost(stats, next, pc);
+            if (cost < currentCost) {
+                current = next;
+                currentCost = cost;
+                stale = 0;
+                if (cost < bestCost) {
+                    best = next;
+                    bestCost = cost;
+                }
+            } else if (++stale > n * n) {
+                current = randomOrder(rand);
+                currentCost = orderCost(stats, current, pc);
+                stale = 0;
+            }
+        }
+        return best;
+    }
 
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
+    /**
+     * @return the order built by starting from relation start and joining
+     *         the cheapest neighbouring relation at each step, or null if
+     *         the joins don't reach every relation from start
+     */
+    private int[] greedyOrder(HashMap<String, TableStats> stats, int start,
+            PlanCache pc) {
+        int[] order = new int[relations.size()];
+        pc.clear();
+        addScans(pc);
+        order[0] = start;
+        long left = 1L << start;
+        for (int k = 1; k < order.length; k++) {
+            long best = 0;
+            for (long nb = neighbours(left); nb != 0; nb &= nb - 1) {
+                long right = Long.lowestOneBit(nb);
+                joinSubplans(stats, left, right, pc);
+                if (best == 0 || pc.getCost(left | right) < pc.getCost(left | best))
+                    best = right;
+            }
+            if (best == 0)
                 return null;
+            order[k] = Long.numberOfTrailingZeros(best);
+            left |= best;
+        }
+        return order;
+    }
+
+    /** @return a random order of the relations that needs no cross products */
+    private int[] randomOrder(Random rand) {
+        int[] order = new int[relations.size()];
+        order[0] = rand.nextInt(order.length);
+        long left = 1L << order[0];
+        for (int k = 1; k < order.length; k++) {
+            long nb = neighbours(left);
+            for (int skip = rand.nextInt(Long.bitCount(nb)); skip > 0; skip--) {
+                nb &= nb - 1;
             }
+            order[k] = Long.numberOfTrailingZeros(nb);
+            left |= Long.lowestOneBit(nb);
         }
+        return order;
+    }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+    /**
+     * Plan joining the relations in the given left-deep order, replacing
+     * what was in pc.
+     * 
+     * @return the cost of the plan, or Double.MAX_VALUE if the order needs a
+     *         cross product
+     */
+    private double orderCost(HashMap<String, TableStats> stats, int[] order,
+            PlanCache pc) {
+        pc.clear();
+        addScans(pc);
+        long left = 1L << order[0];
+        for (int k = 1; k < order.length; k++) {
+            long right = 1L << order[k];
+            if ((neighbours(left) & right) == 0)
+                return Double.MAX_VALUE;
+            joinSubplans(stats, left, right, pc);
+            left |= right;
+        }
+        return pc.getCost(left);
+    }
 
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+    /**
+     * Estimate the cost and cardinality of scanning each relation, with its
+     * filters applied.
+     */
+    private void estimateScans(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) throws ParsingException {
+        int n = relations.size();
+        scanCosts = new double[n];
+        scanCards = new int[n];
+        for (int i = 0; i < n; i++) {
+            String alias = relations.get(i);
+            if (alias == null)
+                continue; // the subplan of a subquery join
+            TableStats s = statsOf(alias, stats);
+            Double sel = filterSelectivities.get(alias);
+            if (sel == null)
+                throw new ParsingException("No filter selectivity for table " + alias);
+            scanCosts[i] = s.estimateScanCost();
+            scanCards[i] = s.estimateTableCardinality(sel);
         }
-        if (cost1 >= bestCostSoFar)
-            return null;
+    }
+
+    /** Add the plans for scanning each relation to pc */
+    private void addScans(PlanCache pc) {
+        for (int i = 0; i < relations.size(); i++) {
+            pc.addPlan(1L << i, scanCosts[i], scanCards[i], 0, -1, false);
+        }
+    }
+
+    /**
+     * Find the cheapest join of the plans for left and right, which are
+     * disjoint, and record it in pc if it is the best plan so far for their
+     * union.
+     */
+    private void joinSubplans(HashMap<String, TableStats> stats, long left,
+            long right, PlanCache pc) {
+        for (long rest = right; rest != 0; rest &= rest - 1) {
+            for (int e : incidentJoins[Long.numberOfTrailingZeros(rest)]) {
+                if ((joinRelations[e] & left) != 0)
+                    computeCostAndCardOfSubplan(stats, e, left, right, pc);
+            }
+        }
+    }
+
+    /**
+     * Number the relations in the joins, and record which of them each join
+     * connects.
+     * 
+     * @throws ParsingException
+     *             when there are more relations than fit in a mask
+     */
+    private void buildJoinGraph() throws ParsingException {
+        HashMap<String, Integer> numbers = new HashMap<String, Integer>();
+        relations = new ArrayList<String>();
+        joinRelations = new long[joins.size()];
+        outerRelations = new long[joins.size()];
+        for (int e = 0; e < joins.size(); e++) {
+            LogicalJoinNode j = joins.get(e);
+            outerRelations[e] = 1L << relationNumber(j.t1Alias, numbers);
+            // each subquery is a relation of its own
+            long inner = 1L << (j.t2Alias == null ? relationNumber(null, numbers)
+                    : relationNumber(j.t2Alias, numbers));
+            joinRelations[e] = outerRelations[e] | inner;
+        }
+        incidentJoins = new int[relations.size()][];
+        adjacentRelations = new long[relations.size()];
+        for (int r = 0; r < relations.size(); r++) {
+            int count = 0;
+            for (int e = 0; e < joins.size(); e++) {
+                if ((joinRelations[e] & (1L << r)) != 0) {
+                    adjacentRelations[r] |= joinRelations[e];
+                    count++;
+                }
+            }
+            incidentJoins[r] = new int[count];
+            count = 0;
+            for (int e = 0; e < joins.size(); e++) {
+                if ((joinRelations[e] & (1L << r)) != 0)
+                    incidentJoins[r][count++] = e;
+            }
+        }
+    }
+
+    private int relationNumber(String alias, HashMap<String, Integer> numbers)
+            throws ParsingException {
+        Integer i = alias == null ? null : numbers.get(alias);
+        if (i == null) {
+            if (relations.size() == Long.SIZE)
+                throw new ParsingException("Cannot order joins over more than "
+                        + Long.SIZE + " relations");
+            i = relations.size();
+            relations.add(alias);
+            if (alias != null)
+                numbers.put(alias, i);
+        }
+        return i;
+    }
 
-        CostCard cc = new CostCard();
+    /** @return the relations joined to one in s, but not in s */
+    private long neighbours(long s) {
+        long nb = 0;
+        for (long rest = s; rest != 0; rest &= rest - 1) {
+            nb |= adjacentRelations[Long.numberOfTrailingZeros(rest)];
+        }
+        return nb & ~s;
+    }
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
+    private TableStats statsOf(String alias, HashMap<String, TableStats> stats)
+            throws ParsingException {
+        Integer tableId = this.p.getTableId(alias);
+        if (tableId == null)
+            throw new ParsingException("Unknown table " + alias);
+        String tableName = Database.getCatalog().getTableName(tableId);
+        TableStats s = stats.get(tableName);
+        if (s == null)
+            throw new ParsingException("No statistics for table " + tableName);
+        return s;
+    }
+
+    /**
+     * This is a helper method that computes the cost and cardinality of
+     * joining the plans for two sets of relations with one of the joins
+     * between them, given that the best plans for both sets are already in
+     * PlanCache pc, and records the result in pc if it is the cheapest way
+     * found so far to join their union.
+     * 
+     * @param stats
+     *            table stats for all of the tables, referenced by table names
+     *            rather than alias (see {@link #orderJoins})
+     * @param join
+     *            the number of the join connecting left and right
+     * @param left
+     *            the relations joined by the subplan on the left
+     * @param right
+     *            the relations joined by the subplan on the right
+     * @param pc
+     *            the PlanCache for this join; should have plans for left and
+     *            right
+     * @return true if the plan was the best so far for left | right
+     */
+    private boolean computeCostAndCardOfSubplan(
+            HashMap<String, TableStats> stats, int join, long left,
+            long right, PlanCache pc) {
+        LogicalJoinNode j = joins.get(join);
+        long s1 = (outerRelations[join] & left) != 0 ? left : right;
+        long s2 = s1 == left ? right : left;
+
+        double t1cost = pc.getCost(s1);
+        int t1card = pc.getCard(s1);
+        boolean leftPkey = sideHasPkey(s1, pc, j.t1Alias, j.f1PureName);
+        double t2cost = pc.getCost(s2);
+        int t2card = pc.getCard(s2);
+        boolean rightPkey = j.t2Alias != null
+                && sideHasPkey(s2, pc, j.t2Alias, j.f2PureName);
+
+        // the inner side is rewound for every outer tuple, and a subplan is
+        // run again in full each time, so its whole cost is paid per tuple
+        double cost = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double swapped = estimateJoinCost(j.swapInnerOuter(), t2card, t1card,
+                t2cost, t1cost);
+        boolean swap = swapped < cost;
+        if (swap)
+            cost = swapped;
+        long s = left | right;
+        if (pc.contains(s) && cost >= pc.getCost(s))
+            return false;
+
+        // the estimate doesn't depend on which side is the outer
+        int card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
                 rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
-        return cc;
+        boolean pkey = pc.hasPkey(left) || pc.hasPkey(right)
+                || isPkey(j.t1Alias, j.f1PureName)
+                || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName));
+        pc.addPlan(s, cost, card, left, 2 * join + (swap ? 1 : 0), pkey);
+        return true;
     }
 
     /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
+     * Return true if the join on the given field of one of the relations in s
+     * is on a primary key: for a base relation, if the field is its key, and
+     * otherwise if any of the joins in the plan for s is on a key.
+     */
+    private boolean sideHasPkey(long s, PlanCache pc, String tableAlias,
+            String field) {
+        if (Long.bitCount(s) == 1)
+            return isPkey(tableAlias, field);
+        return pc.hasPkey(s);
+    }
+
+    /**
+     * Append the joins of the best plan for s to order, in the order in which
+     * they should be executed.
+     */
+    private void addJoins(long s, PlanCache pc, Vector<LogicalJoinNode> order) {
+        long left = pc.getLeft(s);
+        if (left == 0)
+            return;
+        long right = s & ~left;
+        addJoins(left, pc, order);
+        addJoins(right, pc, order);
+        int join = pc.getJoin(s);
+        LogicalJoinNode j = joins.get(join / 2);
+        order.addElement(join % 2 == 1 ? j.swapInnerOuter() : j);
+        // any other joins between the two sides go on after it
+        for (int e = 0; e < joins.size(); e++) {
+            if (e != join / 2 && (joinRelations[e] & left) != 0
+                    && (joinRelations[e] & right) != 0)
+                order.addElement(joins.get(e));
+        }
+    }
+
+    /**
+     * @return the relations joined by j, which may be a copy of one of the
+     *         joins with its sides swapped
      */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+    private long relationsOf(LogicalJoinNode j) {
+        for (int e = 0; e < joins.size(); e++) {
+            LogicalJoinNode j2 = joins.get(e);
+            if (j2 == j || (j instanceof LogicalSubplanJoinNode ? j2.equals(j)
+                    : !(j2 instanceof LogicalSubplanJoinNode)
+                            && j2.t1Alias.equals(j.t2Alias)
+                            && j2.t2Alias.equals(j.t1Alias)
+                            && j2.f1PureName.equals(j.f2PureName)))
+                return joinRelations[e];
         }
-        return false;
+        return 0;
     }
 
     /**
@@ -447,20 +826,6 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(Vector<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
-        }
-        return false;
-
-    }
-
     /**
      * Helper function to display a Swing window with a tree representation of
      * the specified list of joins. See {@link #orderJoins}, which may want to
@@ -497,13 +862,20 @@ public class JoinOptimizer {
 
         // int k;
         DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
+        long[] subtrees = new long[relations.size()];
         boolean neither;
 
         System.out.println(js);
         for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
+            // the subtree this join builds, which may join two subtrees
+            long pathSoFar = relationsOf(j);
+            for (long rest = pathSoFar; rest != 0; rest &= rest - 1) {
+                pathSoFar |= subtrees[Long.numberOfTrailingZeros(rest)];
+            }
+            for (long rest = pathSoFar; rest != 0; rest &= rest - 1) {
+                subtrees[Long.numberOfTrailingZeros(rest)] = pathSoFar;
+            }
+            System.out.println("PATH SO FAR = " + Long.toBinaryString(pathSoFar));
 
             String table1Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t1Alias));
@@ -555,10 +927,12 @@ public class JoinOptimizer {
             m.put(j.t2Alias, root);
 
             // unless this table doesn't join with other tables,
-            // all tables are accessed from root
+            // all tables in the subtree are accessed from root
             if (!neither) {
-                for (String key : m.keySet()) {
-                    m.put(key, root);
+                for (long rest = pathSoFar; rest != 0; rest &= rest - 1) {
+                    String alias = relations.get(Long.numberOfTrailingZeros(rest));
+                    if (alias != null)
+                        m.put(alias, root);
                 }
             }
 
@@ -2,7 +2,13 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
 import java.lang.reflect.*;
 
 /**
@@ -35,21 +41,42 @@ must not be declared synchronized and must begin with a block like:
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The log is stored as a sequence of fixed-size segment files plus a
+small manifest.  The format is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The manifest lives in the file passed to the constructor.  It holds
+the offset of the last written checkpoint (or -1 if there are no
+checkpoints), the number of the next segment to allocate, and the list of
+live segments, each given as a segment number and the log offset of its
+first byte.  The manifest is rewritten (to a temporary file that is then
+renamed over it) whenever a segment is added or dropped, or a checkpoint is
+taken.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> Segment files are named after the manifest with the segment number as
+a suffix (e.g. "log.0000000003").  Each segment is preallocated to
+SEGMENT_SIZE bytes when it is created, and the active segment is memory
+mapped, so appending a record is a copy into the mapping.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Log offsets are logical: they keep growing across segments and never
+change once assigned, so truncation never rewrites records.  A segment
+begins at the offset where the previous segment's records ended.
+
+<li> A log record is never split across two segments.  If the next record
+does not fit in the active segment, a new segment is started.
+
+<li> Each log record is framed by a header of two integers: the length of
+the rest of the record, and its CRC32 checksum.  A segment's records end at
+the first one whose header or checksum doesn't hold, or whose trailing
+offset isn't its own; this is where the zero-filled, preallocated tail of a
+segment begins, and also where a record torn by a crash is cut off.
+
+<li> After the header, each log record begins with an integer type and a
+long integer transaction id.
 
 <li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+the position in the log where the record began.
 
 <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
 CHECKPOINT
@@ -74,7 +101,6 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -87,12 +113,57 @@ public class LogFile {
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /** Size of the length and checksum that frame each record */
+    static final int HEADER_SIZE = 2 * INT_SIZE;
+    /** Size of the smallest record, after its header: type, tid, offset */
+    static final int MIN_RECORD_SIZE = INT_SIZE + 2 * LONG_SIZE;
+
+    /** Default size of a log segment, in bytes */
+    static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    static final int MANIFEST_MAGIC = 0x534c4f47; // "SLOG"
+
+    final int segmentSize;
+
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    long checkpointOffset = NO_CHECKPOINT_ID; //protected by this
+    long nextSegmentNo = 0; //protected by this
+    /** live segments, ordered by start offset; protected by this */
+    ArrayList<Segment> segments = new ArrayList<Segment>();
+
+    // the segment currently being appended to, and its mapping
+    private Segment active;
+    private FileChannel activeChannel;
+    private MappedByteBuffer activeBuf;
+
+    // deletes truncated segments off the append path
+    private static final ExecutorService segmentReaper =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "LogFile segment reaper");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /** One segment file of the log */
+    static class Segment {
+        final long segNo;
+        final long startOffset;
+        final File file;
+
+        Segment(long segNo, long startOffset, File file) {
+            this.segNo = segNo;
+            this.startOffset = startOffset;
+            this.file = file;
+        }
+    }
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -105,9 +176,19 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, SEGMENT_SIZE);
+    }
+
+    /** Constructor that allows a non-default segment size (mostly for tests).
+
+        @param f The log file's name (the manifest; segments are stored next to it)
+        @param segmentSize The size in bytes of newly allocated segments
+    */
+    public LogFile(File f, int segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        this.segmentSize = segmentSize;
         recoveryUndecided = true;
+        readManifest();
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -120,6 +201,221 @@ public class LogFile {
         // may not match tableids in the current catalog.
     }
 
+    /** Load the segment list and checkpoint location from the manifest.
+        A missing or unrecognized manifest is treated as an empty log. */
+    private void readManifest() throws IOException {
+        segments.clear();
+        checkpointOffset = NO_CHECKPOINT_ID;
+        nextSegmentNo = 0;
+        if (!logFile.exists() || logFile.length() < INT_SIZE)
+            return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+        try {
+            if (in.readInt() != MANIFEST_MAGIC)
+                return;
+            long cp = in.readLong();
+            long next = in.readLong();
+            int n = in.readInt();
+            ArrayList<Segment> segs = new ArrayList<Segment>();
+            for (int i = 0; i < n; i++) {
+                long segNo = in.readLong();
+                long start = in.readLong();
+                segs.add(new Segment(segNo, start, segmentFile(segNo)));
+            }
+            checkpointOffset = cp;
+            nextSegmentNo = next;
+            segments = segs;
+        } catch (EOFException e) {
+            // torn manifest -- nothing we can trust
+            segments.clear();
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Atomically replace the manifest with the current segment list. */
+    private void writeManifest() throws IOException {
+        File tmp = new File(logFile.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeLong(checkpointOffset);
+            out.writeLong(nextSegmentNo);
+            out.writeInt(segments.size());
+            for (Segment s : segments) {
+                out.writeLong(s.segNo);
+                out.writeLong(s.startOffset);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(logFile)) {
+            // some platforms won't rename over an existing file
+            logFile.delete();
+            if (!tmp.renameTo(logFile))
+                throw new IOException("unable to install log manifest " + logFile);
+        }
+    }
+
+    File segmentFile(long segNo) {
+        return new File(String.format("%s.%010d", logFile.getPath(), segNo));
+    }
+
+    /** Start a new segment at the current end of the log and map it. */
+    private void startSegment(int minSize) throws IOException {
+        unmapActive();
+        long start = (currentOffset < 0) ? 0 : currentOffset;
+        Segment s = new Segment(nextSegmentNo++, start, segmentFile(nextSegmentNo - 1));
+        RandomAccessFile segRaf = new RandomAccessFile(s.file, "rw");
+        segRaf.setLength(0);
+        segRaf.setLength(Math.max(segmentSize, minSize));
+        segments.add(s);
+        writeManifest();
+        mapSegment(s, segRaf);
+        currentOffset = start;
+    }
+
+    private void mapSegment(Segment s, RandomAccessFile segRaf) throws IOException {
+        active = s;
+        activeChannel = segRaf.getChannel();
+        activeBuf = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, activeChannel.size());
+    }
+
+    private void unmapActive() throws IOException {
+        if (activeBuf != null)
+            activeBuf.force();
+        if (activeChannel != null)
+            activeChannel.close();
+        active = null;
+        activeChannel = null;
+        activeBuf = null;
+    }
+
+    /** Make the last segment of an existing log the active one, positioned
+        after its last intact record. */
+    private void reopenTail() throws IOException {
+        if (segments.isEmpty()) {
+            currentOffset = 0;
+            startSegment(0);
+            return;
+        }
+        Segment last = segments.get(segments.size() - 1);
+        RandomAccessFile segRaf = new RandomAccessFile(last.file, "rw");
+        long end = endOfRecords(segRaf, last.startOffset);
+        mapSegment(last, segRaf);
+        // wipe a torn record, and anything after it, so that it can't be
+        // taken for part of the records appended from here on
+        for (int i = (int) end; i < activeBuf.capacity(); i++) {
+            if (activeBuf.get(i) != 0)
+                activeBuf.put(i, (byte) 0);
+        }
+        activeBuf.position((int) end);
+        currentOffset = last.startOffset + end;
+    }
+
+    /** Find the end of the intact records in a segment.
+
+        @param seg The segment file
+        @param startOffset The log offset of the segment's first byte
+        @return The position in the segment just past its last intact record
+    */
+    static long endOfRecords(RandomAccessFile seg, long startOffset) throws IOException {
+        long size = seg.length();
+        long end = 0;
+        while (end + HEADER_SIZE <= size) {
+            seg.seek(end);
+            int len = seg.readInt();
+            int crc = seg.readInt();
+            if (len < MIN_RECORD_SIZE || len > size - end - HEADER_SIZE)
+                break;
+            byte[] body = new byte[len];
+            seg.readFully(body);
+            if (!intact(body, crc, startOffset + end))
+                break;
+            end += HEADER_SIZE + len;
+        }
+        return end;
+    }
+
+    /** Check a record read from the log: its checksum must match, and its
+        trailing offset must be the one it was read from. */
+    private static boolean intact(byte[] body, int crc, long offset) {
+        CRC32 c = new CRC32();
+        c.update(body, 0, body.length);
+        if ((int) c.getValue() != crc)
+            return false;
+        long trailer = 0;
+        for (int i = body.length - LONG_SIZE; i < body.length; i++)
+            trailer = (trailer << 8) | (body[i] & 0xff);
+        return trailer == offset;
+    }
+
+    /** Open the segment holding the record at the given log offset,
+        positioned at that record.  The caller must close it. */
+    RandomAccessFile openAt(long offset) throws IOException {
+        Segment seg = null;
+        for (Segment s : segments) {
+            if (s.startOffset <= offset)
+                seg = s;
+            else
+                break;
+        }
+        if (seg == null)
+            throw new IOException("log offset " + offset + " has been truncated");
+        RandomAccessFile in = new RandomAccessFile(seg.file, "r");
+        in.seek(offset - seg.startOffset);
+        return in;
+    }
+
+    /** Read the record at the given log offset, checking that it is intact.
+        @return A stream over the record, from its type to its trailing offset */
+    DataInputStream readRecord(long offset) throws IOException {
+        RandomAccessFile in = openAt(offset);
+        try {
+            int len = in.readInt();
+            int crc = in.readInt();
+            if (len < MIN_RECORD_SIZE || len > in.length() - in.getFilePointer())
+                throw new IOException("bad log record length at offset " + offset);
+            byte[] body = new byte[len];
+            in.readFully(body);
+            if (!intact(body, crc, offset))
+                throw new IOException("corrupt log record at offset " + offset);
+            return new DataInputStream(new ByteArrayInputStream(body));
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Append one complete record (type, tid and body, without the
+        header or the trailing start offset) to the log.
+        @return the log offset at which the record starts */
+    private long appendRecord(ByteArrayOutputStream rec) throws IOException {
+        int len = HEADER_SIZE + rec.size() + LONG_SIZE;
+        if (activeBuf == null || activeBuf.remaining() < len)
+            startSegment(len);
+        long start = currentOffset;
+        new DataOutputStream(rec).writeLong(start);
+        byte[] body = rec.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        activeBuf.putInt(body.length);
+        activeBuf.putInt((int) crc.getValue());
+        activeBuf.put(body);
+        currentOffset = active.startOffset + activeBuf.position();
+        return start;
+    }
+
+    private static DataOutputStream recordStream(ByteArrayOutputStream bos, int type, long tid)
+        throws IOException {
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(type);
+        out.writeLong(tid);
+        return out;
+    }
+
     // we're about to append a log record. if we weren't sure whether the
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
@@ -127,14 +423,32 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            unmapActive();
+            final ArrayList<Segment> old = segments;
+            segments = new ArrayList<Segment>();
+            checkpointOffset = NO_CHECKPOINT_ID;
+            currentOffset = 0;
+            startSegment(0);
+            reap(old);
+        } else if (activeBuf == null) {
+            reopenTail();
         }
     }
 
+    /** Delete the given (already unlinked from the manifest) segments in the background */
+    private void reap(final List<Segment> dead) {
+        if (dead.isEmpty())
+            return;
+        segmentReaper.execute(new Runnable() {
+                public void run() {
+                    for (Segment s : dead) {
+                        if (!s.file.delete() && s.file.exists())
+                            Debug.log("unable to delete log segment " + s.file);
+                    }
+                }
+            });
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -158,10 +472,9 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                ByteArrayOutputStream rec = new ByteArrayOutputStream();
+                recordStream(rec, ABORT_RECORD, tid.getId());
+                appendRecord(rec);
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -178,10 +491,9 @@ public class LogFile {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        ByteArrayOutputStream rec = new ByteArrayOutputStream();
+        recordStream(rec, COMMIT_RECORD, tid.getId());
+        appendRecord(rec);
         force();
         tidToFirstLogRecord.remove(tid.getId());
     }
@@ -197,7 +509,7 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
@@ -207,18 +519,18 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        ByteArrayOutputStream rec = new ByteArrayOutputStream(2 * BufferPool.getPageSize() + 256);
+        DataOutputStream out = recordStream(rec, UPDATE_RECORD, tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(out,before);
+        writePageData(out,after);
+        out.flush();
+        appendRecord(rec);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -246,7 +558,7 @@ public class LogFile {
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    Page readPageData(DataInput raf) throws IOException {
         PageId pid;
         Page newPage = null;
 
@@ -269,7 +581,7 @@ public class LogFile {
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            raf.readFully(pageData); //read before image
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
@@ -307,11 +619,9 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        ByteArrayOutputStream rec = new ByteArrayOutputStream();
+        recordStream(rec, BEGIN_RECORD, tid.getId());
+        tidToFirstLogRecord.put(tid.getId(), appendRecord(rec));
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
@@ -321,35 +631,33 @@ public class LogFile {
         //make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+                //Debug.log("CHECKPOINT, offset = " + currentOffset);
                 preAppend();
-                long startCpOffset, endCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
                 force();
                 Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+
+                ByteArrayOutputStream rec = new ByteArrayOutputStream();
+                DataOutputStream out = recordStream(rec, CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
+                out.writeInt(keys.size());
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
+                    out.writeLong(key);
                     //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    out.writeLong(tidToFirstLogRecord.get(key));
                 }
+                out.flush();
+                long startCpOffset = appendRecord(rec);
+                force();
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                //once the CP is written, make sure the CP location in the
+                // manifest is updated
+                checkpointOffset = startCpOffset;
+                writeManifest();
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
         }
@@ -358,98 +666,56 @@ public class LogFile {
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Since log offsets never change, this only drops
+        whole segments that end before the oldest record still needed;
+        the segment files themselves are deleted in the background. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        long cpLoc = checkpointOffset;
 
         long minLogRecord = cpLoc;
 
         if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
+            DataInputStream in = readRecord(cpLoc);
+            try {
+                int cpType = in.readInt();
                 @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
-        }
+                long cpTid = in.readLong();
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+                if (cpType != CHECKPOINT_RECORD) {
+                    throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+                }
 
-        raf.seek(minLogRecord);
+                int numOutstanding = in.readInt();
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
+                for (int i = 0; i < numOutstanding; i++) {
+                    @SuppressWarnings("unused")
+                    long tid = in.readLong();
+                    long firstLogRecord = in.readLong();
+                    if (firstLogRecord < minLogRecord) {
+                        minLogRecord = firstLogRecord;
                     }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+            } finally {
+                in.close();
             }
+        } else {
+            return;
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        // we can drop every segment that lies entirely before minLogRecord;
+        // a segment ends where the next one starts
+        ArrayList<Segment> dead = new ArrayList<Segment>();
+        while (segments.size() > 1 && segments.get(1).startOffset <= minLogRecord) {
+            dead.add(segments.remove(0));
+        }
+        if (dead.isEmpty())
+            return;
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        Debug.log("TRUNCATING LOG; DROPPING " + dead.size() + " SEGMENTS ; NEW START : " + segments.get(0).startOffset);
 
-        currentOffset = raf.getFilePointer();
+        writeManifest();
+        reap(dead);
         //print();
     }
 
@@ -478,7 +744,7 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            unmapActive();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -504,7 +770,8 @@ public class LogFile {
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        if (activeBuf != null)
+            activeBuf.force();
     }
 
 }
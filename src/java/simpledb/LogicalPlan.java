@@ -1,6 +1,9 @@
 package simpledb;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.HashSet;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.io.File;
@@ -36,6 +39,8 @@ public class LogicalPlan {
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
     private String query;
+    /** Whether joins has been put in order by a previous physicalPlan */
+    private boolean joinsOrdered = false;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -81,6 +86,22 @@ public class LogicalPlan {
         return this.tableMap;
     }
 
+    /** @return the filters of the WHERE clause, in the order they were added */
+    List<LogicalFilterNode> getFilters() {
+        return filters;
+    }
+
+    /** @return true if the joins have been put in order by {@link #physicalPlan} */
+    boolean hasJoinOrder() {
+        return joinsOrdered;
+    }
+
+    /** Have the next {@link #physicalPlan} choose the join order again,
+        for instance because the statistics it was chosen from have changed */
+    void forgetJoinOrder() {
+        joinsOrdered = false;
+    }
+
     /** Add a new filter to the logical plan
      *   @param field The name of the over which the filter applies;
      *   this can be a fully qualified field (tablename.field or
@@ -271,8 +292,203 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Return the fields of the scanned table that the query refers to through the given
+     *  scan, or null if it needs all of them (SELECT *) or refers to a field the table
+     *  doesn't have.
+     */
+    private Set<Integer> referencedFields(LogicalScanNode table) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*"))
+                return null;
+            names.add(si.fname);
+        }
+        names.add(aggField);
+        names.add(groupByField);
+        names.add(oByField);
+        for (LogicalFilterNode lf : filters) {
+            names.add(lf.tableAlias + "." + lf.fieldPureName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.t1Alias + "." + lj.f1PureName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.t2Alias + "." + lj.f2PureName);
+        }
+
+        Set<Integer> fields = new HashSet<Integer>();
+        String prefix = table.alias + ".";
+        for (String name : names) {
+            if (name == null || !name.startsWith(prefix))
+                continue;
+            try {
+                fields.add(td.fieldNameToIndex(name.substring(prefix.length())));
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+        }
+        return fields;
+    }
+
+    /** Return the fields, by quantified name, that the operators above the joins -- the
+     *  aggregate, the ORDER BY and the select list -- read, or null if they need all of
+     *  them (SELECT *).
+     */
+    private Set<String> outputFields() {
+        Set<String> names = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*"))
+                return null;
+            names.add(si.fname);
+        }
+        if (aggField != null)
+            names.add(aggField);
+        if (groupByField != null)
+            names.add(groupByField);
+        if (hasOrderBy)
+            names.add(oByField);
+        return names;
+    }
+
+    /** Project away the fields of a subplan that are not in needed, so that the
+     *  operators above it handle smaller tuples.
+     *  @return the projection, or the subplan itself if it needs all of its fields
+     *    (or none, as a subplan can't be projected to nothing)
+     */
+    private static OpIterator pruneFields(OpIterator plan, Set<String> needed) {
+        TupleDesc td = plan.getTupleDesc();
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        ArrayList<Type> types = new ArrayList<Type>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (needed.contains(td.getFieldName(i))) {
+                fields.add(i);
+                types.add(td.getFieldType(i));
+            }
+        }
+        if (fields.isEmpty() || fields.size() == td.numFields())
+            return plan;
+        return new Project(fields, types, plan);
+    }
+
+    /** Replace a sequential scan with one that evaluates the given predicates as it
+     *  reads each page and decodes only the needed fields of the tuples that pass.
+     *  @param predicates predicates on the fields of the scanned table, or null
+     *  @param needed the fields, by quantified name, read above the scan, or null for
+     *    all of them
+     *  @return the new scan, or the old one if there is nothing to push into it
+     */
+    private OpIterator pushIntoScan(TransactionId t, SeqScan scan, List<Predicate> predicates,
+            Set<String> needed) {
+        TupleDesc td = scan.getTupleDesc();
+        int[] fields = null;
+        if (needed != null) {
+            ArrayList<Integer> kept = new ArrayList<Integer>();
+            for (int i = 0; i < td.numFields(); i++) {
+                if (needed.contains(td.getFieldName(i)))
+                    kept.add(i);
+            }
+            if (!kept.isEmpty() && kept.size() < td.numFields()) {
+                fields = new int[kept.size()];
+                for (int i = 0; i < fields.length; i++)
+                    fields[i] = kept.get(i);
+            }
+        }
+        if (predicates == null && fields == null)
+            return scan;
+        scan.close();
+        return new SeqScan(t, getTableId(scan.getAlias()), scan.getAlias(),
+                predicates == null ? null : predicates.toArray(new Predicate[predicates.size()]),
+                fields);
+    }
+
+    /** Build an {@link IndexScan} for a scan node if one of the table's secondary indexes
+     *  stores every field the query refers to, so the query can be answered without
+     *  reading the table.  Filters on the leading key field of the index bound the
+     *  range of the index read; the filters themselves are still applied above the scan.
+     *  If the query is ordered on the leading key field and nothing between the scan and
+     *  the ORDER BY reorders tuples, the scan runs in the requested direction so the sort
+     *  can be skipped (see {@link #orderedBy}).
+     *  Among several covering indexes, one whose range can be bounded is preferred, then
+     *  one that gives the requested order, then the one storing the fewest fields.
+     *  @return the scan, or null if no index covers the query
+     */
+    private IndexScan indexOnlyScan(TransactionId t, LogicalScanNode table) {
+        List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(table.t);
+        if (indexes.isEmpty())
+            return null;
+        Set<Integer> fields = referencedFields(table);
+        if (fields == null)
+            return null;
+
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        Integer orderField = null;
+        if (hasOrderBy && !hasAgg && joins.isEmpty() && oByField.startsWith(table.alias + ".")) {
+            orderField = td.fieldNameToIndex(oByField.substring(table.alias.length() + 1));
+        }
+        SecondaryIndex best = null;
+        IndexPredicate bestLower = null, bestUpper = null;
+        int bestScore = -1;
+        for (SecondaryIndex index : indexes) {
+            if (!index.covers(fields))
+                continue;
+            IndexPredicate lower = null, upper = null;
+            for (LogicalFilterNode lf : filters) {
+                if (!lf.tableAlias.equals(table.alias))
+                    continue;
+                int field = td.fieldNameToIndex(lf.fieldPureName);
+                if (field != index.getLeadingField())
+                    continue;
+                Field f;
+                if (td.getFieldType(field) == Type.INT_TYPE)
+                    f = new IntField(Integer.parseInt(lf.c));
+                else
+                    f = new StringField(lf.c, Type.STRING_LEN);
+                if (lf.p == Predicate.Op.EQUALS) {
+                    lower = new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, f);
+                    upper = new IndexPredicate(Predicate.Op.LESS_THAN_OR_EQ, f);
+                } else if (lf.p == Predicate.Op.GREATER_THAN || lf.p == Predicate.Op.GREATER_THAN_OR_EQ) {
+                    if (lower == null || f.compare(Predicate.Op.GREATER_THAN, lower.getField()))
+                        lower = new IndexPredicate(lf.p, f);
+                } else if (lf.p == Predicate.Op.LESS_THAN || lf.p == Predicate.Op.LESS_THAN_OR_EQ) {
+                    if (upper == null || f.compare(Predicate.Op.LESS_THAN, upper.getField()))
+                        upper = new IndexPredicate(lf.p, f);
+                }
+            }
+            int size = index.getKeyFields().length + index.getIncludeFields().length;
+            int score = (lower != null || upper != null ? 2048 : 0)
+                    + (orderField != null && orderField == index.getLeadingField() ? 1024 : 0)
+                    + Math.max(0, 1023 - size);
+            if (score > bestScore) {
+                best = index;
+                bestLower = lower;
+                bestUpper = upper;
+                bestScore = score;
+            }
+        }
+        if (best == null)
+            return null;
+        boolean descending = orderField != null && orderField == best.getLeadingField() && !oByAsc;
+        return new IndexScan(t, best, table.alias, bestLower, bestUpper, descending);
+    }
+
+    /** Return true if the tuples of a scan already come out in the order the query's
+     *  ORDER BY asks for, so that no OrderBy is needed: the scan is the only table, nothing
+     *  between it and the ORDER BY reorders tuples, and it reads an index on the ORDER BY
+     *  field in the right direction.
+     */
+    private boolean orderedBy(OpIterator scan) {
+        if (!(scan instanceof IndexScan) || !hasOrderBy || hasAgg || !joins.isEmpty())
+            return false;
+        IndexScan s = (IndexScan) scan;
+        TupleDesc td = Database.getCatalog().getTupleDesc(s.getIndex().getTableId());
+        String leading = s.getAlias() + "." + td.getFieldName(s.getIndex().getLeadingField());
+        return leading.equals(oByField) && s.isDescending() == !oByAsc;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
+     *   The order is kept, so converting the plan again -- with other constants in its filters, say --
+     *   doesn't optimize it again, unless {@link #forgetJoinOrder} is called first.
      *  @param t The transaction that the returned OpIterator will run as a part of
      *  @param baseTableStats a HashMap providing a {@link TableStats}
      *    object for each table used in the LogicalPlan.  This should
@@ -290,13 +506,19 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        boolean presorted = false;
+        subplanMap.clear();
 
-        // 1. LogicalScanNode -> SeqScan
+        // 1. LogicalScanNode -> SeqScan, or IndexScan over a covering index
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            OpIterator ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 int tableId = Database.getCatalog().getDatabaseFile(table.t).getId();
+                 ss = indexOnlyScan(t, table);
+                 if (ss == null)
+                     ss = new SeqScan(t, tableId, table.alias);
+                 presorted = orderedBy(ss);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -308,7 +530,9 @@ public class LogicalPlan {
 
         }
 
-        // 2. LogicalFilterNode -> Filter
+        // 2. LogicalFilterNode -> Filter, or a predicate evaluated by a SeqScan as it
+        // reads each page (see 3b)
+        HashMap<String,List<Predicate>> scanPredicates = new HashMap<String,List<Predicate>>();
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -327,7 +551,7 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
             if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
+                f = new IntField(Integer.parseInt(lf.c));
             else
                 f = new StringField(lf.c, Type.STRING_LEN);
 
@@ -337,22 +561,60 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (subplan instanceof SeqScan) {
+                if (!scanPredicates.containsKey(lf.tableAlias))
+                    scanPredicates.put(lf.tableAlias, new ArrayList<Predicate>());
+                scanPredicates.get(lf.tableAlias).add(p);
+            } else {
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            }
+            if (joinsOrdered)
+                continue;
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
+            // the stats are by field of the base table, which an index scan may not return in full
+            TupleDesc baseTd = Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            double sel= s.estimateSelectivity(baseTd.fieldNameToIndex(lf.fieldPureName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
         // 3. Join Optimizer
-        JoinOptimizer jo = new JoinOptimizer(this,joins);
+        if (!joinsOrdered) {
+            JoinOptimizer jo = new JoinOptimizer(this,joins);
+            joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+            joinsOrdered = true;
+        }
 
-        joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+        // 3b. prune the fields each filtered scan returns to the ones that a join
+        // or the operators above the joins read; the fields a join reads are kept
+        // until the last join that reads them (see 4)
+        Set<String> outputFields = outputFields();
+        HashMap<String,Integer> joinReads = new HashMap<String,Integer>();
+        Set<String> needed = null;
+        if (outputFields != null) {
+            for (LogicalJoinNode lj : joins) {
+                for (String name : new String[] {lj.f1QuantifiedName, lj.f2QuantifiedName}) {
+                    Integer n = joinReads.get(name);
+                    joinReads.put(name, n == null ? 1 : n + 1);
+                }
+            }
+            needed = new HashSet<String>(outputFields);
+            needed.addAll(joinReads.keySet());
+        }
+        for (Map.Entry<String,OpIterator> e : subplanMap.entrySet()) {
+            OpIterator plan = e.getValue();
+            if (plan instanceof SeqScan)
+                plan = pushIntoScan(t, (SeqScan) plan, scanPredicates.get(e.getKey()), needed);
+            else if (needed != null)
+                plan = pruneFields(plan, needed);
+            e.setValue(plan);
+        }
 
-        // 4. LogicalJoinNode -> OpIterator
+        // 4. LogicalJoinNode -> OpIterator; each join is over the subplans
+        // built so far for its two tables, which may both be joins already
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
         while (joinIt.hasNext()) {
             LogicalJoinNode lj = joinIt.next();
@@ -387,7 +649,20 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
             OpIterator j;
-            j = jo.instantiateJoin(lj,plan1,plan2); // actually, j is a Join
+            j = JoinOptimizer.instantiateJoin(lj,plan1,plan2); // actually, j is a Join
+            if (outputFields != null) {
+                // drop the join fields that no later join reads
+                for (String name : new String[] {lj.f1QuantifiedName, lj.f2QuantifiedName}) {
+                    int n = joinReads.get(name);
+                    if (n == 1)
+                        joinReads.remove(name);
+                    else
+                        joinReads.put(name, n - 1);
+                }
+                needed = new HashSet<String>(outputFields);
+                needed.addAll(joinReads.keySet());
+                j = pruneFields(j, needed);
+            }
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -478,7 +753,7 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
+        if (hasOrderBy && !presorted) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
         }
 
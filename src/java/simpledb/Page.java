@@ -6,6 +6,10 @@ package simpledb;
  * <p>
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
+ * <p>
+ * Methods that change a page, getPageData, and the dirty state are
+ * synchronized on the page, so that the BufferPool's background writer can
+ * take a consistent image of a page that isn't pinned while it is in use.
  *
  * For recovery purposes, pages MUST have a single constructor of the form:
  *     Page(PageId id, byte[] data)
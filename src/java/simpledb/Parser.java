@@ -152,6 +152,7 @@ public class Parser {
                     name = fromIt.getTable();
 
                 lp.addScan(id, name);
+                TableStats.analyzeIfStale(id);
 
                 // XXX handle subquery?
             } catch (NoSuchElementException e) {
@@ -266,6 +267,9 @@ public class Parser {
 
     private Transaction curtrans = null;
     private boolean inUserTrans = false; // user trans or auto trans
+    private final QueryPlanCache planCache = new QueryPlanCache(
+            QueryPlanCache.DEFAULT_CAPACITY);
+    private ResultCache resultCache = null;
 
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
@@ -409,6 +413,7 @@ public class Parser {
         lp.setQuery(s.toString());
 
         lp.addScan(id, name);
+        TableStats.analyzeIfStale(id);
         if (s.getWhere() != null)
             processExpression(tid, (ZExpression) s.getWhere(), lp);
         lp.addProjectField("null.*", null);
@@ -478,6 +483,49 @@ public class Parser {
                 "Cannot generate logical plan for expression : " + s);
     }
 
+    /**
+     * Parse a SELECT statement in which each '?' is a parameter, to be run
+     * later with values for them.
+     *
+     * @see PreparedQuery#bind(TransactionId, List)
+     */
+    public PreparedQuery prepare(String s) throws simpledb.ParsingException {
+        List<String> literals = new ArrayList<String>();
+        String text = QueryPlanCache.normalize(s, literals);
+        if (text == null)
+            throw new simpledb.ParsingException(
+                    "Only a single SELECT statement can be prepared: " + s);
+        String filled = QueryPlanCache.fillPlaceholders(text, "0");
+        if (!filled.endsWith(";"))
+            filled = filled + ";";
+        LogicalPlan lp = generateLogicalPlan(null, filled);
+        PreparedQuery q = PreparedQuery.fromPlan(text, lp, literals, false);
+        if (q == null)
+            throw new simpledb.ParsingException(
+                    "Parameters are only supported as the constants of WHERE predicates: "
+                            + s);
+        return q;
+    }
+
+    /** @return the queries this parser has planned, by their normalized text */
+    public QueryPlanCache getPlanCache() {
+        return planCache;
+    }
+
+    /**
+     * Keep the results of the queries this parser runs in a cache, and answer
+     * them from it while the tables they read are unchanged.
+     *
+     * @param cache the cache, or null to run every query
+     */
+    public void setResultCache(ResultCache cache) {
+        resultCache = cache;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
     public void setTransaction(Transaction t) {
         curtrans = t;
     }
@@ -488,7 +536,7 @@ public class Parser {
 
     public void processNextStatement(String s) {
         try {
-            processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
+            processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")), s);
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
@@ -496,9 +544,31 @@ public class Parser {
     }
 
     public void processNextStatement(InputStream is) {
+        processNextStatement(is, null);
+    }
+
+    /**
+     * Run the next statement of is, whose text, if it is known, is used to
+     * find the plan of a query that was run before with other constants.
+     */
+    private void processNextStatement(InputStream is, String text) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            // only queries whose constants are all written out can be run
+            // from the cache; placeholders need values from prepare()
+            List<String> literals = new ArrayList<String>();
+            String key = text == null || explain ? null : QueryPlanCache
+                    .normalize(text, literals);
+            if (literals.contains(null))
+                key = null;
+            String resultKey = key == null || resultCache == null ? null
+                    : ResultCache.key(key, literals);
+            PreparedQuery cached = key == null ? null : planCache.get(key);
+
+            ZStatement s = null;
+            if (cached == null) {
+                ZqlParser p = new ZqlParser(is);
+                s = p.readStatement();
+            }
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -511,21 +581,33 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    if (cached != null)
+                        query = cached.bind(curtrans.getId(), literals);
+                    else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
                         query = handleDeleteStatement((ZDelete) s,
                                 curtrans.getId());
-                    else if (s instanceof ZQuery)
+                    else if (s instanceof ZQuery) {
                         query = handleQueryStatement((ZQuery) s,
                                 curtrans.getId());
+                        if (key != null) {
+                            PreparedQuery q = PreparedQuery.fromPlan(key,
+                                    query.getLogicalPlan(), literals, true);
+                            if (q != null)
+                                planCache.put(q);
+                        }
+                    }
                     else {
                         System.out
                                 .println("Can't parse "
                                         + s
                                         + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
                     }
+                    if (query != null && resultKey != null
+                            && (cached != null || s instanceof ZQuery))
+                        query.setResultCache(resultCache, resultKey);
                     if (query != null)
                         query.execute();
 
@@ -578,7 +660,7 @@ public class Parser {
             "insert", "delete", "values", "into" };
 
     public static void main(String argv[]) throws IOException {
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 5) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -586,10 +668,15 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-cache] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        try {
+            TableStats.saveStatistics();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         System.out.println("Bye");
     }
 
@@ -598,8 +685,9 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        // add tableStats for each table
-        TableStats.computeStatistics();
+        // load the tableStats saved last time; the rest are computed as
+        // queries need them
+        TableStats.loadStatistics(new File(argv[0] + ".stats"));
 
         String queryFile = null;
 
@@ -608,6 +696,9 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-cache")) {
+                    setResultCache(new ResultCache(ResultCache.DEFAULT_CAPACITY));
+                    System.out.println("Result cache enabled.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -666,7 +757,6 @@ public class Parser {
                     buffer.append(line.substring(0, split + 1));
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes("UTF-8");
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
@@ -675,8 +765,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
@@ -1,50 +1,145 @@
 package simpledb;
-import java.util.HashMap;
-import java.util.Set;
-import java.util.Vector;
+
+import java.util.Arrays;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to join a given set of relations.
+ * <p>
+ * A set of relations is a bitmask, with one bit per relation of the query
+ * (see {@link JoinOptimizer#orderJoins}).  Plans are kept in flat arrays
+ * indexed through an open-addressing hash table on the mask, so the cache
+ * costs a few words per plan rather than a set and a vector of joins.  Each
+ * plan records how it was built -- the subplan on its left and the join that
+ * adds the rest -- and the whole join order is read back by following the
+ * left subplans down to a single relation.
+ */
 public class PlanCache {
-    HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>> bestOrders= new HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>>();
-    HashMap<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<Set<LogicalJoinNode>,Double>();
-    HashMap<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<Set<LogicalJoinNode>,Integer>();
-    
-    /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** The relation sets in the table; 0 marks an empty slot */
+    private long[] masks = new long[INITIAL_CAPACITY];
+    private double[] costs = new double[INITIAL_CAPACITY];
+    private int[] cards = new int[INITIAL_CAPACITY];
+    private long[] lefts = new long[INITIAL_CAPACITY];
+    private int[] joins = new int[INITIAL_CAPACITY];
+    private boolean[] pkeys = new boolean[INITIAL_CAPACITY];
+    private int size;
+
+    /** Add a new cost, cardinality and ordering for a particular relation set.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
-        specified join set
-        @param s the set of joins for which a new ordering (plan) is being added
+        specified set
+        @param s the set of relations for which a new plan is being added
         @param cost the estimated cost of the specified plan
         @param card the estimatied cardinality of the specified plan
-        @param order the ordering of the joins in the plan
+        @param left the relations of the subplan on the left of the last join, or 0 for a base relation
+        @param join the index of the last join in the plan, as given to {@link #getJoin}
+        @param pkey whether one of the joins in the plan is on a primary key
     */
-    void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order) {
-        bestOrders.put(s,order);                        
-        bestCosts.put(s,cost);
-        bestCardinalities.put(s,card);
-    }
-    
-    /** Find the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best order for
-        @return the best order for s in the cache
-    */
-    Vector<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
-        return bestOrders.get(s);
+    void addPlan(long s, double cost, int card, long left, int join, boolean pkey) {
+        int i = slot(s);
+        if (masks[i] == 0) {
+            if (2 * (size + 1) > masks.length) {
+                grow();
+                i = slot(s);
+            }
+            masks[i] = s;
+            size++;
+        }
+        costs[i] = cost;
+        cards[i] = card;
+        lefts[i] = left;
+        joins[i] = join;
+        pkeys[i] = pkey;
+    }
+
+    /** @return true if the cache has a plan for the set of relations s */
+    boolean contains(long s) {
+        return masks[slot(s)] != 0;
     }
-    
-    /** Find the cost of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cost for
-        @return the cost of the best order for s in the cache
+
+    /** Find the cost of the best plan in the cache for the specified set
+        @param s the set of relations to look up the best cost for
+        @return the cost of the best plan for s in the cache
     */
-    double getCost(Set<LogicalJoinNode> s) {
-        return bestCosts.get(s);
+    double getCost(long s) {
+        return costs[find(s)];
     }
-    
-    /** Find the cardinality of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cardinality for
-        @return the cardinality of the best order for s in the cache
+
+    /** Find the cardinality of the best plan in the cache for the specified set
+        @param s the set of relations to look up the best cardinality for
+        @return the cardinality of the best plan for s in the cache
     */
-    int getCard(Set<LogicalJoinNode> s) {
-        return bestCardinalities.get(s);
+    int getCard(long s) {
+        return cards[find(s)];
+    }
+
+    /** @return the relations of the left subplan of the best plan for s, or 0 if s is a base relation */
+    long getLeft(long s) {
+        return lefts[find(s)];
+    }
+
+    /** @return the join recorded for the best plan for s */
+    int getJoin(long s) {
+        return joins[find(s)];
+    }
+
+    /** @return whether one of the joins in the best plan for s is on a primary key */
+    boolean hasPkey(long s) {
+        return pkeys[find(s)];
+    }
+
+    /** Remove every plan from the cache */
+    void clear() {
+        Arrays.fill(masks, 0);
+        size = 0;
+    }
+
+    /** @return the number of relation sets in the cache */
+    int size() {
+        return size;
+    }
+
+    private int find(long s) {
+        int i = slot(s);
+        if (masks[i] == 0)
+            throw new IllegalArgumentException("no plan for relation set " + Long.toBinaryString(s));
+        return i;
+    }
+
+    /** @return the slot holding s, or the empty slot where it would go */
+    private int slot(long s) {
+        int m = masks.length - 1;
+        long h = s * 0x9e3779b97f4a7c15L;
+        int i = (int) (h ^ (h >>> 32)) & m;
+        while (masks[i] != 0 && masks[i] != s)
+            i = (i + 1) & m;
+        return i;
+    }
+
+    private void grow() {
+        long[] oldMasks = masks;
+        double[] oldCosts = costs;
+        int[] oldCards = cards;
+        long[] oldLefts = lefts;
+        int[] oldJoins = joins;
+        boolean[] oldPkeys = pkeys;
+        int n = oldMasks.length * 2;
+        masks = new long[n];
+        costs = new double[n];
+        cards = new int[n];
+        lefts = new long[n];
+        joins = new int[n];
+        pkeys = new boolean[n];
+        for (int j = 0; j < oldMasks.length; j++) {
+            if (oldMasks[j] == 0)
+                continue;
+            int i = slot(oldMasks[j]);
+            masks[i] = oldMasks[j];
+            costs[i] = oldCosts[j];
+            cards[i] = oldCards[j];
+            lefts[i] = oldLefts[j];
+            joins[i] = oldJoins[j];
+            pkeys[i] = oldPkeys[j];
+        }
     }
 }
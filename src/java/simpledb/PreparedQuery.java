@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A PreparedQuery is a SELECT statement that has been parsed once, and whose
+ * constants in the WHERE clause are parameters: it can be run again and again
+ * with other values without going through the parser or the optimizer.
+ * <p>
+ * The join order is chosen the first time the query is bound, from the
+ * values it is first given, and kept until the statistics of one of the
+ * tables are replaced (see {@link TableStats#getVersion}); then the next
+ * bind chooses it again.
+ * <p>
+ * Get one from {@link Parser#prepare}, with '?' in place of each parameter,
+ * or let {@link Parser#processNextStatement(String)} make one for each query
+ * it runs, with every constant a parameter, and keep it in its
+ * {@link QueryPlanCache}.
+ */
+public class PreparedQuery {
+
+    private final String text;
+    private final LogicalPlan lp;
+    private final ArrayList<LogicalFilterNode> parameters;
+    /** The statistics the join order was chosen from, or -1 if it wasn't yet */
+    private long statsVersion = -1;
+
+    private PreparedQuery(String text, LogicalPlan lp,
+            ArrayList<LogicalFilterNode> parameters) {
+        this.text = text;
+        this.lp = lp;
+        this.parameters = parameters;
+        if (lp.hasJoinOrder())
+            statsVersion = TableStats.getVersion();
+    }
+
+    /**
+     * Make a PreparedQuery from the logical plan of a query, given the
+     * literals of its text in order (see {@link QueryPlanCache#normalize}).
+     * Each literal must be the constant of the filter in the same place, and
+     * the literals that are null -- placeholders -- become the parameters.
+     *
+     * @param allParameters whether the literals that were written out become
+     *            parameters too, as when the text was normalized to find
+     *            queries that differ from it only in their constants
+     * @return the query, or null if the filters don't match the literals,
+     *         as when some literals aren't in a filter
+     */
+    static PreparedQuery fromPlan(String text, LogicalPlan lp,
+            List<String> literals, boolean allParameters) {
+        List<LogicalFilterNode> filters = lp.getFilters();
+        if (filters.size() != literals.size())
+            return null;
+        ArrayList<LogicalFilterNode> parameters = new ArrayList<LogicalFilterNode>();
+        for (int i = 0; i < literals.size(); i++) {
+            String literal = literals.get(i);
+            if (literal != null && !literal.equals(filters.get(i).c))
+                return null;
+            if (literal == null || allParameters)
+                parameters.add(filters.get(i));
+        }
+        return new PreparedQuery(text, lp, parameters);
+    }
+
+    /** @return the normalized text of the query, with '?' for each literal */
+    public String getText() {
+        return text;
+    }
+
+    public int getParameterCount() {
+        return parameters.size();
+    }
+
+    /**
+     * Build a query that runs this one with the given parameter values, in
+     * the order they appear in the text.
+     *
+     * @param tid the transaction to run the query in
+     * @param values the value of each parameter, as it would be written in
+     *            the query but without quotes
+     * @throws ParsingException if the number of values is wrong, or one is
+     *             not valid for the field it is compared with
+     */
+    public synchronized Query bind(TransactionId tid, List<String> values)
+            throws ParsingException {
+        if (values.size() != parameters.size())
+            throw new ParsingException("Expected " + parameters.size()
+                    + " parameters, but got " + values.size());
+        for (int i = 0; i < values.size(); i++) {
+            if (values.get(i) == null)
+                throw new ParsingException("No value given for parameter " + (i + 1));
+            parameters.get(i).c = values.get(i);
+        }
+
+        // the parser would have checked these, and may replace their statistics
+        for (int tableid : lp.getTableAliasToIdMapping().values()) {
+            TableStats.analyzeIfStale(tableid);
+        }
+        long version = TableStats.getVersion();
+        if (version != statsVersion)
+            lp.forgetJoinOrder();
+
+        OpIterator plan;
+        try {
+            plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        } catch (NumberFormatException e) {
+            throw new ParsingException(e);
+        }
+        statsVersion = version;
+        Query q = new Query(tid);
+        q.setLogicalPlan(lp);
+        q.setPhysicalPlan(plan);
+        return q;
+    }
+
+    /**
+     * Build a query that runs this one with the given parameter values.
+     *
+     * @see #bind(TransactionId, List)
+     */
+    public Query bind(TransactionId tid, String... values) throws ParsingException {
+        return bind(tid, Arrays.asList(values));
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -41,6 +41,11 @@ public class Project extends Operator {
         td = new TupleDesc(types, fieldAr);
     }
 
+    /** @return the index in the child's tuples of field i of the output */
+    int childField(int i) {
+        return outFieldIds.get(i);
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
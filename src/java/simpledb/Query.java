@@ -20,6 +20,8 @@ public class Query implements Serializable {
     transient private LogicalPlan logicalPlan;
     TransactionId tid;
     transient private boolean started = false;
+    transient private ResultCache resultCache;
+    transient private String cacheKey;
 
     public TransactionId getTransactionId() {
         return this.tid;
@@ -37,6 +39,22 @@ public class Query implements Serializable {
         this.op = pp;
     }
 
+    /**
+     * Let {@link #execute} answer this query from a cache of results, and
+     * keep its result there for next time.  The tables it reads are taken
+     * from its logical plan, which must be set.  A query by a transaction
+     * that has written to any table neither uses the cache nor fills it,
+     * since what it reads may hold its own uncommitted changes.
+     *
+     * @param cache the cache, or null to always run the plan
+     * @param key the key of the query in the cache (see
+     *            {@link ResultCache#key})
+     */
+    public void setResultCache(ResultCache cache, String key) {
+        this.resultCache = cache;
+        this.cacheKey = key;
+    }
+
     public OpIterator getPhysicalPlan() {
         return this.op;
     }
@@ -105,14 +123,43 @@ public class Query implements Serializable {
         }
         System.out.println("");
 
+        List<Tuple> cached = null;
+        int[] tableIds = null;
+        long[] versions = null;
+        BufferPool pool = Database.getBufferPool();
+        boolean useCache = resultCache != null && !pool.hasWritten(tid);
+        if (useCache) {
+            cached = resultCache.get(cacheKey);
+            // the versions are taken before the plan runs, so that a result
+            // that sees a change made while it runs is never served
+            tableIds = ResultCache.tableIdsOf(logicalPlan
+                    .getTableAliasToIdMapping().values());
+            versions = ResultCache.versionsOf(tableIds);
+        }
+        if (cached != null) {
+            for (Tuple tup : cached)
+                System.out.println(tup);
+            System.out.println("\n " + cached.size() + " rows.");
+            return;
+        }
+
+        // stop keeping the tuples once there are too many to cache
+        ArrayList<Tuple> result = useCache ? new ArrayList<Tuple>() : null;
         this.start();
         int cnt = 0;
         while (this.hasNext()) {
             Tuple tup = this.next();
             System.out.println(tup);
             cnt++;
+            if (result != null) {
+                result.add(tup);
+                if (ResultCache.sizeOf(td, cnt) > resultCache.getCapacity())
+                    result = null;
+            }
         }
         System.out.println("\n " + cnt + " rows.");
         this.close();
+        if (result != null && !pool.hasWritten(tid))
+            resultCache.put(cacheKey, tableIds, versions, td, result);
     }
 }
@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A QueryPlanCache keeps the most recently used {@link PreparedQuery}s, up to
+ * a fixed number, keyed by their normalized text, so that queries that differ
+ * only in their constants are parsed and optimized once between them.
+ * <p>
+ * The cached plans stay valid when the statistics of their tables change:
+ * each PreparedQuery chooses its join order again the next time it is used.
+ */
+public class QueryPlanCache {
+
+    /** The number of queries a Parser's cache holds */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final LinkedHashMap<String, PreparedQuery> plans;
+
+    /**
+     * Create an empty cache.
+     *
+     * @param capacity the number of queries to keep; the least recently used
+     *            is dropped to make room for another
+     */
+    public QueryPlanCache(final int capacity) {
+        plans = new LinkedHashMap<String, PreparedQuery>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedQuery> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param text the normalized text of a query, from {@link #normalize}
+     * @return the cached query with that text, or null if there is none
+     */
+    public synchronized PreparedQuery get(String text) {
+        return plans.get(text);
+    }
+
+    /** Add a query to the cache, under its text */
+    public synchronized void put(PreparedQuery q) {
+        plans.put(q.getText(), q);
+    }
+
+    public synchronized int size() {
+        return plans.size();
+    }
+
+    public synchronized void clear() {
+        plans.clear();
+    }
+
+    /**
+     * Normalize the text of a SELECT statement for use as a key: runs of
+     * whitespace become a single space, and each literal -- a quoted string
+     * or a number -- becomes '?'.  The values of the literals, without their
+     * quotes, are added to literals in order; a '?' already in the text is a
+     * placeholder, and adds null.
+     *
+     * @return the normalized text, or null if the statement is not a single
+     *         SELECT (other statements, and subqueries, which are planned
+     *         while they are parsed, can't be cached)
+     */
+    public static String normalize(String sql, List<String> literals) {
+        StringBuilder sb = new StringBuilder();
+        int selects = 0;
+        int i = 0;
+        int n = sql.length();
+        while (i < n) {
+            char ch = sql.charAt(i);
+            if (Character.isWhitespace(ch)) {
+                while (i < n && Character.isWhitespace(sql.charAt(i)))
+                    i++;
+                if (sb.length() > 0 && i < n)
+                    sb.append(' ');
+            } else if (ch == '\'') {
+                // a string, in which '' stands for a quote
+                StringBuilder value = new StringBuilder();
+                for (i++;; i++) {
+                    if (i == n)
+                        return null;
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < n && sql.charAt(i + 1) == '\'')
+                            i++;
+                        else
+                            break;
+                    }
+                    value.append(sql.charAt(i));
+                }
+                i++;
+                literals.add(value.toString());
+                sb.append('?');
+            } else if (Character.isDigit(ch)) {
+                int start = i;
+                while (i < n && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.'))
+                    i++;
+                literals.add(sql.substring(start, i));
+                sb.append('?');
+            } else if (Character.isLetter(ch) || ch == '_') {
+                // a keyword or a name, which may have digits in it
+                int start = i;
+                while (i < n && (Character.isLetterOrDigit(sql.charAt(i))
+                        || sql.charAt(i) == '_' || sql.charAt(i) == '.'))
+                    i++;
+                String word = sql.substring(start, i);
+                if (word.equalsIgnoreCase("select"))
+                    selects++;
+                else if (selects == 0)
+                    return null;
+                sb.append(word);
+            } else if (ch == '?') {
+                literals.add(null);
+                sb.append('?');
+                i++;
+            } else {
+                sb.append(ch);
+                i++;
+            }
+        }
+        if (selects != 1)
+            return null;
+        return sb.toString();
+    }
+
+    /**
+     * @return sql with each placeholder outside of a string replaced by
+     *         value, for the parser, which doesn't know about them
+     */
+    static String fillPlaceholders(String sql, String value) {
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char ch = sql.charAt(i);
+            if (ch == '\'')
+                quoted = !quoted;
+            if (ch == '?' && !quoted)
+                sb.append(value);
+            else
+                sb.append(ch);
+        }
+        return sb.toString();
+    }
+}
@@ -65,10 +65,15 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof IndexScan) {
+            String tableName, alias;
+            if (queryPlan instanceof SeqScan) {
+                tableName = ((SeqScan) queryPlan).getTableName();
+                alias = ((SeqScan) queryPlan).getAlias();
+            } else {
+                tableName = ((IndexScan) queryPlan).getTableName();
+                alias = ((IndexScan) queryPlan).getAlias();
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
@@ -76,6 +81,21 @@ public class QueryPlanVisualizer {
                 alias = "";
             thisNode.text = String
                     .format("%1$s(%2$s)", SCAN, tableName + alias);
+            if (queryPlan instanceof SeqScan
+                    && ((SeqScan) queryPlan).getPredicates() != null) {
+                // the predicates the scan evaluates as it reads
+                TupleDesc td = Database.getCatalog().getTupleDesc(
+                        Database.getCatalog().getTableId(tableName));
+                String prefix = ((SeqScan) queryPlan).getAlias() + ".";
+                StringBuilder preds = new StringBuilder();
+                for (Predicate p : ((SeqScan) queryPlan).getPredicates()) {
+                    if (preds.length() > 0)
+                        preds.append(",");
+                    preds.append(prefix + td.getFieldName(p.getField())
+                            + p.getOp() + p.getOperand());
+                }
+                thisNode.text += String.format(" %1$s(%2$s)", SELECT, preds);
+            }
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -0,0 +1,187 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A ResultCache keeps the results of recent queries, so that a query run
+ * again before any of the tables it reads has changed is answered without
+ * running its plan.
+ * <p>
+ * Results are keyed by the text of the query (see {@link #key}) and stamped
+ * with the version of each table it reads (see
+ * {@link BufferPool#getTableVersion}); a result whose tables have moved on
+ * since, including by the abort of a transaction that changed them, is
+ * dropped when it is next looked up.  The cache holds at most a
+ * given number of bytes of tuples, by the size of their fields on a page,
+ * and evicts the least recently used results to stay under it.
+ * <p>
+ * A result served from the cache takes no locks on the pages it came from,
+ * so the cache is off unless a query is given one (see
+ * {@link Query#setResultCache}).
+ */
+public class ResultCache {
+
+    /** The number of bytes of results a cache holds by default */
+    public static final long DEFAULT_CAPACITY = 16L << 20;
+
+    /** The estimated cost of a tuple beyond its fields, in bytes */
+    private static final int TUPLE_OVERHEAD = 32;
+
+    private static class Result {
+        final int[] tableIds;
+        final long[] versions;
+        final List<Tuple> tuples;
+        final long bytes;
+
+        Result(int[] tableIds, long[] versions, List<Tuple> tuples, long bytes) {
+            this.tableIds = tableIds;
+            this.versions = versions;
+            this.tuples = tuples;
+            this.bytes = bytes;
+        }
+
+        boolean isCurrent() {
+            for (int i = 0; i < tableIds.length; i++) {
+                if (BufferPool.getTableVersion(tableIds[i]) != versions[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private final long capacity;
+    private final LinkedHashMap<String, Result> results =
+            new LinkedHashMap<String, Result>(16, 0.75f, true);
+    private long bytes;
+
+    /**
+     * Create an empty cache.
+     *
+     * @param capacity the most bytes of results to keep
+     */
+    public ResultCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the key of a query, from its text normalized by
+     *         {@link QueryPlanCache#normalize} and the values of its literals
+     */
+    public static String key(String normalized, List<String> literals) {
+        StringBuilder sb = new StringBuilder(normalized);
+        for (String literal : literals) {
+            // no query text holds a NUL, so the key can't be mistaken
+            sb.append('\0').append(literal);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the estimated size in bytes of a result with the given tuple
+     *         descriptor and number of tuples
+     */
+    public static long sizeOf(TupleDesc td, long tuples) {
+        return tuples * (td.getSize() + TUPLE_OVERHEAD);
+    }
+
+    /**
+     * Look up the result of a query.
+     *
+     * @return the tuples of the result, or null if there is none or the
+     *         tables it was computed from have changed since
+     */
+    public synchronized List<Tuple> get(String key) {
+        Result r = results.get(key);
+        if (r == null)
+            return null;
+        if (!r.isCurrent()) {
+            remove(key);
+            return null;
+        }
+        return r.tuples;
+    }
+
+    /**
+     * Add the result of a query, replacing any there was, unless it is too
+     * big to keep.
+     *
+     * @param key the key of the query, from {@link #key}
+     * @param tableIds the tables the query reads
+     * @param versions the version of each of them when the query started
+     * @param td the tuple descriptor of the result
+     * @param tuples the tuples of the result
+     */
+    public synchronized void put(String key, int[] tableIds, long[] versions,
+            TupleDesc td, List<Tuple> tuples) {
+        long size = sizeOf(td, tuples.size());
+        remove(key);
+        if (size > capacity)
+            return;
+        Result r = new Result(tableIds, versions, new ArrayList<Tuple>(tuples), size);
+        if (!r.isCurrent())
+            return; // already out of date
+        Iterator<Result> it = results.values().iterator();
+        while (bytes + size > capacity && it.hasNext()) {
+            bytes -= it.next().bytes;
+            it.remove();
+        }
+        results.put(key, r);
+        bytes += size;
+    }
+
+    /**
+     * @return the versions of the given tables, to be handed to
+     *         {@link #put} along with the result computed from them
+     */
+    public static long[] versionsOf(int[] tableIds) {
+        long[] versions = new long[tableIds.length];
+        for (int i = 0; i < tableIds.length; i++)
+            versions[i] = BufferPool.getTableVersion(tableIds[i]);
+        return versions;
+    }
+
+    /** @return the ids of the given tables, without repeats, for {@link #put} */
+    public static int[] tableIdsOf(Collection<Integer> tableIds) {
+        int[] ids = new int[tableIds.size()];
+        int n = 0;
+        for (int id : tableIds) {
+            boolean seen = false;
+            for (int i = 0; i < n; i++)
+                seen |= ids[i] == id;
+            if (!seen)
+                ids[n++] = id;
+        }
+        int[] unique = new int[n];
+        System.arraycopy(ids, 0, unique, 0, n);
+        return unique;
+    }
+
+    private void remove(String key) {
+        Result r = results.remove(key);
+        if (r != null)
+            bytes -= r.bytes;
+    }
+
+    /** @return the number of results in the cache */
+    public synchronized int size() {
+        return results.size();
+    }
+
+    /** @return the estimated number of bytes the results in the cache take */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized void clear() {
+        results.clear();
+        bytes = 0;
+    }
+}
@@ -0,0 +1,189 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * SecondaryIndex is a B+ tree over some columns of a HeapFile that maps them
+ * back to the RecordId of the heap tuple they came from.
+ * <p>
+ * Each index tuple holds the key columns, then any include columns, then the
+ * page number and tuple number of the heap tuple.  The tree is searched on
+ * the first key column, and ordered on it and then on the RecordId, so that
+ * every entry has its own place in the tree however many share its key.  The
+ * other key columns and the include columns are stored so that queries
+ * touching only those columns can be answered from the index without reading
+ * the heap (see {@link IndexScan}).
+ * <p>
+ * Indexes are registered with {@link Catalog#addIndex} and kept up to date
+ * by {@link BufferPool#insertTuple} and {@link BufferPool#deleteTuple}.
+ */
+public class SecondaryIndex {
+
+    private final String name;
+    private final int tableid;
+    private final int[] keyFields;
+    private final int[] includeFields;
+    private final int[] columns; // table field stored in each index column
+    private final BTreeFile file;
+
+    /**
+     * Create an index over a table.  The index is empty until it is
+     * registered with the Catalog and {@link #build} is called.
+     *
+     * @param name the name of the index
+     * @param tableid the id of the HeapFile being indexed
+     * @param keyFields the table fields making up the key, leading field first
+     * @param includeFields further table fields to store in the index; may be empty
+     * @param f the file backing the index
+     * @throws IllegalArgumentException if there are no key fields or a field is repeated
+     */
+    public SecondaryIndex(String name, int tableid, int[] keyFields, int[] includeFields, File f) {
+        if (keyFields.length == 0)
+            throw new IllegalArgumentException("an index needs at least one key field");
+        this.name = name;
+        this.tableid = tableid;
+        this.keyFields = keyFields.clone();
+        this.includeFields = includeFields.clone();
+
+        TupleDesc tableTd = Database.getCatalog().getTupleDesc(tableid);
+        int n = keyFields.length + includeFields.length;
+        columns = new int[n];
+        Type[] types = new Type[n + 2];
+        String[] names = new String[n + 2];
+        HashSet<Integer> seen = new HashSet<Integer>();
+        for (int i = 0; i < n; i++) {
+            int field = i < keyFields.length ? keyFields[i] : includeFields[i - keyFields.length];
+            if (!seen.add(field))
+                throw new IllegalArgumentException("field " + field + " appears twice in index " + name);
+            columns[i] = field;
+            types[i] = tableTd.getFieldType(field);
+            names[i] = tableTd.getFieldName(field);
+        }
+        types[n] = Type.INT_TYPE;
+        names[n] = "_rid_page";
+        types[n + 1] = Type.INT_TYPE;
+        names[n + 1] = "_rid_tuple";
+        file = new BTreeFile(f, 0, new TupleDesc(types, names), new int[] {n, n + 1});
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** @return the id of the table this index is over */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /** @return the B+ tree holding the index tuples */
+    public BTreeFile getFile() {
+        return file;
+    }
+
+    public int[] getKeyFields() {
+        return keyFields.clone();
+    }
+
+    public int[] getIncludeFields() {
+        return includeFields.clone();
+    }
+
+    /** @return the table field the index is ordered on */
+    public int getLeadingField() {
+        return keyFields[0];
+    }
+
+    /**
+     * @return the column of the index tuples holding the given table field, or
+     *         -1 if the index does not store it
+     */
+    public int columnOf(int field) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] == field)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if every one of the given table fields is stored in the index
+     */
+    public boolean covers(Collection<Integer> fields) {
+        for (int field : fields) {
+            if (columnOf(field) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Build the index tuple for a heap tuple, which must have a RecordId.
+     */
+    public Tuple indexTuple(Tuple t) {
+        RecordId rid = t.getRecordId();
+        if (rid == null)
+            throw new IllegalArgumentException("tuple has not been stored in the table");
+        Tuple it = new Tuple(file.getTupleDesc());
+        for (int i = 0; i < columns.length; i++) {
+            it.setField(i, t.getField(columns[i]));
+        }
+        it.setField(columns.length, new IntField(rid.getPageId().getPageNumber()));
+        it.setField(columns.length + 1, new IntField(rid.getTupleNumber()));
+        return it;
+    }
+
+    /**
+     * @return the RecordId of the heap tuple an index tuple points to
+     */
+    public RecordId recordId(Tuple indexTuple) {
+        int page = ((IntField) indexTuple.getField(columns.length)).getValue();
+        int tupleno = ((IntField) indexTuple.getField(columns.length + 1)).getValue();
+        return new RecordId(new HeapPageId(tableid, page), tupleno);
+    }
+
+    /**
+     * Fill the index from the current contents of the table, replacing
+     * whatever the file held.  The index must already be registered with the
+     * Catalog, and none of its pages may be in the BufferPool.
+     */
+    public void build(TransactionId tid) throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        DbFileIterator it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            tuples.add(indexTuple(it.next()));
+        }
+        it.close();
+        BTreeFileEncoder.bulkLoad(file, tuples, BTreeFileEncoder.DEFAULT_FILL_FACTOR);
+    }
+
+    /**
+     * Add the entry for a heap tuple that was just inserted.
+     */
+    void insert(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(tid, file.getId(), indexTuple(t));
+    }
+
+    /**
+     * Remove the entry for a heap tuple that was just deleted.
+     *
+     * @throws DbException if the index holds no entry for the tuple
+     */
+    void delete(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
+        // the RecordId is part of the key, so this finds the entry itself
+        // rather than the first of those sharing its key
+        Tuple match = file.pinTuple(tid, file.keyOf(indexTuple(t)));
+        if (match == null)
+            throw new DbException("index " + name + " has no entry for " + t.getRecordId());
+        PageId leaf = match.getRecordId().getPageId();
+        try {
+            // delete while the entry's page is still pinned, so compaction
+            // can't move it in between
+            Database.getBufferPool().deleteTuple(tid, match);
+        } finally {
+            Database.getBufferPool().unpinPage(leaf);
+        }
+    }
+}
@@ -16,7 +16,14 @@ public class SeqScan implements OpIterator {
     String tableAlias;
 
     HeapFile hf;
-    DbFileIterator it;
+    HeapFileIterator it;
+
+    /** Predicates evaluated as pages are read, or null */
+    Predicate[] predicates;
+    /** The fields of the table returned, or null for all of them */
+    int[] fields;
+    /** A filter on a field of the table that its values must pass, or null */
+    volatile HeapFileIterator.BloomProbe probe;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -35,9 +42,36 @@ public class SeqScan implements OpIterator {
      *            tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, null, null);
+    }
+
+    /**
+     * Creates a sequential scan that returns only the tuples satisfying every
+     * one of a set of predicates, and only some of their fields.  The
+     * predicates are evaluated against each page as it is read (see
+     * {@link HeapFile#iterator(TransactionId, Predicate[], int[])}), which
+     * saves building the tuples they reject, and decoding the fields that
+     * aren't returned.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table (needed by the parser)
+     * @param predicates
+     *            predicates on the fields of the table, all of which a tuple
+     *            must satisfy to be returned; null for every tuple
+     * @param fields
+     *            the fields of the table to return, in order; null for all
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias,
+            Predicate[] predicates, int[] fields) {
         this.tid = tid;
         this.tableid = tableid;
         this.tableAlias = tableAlias;
+        this.predicates = predicates;
+        this.fields = fields;
         try {
             this.open();
         } catch (Exception e) {
@@ -85,10 +119,38 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * @return the predicates the scan applies, or null if it returns every
+     *         tuple
+     */
+    public Predicate[] getPredicates() {
+        return predicates;
+    }
+
+    /**
+     * Drop the tuples whose value of a field the given filter says is not in
+     * its set, from the next tuple read on, before they are built.  A
+     * {@link HashEquiJoin} probing with this scan hands it a filter of the
+     * keys it can match.
+     *
+     * @param field
+     *            the index of the field in the tuples the scan returns
+     * @param bloom
+     *            the filter, or null to return every tuple again
+     */
+    public void setBloomFilter(int field, BloomFilter bloom) {
+        probe = bloom == null ? null
+                : new HeapFileIterator.BloomProbe(fields == null ? field : fields[field], bloom);
+        HeapFileIterator it = this.it;
+        if (it != null)
+            it.setBloomProbe(probe);
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         hf = (HeapFile)Database.getCatalog().getDatabaseFile(this.tableid);
-        it = hf.iterator(this.tid);
+        it = hf.iterator(this.tid, predicates, fields);
+        it.setBloomProbe(probe);
         it.open();
     }
 
@@ -99,12 +161,15 @@ public class SeqScan implements OpIterator {
      * name.  The alias and name should be separated with a "." character
      * (e.g., "alias.fieldName").
      *
+     * Only the fields the scan returns are included.
+     *
      * @return the TupleDesc with field names from the underlying HeapFile,
      *         prefixed with the tableAlias string from the constructor.
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        TupleDesc td = Database.getCatalog().getTupleDesc(this.tableid);
+        TupleDesc td = ((HeapFile) Database.getCatalog().getDatabaseFile(this.tableid))
+                .getTupleDesc(fields);
         Type[] ts = new Type[td.numFields()];
         String[] fs = new String[td.numFields()];
         for (int i=0;i<td.numFields();i++) {
@@ -1,11 +1,31 @@
 package simpledb;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Vector;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
@@ -17,6 +37,9 @@ public class TableStats {
 
     private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
 
+    /** Bumped whenever the statistics of a table are replaced */
+    private static final AtomicLong version = new AtomicLong();
+
     static final int IOCOSTPERPAGE = 1000;
 
     public static TableStats getTableStats(String tablename) {
@@ -25,6 +48,7 @@ public class TableStats {
 
     public static void setTableStats(String tablename, TableStats stats) {
         statsMap.put(tablename, stats);
+        version.incrementAndGet();
     }
     
     public static void setStatsMap(HashMap<String,TableStats> s)
@@ -42,29 +66,326 @@ public class TableStats {
         } catch (IllegalAccessException e) {
             e.printStackTrace();
         }
-
+        version.incrementAndGet();
     }
 
     public static Map<String, TableStats> getStatsMap() {
         return statsMap;
     }
 
+    /**
+     * @return a number that changes whenever the statistics of a table are
+     *         replaced -- by analyzing it again, for instance -- so that
+     *         plans made from the old statistics can tell they are out of date
+     */
+    public static long getVersion() {
+        return version.get();
+    }
+
     public static void computeStatistics() {
-        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        computeStatistics(Runtime.getRuntime().availableProcessors());
+    }
 
+    /**
+     * Compute the statistics of every table in the catalog, several tables at
+     * a time.  Heap files longer than MAX_SAMPLE_PAGES pages are sampled
+     * rather than read in full.
+     *
+     * @param threads the number of tables to scan at once
+     */
+    public static void computeStatistics(int threads) {
         System.out.println("Computing table stats.");
-        while (tableIt.hasNext()) {
-            int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        LinkedHashMap<String, Future<TableStats>> pending = new LinkedHashMap<String, Future<TableStats>>();
+        try {
+            Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+            while (tableIt.hasNext()) {
+                final int tableid = tableIt.next();
+                pending.put(Database.getCatalog().getTableName(tableid), pool.submit(new Callable<TableStats>() {
+                    public TableStats call() {
+                        return new TableStats(tableid, IOCOSTPERPAGE, sampleFraction(tableid));
+                    }
+                }));
+            }
+            // the map may not be safe to fill from the workers
+            for (Map.Entry<String, Future<TableStats>> e : pending.entrySet()) {
+                setTableStats(e.getKey(), e.getValue().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
         }
         System.out.println("Done.");
     }
 
+    /** @return the fraction of a table's pages computeStatistics reads */
+    private static double sampleFraction(int tableid) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof HeapFile))
+            return 1.0;
+        int pages = ((HeapFile) f).numPages();
+        return pages <= MAX_SAMPLE_PAGES ? 1.0 : (double) MAX_SAMPLE_PAGES / pages;
+    }
+
+    /**
+     * computeStatistics reads at most this many pages of each heap file,
+     * chosen at random.
+     */
+    static final int MAX_SAMPLE_PAGES = 3000;
+
+    /**
+     * A table is re-analyzed once more than this fraction of its tuples, plus
+     * ANALYZE_BASE, have been inserted or deleted since it last was.
+     */
+    static final double ANALYZE_THRESHOLD = 0.2;
+
+    /** Keeps small tables from being re-analyzed after every few changes */
+    static final int ANALYZE_BASE = 500;
+
+    /** Version of the format saveStatistics writes */
+    private static final int STATS_FORMAT = 1;
+
+    /** Where statistics are saved, or null if they aren't */
+    private static volatile File statsFile;
+
+    /**
+     * Re-analyzes tables and saves statistics for analyzeIfStale, one job at
+     * a time, so that the query that noticed doesn't wait for it.
+     */
+    private static final ExecutorService analyzer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TableStats analyzer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /** The tables the analyzer has been asked to re-analyze and hasn't yet */
+    private static final Set<Integer> analyzing =
+        Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    /**
+     * Load the statistics saved in a file by a previous run, and save them
+     * there from now on.  Nothing is scanned: the statistics of a table whose
+     * file changed size since they were saved are marked out of date, and
+     * tables without saved statistics get them when first queried (see
+     * {@link #analyzeIfStale}).  A missing file is not an error.
+     */
+    public static void loadStatistics(File f) throws IOException {
+        statsFile = f;
+        if (!f.exists())
+            return;
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if (dis.readInt() != STATS_FORMAT)
+                throw new IOException("unknown statistics format in " + f);
+            int n = dis.readInt();
+            for (int i = 0; i < n; i++) {
+                String name = dis.readUTF();
+                TableStats s = read(dis);
+                Integer tableid = null;
+                try {
+                    tableid = Database.getCatalog().getTableId(name);
+                } catch (NoSuchElementException e) {
+                    // the table has been dropped from the catalog
+                }
+                if (tableid != null && s.attach(tableid))
+                    setTableStats(name, s);
+            }
+        } finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * Write the statistics of every table to the file given to
+     * loadStatistics, if there is one.
+     */
+    public static synchronized void saveStatistics() throws IOException {
+        File f = statsFile;
+        if (f == null)
+            return;
+        File tmp = new File(f.getPath() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            HashMap<String, TableStats> snapshot = new HashMap<String, TableStats>(getStatsMap());
+            dos.writeInt(STATS_FORMAT);
+            dos.writeInt(snapshot.size());
+            for (Map.Entry<String, TableStats> e : snapshot.entrySet()) {
+                dos.writeUTF(e.getKey());
+                e.getValue().write(dos);
+            }
+        } finally {
+            dos.close();
+        }
+        // replace the old file only once the new one is complete
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            if (!tmp.renameTo(f))
+                throw new IOException("couldn't replace " + f);
+        }
+    }
+
+    /**
+     * Make sure a table's statistics are not too far out of date.  The
+     * planner calls this for each table a query reads.
+     * <p>
+     * A table with no statistics at all is analyzed at once, since there is
+     * nothing to plan with otherwise.  A table whose statistics are stale
+     * still has them, kept roughly right as tuples come and go, so the query
+     * goes on with those while the table is analyzed again in the
+     * background; queries planned after that see the new statistics.  The
+     * statistics are saved in the background either way.
+     */
+    public static void analyzeIfStale(final int tableid) {
+        final String name = Database.getCatalog().getTableName(tableid);
+        if (name == null)
+            return;
+        TableStats s = getTableStats(name);
+        if (s != null && !s.isStale())
+            return;
+        if (s == null) {
+            setTableStats(name, new TableStats(tableid, IOCOSTPERPAGE, sampleFraction(tableid)));
+            analyzer.submit(new Runnable() {
+                    public void run() {
+                        save();
+                    }
+                });
+            return;
+        }
+        if (!analyzing.add(tableid))
+            return; // already queued
+        final int ioCost = s.ioCostPerPage;
+        analyzer.submit(new Runnable() {
+                public void run() {
+                    try {
+                        if (name.equals(Database.getCatalog().getTableName(tableid))) {
+                            setTableStats(name, new TableStats(tableid, ioCost, sampleFraction(tableid)));
+                            save();
+                        }
+                    } catch (RuntimeException e) {
+                        // e.g. the table was dropped from the catalog under us
+                        Debug.log("analyzer: " + e);
+                    } finally {
+                        analyzing.remove(tableid);
+                    }
+                }
+            });
+    }
+
+    private static void save() {
+        try {
+            saveStatistics();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Wait for the analyzing and saving analyzeIfStale has handed to the
+     * background to finish.
+     */
+    static void awaitAnalyzer() throws InterruptedException {
+        try {
+            analyzer.submit(new Runnable() {
+                    public void run() {
+                    }
+                }).get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /** Stop saving statistics, as if loadStatistics had never been called. */
+    static void stopSaving() {
+        statsFile = null;
+    }
+
+    /** An insert or delete whose transaction hasn't completed yet */
+    private static final class Change {
+        final int tableid;
+        final Tuple t;
+        final boolean inserted;
+
+        Change(int tableid, Tuple t, boolean inserted) {
+            this.tableid = tableid;
+            this.t = t;
+            this.inserted = inserted;
+        }
+    }
+
+    /** The changes each running transaction has made, in order */
+    private static final ConcurrentHashMap<TransactionId, ArrayList<Change>> pendingChanges =
+        new ConcurrentHashMap<TransactionId, ArrayList<Change>>();
+
+    /**
+     * Remember a tuple a transaction inserted into or deleted from a table,
+     * to be counted in the table's statistics once the transaction commits.
+     */
+    static void tupleChanged(TransactionId tid, int tableid, Tuple t, boolean inserted) {
+        ArrayList<Change> changes = pendingChanges.get(tid);
+        if (changes == null) {
+            changes = new ArrayList<Change>();
+            ArrayList<Change> prev = pendingChanges.putIfAbsent(tid, changes);
+            if (prev != null)
+                changes = prev;
+        }
+        synchronized (changes) {
+            changes.add(new Change(tableid, t, inserted));
+        }
+    }
+
+    /**
+     * Count the changes a transaction made in the statistics of the tables
+     * it made them to if it committed, or forget them if it aborted.
+     */
+    static void transactionComplete(TransactionId tid, boolean commit) {
+        ArrayList<Change> changes = pendingChanges.remove(tid);
+        if (changes == null || !commit)
+            return;
+        synchronized (changes) {
+            for (Change c : changes) {
+                if (c.inserted)
+                    tupleInserted(c.tableid, c.t);
+                else
+                    tupleDeleted(c.tableid, c.t);
+            }
+        }
+    }
+
     /**
-     * Number of bins for the histogram. Feel free to increase this value over
-     * 100, though our tests assume that you have at least 100 bins in your
-     * histograms.
+     * Update the statistics of a table for a tuple just inserted into it.
+     */
+    static void tupleInserted(int tableid, Tuple t) {
+        TableStats s = statsOf(tableid);
+        if (s != null)
+            s.modified(t, true);
+    }
+
+    /**
+     * Update the statistics of a table for a tuple just deleted from it.
+     */
+    static void tupleDeleted(int tableid, Tuple t) {
+        TableStats s = statsOf(tableid);
+        if (s != null)
+            s.modified(t, false);
+    }
+
+    private static TableStats statsOf(int tableid) {
+        String name = Database.getCatalog().getTableName(tableid);
+        if (name == null)
+            return null;
+        TableStats s = getTableStats(name);
+        return s != null && s.tableid == tableid ? s : null;
+    }
+
+    /**
+     * Number of buckets in each column's equi-depth histogram. Feel free to
+     * increase this value over 100, though our tests assume that you have at
+     * least 100 bins in your histograms.
      */
     static final int NUM_HIST_BINS = 100;
 
@@ -73,9 +394,11 @@ public class TableStats {
     DbFile df;
     TupleDesc td;
     int sz;
-    Vector<Object> vs;
+    ColumnStats[] columns;
     int total;
-    HashSet<PageId> hs;
+    int pages;
+    long fileLength;   // of the table's file, when analyzed
+    long modifications; // tuples inserted and deleted since
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
@@ -87,88 +410,197 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
+        this(tableid, ioCostPerPage, 1.0);
+    }
 
-        // some code goes here
+    /**
+     * Create a new TableStats object from a random sample of a table's pages.
+     * The table is scanned once; each column keeps a bounded random sample of
+     * its values for the histograms, and a sketch of all of them for the
+     * distinct value count.
+     *
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO.
+     * @param pageFraction
+     *            The fraction of the table's pages to read.  Only heap files
+     *            can be sampled; other files are always read in full.
+     */
+    public TableStats(int tableid, int ioCostPerPage, double pageFraction) {
+        this.tableid = tableid;
         this.ioCostPerPage = ioCostPerPage;
         df = Database.getCatalog().getDatabaseFile(tableid);
         td = df.getTupleDesc();
         sz = td.numFields();
-        Vector<Integer> max = new Vector<>(sz);
-        Vector<Integer> min = new Vector<>(sz);
-        Vector<Boolean> hasSet = new Vector<>(sz);
+        ColumnStats.Collector[] collectors = new ColumnStats.Collector[sz];
         for (int i=0;i<sz;i++) {
-            max.add(i, -1);
-            min.add(i, -1); // value is not care
-            hasSet.add(false);
+            collectors[i] = new ColumnStats.Collector(td.getFieldType(i));
         }
-        vs = new Vector<>(sz);
         total = 0;
-        hs = new HashSet<>();
+        pages = 0;
 
-        // 1. get min and max
-        DbFileIterator it = df.iterator(new TransactionId());
+        TransactionId tid = new TransactionId();
         try {
-            it.open();
-            while (it.hasNext()) {
-                Tuple t = it.next();
-                total++;
-                hs.add(t.getRecordId().getPageId());
-                for (int i=0;i<sz;i++) {
-                    Field f = t.getField(i);
-                    if (f.getType() == Type.INT_TYPE) {
-                        IntField intF = (IntField)f;
-                        if (!hasSet.get(i)) {
-                            max.set(i, intF.getValue());
-                            min.set(i, intF.getValue());
-                            hasSet.set(i, true);
-                        } else {
-                            if (intF.getValue() > max.get(i)) max.set(i, intF.getValue());
-                            if (intF.getValue() < min.get(i)) min.set(i, intF.getValue());
-                        }
-                    }
-                }
-            }
+            if (df instanceof HeapFile && pageFraction < 1.0)
+                scanSample((HeapFile) df, tid, pageFraction, collectors);
+            else
+                scanAll(tid, collectors);
         } catch (Exception e) {
             e.printStackTrace();
         }
-        // 2. add histogram of fields
+        columns = new ColumnStats[sz];
         for (int i=0;i<sz;i++) {
-            if (td.getFieldType(i) == Type.INT_TYPE) {
-                IntHistogram ih = new IntHistogram(NUM_HIST_BINS, min.get(i), max.get(i));
-                vs.add(ih);
-            } else {
-                StringHistogram sh = new StringHistogram(NUM_HIST_BINS);
-                vs.add(sh);
-            }
+            columns[i] = collectors[i].finish(NUM_HIST_BINS, total);
         }
-        // 3. add value of fields
+        fileLength = fileLength(df);
+    }
+
+    private TableStats() {
+    }
+
+    /** @return the length of the file behind a table, or -1 if it isn't known */
+    private static long fileLength(DbFile f) {
+        if (f instanceof HeapFile)
+            return ((HeapFile) f).getFile().length();
+        if (f instanceof BTreeFile)
+            return ((BTreeFile) f).getFile().length();
+        return -1;
+    }
+
+    private void write(DataOutputStream dos) throws IOException {
+        synchronized (this) {
+            dos.writeInt(ioCostPerPage);
+            dos.writeInt(total);
+            dos.writeInt(pages);
+            // every change since analysis has been applied, so the
+            // statistics match the file as it is now
+            dos.writeLong(fileLength(df));
+            dos.writeLong(modifications);
+        }
+        dos.writeInt(sz);
+        for (int i=0;i<sz;i++) {
+            columns[i].write(dos);
+        }
+    }
+
+    private static TableStats read(DataInputStream dis) throws IOException {
+        TableStats s = new TableStats();
+        s.ioCostPerPage = dis.readInt();
+        s.total = dis.readInt();
+        s.pages = dis.readInt();
+        s.fileLength = dis.readLong();
+        s.modifications = dis.readLong();
+        s.sz = dis.readInt();
+        s.columns = new ColumnStats[s.sz];
+        for (int i=0;i<s.sz;i++) {
+            s.columns[i] = ColumnStats.read(dis);
+        }
+        return s;
+    }
+
+    /**
+     * Bind loaded statistics to the table they were saved for.
+     *
+     * @return false if the table's columns no longer match them
+     */
+    private boolean attach(int tableid) {
+        this.tableid = tableid;
+        df = Database.getCatalog().getDatabaseFile(tableid);
+        td = df.getTupleDesc();
+        if (td.numFields() != sz)
+            return false;
+        for (int i=0;i<sz;i++) {
+            if (td.getFieldType(i) != columns[i].getType())
+                return false;
+        }
+        // changed behind our back, by a previous run or another program
+        if (fileLength(df) != fileLength)
+            modifications = Long.MAX_VALUE / 2;
+        return true;
+    }
+
+    /** Account for a tuple inserted into or deleted from the table */
+    private void modified(Tuple t, boolean inserted) {
+        synchronized (this) {
+            total += inserted ? 1 : (total > 0 ? -1 : 0);
+            modifications++;
+        }
+        for (int i=0;i<sz;i++) {
+            if (inserted)
+                columns[i].add(t.getField(i));
+            else
+                columns[i].remove(t.getField(i));
+        }
+    }
+
+    /**
+     * @return true if enough of the table has changed since it was analyzed
+     *         that its statistics should be computed again
+     */
+    public synchronized boolean isStale() {
+        return modifications > ANALYZE_BASE + ANALYZE_THRESHOLD * total;
+    }
+
+    private void scanAll(TransactionId tid, ColumnStats.Collector[] collectors)
+            throws DbException, TransactionAbortedException {
+        DbFileIterator it = df.iterator(tid);
+        PageId last = null;
         try {
-            it.rewind();
+            it.open();
             while (it.hasNext()) {
                 Tuple t = it.next();
+                total++;
+                // the iterators return each page's tuples together
+                PageId pid = t.getRecordId().getPageId();
+                if (!pid.equals(last)) {
+                    pages++;
+                    last = pid;
+                }
                 for (int i=0;i<sz;i++) {
-                    Field f = t.getField(i);
-                    if (f.getType() == Type.INT_TYPE) {
-                        IntField intF = (IntField)f;
-                        IntHistogram ih = (IntHistogram)vs.get(i);
-                        ih.addValue(intF.getValue());
-                    } else {
-                        StringField sf = (StringField)f;
-                        StringHistogram sh = (StringHistogram)vs.get(i);
-                        sh.addValue(sf.getValue());
+                    collectors[i].add(t.getField(i));
+                }
+            }
+        } finally {
+            it.close();
+        }
+        // a scan reads empty pages too
+        if (df instanceof HeapFile)
+            pages = ((HeapFile) df).numPages();
+        else if (df instanceof BTreeFile)
+            pages = ((BTreeFile) df).numPages();
+    }
+
+    private void scanSample(HeapFile hf, TransactionId tid, double pageFraction,
+            ColumnStats.Collector[] collectors) throws DbException, TransactionAbortedException {
+        int numPages = hf.numPages();
+        int k = Math.max(1, Math.min(numPages, (int) Math.ceil(numPages * pageFraction)));
+        // pick k distinct pages (Floyd's algorithm), read in file order
+        TreeSet<Integer> chosen = new TreeSet<Integer>();
+        Random random = new Random(tableid);
+        for (int j = numPages - k; j < numPages; j++) {
+            int p = random.nextInt(j + 1);
+            chosen.add(chosen.contains(p) ? j : p);
+        }
+        int seen = 0;
+        for (int pgNo : chosen) {
+            HeapPageId pid = new HeapPageId(hf.getId(), pgNo);
+            HeapPage page = (HeapPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+            try {
+                Iterator<Tuple> it = page.iterator();
+                while (it.hasNext()) {
+                    Tuple t = it.next();
+                    seen++;
+                    for (int i=0;i<sz;i++) {
+                        collectors[i].add(t.getField(i));
                     }
                 }
+            } finally {
+                Database.getBufferPool().unpinPage(pid);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+        pages = numPages;
+        total = (int) Math.round((double) seen * numPages / chosen.size());
     }
 
     /**
@@ -185,7 +617,7 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-        return hs.size() * (double)ioCostPerPage;
+        return pages * (double)ioCostPerPage;
     }
 
     /**
@@ -199,7 +631,7 @@ public class TableStats {
      */
     public int estimateTableCardinality(double selectivityFactor) {
         // some code goes here
-        return (int)(total * selectivityFactor);
+        return (int)(totalTuples() * selectivityFactor);
     }
 
     /**
@@ -213,8 +645,7 @@ public class TableStats {
      * expected selectivity. You may estimate this value from the histograms.
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
-        // some code goes here
-        return 1.0;
+        return columns[field].avgSelectivity(op);
     }
 
     /**
@@ -231,26 +662,22 @@ public class TableStats {
      *         predicate
      */
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
-        // some code goes here
-        Object o = vs.get(field);
-        if (td.getFieldType(field) == Type.INT_TYPE) {
-            IntHistogram ih = (IntHistogram)o;
-            // System.out.println(ih.toString());
-            IntField intF =  (IntField)constant;
-            return ih.estimateSelectivity(op, intF.getValue());
-        } else {
-            StringHistogram sh = (StringHistogram)o;
-            StringField sf = (StringField)constant;
-            return sh.estimateSelectivity(op, sf.getValue());
-        }
+        return columns[field].estimateSelectivity(op, constant);
     }
 
     /**
      * return the total number of tuples in this table
      * */
-    public int totalTuples() {
-        // some code goes here
-        return 0;
+    public synchronized int totalTuples() {
+        return total;
+    }
+
+    /**
+     * @return the histogram, most common values and distinct value estimate
+     *         of a field
+     */
+    public ColumnStats getColumnStats(int field) {
+        return columns[field];
     }
 
 }
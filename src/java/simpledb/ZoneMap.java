@@ -0,0 +1,176 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * A ZoneMap keeps, next to a {@link HeapFile}, the smallest and largest value
+ * of each INT_TYPE field on each page of the file, so that a scan looking
+ * for a range of values can skip the pages that hold none of them without
+ * reading them.
+ * <p>
+ * A page's range is learned exactly the first time a scan reads the page,
+ * and kept up to date as tuples are added to and removed from it (see
+ * {@link HeapPage#insertTuple} and {@link HeapPage#deleteTuple}): an insert
+ * widens it, and a delete of one of its bounds drops it until the page is
+ * read again.  When a page image is written to disk, the range is widened
+ * to cover it too, so that it stays true of any image that may be read back,
+ * including the before-images written when a transaction is rolled back.
+ * A range only ever errs on the wide side; a page whose range isn't known
+ * is never skipped.
+ * <p>
+ * The map lives in memory, and is rebuilt by the first scan of the file
+ * after the database starts.
+ */
+public class ZoneMap {
+
+    /** The INT_TYPE fields of the file, in order */
+    private final int[] intFields;
+    /** For each field of the file, its position in intFields, or -1 */
+    private final int[] positions;
+
+    /** Whether the range of each page is known */
+    private boolean[] known = new boolean[0];
+    /** The bounds of each page, intFields.length to a page */
+    private int[] mins = new int[0];
+    private int[] maxs = new int[0];
+
+    /**
+     * Create an empty zone map for a file of the given tuple descriptor.
+     */
+    public ZoneMap(TupleDesc td) {
+        positions = new int[td.numFields()];
+        int n = 0;
+        for (int i = 0; i < td.numFields(); i++)
+            positions[i] = td.getFieldType(i) == Type.INT_TYPE ? n++ : -1;
+        intFields = new int[n];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (positions[i] >= 0)
+                intFields[positions[i]] = i;
+        }
+    }
+
+    /** @return true if the range of the given page is known */
+    public synchronized boolean isKnown(int pageNo) {
+        return pageNo < known.length && known[pageNo];
+    }
+
+    /**
+     * Learn the range of a page, which must be the current version of it,
+     * unless it is already known.
+     */
+    synchronized void record(int pageNo, HeapPage page) {
+        if (intFields.length == 0 || isKnown(pageNo))
+            return;
+        ensureCapacity(pageNo);
+        int base = pageNo * intFields.length;
+        Arrays.fill(mins, base, base + intFields.length, Integer.MAX_VALUE);
+        Arrays.fill(maxs, base, base + intFields.length, Integer.MIN_VALUE);
+        known[pageNo] = true;
+        cover(pageNo, page);
+    }
+
+    /**
+     * Widen the range of a page, if it is known, to cover the values of a
+     * page image.
+     */
+    synchronized void cover(int pageNo, HeapPage page) {
+        if (!isKnown(pageNo))
+            return;
+        int base = pageNo * intFields.length;
+        for (int slot : page.usedSlots()) {
+            for (int k = 0; k < intFields.length; k++)
+                widen(base + k, page.getInt(slot, intFields[k]));
+        }
+    }
+
+    /**
+     * Widen the range of a page, if it is known, to cover a tuple added to it.
+     */
+    synchronized void inserted(int pageNo, Tuple t) {
+        if (!isKnown(pageNo))
+            return;
+        int base = pageNo * intFields.length;
+        for (int k = 0; k < intFields.length; k++)
+            widen(base + k, ((IntField) t.getField(intFields[k])).getValue());
+    }
+
+    /**
+     * Note that the tuple in a slot of a page is about to be removed: if it
+     * holds one of the bounds of the page's range, the range is forgotten.
+     */
+    synchronized void deleting(int pageNo, HeapPage page, int slot) {
+        if (!isKnown(pageNo))
+            return;
+        int base = pageNo * intFields.length;
+        for (int k = 0; k < intFields.length; k++) {
+            int v = page.getInt(slot, intFields[k]);
+            if (v == mins[base + k] || v == maxs[base + k]) {
+                known[pageNo] = false;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false if no tuple of the given page can satisfy all of the
+     *         predicates, true if one may
+     */
+    public synchronized boolean mayMatch(int pageNo, Predicate[] predicates) {
+        if (!isKnown(pageNo))
+            return true;
+        int base = pageNo * intFields.length;
+        if (mins[base] > maxs[base])
+            return false; // no tuples
+        for (Predicate p : predicates) {
+            int k = positions[p.getField()];
+            if (k < 0)
+                continue;
+            int c = ((IntField) p.getOperand()).getValue();
+            int min = mins[base + k];
+            int max = maxs[base + k];
+            boolean may;
+            switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                may = min <= c && c <= max;
+                break;
+            case NOT_EQUALS:
+                may = min != c || max != c;
+                break;
+            case GREATER_THAN:
+                may = max > c;
+                break;
+            case GREATER_THAN_OR_EQ:
+                may = max >= c;
+                break;
+            case LESS_THAN:
+                may = min < c;
+                break;
+            case LESS_THAN_OR_EQ:
+                may = min <= c;
+                break;
+            default:
+                may = true;
+            }
+            if (!may)
+                return false;
+        }
+        return true;
+    }
+
+    private void widen(int i, int v) {
+        if (v < mins[i])
+            mins[i] = v;
+        if (v > maxs[i])
+            maxs[i] = v;
+    }
+
+    private void ensureCapacity(int pageNo) {
+        if (pageNo < known.length)
+            return;
+        int n = Math.max(pageNo + 1, known.length * 2);
+        known = Arrays.copyOf(known, n);
+        mins = Arrays.copyOf(mins, n * intFields.length);
+        maxs = Arrays.copyOf(maxs, n * intFields.length);
+    }
+}
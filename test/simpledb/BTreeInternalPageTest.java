@@ -313,6 +313,89 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * The child the linear scan over the entries would pick for f
+	 */
+	private static BTreePageId scanForChild(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while (it.hasNext()) {
+			e = it.next();
+			if (e.getKey().compare(Predicate.Op.GREATER_THAN_OR_EQ, f))
+				return e.getLeftChild();
+		}
+		return e.getRightChild();
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChildId()
+	 */
+	@Test public void findChildId() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(page.iterator().next().getLeftChild(), page.findChildId(null));
+
+		// delete every other entry so the search has to step over empty slots
+		Iterator<BTreeEntry> it = page.iterator();
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		while (it.hasNext())
+			entries.add(it.next());
+		for (int pass = 0; pass < 2; pass++) {
+			for (int[] entry : EXAMPLE_VALUES) {
+				for (int delta = -1; delta <= 1; delta++) {
+					Field f = new IntField(entry[1] + delta);
+					assertEquals(scanForChild(page, f), page.findChildId(f));
+				}
+			}
+			assertEquals(scanForChild(page, new IntField(0)), page.findChildId(new IntField(0)));
+			assertEquals(scanForChild(page, new IntField(70000)), page.findChildId(new IntField(70000)));
+			if (pass == 0) {
+				for (int i = 1; i < entries.size(); i += 2)
+					page.deleteKeyAndRightChild(entries.get(i));
+			}
+		}
+	}
+
+	/**
+	 * The child the linear scan over the entries would pick for the right-most leaf holding f
+	 */
+	private static BTreePageId scanForLastChild(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while (it.hasNext()) {
+			e = it.next();
+			if (e.getKey().compare(Predicate.Op.GREATER_THAN, f))
+				return e.getLeftChild();
+		}
+		return e.getRightChild();
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findLastChildId()
+	 */
+	@Test public void findLastChildId() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(page.reverseIterator().next().getRightChild(), page.findLastChildId(null));
+
+		Iterator<BTreeEntry> it = page.iterator();
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		while (it.hasNext())
+			entries.add(it.next());
+		for (int pass = 0; pass < 2; pass++) {
+			for (int[] entry : EXAMPLE_VALUES) {
+				for (int delta = -1; delta <= 1; delta++) {
+					Field f = new IntField(entry[1] + delta);
+					assertEquals(scanForLastChild(page, f), page.findLastChildId(f));
+				}
+			}
+			assertEquals(scanForLastChild(page, new IntField(0)), page.findLastChildId(new IntField(0)));
+			assertEquals(scanForLastChild(page, new IntField(70000)), page.findLastChildId(new IntField(70000)));
+			if (pass == 0) {
+				for (int i = 1; i < entries.size(); i += 2)
+					page.deleteKeyAndRightChild(entries.get(i));
+			}
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -336,6 +336,37 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.findSlot() and iterator(Field)
+	 */
+	@Test public void findSlot() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+
+		// delete every third tuple so the search has to step over empty slots
+		Iterator<Tuple> it = page.iterator();
+		ArrayList<Tuple> remaining = new ArrayList<Tuple>();
+		ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+		int n = 0;
+		while (it.hasNext())
+			(n++ % 3 == 1 ? doomed : remaining).add(it.next());
+		for (Tuple t : doomed)
+			page.deleteTuple(t);
+
+		for (int[] tuple : EXAMPLE_VALUES) {
+			for (int delta = -1; delta <= 1; delta++) {
+				IntField f = new IntField(tuple[0] + delta);
+				Iterator<Tuple> from = page.iterator(f);
+				for (Tuple t : remaining) {
+					if (t.getField(0).compare(Predicate.Op.GREATER_THAN_OR_EQ, f))
+						assertTrue(TestUtil.compareTuples(t, from.next()));
+				}
+				assertFalse(from.hasNext());
+			}
+		}
+		assertEquals(page.getMaxTuples(), page.findSlot(new IntField(70000)));
+		assertEquals(remaining.get(0).getRecordId().getTupleNumber(), page.findSlot(new IntField(0)));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
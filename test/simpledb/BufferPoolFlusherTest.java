@@ -0,0 +1,210 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolFlusherTest extends SimpleDbTestBase {
+    private static final int PAGES = 10;
+    /** Tuples on a full page of two int fields */
+    private static final int TUPLES_PER_PAGE = 504;
+
+    private HeapFile hf;
+    private TransactionId tid;
+
+    /**
+     * Create a table of about as many pages as the pool holds.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 4500, null, null);
+        assertTrue(hf.numPages() >= 8);
+        tid = new TransactionId();
+    }
+
+    private HeapPageId pid(int i) {
+        return new HeapPageId(hf.getId(), i);
+    }
+
+    /**
+     * Delete a tuple from a page in the pool, as a transaction would, and
+     * mark the page dirty in the same step.
+     */
+    private boolean deleteOne(BufferPool bp, int i) throws Exception {
+        HeapPage p = (HeapPage) bp.getPage(tid, pid(i), Permissions.READ_WRITE);
+        synchronized (p) {
+            Iterator<Tuple> it = p.iterator();
+            if (!it.hasNext())
+                return false;
+            p.deleteTuple(it.next());
+            p.markDirty(true, tid);
+        }
+        return true;
+    }
+
+    private byte[] onDisk(int i) {
+        return hf.readPage(pid(i)).getPageData();
+    }
+
+    /**
+     * A pass writes the dirty pages that aren't pinned, logging each first,
+     * and leaves the pinned ones dirty.
+     */
+    @Test public void writesUnpinnedPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(PAGES, 0.5);
+        bp.stopFlusher();
+        for (int i = 0; i < 8; i++)
+            deleteOne(bp, i);
+        bp.pinPage(tid, pid(3), Permissions.READ_ONLY);
+
+        int records = Database.getLogFile().getTotalRecords();
+        assertEquals(7, bp.flushDirtyPages());
+        assertEquals(records + 7, Database.getLogFile().getTotalRecords());
+        for (int i = 0; i < 8; i++) {
+            Page p = bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+            if (i == 3) {
+                assertEquals(tid, p.isDirty());
+                assertFalse(Arrays.equals(p.getPageData(), onDisk(i)));
+            } else {
+                assertNull(p.isDirty());
+                assertArrayEquals(p.getPageData(), onDisk(i));
+            }
+        }
+
+        // enough pages are clean now
+        assertEquals(0, bp.flushDirtyPages());
+        bp.unpinPage(pid(3));
+    }
+
+    /**
+     * While another thread keeps changing pages, a page the writer marks
+     * clean always matches what is on disk: a change made while it was
+     * being written leaves it dirty.
+     */
+    @Test public void concurrentWriter() throws Exception {
+        final BufferPool bp = Database.resetBufferPool(PAGES, 0.5);
+        bp.stopFlusher();
+        // load the pages first: two threads missing on a page at once would
+        // each read a copy of it
+        for (int i = 0; i < 8; i++)
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread writer = new Thread() {
+                public void run() {
+                    try {
+                        for (int round = 0; round < 200; round++) {
+                            for (int i = 0; i < 8; i++)
+                                deleteOne(bp, i);
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+        writer.start();
+        int written = 0;
+        while (writer.isAlive()) {
+            written += bp.flushDirtyPages();
+            for (int i = 0; i < 8; i++) {
+                Page p = bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+                synchronized (p) {
+                    if (p.isDirty() == null)
+                        assertArrayEquals(p.getPageData(), onDisk(i));
+                }
+            }
+        }
+        writer.join();
+        assertNull(failure.get());
+        assertTrue(written > 0);
+
+        int tuples = 0;
+        for (int i = 0; i < 8; i++) {
+            Page p = bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+            if (p.isDirty() == null)
+                assertArrayEquals(p.getPageData(), onDisk(i));
+            tuples += TUPLES_PER_PAGE - ((HeapPage) p).getNumEmptySlots();
+        }
+        assertEquals(8 * (TUPLES_PER_PAGE - 200), tuples);
+    }
+
+    /**
+     * The background thread brings the pool back up to its clean target
+     * on its own.
+     */
+    @Test public void backgroundThread() throws Exception {
+        BufferPool bp = Database.resetBufferPool(PAGES, 0.5);
+        for (int i = 0; i < 8; i++)
+            deleteOne(bp, i);
+        ArrayList<Integer> dirty = new ArrayList<Integer>();
+        for (int tries = 0; tries < 250; tries++) {
+            dirty.clear();
+            for (int i = 0; i < 8; i++) {
+                if (bp.getPage(tid, pid(i), Permissions.READ_ONLY).isDirty() != null)
+                    dirty.add(i);
+            }
+            if (PAGES - dirty.size() >= bp.cleanTarget())
+                break;
+            Thread.sleep(20);
+        }
+        assertTrue(PAGES - dirty.size() >= bp.cleanTarget());
+        bp.stopFlusher();
+    }
+
+    /**
+     * A pool built without a clean ratio has no writer, so nothing is
+     * written before its transaction commits.
+     */
+    @Test public void offByDefault() throws Exception {
+        BufferPool bp = Database.resetBufferPool(PAGES);
+        byte[] before = onDisk(0);
+        deleteOne(bp, 0);
+        assertEquals(0, bp.cleanTarget());
+        assertEquals(0, bp.flushDirtyPages());
+        assertEquals(tid, bp.getPage(tid, pid(0), Permissions.READ_ONLY).isDirty());
+        assertArrayEquals(before, onDisk(0));
+    }
+
+    /**
+     * When a transaction whose pages the writer wrote aborts, they are put
+     * back on disk as they were, and the pool reads them from there again.
+     */
+    @Test public void abortRestoresWrittenPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(PAGES, 0.5);
+        bp.stopFlusher();
+        byte[][] before = new byte[8][];
+        for (int i = 0; i < 8; i++) {
+            before[i] = onDisk(i);
+            deleteOne(bp, i);
+        }
+        bp.pinPage(tid, pid(3), Permissions.READ_ONLY);
+        assertEquals(7, bp.flushDirtyPages());
+        bp.unpinPage(pid(3));
+        deleteOne(bp, 0);
+
+        bp.transactionComplete(tid, false);
+        TransactionId other = new TransactionId();
+        for (int i = 0; i < 8; i++) {
+            assertArrayEquals(before[i], onDisk(i));
+            Page p = bp.getPage(other, pid(i), Permissions.READ_ONLY);
+            assertNull(p.isDirty());
+            assertArrayEquals(before[i], p.getPageData());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolFlusherTest.class);
+    }
+}
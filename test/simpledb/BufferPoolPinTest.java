@@ -0,0 +1,83 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolPinTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private TransactionId tid;
+    private BufferPool bp;
+
+    /**
+     * Create a table spanning several pages and a two-page buffer pool.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        assertTrue(hf.numPages() >= 4);
+        bp = Database.resetBufferPool(2);
+        tid = new TransactionId();
+    }
+
+    /**
+     * A pinned page survives eviction while other pages cycle through the pool.
+     */
+    @Test public void pinnedPageIsNotEvicted() throws Exception {
+        HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+        Page pinned = bp.pinPage(tid, p0, Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(p0));
+
+        for (int i = 1; i < hf.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertSame(pinned, bp.getPage(tid, p0, Permissions.READ_ONLY));
+
+        bp.unpinPage(p0);
+        assertEquals(0, bp.getPinCount(p0));
+    }
+
+    /**
+     * If every frame is pinned, a miss can't make room.
+     */
+    @Test(expected=DbException.class) public void allPinned() throws Exception {
+        bp.pinPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        bp.pinPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+    }
+
+    /**
+     * A scan only holds a pin on the page it is currently reading.
+     */
+    @Test public void iteratorReleasesPins() throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+            // the second frame must stay free for the next page
+            if (n % 100 == 0) {
+                int pinned = 0;
+                for (int i = 0; i < hf.numPages(); i++)
+                    pinned += bp.getPinCount(new HeapPageId(hf.getId(), i));
+                assertEquals(1, pinned);
+            }
+        }
+        assertEquals(2000, n);
+        it.close();
+        for (int i = 0; i < hf.numPages(); i++)
+            assertEquals(0, bp.getPinCount(new HeapPageId(hf.getId(), i)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPinTest.class);
+    }
+}
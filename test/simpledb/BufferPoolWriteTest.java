@@ -133,6 +133,26 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Evicting a dirty page logs it as an update before writing it, and
+     * leaves nothing of it dirty behind.
+     */
+    @Test public void evictDirtyPage() throws Exception {
+    	HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*2, null, null);
+    	BufferPool bp = Database.resetBufferPool(1);
+    	HeapPageId pid = new HeapPageId(hf.getId(), 0);
+    	HeapPage p = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+    	p.deleteTuple(p.iterator().next());
+    	p.markDirty(true, tid);
+    	byte[] image = p.getPageData();
+
+    	int records = Database.getLogFile().getTotalRecords();
+    	bp.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+    	assertEquals(records + 1, Database.getLogFile().getTotalRecords());
+    	assertNull(p.isDirty());
+    	assertArrayEquals(image, hf.readPage(pid).getPageData());
+    }
+
     /**
      * JUnit suite target
      */
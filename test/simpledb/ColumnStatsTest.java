@@ -0,0 +1,117 @@
+package simpledb;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import simpledb.Predicate.Op;
+
+public class ColumnStatsTest {
+
+	/**
+	 * The distinct value sketch should be within a few percent, from a handful
+	 * of values up to far more than it has registers
+	 */
+	@Test public void sketchTest() {
+		for (int n : new int[] {10, 1000, 100000}) {
+			HyperLogLog h = new HyperLogLog();
+			for (int rep = 0; rep < 3; rep++) {
+				for (int i = 0; i < n; i++) {
+					h.add(new IntField(i * 7919));
+				}
+			}
+			Assert.assertEquals(n, h.estimate(), n * 0.05 + 1);
+		}
+
+		// merging gives the sketch of the union
+		HyperLogLog a = new HyperLogLog();
+		HyperLogLog b = new HyperLogLog();
+		for (int i = 0; i < 20000; i++) {
+			a.add(new StringField("v" + i, Type.STRING_LEN));
+			b.add(new StringField("v" + (i + 10000), Type.STRING_LEN));
+		}
+		a.merge(b);
+		Assert.assertEquals(30000, a.estimate(), 1500);
+	}
+
+	/**
+	 * On a heavily skewed column, the common values should be estimated
+	 * closely and the tail by the equi-depth buckets, from a sample of the
+	 * column
+	 */
+	@Test public void skewTest() {
+		ColumnStats.Collector c = new ColumnStats.Collector(Type.INT_TYPE);
+		// half the column is 0; the rest is spread over 1..1000000, thinly
+		// above 1000
+		for (int i = 0; i < 50000; i++) {
+			c.add(new IntField(0));
+		}
+		for (int i = 0; i < 45000; i++) {
+			c.add(new IntField(1 + i % 1000));
+		}
+		for (int i = 0; i < 5000; i++) {
+			c.add(new IntField(1001 + i * 199));
+		}
+		ColumnStats s = c.finish(100);
+
+		Assert.assertEquals(100000, s.getCount());
+		Assert.assertEquals(new IntField(0), s.getMostCommonValues()[0]);
+		Assert.assertEquals(0.5, s.estimateSelectivity(Op.EQUALS, new IntField(0)), 0.01);
+		Assert.assertEquals(45.0 / 100000, s.estimateSelectivity(Op.EQUALS, new IntField(500)), 0.0002);
+		Assert.assertEquals(6000, s.getNdv(), 300);
+
+		Assert.assertEquals(0.5, s.estimateSelectivity(Op.GREATER_THAN, new IntField(0)), 0.01);
+		Assert.assertEquals(0.95, s.estimateSelectivity(Op.LESS_THAN_OR_EQ, new IntField(1000)), 0.01);
+		Assert.assertEquals(0.025, s.estimateSelectivity(Op.GREATER_THAN, new IntField(500000)), 0.005);
+		Assert.assertEquals(0.0, s.estimateSelectivity(Op.GREATER_THAN, new IntField(2000000)), 0.001);
+		Assert.assertEquals(0.0, s.estimateSelectivity(Op.LESS_THAN, new IntField(0)), 0.001);
+	}
+
+	/**
+	 * Strings that share a long prefix are still told apart
+	 */
+	@Test public void stringTest() {
+		ColumnStats.Collector c = new ColumnStats.Collector(Type.STRING_TYPE);
+		for (int i = 0; i < 10000; i++) {
+			c.add(new StringField(String.format("http://host/%05d", i), Type.STRING_LEN));
+		}
+		ColumnStats s = c.finish(100);
+
+		Assert.assertEquals(0.25, s.estimateSelectivity(Op.LESS_THAN,
+				new StringField("http://host/02500", Type.STRING_LEN)), 0.02);
+		Assert.assertEquals(0.0001, s.estimateSelectivity(Op.EQUALS,
+				new StringField("http://host/04242", Type.STRING_LEN)), 0.0001);
+		Assert.assertEquals(0.0, s.estimateSelectivity(Op.EQUALS,
+				new StringField("http://other", Type.STRING_LEN)), 0.001);
+		Assert.assertEquals(0.1, s.estimateSelectivity(Op.GREATER_THAN_OR_EQ,
+				new StringField("http://host/09000", Type.STRING_LEN)), 0.02);
+	}
+
+	/**
+	 * Join estimates should follow the distinct values for uniform columns
+	 * and the common values for skewed ones
+	 */
+	@Test public void joinTest() {
+		Random r = new Random(42);
+		ColumnStats.Collector uniform = new ColumnStats.Collector(Type.INT_TYPE);
+		ColumnStats.Collector other = new ColumnStats.Collector(Type.INT_TYPE);
+		for (int i = 0; i < 20000; i++) {
+			uniform.add(new IntField(r.nextInt(1000)));
+			other.add(new IntField(r.nextInt(100)));
+		}
+		ColumnStats a = uniform.finish(100);
+		ColumnStats b = other.finish(100);
+		Assert.assertEquals(1.0 / 1000, ColumnStats.equiJoinSelectivity(a, b), 0.0001);
+
+		// both sides mostly hold the same value
+		ColumnStats.Collector skewA = new ColumnStats.Collector(Type.INT_TYPE);
+		ColumnStats.Collector skewB = new ColumnStats.Collector(Type.INT_TYPE);
+		for (int i = 0; i < 20000; i++) {
+			skewA.add(new IntField(i % 2 == 0 ? 7 : r.nextInt(1000)));
+			skewB.add(new IntField(i % 4 == 0 ? 7 : r.nextInt(1000)));
+		}
+		double sel = ColumnStats.equiJoinSelectivity(skewA.finish(100), skewB.finish(100));
+		Assert.assertEquals(0.5 * 0.25 + 0.5 * 0.75 / 1000, sel, 0.01);
+	}
+}
@@ -0,0 +1,55 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FrameArenaTest extends SimpleDbTestBase {
+
+    /**
+     * Images come back intact, and the oldest image is dropped when full.
+     */
+    @Test public void putTake() {
+        FrameArena arena = new FrameArena(2, 16);
+        HeapPageId p0 = new HeapPageId(1, 0);
+        HeapPageId p1 = new HeapPageId(1, 1);
+        HeapPageId p2 = new HeapPageId(1, 2);
+        arena.put(p0, new byte[] {1, 2, 3});
+        arena.put(p1, new byte[] {4, 5});
+        arena.put(p2, new byte[] {6});
+        assertEquals(2, arena.size());
+        assertFalse(arena.contains(p0));
+        assertArrayEquals(new byte[] {4, 5}, arena.take(p1));
+        assertNull(arena.take(p1));
+        arena.remove(p2);
+        assertEquals(0, arena.size());
+    }
+
+    /**
+     * A scan through a pool much smaller than the table sees the same
+     * tuples whether pages come back from the arena or from disk.
+     */
+    @Test public void scanThroughArena() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, null, tuples);
+        BufferPool bp = Database.resetBufferPoolWithArena(2, f.numPages());
+
+        SystemTestUtil.matchTuples(f, tuples);
+        assertTrue(bp.getFrameArena().size() > 0);
+        // second pass is served from the arena
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FrameArenaTest.class);
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+    private int build, probe;
+
+    /** A table of two columns: c0 numbers the rows, c1 is the row number mod mod */
+    private static ArrayList<ArrayList<Integer>> table(int rows, int mod) {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < rows; i++) {
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(i);
+            row.add(i % mod);
+            tuples.add(row);
+        }
+        return tuples;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        HeapFile b = JoinOptimizerTest.createDuplicateHeapFile(table(10, 10), 2, "c");
+        HeapFile p = JoinOptimizerTest.createDuplicateHeapFile(table(1000, 200), 2, "c");
+        Database.getCatalog().addTable(b, "build");
+        Database.getCatalog().addTable(p, "probe");
+        build = b.getId();
+        probe = p.getId();
+        tid = new TransactionId();
+    }
+
+    /** A Bloom filter lets through every value added, and few others. */
+    @Test public void bloomFilter() {
+        BloomFilter bloom = new BloomFilter(1000);
+        for (int i = 0; i < 1000; i++)
+            bloom.add(new IntField(i * 7));
+        for (int i = 0; i < 1000; i++)
+            Assert.assertTrue(bloom.mightContain(new IntField(i * 7)));
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (bloom.mightContain(new IntField(-1 - i)))
+                falsePositives++;
+        }
+        Assert.assertTrue(falsePositives < 300);
+    }
+
+    private static int count(OpIterator it) throws Exception {
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Once the map is built, the probe scan drops most of the tuples that
+     * can't join, and the join still finds all the ones that do.
+     */
+    @Test public void probeScanFiltered() throws Exception {
+        SeqScan probeScan = new SeqScan(tid, probe, "p");
+        HashEquiJoin join = new HashEquiJoin(
+                new JoinPredicate(1, Predicate.Op.EQUALS, 1),
+                new SeqScan(tid, build, "b"), probeScan);
+        join.open();
+
+        // 10 keys of 200 match, 5 probe tuples each
+        int read = count(probeScan);
+        Assert.assertTrue(read >= 50);
+        Assert.assertTrue(read < 100);
+        probeScan.rewind();
+
+        Assert.assertEquals(50, count(join));
+        join.rewind();
+        Assert.assertEquals(50, count(join));
+        join.close();
+
+        // the filter goes away with the join
+        probeScan.open();
+        Assert.assertEquals(1000, count(probeScan));
+        probeScan.close();
+    }
+
+    /** The filter is pushed through the filters and projections over a scan. */
+    @Test public void throughProject() throws Exception {
+        SeqScan probeScan = new SeqScan(tid, probe, "p");
+        Filter filter = new Filter(new Predicate(0, Predicate.Op.LESS_THAN,
+                new IntField(500)), probeScan);
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        fields.add(1);
+        ArrayList<Type> types = new ArrayList<Type>();
+        types.add(Type.INT_TYPE);
+        Project project = new Project(fields, types, filter);
+        HashEquiJoin join = new HashEquiJoin(
+                new JoinPredicate(1, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, build, "b"), project);
+        join.open();
+        Assert.assertTrue(count(probeScan) < 100);
+        probeScan.rewind();
+
+        // 10 keys of 200 match, 3 of the first 500 probe tuples each
+        int joined = 0;
+        while (join.hasNext()) {
+            Tuple t = join.next();
+            Assert.assertEquals(t.getField(1), t.getField(2));
+            joined++;
+        }
+        Assert.assertEquals(30, joined);
+        join.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
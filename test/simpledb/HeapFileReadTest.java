@@ -121,6 +121,95 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * An iterator with predicates returns just the tuples satisfying all of
+     * them, with just the requested fields, and never decodes the others.
+     */
+    @Test
+    public void testIteratorPredicates() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 600, null, tuples);
+
+        Predicate[] preds = new Predicate[] {
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(32768)),
+                new Predicate(2, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(16384)) };
+        DbFileIterator it = f.iterator(tid, preds, new int[] { 2, 1 });
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) < 32768 && t.get(2) >= 16384)
+                expected.add(new ArrayList<Integer>(Arrays.asList(t.get(2), t.get(1))));
+        }
+
+        it.open();
+        ArrayList<ArrayList<Integer>> actual = new ArrayList<ArrayList<Integer>>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(2, t.getTupleDesc().numFields());
+            actual.add(new ArrayList<Integer>(Arrays.asList(
+                    ((IntField) t.getField(0)).getValue(),
+                    ((IntField) t.getField(1)).getValue())));
+        }
+        it.close();
+        assertEquals(expected, actual);
+
+        // the page still holds only the image it was read from
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(f.getId(), 0), Permissions.READ_ONLY);
+        for (int i = 0; i < page.numSlots; i++)
+            assertNull(page.tuples[i]);
+    }
+
+    private static int count(DbFileIterator it) throws Exception {
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    /**
+     * Once a file has been scanned, a scan for a range of an ordered field
+     * skips the pages outside it, and inserts and deletes keep the page
+     * ranges true.
+     */
+    @Test
+    public void testZoneMapSkipsPages() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 5000; i++)
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, i % 7)));
+        HeapFile f = JoinOptimizerTest.createDuplicateHeapFile(tuples, 2, "c");
+        int pages = f.numPages();
+        assertTrue(pages > 5);
+
+        Predicate[] preds = new Predicate[] {
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(1000)),
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(1100)) };
+        ZoneMap zones = f.getZoneMap();
+        for (int p = 0; p < pages; p++)
+            assertTrue(zones.mayMatch(p, preds));
+        assertEquals(5000, count(f.iterator(tid, null, null)));
+
+        int matching = 0;
+        for (int p = 0; p < pages; p++) {
+            assertTrue(zones.isKnown(p));
+            if (zones.mayMatch(p, preds))
+                matching++;
+        }
+        assertTrue(matching <= 2);
+        assertEquals(100, count(f.iterator(tid, preds, null)));
+
+        // the new tuple goes on the last page, which must then be read
+        Tuple t = Utility.getHeapTuple(new int[] { 1050, 0 });
+        Database.getBufferPool().insertTuple(tid, f.getId(), t);
+        assertTrue(zones.mayMatch(pages - 1, preds));
+        assertEquals(101, count(f.iterator(tid, preds, null)));
+        Database.getBufferPool().deleteTuple(tid, t);
+        assertEquals(100, count(f.iterator(tid, preds, null)));
+    }
+
     /**
      * JUnit suite target
      */
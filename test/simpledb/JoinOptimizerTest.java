@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Vector;
 
 import org.junit.Assert;
@@ -621,4 +622,179 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * Order a star of tables of increasing size around a bigger one, and
+     * check that it takes a moment and gives a plan that never needs a cross
+     * product, starting from the smallest table.  Orders over more than
+     * exhaustiveThreshold tables are searched for.
+     */
+    private void orderStar(int dimensions, int exhaustiveThreshold)
+            throws IOException, DbException, TransactionAbortedException,
+            ParsingException {
+        final int IO_COST = 103;
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        TransactionId tid = new TransactionId();
+
+        ArrayList<ArrayList<Integer>> smallHeapFileTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile fact = SystemTestUtil.createRandomHeapFile(2, 1000,
+                Integer.MAX_VALUE, null, smallHeapFileTuples, "c");
+        Database.getCatalog().addTable(fact, "fact");
+        stats.put("fact", new TableStats(fact.getId(), IO_COST));
+        filterSelectivities.put("fact", 1.0);
+        StringBuilder from = new StringBuilder("fact");
+        StringBuilder where = new StringBuilder();
+        for (int i = 0; i < dimensions; i++) {
+            String name = "dim" + i;
+            HeapFile dim = createDuplicateHeapFile(new ArrayList<ArrayList<Integer>>(
+                    smallHeapFileTuples.subList(0, 10 + 10 * i)), 2, "c");
+            Database.getCatalog().addTable(dim, name);
+            stats.put(name, new TableStats(dim.getId(), IO_COST));
+            filterSelectivities.put(name, 1.0);
+            nodes.add(new LogicalJoinNode("fact", name, "c" + (i % 2), "c0",
+                    Predicate.Op.EQUALS));
+            from.append(", ").append(name);
+            where.append(i == 0 ? "" : " AND ").append("fact.c" + (i % 2) + " = " + name + ".c0");
+        }
+        Collections.shuffle(nodes);
+
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT COUNT(fact.c0) FROM " + from + " WHERE " + where + ";"), nodes);
+        j.setExhaustiveThreshold(exhaustiveThreshold);
+        long start = System.currentTimeMillis();
+        Vector<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+        long elapsed = System.currentTimeMillis() - start;
+        Assert.assertTrue("ordering took " + elapsed + "ms", elapsed < 2000);
+
+        Assert.assertEquals(nodes.size(), result.size());
+        HashSet<String> joined = new HashSet<String>();
+        for (LogicalJoinNode n : result) {
+            Assert.assertTrue(joined.isEmpty() || joined.contains(n.t1Alias)
+                    || joined.contains(n.t2Alias));
+            joined.add(n.t1Alias);
+            Assert.assertTrue(joined.add(n.t2Alias) || n.t2Alias.equals("fact"));
+        }
+        Assert.assertEquals(dimensions + 1, joined.size());
+        Assert.assertTrue(result.get(0).t1Alias.equals("dim0")
+                || result.get(0).t2Alias.equals("dim0"));
+    }
+
+    /**
+     * A star of sixteen tables has far too many join orders to try one by
+     * one, but few enough connected sets of tables to plan exhaustively
+     */
+    @Test(timeout = 10000)
+    public void starOrderJoinsTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        orderStar(16, JoinOptimizer.DEFAULT_EXHAUSTIVE_THRESHOLD);
+    }
+
+    /**
+     * Past the exhaustive threshold, the order is searched for within the
+     * planning budget instead
+     */
+    @Test(timeout = 10000)
+    public void searchOrderJoinsTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        orderStar(12, 4);
+        orderStar(40, 4);
+    }
+
+    /** @return rows (i, i % mod) or, with mod 0, (i, i) for i below n */
+    private static ArrayList<ArrayList<Integer>> rows(int n, int mod) {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < n; i++) {
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(i);
+            row.add(mod == 0 ? i : i % mod);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /** @return the number of joins on the path from op to its deepest join */
+    private static int joinDepth(OpIterator op) {
+        int depth = 0;
+        if (op instanceof Operator) {
+            for (OpIterator child : ((Operator) op).getChildren()) {
+                depth = Math.max(depth, joinDepth(child));
+            }
+        }
+        return op instanceof Join ? depth + 1 : depth;
+    }
+
+    /** @return whether a join in the plan has a join on both sides */
+    private static boolean isBushy(OpIterator op) {
+        if (!(op instanceof Operator))
+            return false;
+        OpIterator[] children = ((Operator) op).getChildren();
+        if (op instanceof Join && joinDepth(children[0]) > 0
+                && joinDepth(children[1]) > 0)
+            return true;
+        for (OpIterator child : children) {
+            if (isBushy(child))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * A snowflake whose two outer tables are filtered down to a row each
+     * should be planned by joining each arm of it separately, rather than
+     * joining the big outer tables again for every row of the fact table,
+     * and the bushy plan should give the right answer
+     */
+    @Test
+    public void bushyOrderJoinsTest() throws Exception {
+        final int IO_COST = 103;
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        String[] names = { "s1", "d1", "f", "d2", "s2" };
+        HeapFile[] files = {
+                createDuplicateHeapFile(rows(2000, 50), 2, "c"),
+                createDuplicateHeapFile(rows(50, 0), 2, "c"),
+                createDuplicateHeapFile(rows(5000, 0), 2, "c"),
+                createDuplicateHeapFile(rows(50, 0), 2, "c"),
+                createDuplicateHeapFile(rows(2000, 50), 2, "c") };
+        for (int i = 0; i < names.length; i++) {
+            Database.getCatalog().addTable(files[i], names[i]);
+        }
+        // f is (i, i): give it the columns (i % 50, i / 50 % 50) instead
+        ArrayList<ArrayList<Integer>> fact = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 5000; i++) {
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(i % 50);
+            row.add(i / 50 % 50);
+            fact.add(row);
+        }
+        files[2] = createDuplicateHeapFile(fact, 2, "c");
+        Database.getCatalog().addTable(files[2], "f");
+        for (int i = 0; i < names.length; i++) {
+            stats.put(names[i], new TableStats(files[i].getId(), IO_COST));
+        }
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM s1, d1, f, d2, s2 WHERE s1.c1 = d1.c0 AND d1.c1 = f.c0"
+                        + " AND f.c1 = d2.c1 AND d2.c0 = s2.c1 AND s1.c0 = 7 AND s2.c0 = 9;");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        Assert.assertTrue(isBushy(plan));
+
+        // s1 row 7 and s2 row 9 meet in the two fact rows (7, 9)
+        int s1 = plan.getTupleDesc().fieldNameToIndex("s1.c0");
+        int s2 = plan.getTupleDesc().fieldNameToIndex("s2.c0");
+        plan.open();
+        int count = 0;
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            Assert.assertEquals(new IntField(7), t.getField(s1));
+            Assert.assertEquals(new IntField(9), t.getField(s2));
+            count++;
+        }
+        plan.close();
+        Assert.assertEquals(2, count);
+    }
 }
@@ -0,0 +1,160 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogFileTest extends SimpleDbTestBase {
+    /** Small enough that a few dozen records span several segments */
+    private static final int SEGMENT_SIZE = 256;
+
+    private File dir;
+    private File manifest;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("logfiletest", "");
+        dir.delete();
+        dir.mkdir();
+        manifest = new File(dir, "log");
+    }
+
+    @After public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                f.delete();
+        }
+        dir.delete();
+    }
+
+    /** Log a transaction that begins and commits; return where it began */
+    private static long beginCommit(LogFile log) throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long start = log.tidToFirstLogRecord.get(tid.getId());
+        log.logCommit(tid);
+        return start;
+    }
+
+    private static int typeAt(LogFile log, long offset) throws Exception {
+        return log.readRecord(offset).readInt();
+    }
+
+    /** Open the log again, as after a restart, and decide to keep it. */
+    private LogFile reopen() throws Exception {
+        LogFile log = new LogFile(manifest, SEGMENT_SIZE);
+        log.recover();
+        return log;
+    }
+
+    /**
+     * Records roll over into new segments, each listed in the manifest, and
+     * a reopened log carries on where the old one left off.
+     */
+    @Test public void rolloverAndReopen() throws Exception {
+        LogFile log = new LogFile(manifest, SEGMENT_SIZE);
+        ArrayList<Long> starts = new ArrayList<Long>();
+        for (int i = 0; i < 40; i++)
+            starts.add(beginCommit(log));
+        assertTrue(log.segments.size() > 5);
+        for (LogFile.Segment s : log.segments)
+            assertEquals(SEGMENT_SIZE, s.file.length());
+        long end = log.currentOffset;
+        int numSegments = log.segments.size();
+
+        log = reopen();
+        assertEquals(numSegments, log.segments.size());
+        for (long start : starts)
+            assertEquals(LogFile.BEGIN_RECORD, typeAt(log, start));
+        long next = beginCommit(log);
+        assertEquals(end, next);
+        assertEquals(LogFile.BEGIN_RECORD, typeAt(log, next));
+    }
+
+    /**
+     * A record torn by a crash, followed by the zeros of the preallocated
+     * segment, is dropped when the log is reopened, and the next record
+     * takes its place.
+     */
+    @Test public void tornTail() throws Exception {
+        LogFile log = new LogFile(manifest, SEGMENT_SIZE);
+        beginCommit(log);
+        long torn = beginCommit(log);
+        log.force();
+
+        // the record's header made it to disk, but not all of its body
+        LogFile.Segment last = log.segments.get(log.segments.size() - 1);
+        RandomAccessFile raf = new RandomAccessFile(last.file, "rw");
+        raf.seek(torn - last.startOffset + LogFile.HEADER_SIZE + LogFile.INT_SIZE);
+        raf.write(new byte[LogFile.LONG_SIZE]);
+        raf.close();
+
+        log = reopen();
+        try {
+            log.readRecord(torn);
+            fail("torn record read back");
+        } catch (java.io.IOException e) {
+            // expected
+        }
+        assertEquals(torn, beginCommit(log));
+        assertEquals(LogFile.BEGIN_RECORD, typeAt(log, torn));
+    }
+
+    /**
+     * A checkpoint drops the segments before the oldest record still needed,
+     * from the manifest at once and from disk in the background, and keeps
+     * those of a transaction still running.
+     */
+    @Test public void truncate() throws Exception {
+        LogFile log = new LogFile(manifest, SEGMENT_SIZE);
+        TransactionId running = new TransactionId();
+        log.logXactionBegin(running);
+        for (int i = 0; i < 30; i++)
+            beginCommit(log);
+        log.logCheckpoint();
+        assertEquals(0, log.segments.get(0).startOffset);
+        int numSegments = log.segments.size();
+        File first = log.segments.get(0).file;
+
+        log.logCommit(running);
+        for (int i = 0; i < 30; i++)
+            beginCommit(log);
+        log.logCheckpoint();
+        long cp = log.checkpointOffset;
+        assertTrue(log.segments.size() < numSegments);
+        assertTrue(log.segments.get(0).startOffset <= cp);
+        assertTrue(log.segments.size() == 1 || log.segments.get(1).startOffset > cp);
+
+        for (int i = 0; i < 100 && first.exists(); i++)
+            Thread.sleep(20);
+        assertFalse(first.exists());
+
+        ArrayList<Long> live = new ArrayList<Long>();
+        for (LogFile.Segment s : log.segments)
+            live.add(s.segNo);
+        log = reopen();
+        ArrayList<Long> reopened = new ArrayList<Long>();
+        for (LogFile.Segment s : log.segments)
+            reopened.add(s.segNo);
+        assertEquals(live, reopened);
+        assertEquals(cp, log.checkpointOffset);
+        assertEquals(LogFile.CHECKPOINT_RECORD, typeAt(log, cp));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+
+    private static final int WIDTH = 6;
+
+    private TransactionId tid;
+    private ArrayList<ArrayList<Integer>> a, b, c;
+
+    /** Three tables of WIDTH columns: c0 numbers the rows, c1 and c2 join them */
+    private static ArrayList<ArrayList<Integer>> table(int rows, int mod1, int mod2) {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < rows; i++) {
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(i);
+            row.add(i % mod1);
+            row.add(i % mod2);
+            for (int j = 3; j < WIDTH; j++)
+                row.add(i * j);
+            tuples.add(row);
+        }
+        return tuples;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        a = table(60, 7, 5);
+        b = table(20, 7, 4);
+        c = table(12, 3, 4);
+        Database.getCatalog().addTable(JoinOptimizerTest.createDuplicateHeapFile(a, WIDTH, "c"), "a");
+        Database.getCatalog().addTable(JoinOptimizerTest.createDuplicateHeapFile(b, WIDTH, "c"), "b");
+        Database.getCatalog().addTable(JoinOptimizerTest.createDuplicateHeapFile(c, WIDTH, "c"), "c");
+        tid = new TransactionId();
+    }
+
+    private OpIterator plan(String sql) throws Exception {
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+        for (int tableid : lp.getTableAliasToIdMapping().values())
+            TableStats.analyzeIfStale(tableid);
+        return lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    }
+
+    /** @return the widest input of any join in the plan */
+    private static int widestJoinInput(OpIterator plan) {
+        int widest = 0;
+        if (!(plan instanceof Operator))
+            return widest;
+        OpIterator[] children = ((Operator) plan).getChildren();
+        for (OpIterator child : children) {
+            if (plan instanceof Join || plan instanceof HashEquiJoin)
+                widest = Math.max(widest, child.getTupleDesc().numFields());
+            widest = Math.max(widest, widestJoinInput(child));
+        }
+        return widest;
+    }
+
+    /**
+     * The scans feed the joins only the fields the query reads, and each join
+     * passes on only the fields read above it.
+     */
+    @Test public void pruneJoinInputs() throws Exception {
+        OpIterator plan = plan("SELECT a.c0, c.c5 FROM a, b, c"
+                + " WHERE a.c1 = b.c1 AND b.c2 = c.c2 AND a.c3 < 90;");
+        // a gives c0 and c1, b gives c1 and c2, c gives c2 and c5; a join of two
+        // of them passes on at most the three fields read above it
+        Assert.assertTrue(widestJoinInput(plan) <= 3);
+
+        HashMap<String, Integer> expected = new HashMap<String, Integer>();
+        for (ArrayList<Integer> ra : a) {
+            if (ra.get(3) >= 90)
+                continue;
+            for (ArrayList<Integer> rb : b) {
+                if (!ra.get(1).equals(rb.get(1)))
+                    continue;
+                for (ArrayList<Integer> rc : c) {
+                    if (rb.get(2).equals(rc.get(2)))
+                        add(expected, Arrays.asList(ra.get(0), rc.get(5)).toString());
+                }
+            }
+        }
+        Assert.assertEquals(expected, results(plan));
+    }
+
+    /** The fields an aggregate reads are kept below it, and no others. */
+    @Test public void pruneBelowAggregate() throws Exception {
+        OpIterator plan = plan("SELECT b.c3, SUM(a.c4) FROM a, b"
+                + " WHERE a.c1 = b.c1 GROUP BY b.c3;");
+        Assert.assertEquals(2, widestJoinInput(plan));
+
+        HashMap<Integer, Integer> sums = new HashMap<Integer, Integer>();
+        for (ArrayList<Integer> ra : a) {
+            for (ArrayList<Integer> rb : b) {
+                if (ra.get(1).equals(rb.get(1))) {
+                    Integer s = sums.get(rb.get(3));
+                    sums.put(rb.get(3), (s == null ? 0 : s) + ra.get(4));
+                }
+            }
+        }
+        HashMap<String, Integer> expected = new HashMap<String, Integer>();
+        for (Map.Entry<Integer, Integer> e : sums.entrySet())
+            add(expected, Arrays.asList(e.getKey(), e.getValue()).toString());
+        Assert.assertEquals(expected, results(plan));
+    }
+
+    /** SELECT * keeps every field. */
+    @Test public void selectStar() throws Exception {
+        OpIterator plan = plan("SELECT * FROM a, b WHERE a.c1 = b.c1;");
+        Assert.assertEquals(2 * WIDTH, plan.getTupleDesc().numFields());
+        Assert.assertEquals(WIDTH, widestJoinInput(plan));
+    }
+
+    private static void add(HashMap<String, Integer> counts, String row) {
+        Integer n = counts.get(row);
+        counts.put(row, n == null ? 1 : n + 1);
+    }
+
+    private static HashMap<String, Integer> results(OpIterator plan) throws Exception {
+        HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                row.add(((IntField) t.getField(i)).getValue());
+            add(counts, row.toString());
+        }
+        plan.close();
+        return counts;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogicalPlanTest.class);
+    }
+}
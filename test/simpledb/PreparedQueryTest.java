@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PreparedQueryTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+
+    /**
+     * Two tables: a, with 100 rows (i, i % 10), and b, with 10 rows (i, i), so
+     * that each row of a joins with exactly one row of b on a.c1 = b.c0.
+     */
+    @Before
+    public void setUp() throws IOException {
+        ArrayList<ArrayList<Integer>> a = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 100; i++)
+            a.add(new ArrayList<Integer>(Arrays.asList(i, i % 10)));
+        ArrayList<ArrayList<Integer>> b = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 10; i++)
+            b.add(new ArrayList<Integer>(Arrays.asList(i, i)));
+        Database.getCatalog().addTable(
+                JoinOptimizerTest.createDuplicateHeapFile(a, 2, "c"), "a");
+        Database.getCatalog().addTable(
+                JoinOptimizerTest.createDuplicateHeapFile(b, 2, "c"), "b");
+        tid = new TransactionId();
+    }
+
+    private static int count(Query q) throws Exception {
+        q.start();
+        int n = 0;
+        while (q.hasNext()) {
+            q.next();
+            n++;
+        }
+        q.close();
+        return n;
+    }
+
+    @Test public void normalize() {
+        List<String> literals = new ArrayList<String>();
+        Assert.assertEquals("SELECT * FROM t1 WHERE t1.c0 = ? AND t1.name = ?;",
+                QueryPlanCache.normalize(
+                        "SELECT *\n  FROM t1 WHERE t1.c0 = 42 AND t1.name = 'it''s';", literals));
+        Assert.assertEquals(Arrays.asList("42", "it's"), literals);
+
+        literals.clear();
+        Assert.assertEquals("SELECT * FROM t1 WHERE t1.c0 > ?",
+                QueryPlanCache.normalize("SELECT * FROM t1 WHERE t1.c0 > ?", literals));
+        Assert.assertEquals(Arrays.asList((String) null), literals);
+
+        Assert.assertNull(QueryPlanCache.normalize(
+                "INSERT INTO t1 VALUES (1, 2);", new ArrayList<String>()));
+        Assert.assertNull(QueryPlanCache.normalize(
+                "SELECT * FROM t1 WHERE t1.c0 IN (SELECT t2.c0 FROM t2);",
+                new ArrayList<String>()));
+        Assert.assertNull(QueryPlanCache.normalize(
+                "SELECT * FROM t1 WHERE t1.name = 'x;", new ArrayList<String>()));
+    }
+
+    /**
+     * A prepared query gives the right answer for each set of values it is
+     * bound to, and rejects values that don't fit.
+     */
+    @Test public void bind() throws Exception {
+        PreparedQuery q = new Parser().prepare(
+                "SELECT * FROM a, b WHERE a.c1 = b.c0 AND a.c0 < ?;");
+        Assert.assertEquals(1, q.getParameterCount());
+        Assert.assertEquals(5, count(q.bind(tid, "5")));
+        Assert.assertEquals(20, count(q.bind(tid, "20")));
+        Assert.assertEquals(0, count(q.bind(tid, "0")));
+
+        try {
+            q.bind(tid, "5", "6");
+            Assert.fail("bound too many values");
+        } catch (ParsingException e) {
+            // expected
+        }
+        try {
+            q.bind(tid, "five");
+            Assert.fail("bound a string to an integer field");
+        } catch (ParsingException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A query is still answered correctly once the statistics it was planned
+     * from are replaced.
+     */
+    @Test public void statsChange() throws Exception {
+        PreparedQuery q = new Parser().prepare(
+                "SELECT * FROM a, b WHERE a.c1 = b.c0 AND b.c1 = ?;");
+        Assert.assertEquals(10, count(q.bind(tid, "3")));
+        int tableid = Database.getCatalog().getTableId("a");
+        TableStats.setTableStats("a", new TableStats(tableid, 1000));
+        Assert.assertEquals(10, count(q.bind(tid, "4")));
+    }
+
+    /**
+     * The parser plans a query once, and runs later queries that differ
+     * from it only in their constants from its cache.
+     */
+    @Test public void parserCache() throws Exception {
+        Parser p = new Parser();
+        p.processNextStatement("SELECT * FROM a WHERE a.c0 < 5;");
+        Assert.assertEquals(1, p.getPlanCache().size());
+        PreparedQuery cached = p.getPlanCache().get("SELECT * FROM a WHERE a.c0 < ?;");
+        Assert.assertNotNull(cached);
+
+        p.processNextStatement("SELECT  *  FROM a WHERE a.c0 < 7;");
+        Assert.assertEquals(1, p.getPlanCache().size());
+        Assert.assertSame(cached, p.getPlanCache().get("SELECT * FROM a WHERE a.c0 < ?;"));
+        Assert.assertEquals(7, count(cached.bind(tid, "7")));
+
+        p.processNextStatement("SELECT * FROM b WHERE b.c0 < 5;");
+        Assert.assertEquals(2, p.getPlanCache().size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PreparedQueryTest.class);
+    }
+}
@@ -0,0 +1,196 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ResultCacheTest extends SimpleDbTestBase {
+
+    private HeapFile table;
+    private TupleDesc td;
+
+    @Before
+    public void setUp() throws Exception {
+        table = SystemTestUtil.createRandomHeapFile(2, 20, null, null);
+        Database.getCatalog().addTable(table, "t");
+        td = table.getTupleDesc();
+    }
+
+    private List<Tuple> tuples(int n) {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        return tuples;
+    }
+
+    private int[] ids() {
+        return new int[] { table.getId() };
+    }
+
+    @Test public void key() {
+        Assert.assertEquals(ResultCache.key("SELECT ?", Arrays.asList("1")),
+                ResultCache.key("SELECT ?", Arrays.asList("1")));
+        Assert.assertFalse(ResultCache.key("SELECT ?", Arrays.asList("1")).equals(
+                ResultCache.key("SELECT ?", Arrays.asList("2"))));
+    }
+
+    /**
+     * A result is dropped once a tuple is inserted into or deleted from a
+     * table it was computed from.
+     */
+    @Test public void invalidation() throws Exception {
+        ResultCache cache = new ResultCache(ResultCache.DEFAULT_CAPACITY);
+        cache.put("q", ids(), ResultCache.versionsOf(ids()), td, tuples(3));
+        Assert.assertEquals(3, cache.get("q").size());
+
+        TransactionId tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(new int[] { 1, 2 });
+        Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        Assert.assertNull(cache.get("q"));
+        Assert.assertEquals(0, cache.size());
+
+        cache.put("q", ids(), ResultCache.versionsOf(ids()), td, tuples(3));
+        Assert.assertNotNull(cache.get("q"));
+        Database.getBufferPool().deleteTuple(tid, t);
+        Assert.assertNull(cache.get("q"));
+    }
+
+    /**
+     * The least recently used results are evicted to keep the cache under
+     * its capacity, and a result bigger than all of it is not kept.
+     */
+    @Test public void eviction() {
+        long size = ResultCache.sizeOf(td, 10);
+        ResultCache cache = new ResultCache(3 * size);
+        long[] versions = ResultCache.versionsOf(ids());
+        cache.put("a", ids(), versions, td, tuples(10));
+        cache.put("b", ids(), versions, td, tuples(10));
+        cache.put("c", ids(), versions, td, tuples(10));
+        Assert.assertEquals(3 * size, cache.bytes());
+        cache.get("a");
+        cache.put("d", ids(), versions, td, tuples(10));
+        Assert.assertNotNull(cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertNotNull(cache.get("c"));
+        Assert.assertNotNull(cache.get("d"));
+        Assert.assertEquals(3 * size, cache.bytes());
+
+        cache.put("e", ids(), versions, td, tuples(31));
+        Assert.assertNull(cache.get("e"));
+        Assert.assertEquals(3, cache.size());
+    }
+
+    /**
+     * Query.execute fills the cache, and answers from it without opening
+     * its plan.
+     */
+    @Test public void execute() throws Exception {
+        ResultCache cache = new ResultCache(ResultCache.DEFAULT_CAPACITY);
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM t;");
+
+        Query q = new Query(tid);
+        q.setLogicalPlan(lp);
+        q.setPhysicalPlan(lp.physicalPlan(tid, TableStats.getStatsMap(), false));
+        q.setResultCache(cache, "all");
+        q.execute();
+        Assert.assertEquals(20, cache.get("all").size());
+
+        // a plan that can't run, to show it isn't
+        q = new Query(tid);
+        q.setLogicalPlan(lp);
+        Predicate any = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ,
+                new IntField(Integer.MIN_VALUE));
+        q.setPhysicalPlan(new Filter(any, new SeqScan(tid, table.getId())) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void open() throws DbException {
+                throw new DbException("plan was run");
+            }
+        });
+        q.setResultCache(cache, "all");
+        q.execute();
+    }
+
+    /** Run SELECT * FROM t as tid through Query.execute, keyed "all" in cache */
+    private void selectAll(TransactionId tid, ResultCache cache) throws Exception {
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM t;");
+        Query q = new Query(tid);
+        q.setLogicalPlan(lp);
+        q.setPhysicalPlan(lp.physicalPlan(tid, TableStats.getStatsMap(), false));
+        q.setResultCache(cache, "all");
+        q.execute();
+    }
+
+    /**
+     * A transaction that has written a table neither fills the cache nor is
+     * answered from it, and once it aborts, what others read of its changes
+     * is dropped.
+     */
+    @Test public void abortedWrite() throws Exception {
+        ResultCache cache = new ResultCache(ResultCache.DEFAULT_CAPACITY);
+        TransactionId writer = new TransactionId();
+        Database.getBufferPool().insertTuple(writer, table.getId(),
+                Utility.getHeapTuple(new int[] { 1, 2 }));
+        Assert.assertTrue(Database.getBufferPool().hasWritten(writer));
+        selectAll(writer, cache);
+        Assert.assertEquals(0, cache.size());
+
+        // nothing stops another transaction from reading the uncommitted tuple
+        TransactionId reader = new TransactionId();
+        selectAll(reader, cache);
+        Assert.assertEquals(21, cache.get("all").size());
+
+        // but the writer runs its query
+        LogicalPlan lp = new Parser().generateLogicalPlan(writer, "SELECT * FROM t;");
+        Query q = new Query(writer);
+        q.setLogicalPlan(lp);
+        q.setPhysicalPlan(new SeqScan(writer, table.getId()) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void open() throws DbException {
+                throw new DbException("plan was run");
+            }
+        });
+        q.setResultCache(cache, "all");
+        try {
+            q.execute();
+            Assert.fail("answered from the cache");
+        } catch (DbException e) {
+            // expected
+        }
+
+        Database.getBufferPool().transactionComplete(writer, false);
+        Assert.assertFalse(Database.getBufferPool().hasWritten(writer));
+        Assert.assertNull(cache.get("all"));
+        Database.getBufferPool().transactionComplete(reader);
+    }
+
+    /**
+     * A change written straight to a file, without the buffer pool, moves
+     * its table's version on too.
+     */
+    @Test public void directWrite() throws Exception {
+        ResultCache cache = new ResultCache(ResultCache.DEFAULT_CAPACITY);
+        cache.put("q", ids(), ResultCache.versionsOf(ids()), td, tuples(3));
+        table.insertTuple(new TransactionId(), Utility.getHeapTuple(new int[] { 1, 2 }));
+        Assert.assertNull(cache.get("q"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ResultCacheTest.class);
+    }
+}
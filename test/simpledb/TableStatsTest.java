@@ -1,8 +1,11 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.Assert;
@@ -27,6 +30,11 @@ public class TableStatsTest extends SimpleDbTestBase {
 		Database.getCatalog().addTable(f, tableName);
 		this.tableId = Database.getCatalog().getTableId(tableName);		
 	}
+
+	@After public void tearDown() throws Exception {
+		TableStats.awaitAnalyzer();
+		TableStats.stopSaving();
+	}
 	
 	private double[] getRandomTableScanCosts(int[] pageNums, int[] ioCosts) throws IOException, DbException, TransactionAbortedException {
 		double[] ret = new double[ioCosts.length];
@@ -151,4 +159,170 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Statistics from half the pages should estimate the whole table, and
+	 * computeStatistics should cover every table in the catalog
+	 */
+	@Test public void sampledStatsTest() {
+		TableStats full = new TableStats(this.tableId, IO_COST);
+		TableStats s = new TableStats(this.tableId, IO_COST, 0.5);
+		Assert.assertEquals(full.estimateScanCost(), s.estimateScanCost(), 0.001);
+		Assert.assertEquals(10200, s.totalTuples(), 10200 * 0.1);
+		for (int col = 0; col < 10; col++) {
+			Assert.assertEquals(32, s.getColumnStats(col).getNdv());
+			Assert.assertEquals(1.0/32.0, s.estimateSelectivity(col, Predicate.Op.EQUALS, new IntField(16)), 0.015);
+			Assert.assertEquals(0.5, s.estimateSelectivity(col, Predicate.Op.LESS_THAN, new IntField(16)), 0.1);
+		}
+
+		TableStats.computeStatistics(4);
+		Assert.assertEquals(10200, TableStats.getTableStats(this.tableName).totalTuples());
+	}
+
+	private void insertRows(int n, int value) throws Exception {
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < n; i++) {
+			Tuple t = new Tuple(f.getTupleDesc());
+			for (int col = 0; col < 10; col++) {
+				t.setField(col, new IntField(value));
+			}
+			Database.getBufferPool().insertTuple(tid, tableId, t);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Inserts should show up in the statistics straight away, and enough of
+	 * them should have the table analyzed again
+	 */
+	@Test public void incrementalStatsTest() throws Exception {
+		// the same shape as the random table, but with every value as common
+		// as the others, so that the estimates below come out the same each run
+		ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < 10200; i++) {
+			ArrayList<Integer> row = new ArrayList<Integer>();
+			for (int col = 0; col < 10; col++) {
+				row.add(i % 32);
+			}
+			rows.add(row);
+		}
+		File file = File.createTempFile("table", ".dat");
+		file.deleteOnExit();
+		HeapFileEncoder.convert(rows, file, BufferPool.getPageSize(), 10);
+		this.f = Utility.openHeapFile(10, file);
+		this.tableName = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(f, tableName);
+		this.tableId = Database.getCatalog().getTableId(tableName);
+
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(tableName, s);
+		insertRows(150, 99);
+		Assert.assertEquals(10350, s.totalTuples());
+		// the top bucket stretched to take the new values
+		Assert.assertEquals(150.0/10350, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(99)), 0.015);
+		double above = s.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(50));
+		Assert.assertTrue(above > 0 && above <= 150.0/10350 + 0.003);
+		Assert.assertEquals(33, s.getColumnStats(0).getNdv());
+		Assert.assertFalse(s.isStale());
+
+		TableStats.analyzeIfStale(tableId);
+		Assert.assertSame(s, TableStats.getTableStats(tableName));
+		// the rest straight to the statistics, since heap inserts are slow
+		Tuple t = new Tuple(f.getTupleDesc());
+		for (int col = 0; col < 10; col++) {
+			t.setField(col, new IntField(50));
+		}
+		for (int i = 0; i < 4000; i++) {
+			TableStats.tupleInserted(tableId, t);
+		}
+		Assert.assertTrue(s.isStale());
+		TableStats.analyzeIfStale(tableId);
+		TableStats.awaitAnalyzer();
+		TableStats fresh = TableStats.getTableStats(tableName);
+		Assert.assertNotSame(s, fresh);
+		Assert.assertFalse(fresh.isStale());
+		Assert.assertEquals(10350, fresh.totalTuples());
+	}
+
+	/**
+	 * Inserts and deletes should count only once their transaction commits
+	 */
+	@Test public void abortedChangesTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(tableName, s);
+		int total = s.totalTuples();
+		TransactionId tid = new TransactionId();
+		Tuple t = new Tuple(f.getTupleDesc());
+		for (int col = 0; col < 10; col++) {
+			t.setField(col, new IntField(99));
+		}
+		Database.getBufferPool().insertTuple(tid, tableId, t);
+		Assert.assertEquals(total, s.totalTuples());
+		Database.getBufferPool().transactionComplete(tid, false);
+		Assert.assertEquals(total, s.totalTuples());
+		Assert.assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(99)), 0.001);
+
+		insertRows(10, 99);
+		Assert.assertEquals(total + 10, s.totalTuples());
+	}
+
+	/**
+	 * A scan reads every page of the file, including those with no tuples
+	 */
+	@Test public void emptyPagesScanCostTest() throws Exception {
+		TransactionId tid = new TransactionId();
+		HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+				new HeapPageId(tableId, 0), Permissions.READ_ONLY);
+		ArrayList<Tuple> first = new ArrayList<Tuple>();
+		Iterator<Tuple> it = p.iterator();
+		while (it.hasNext()) {
+			first.add(it.next());
+		}
+		for (Tuple t : first) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		Assert.assertEquals(10200 - first.size(), s.totalTuples());
+		Assert.assertEquals(f.numPages() * IO_COST, s.estimateScanCost(), 0.001);
+	}
+
+	/**
+	 * Saved statistics should come back as they were, unless the table
+	 * changed behind them
+	 */
+	@Test public void persistedStatsTest() throws Exception {
+		File saved = File.createTempFile("stats", ".dat");
+		saved.delete();
+		saved.deleteOnExit();
+		TableStats.loadStatistics(saved);
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(tableName, s);
+		insertRows(100, 99);
+		Database.getBufferPool().flushAllPages();
+		TableStats.saveStatistics();
+
+		TableStats.getStatsMap().remove(tableName);
+		TableStats.loadStatistics(saved);
+		TableStats loaded = TableStats.getTableStats(tableName);
+		Assert.assertNotNull(loaded);
+		Assert.assertFalse(loaded.isStale());
+		Assert.assertEquals(s.totalTuples(), loaded.totalTuples());
+		Assert.assertEquals(s.estimateScanCost(), loaded.estimateScanCost(), 0.001);
+		for (int col = 0; col < 10; col++) {
+			Assert.assertEquals(s.getColumnStats(col).getNdv(), loaded.getColumnStats(col).getNdv());
+			Assert.assertEquals(s.estimateSelectivity(col, Predicate.Op.LESS_THAN, new IntField(16)),
+					loaded.estimateSelectivity(col, Predicate.Op.LESS_THAN, new IntField(16)), 0.0001);
+			Assert.assertEquals(s.estimateSelectivity(col, Predicate.Op.EQUALS, new IntField(99)),
+					loaded.estimateSelectivity(col, Predicate.Op.EQUALS, new IntField(99)), 0.0001);
+		}
+
+		// the table grows while the statistics aren't being kept up to date
+		TableStats.getStatsMap().remove(tableName);
+		insertRows(200, 7);
+		Database.getBufferPool().flushAllPages();
+		TableStats.loadStatistics(saved);
+		Assert.assertTrue(TableStats.getTableStats(tableName).isStale());
+	}
 }
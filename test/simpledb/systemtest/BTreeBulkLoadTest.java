@@ -0,0 +1,132 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+/**
+ * Bulk loads B+ trees of various sizes and fill factors and checks that the
+ * result is a well-formed tree holding exactly the loaded tuples.
+ */
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+
+    private BTreeFile load(int columns, int rows, int keyField, double fillFactor,
+            ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        BTreeUtility.generateRandomTuples(columns, rows, 0, BTreeUtility.MAX_RAND_VALUE, null, tuples);
+        ArrayList<Tuple> tupleList = new ArrayList<Tuple>();
+        for (ArrayList<Integer> tup : tuples) {
+            tupleList.add(BTreeUtility.getBTreeTuple(tup));
+        }
+        File bFile = File.createTempFile("bulk", ".dat");
+        bFile.deleteOnExit();
+        BTreeFile bf = BTreeFileEncoder.bulkLoad(tupleList, bFile, Utility.getTupleDesc(columns),
+                keyField, fillFactor);
+        Database.resetBufferPool(500);
+        return bf;
+    }
+
+    private void validate(int columns, int rows, int keyField, double fillFactor) throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = load(columns, rows, keyField, fillFactor, tuples);
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+        SystemTestUtil.matchTuples(new BTreeScan(tid, bf.getId(), "table", null), tuples);
+
+        // keys come back in order
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        int prev = Integer.MIN_VALUE;
+        while (it.hasNext()) {
+            int key = ((IntField) it.next().getField(keyField)).getValue();
+            assertTrue(key >= prev);
+            prev = key;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testSmall() throws Exception {
+        validate(2, 0, 0, 1.0);
+        validate(2, 1, 0, 1.0);
+        validate(3, 100, 1, 1.0);
+    }
+
+    @Test public void testMultiLevel() throws Exception {
+        validate(2, 30000, 0, 1.0);
+        validate(1, 40000, 0, 0.8);
+    }
+
+    @Test public void testFillFactor() throws Exception {
+        ArrayList<ArrayList<Integer>> full = new ArrayList<ArrayList<Integer>>();
+        BTreeFile packed = load(2, 20000, 0, 1.0, full);
+        ArrayList<ArrayList<Integer>> sparse = new ArrayList<ArrayList<Integer>>();
+        BTreeFile loose = load(2, 20000, 0, 0.6, sparse);
+        assertTrue(loose.numPages() > packed.numPages());
+        validate(2, 20000, 1, 0.6);
+    }
+
+    @Test public void testInsertAfterLoad() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = load(2, 10000, 0, 0.75, tuples);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 500; i++) {
+            Tuple t = BTreeUtility.getBTreeTuple(new int[] {i * 7, i});
+            Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+            ArrayList<Integer> l = new ArrayList<Integer>();
+            l.add(i * 7);
+            l.add(i);
+            tuples.add(l);
+        }
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+        SystemTestUtil.matchTuples(new BTreeScan(tid, bf.getId(), "table", null), tuples);
+
+        IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(49));
+        DbFileIterator it = bf.indexIterator(tid, ipred);
+        it.open();
+        assertTrue(it.hasNext());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Converting a text file too big to sort in one run merges the sorted
+     * runs into the tree, and leaves room on the leaves for an insert.
+     */
+    @Test public void testConvertRuns() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeUtility.generateRandomTuples(2, 150000, 0, BTreeUtility.MAX_RAND_VALUE, null, tuples);
+        File hFile = File.createTempFile("bulk", ".heap");
+        hFile.delete();
+        File bFile = File.createTempFile("bulk", ".dat");
+        bFile.deleteOnExit();
+        BTreeFile bf = BTreeFileEncoder.convert(tuples, hFile, bFile, 0, 2);
+        assertFalse(hFile.exists());
+        Database.resetBufferPool(500);
+
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+        SystemTestUtil.matchTuples(new BTreeScan(tid, bf.getId(), "table", null), tuples);
+
+        int pages = bf.numPages();
+        Database.getBufferPool().insertTuple(tid, bf.getId(),
+                BTreeUtility.getBTreeTuple(new int[] {BTreeUtility.MAX_RAND_VALUE / 2, 0}));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(pages, bf.numPages());
+    }
+
+    @Test(expected=IllegalArgumentException.class) public void testBadFillFactor() throws Exception {
+        load(2, 10, 0, 0.3, new ArrayList<ArrayList<Integer>>());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeBulkLoadTest.class);
+    }
+}
@@ -0,0 +1,249 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+/**
+ * Deletes most of a B+ tree and checks that compaction gives the space back
+ * while the tree stays well formed, readable and writable, including by
+ * iterators left open across it.
+ */
+public class BTreeCompactionTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 30000;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    /** Build a tree, then delete every tuple whose key isn't a multiple of 10 */
+    private BTreeFile sparseTree() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, tuples, 0);
+        TransactionId tid = new TransactionId();
+        ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(0)).getValue() % 10 != 0)
+                doomed.add(t);
+        }
+        it.close();
+        for (Tuple t : doomed) {
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        ArrayList<ArrayList<Integer>> left = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> l : tuples) {
+            if (l.get(0) % 10 == 0)
+                left.add(l);
+        }
+        tuples = left;
+        return bf;
+    }
+
+    private void validate(BTreeFile bf) throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+        SystemTestUtil.matchTuples(new BTreeScan(tid, bf.getId(), "t", null), tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static ArrayList<Integer> keys(List<ArrayList<Integer>> rows) {
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        for (ArrayList<Integer> l : rows) {
+            keys.add(l.get(0));
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    @Test public void testCompact() throws Exception {
+        BTreeFile bf = sparseTree();
+        int before = bf.numPages();
+        TransactionId tid = new TransactionId();
+        assertTrue(bf.compact(tid, 0) > 1);
+        Database.getBufferPool().transactionComplete(tid);
+        int after = bf.numPages();
+        assertTrue("compacted " + before + " pages to " + after, after < before / 3);
+        validate(bf);
+
+        // the pages on disk hold the same tree
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        validate(bf);
+
+        // nothing is left to move the second time round
+        tid = new TransactionId();
+        bf.compact(tid, 0);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(after, bf.numPages());
+
+        // the tree keeps growing normally, past the truncated end of the file
+        tid = new TransactionId();
+        for (int i = 0; i < 5000; i++) {
+            ArrayList<Integer> l = new ArrayList<Integer>();
+            l.add(i * 7);
+            l.add(i);
+            tuples.add(l);
+            Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(l));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        validate(bf);
+    }
+
+    @Test public void testOpenIterators() throws Exception {
+        BTreeFile bf = sparseTree();
+        int before = bf.numPages();
+        ArrayList<Integer> expected = keys(tuples);
+        TransactionId tid = new TransactionId();
+
+        DbFileIterator forward = bf.iterator(tid);
+        forward.open();
+        ArrayList<Integer> seen = new ArrayList<Integer>();
+        for (int i = 0; i < expected.size() / 3; i++) {
+            seen.add(((IntField) forward.next().getField(0)).getValue());
+        }
+        DbFileIterator backward = bf.rangeIterator(tid, null, null, true);
+        backward.open();
+        ArrayList<Integer> seenBackward = new ArrayList<Integer>();
+        for (int i = 0; i < expected.size() / 3; i++) {
+            seenBackward.add(((IntField) backward.next().getField(0)).getValue());
+        }
+        ArrayList<Field> lookup = new ArrayList<Field>();
+        for (int i = 0; i < expected.size(); i += 7) {
+            lookup.add(new IntField(expected.get(i)));
+        }
+        DbFileIterator batch = bf.batchIterator(tid, lookup);
+        batch.open();
+
+        TransactionId ctid = new TransactionId();
+        bf.compact(ctid, 0);
+        Database.getBufferPool().transactionComplete(ctid);
+        // the end of the file is held up by the leaf the backward scan is on
+        assertTrue(bf.numPages() < before);
+
+        while (forward.hasNext()) {
+            seen.add(((IntField) forward.next().getField(0)).getValue());
+        }
+        forward.close();
+        assertEquals(expected, seen);
+
+        while (backward.hasNext()) {
+            seenBackward.add(((IntField) backward.next().getField(0)).getValue());
+        }
+        backward.close();
+        Collections.reverse(seenBackward);
+        assertEquals(expected, seenBackward);
+
+        int found = 0;
+        while (batch.hasNext()) {
+            assertTrue(lookup.contains(batch.next().getField(0)));
+            found++;
+        }
+        batch.close();
+        int matching = 0;
+        for (int key : expected) {
+            if (lookup.contains(new IntField(key)))
+                matching++;
+        }
+        assertEquals(matching, found);
+        Database.getBufferPool().transactionComplete(tid);
+        validate(bf);
+
+        // with the iterators closed, the rest can go
+        ctid = new TransactionId();
+        bf.compact(ctid, 0);
+        Database.getBufferPool().transactionComplete(ctid);
+        assertTrue(bf.numPages() < before / 3);
+        validate(bf);
+    }
+
+    @Test public void testBackgroundCompactor() throws Exception {
+        BTreeFile bf = sparseTree();
+        int before = bf.numPages();
+        ArrayList<Integer> expected = keys(tuples);
+        bf.startCompactor(1);
+        try {
+            // the tree stays readable while the compactor works on it
+            TransactionId tid = new TransactionId();
+            long deadline = System.currentTimeMillis() + 20000;
+            int i = 0;
+            while (bf.numPages() >= before / 3 && System.currentTimeMillis() < deadline) {
+                int key = expected.get(i++ % expected.size());
+                DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+                it.open();
+                assertTrue(it.hasNext());
+                assertEquals(new IntField(key), it.next().getField(0));
+                it.close();
+            }
+            Database.getBufferPool().transactionComplete(tid);
+        } finally {
+            bf.stopCompactor();
+        }
+        assertTrue(bf.numPages() < before / 3);
+        validate(bf);
+    }
+
+    @Test public void testOtherTransactionsPages() throws Exception {
+        BTreeFile bf = sparseTree();
+        int before = bf.numPages();
+        // big enough to hold the whole tree, and with no background writer, so
+        // that nothing is written before its transaction commits
+        BufferPool pool = Database.resetBufferPool(before + 10, 0);
+
+        // another transaction adds a tuple half way along, and hasn't committed
+        TransactionId other = new TransactionId();
+        DbFileIterator it = bf.iterator(other);
+        it.open();
+        BTreePageId first = (BTreePageId) it.next().getRecordId().getPageId();
+        it.close();
+        ArrayList<Integer> added = new ArrayList<Integer>();
+        added.add(keys(tuples).get(tuples.size() / 2) + 1);
+        added.add(-1);
+        Tuple t = BTreeUtility.getBTreeTuple(added);
+        pool.insertTuple(other, bf.getId(), t);
+        PageId leaf = t.getRecordId().getPageId();
+        assertFalse(leaf.equals(first));
+        Page otherPage = pool.getPage(other, leaf, Permissions.READ_ONLY);
+        assertEquals(other, otherPage.isDirty());
+
+        // a step leaves what it changes dirty until it commits
+        TransactionId tid = new TransactionId();
+        bf.compactStep(tid);
+        assertEquals(tid, pool.getPage(tid, first, Permissions.READ_ONLY).isDirty());
+        pool.transactionComplete(tid);
+        assertNull(pool.getPage(tid, first, Permissions.READ_ONLY).isDirty());
+
+        // the rest of the pass leaves the other transaction's page alone, and
+        // once it has committed the next pass finishes the job
+        tid = new TransactionId();
+        bf.compact(tid, 0);
+        pool.transactionComplete(tid);
+        assertSame(otherPage, pool.getPage(tid, leaf, Permissions.READ_ONLY));
+        assertEquals(other, otherPage.isDirty());
+
+        pool.transactionComplete(other);
+        tuples.add(added);
+        tid = new TransactionId();
+        bf.compact(tid, 0);
+        pool.transactionComplete(tid);
+        assertTrue(bf.numPages() < before / 3);
+        validate(bf);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        validate(bf);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeCompactionTest.class);
+    }
+}
@@ -0,0 +1,221 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+/**
+ * Grows a B+ tree from empty with several threads inserting at once, while
+ * others search and scan it, and checks that the tree comes out well formed
+ * and holding every tuple.  Small pages make the root split more than once.
+ */
+public class BTreeConcurrencyTest extends SimpleDbTestBase {
+
+    private static final int PAGE_SIZE = 512;
+    /** Threads inserting keys of their own range, in a random order */
+    private static final int DISJOINT = 4;
+    /** Threads inserting random keys from all the ranges */
+    private static final int OVERLAPPING = 4;
+    private static final int PER_THREAD = 1500;
+    private static final int RANGE = 10000;
+
+    private BTreeFile bf;
+    /** The keys of each disjoint inserter, in the order it inserts them */
+    private int[][] order;
+    /** How many of its keys each disjoint inserter has inserted so far */
+    private AtomicIntegerArray published;
+    private final AtomicBoolean inserting = new AtomicBoolean(true);
+    /** Lookups and scans done while the inserters ran */
+    private final AtomicInteger reads = new AtomicInteger();
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    @After public void tearDown() throws Exception {
+        BufferPool.resetPageSize();
+        Database.reset();
+    }
+
+    private abstract class Worker extends Thread {
+        final TransactionId tid = new TransactionId();
+
+        abstract void work() throws Exception;
+
+        public void run() {
+            try {
+                work();
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    private class Inserter extends Worker {
+        private final int[] keys;
+        private final int id;
+        final ArrayList<ArrayList<Integer>> inserted = new ArrayList<ArrayList<Integer>>();
+
+        Inserter(int id, int[] keys) {
+            this.id = id;
+            this.keys = keys;
+        }
+
+        void work() throws Exception {
+            for (int i = 0; i < keys.length && failure.get() == null; i++) {
+                Tuple t = BTreeUtility.getBTreeTuple(new int[] {keys[i], id});
+                Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+                ArrayList<Integer> l = new ArrayList<Integer>();
+                l.add(keys[i]);
+                l.add(id);
+                inserted.add(l);
+                if (id < DISJOINT)
+                    published.set(id, i + 1);
+            }
+        }
+    }
+
+    /** Looks up keys the disjoint inserters have already inserted */
+    private class Searcher extends Worker {
+        void work() throws Exception {
+            Random r = new Random();
+            while (inserting.get() && failure.get() == null) {
+                int d = r.nextInt(DISJOINT);
+                int n = published.get(d);
+                if (n == 0)
+                    continue;
+                int key = order[d][r.nextInt(n)];
+                DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+                it.open();
+                boolean found = false;
+                while (it.hasNext()) {
+                    Tuple t = it.next();
+                    assertEquals(key, ((IntField) t.getField(0)).getValue());
+                    found |= ((IntField) t.getField(1)).getValue() == d;
+                }
+                it.close();
+                assertTrue("key " + key + " missing", found);
+                reads.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Scans the whole tree, and checks that it sees every key the disjoint
+     * inserters had inserted before the scan began.  A leaf that splits
+     * behind the scan may show some tuples twice, so order isn't checked.
+     */
+    private class Scanner extends Worker {
+        void work() throws Exception {
+            while (inserting.get() && failure.get() == null) {
+                int[] before = new int[DISJOINT];
+                for (int d = 0; d < DISJOINT; d++)
+                    before[d] = published.get(d);
+                HashSet<Integer> seen = new HashSet<Integer>();
+                DbFileIterator it = bf.iterator(tid);
+                it.open();
+                while (it.hasNext())
+                    seen.add(((IntField) it.next().getField(0)).getValue());
+                it.close();
+                for (int d = 0; d < DISJOINT; d++) {
+                    for (int i = 0; i < before[d]; i++)
+                        assertTrue("key " + order[d][i] + " missing", seen.contains(order[d][i]));
+                }
+                reads.incrementAndGet();
+            }
+        }
+    }
+
+    @Test(timeout = 120000) public void testConcurrentInserts() throws Exception {
+        BufferPool.setPageSize(PAGE_SIZE);
+        File f = File.createTempFile("concurrent", ".dat");
+        f.deleteOnExit();
+        bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+        Database.resetBufferPool(1000);
+
+        Random r = new Random(42);
+        order = new int[DISJOINT][];
+        published = new AtomicIntegerArray(DISJOINT);
+        ArrayList<Inserter> inserters = new ArrayList<Inserter>();
+        for (int d = 0; d < DISJOINT; d++) {
+            ArrayList<Integer> keys = new ArrayList<Integer>();
+            for (int i = 0; i < PER_THREAD; i++)
+                keys.add(d * RANGE + i);
+            Collections.shuffle(keys, r);
+            order[d] = new int[PER_THREAD];
+            for (int i = 0; i < PER_THREAD; i++)
+                order[d][i] = keys.get(i);
+            inserters.add(new Inserter(d, order[d]));
+        }
+        for (int o = 0; o < OVERLAPPING; o++) {
+            int[] keys = new int[PER_THREAD];
+            for (int i = 0; i < PER_THREAD; i++)
+                keys[i] = r.nextInt(DISJOINT * RANGE);
+            inserters.add(new Inserter(DISJOINT + o, keys));
+        }
+        ArrayList<Worker> readers = new ArrayList<Worker>();
+        for (int i = 0; i < 2; i++) {
+            readers.add(new Searcher());
+            readers.add(new Scanner());
+        }
+
+        for (Worker w : readers)
+            w.start();
+        for (Worker w : inserters)
+            w.start();
+        for (Worker w : inserters)
+            w.join();
+        inserting.set(false);
+        for (Worker w : readers)
+            w.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        assertTrue(reads.get() > 0);
+        for (Worker w : inserters)
+            Database.getBufferPool().transactionComplete(w.tid);
+        for (Worker w : readers)
+            Database.getBufferPool().transactionComplete(w.tid);
+
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (Inserter w : inserters)
+            tuples.addAll(w.inserted);
+        assertEquals((DISJOINT + OVERLAPPING) * PER_THREAD, tuples.size());
+
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+        SystemTestUtil.matchTuples(new BTreeScan(tid, bf.getId(), "t", null), tuples);
+
+        // the root split at least twice: it has internal pages below it
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+        BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+                rootPtr.getRootId(), Permissions.READ_ONLY);
+        assertEquals(BTreePageId.INTERNAL, root.iterator().next().getLeftChild().pgcateg());
+        Database.getBufferPool().transactionComplete(tid);
+
+        // and it all made it to disk
+        Database.resetBufferPool(1000);
+        tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+        SystemTestUtil.matchTuples(new BTreeScan(tid, bf.getId(), "t", null), tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeConcurrencyTest.class);
+    }
+}
@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Iterator;
@@ -282,6 +283,162 @@ public class BTreeScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    /** Check a range scan against the tuples whose keys are in range */
+    private void validateRange(BTreeFile f, ArrayList<ArrayList<Integer>> tuples, int keyField,
+            IndexPredicate lower, IndexPredicate upper, boolean descending) throws Exception {
+        ArrayList<String> expected = new ArrayList<String>();
+        for (ArrayList<Integer> tup : tuples) {
+            Field key = new IntField(tup.get(keyField));
+            if ((lower == null || key.compare(lower.getOp(), lower.getField()))
+                    && (upper == null || key.compare(upper.getOp(), upper.getField())))
+                expected.add(tup.toString());
+        }
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.rangeIterator(tid, lower, upper, descending);
+        it.open();
+        ArrayList<String> actual = new ArrayList<String>();
+        int prev = descending ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+        while (it.hasNext()) {
+            ArrayList<Integer> tup = SystemTestUtil.tupleToList(it.next());
+            int key = tup.get(keyField);
+            assertTrue(descending ? key <= prev : key >= prev);
+            prev = key;
+            actual.add(tup.toString());
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+    }
+
+    /** Test range scans with inclusive, exclusive and missing bounds in both directions */
+    @Test public void testRangeScan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        int keyField = r.nextInt(2);
+        // few distinct keys, so runs of equal keys cross leaf boundaries
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, 200, null, tuples, keyField);
+        Op[] lowerOps = new Op[] {Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ};
+        Op[] upperOps = new Op[] {Op.LESS_THAN, Op.LESS_THAN_OR_EQ};
+        for (boolean descending : new boolean[] {false, true}) {
+            validateRange(f, tuples, keyField, null, null, descending);
+            for (int i = 0; i < 10; i++) {
+                int lo = r.nextInt(220) - 10;
+                int hi = lo + r.nextInt(60);
+                IndexPredicate lower = new IndexPredicate(lowerOps[r.nextInt(2)], new IntField(lo));
+                IndexPredicate upper = new IndexPredicate(upperOps[r.nextInt(2)], new IntField(hi));
+                validateRange(f, tuples, keyField, lower, upper, descending);
+                validateRange(f, tuples, keyField, lower, null, descending);
+                validateRange(f, tuples, keyField, null, upper, descending);
+            }
+        }
+    }
+
+    /** Test that a descending scan with a lower bound starts at the last leaf and stops early */
+    @Test public void testDescendingReadPage() throws Exception {
+        final int LEAF_PAGES = 30;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, 0);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.readCount = 0;
+        TransactionId tid = new TransactionId();
+        IndexPredicate lower = new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(LEAF_PAGES*502 - 600));
+        DbFileIterator it = table.rangeIterator(tid, lower, null, true);
+        it.open();
+        int n = 0;
+        int prev = Integer.MAX_VALUE;
+        while (it.hasNext()) {
+            int key = ((IntField) it.next().getField(0)).getValue();
+            assertTrue(key < prev);
+            prev = key;
+            n++;
+        }
+        it.close();
+        int expected = 0;
+        for (ArrayList<Integer> tup : tuples) {
+            if (tup.get(0) >= LEAF_PAGES*502 - 600)
+                expected++;
+        }
+        assertEquals(expected, n);
+        // root pointer page + root + the last two leaf pages
+        assertEquals(4, table.readCount);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that a batch lookup returns the tuples for every key, including runs of equal keys */
+    @Test public void testBatchLookup() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        int keyField = r.nextInt(2);
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, 300, null, tuples, keyField);
+        ArrayList<Field> keys = new ArrayList<Field>();
+        HashSet<Integer> wanted = new HashSet<Integer>();
+        for (int i = 0; i < 100; i++) {
+            // some keys beyond the range of the tree, and some repeated
+            int key = r.nextInt(320) - 10;
+            keys.add(new IntField(key));
+            wanted.add(key);
+        }
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> tup : tuples) {
+            if (wanted.contains(tup.get(keyField)))
+                expected.add(tup);
+        }
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.batchIterator(tid, keys);
+        it.open();
+        int n = 0;
+        int prev = Integer.MIN_VALUE;
+        while (it.hasNext()) {
+            ArrayList<Integer> tup = SystemTestUtil.tupleToList(it.next());
+            assertTrue(wanted.contains(tup.get(keyField)));
+            assertTrue(tup.get(keyField) >= prev);
+            prev = tup.get(keyField);
+            n++;
+        }
+        assertEquals(expected.size(), n);
+        it.rewind();
+        int again = 0;
+        while (it.hasNext()) {
+            it.next();
+            again++;
+        }
+        assertEquals(n, again);
+        it.close();
+
+        assertFalse(f.batchIterator(tid, new ArrayList<Field>()).hasNext());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that a batch lookup reads each page it needs once, even through a tiny buffer pool */
+    @Test public void testBatchReadPage() throws Exception {
+        final int LEAF_PAGES = 30;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, 0);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        ArrayList<Field> keys = new ArrayList<Field>();
+        for (int i = 0; i < 2000; i++) {
+            keys.add(new IntField(r.nextInt(LEAF_PAGES*502)));
+        }
+        Database.resetBufferPool(3);
+        table.readCount = 0;
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.batchIterator(tid, keys);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        it.close();
+        // root pointer page + root + each leaf page at most once
+        assertTrue(table.readCount <= LEAF_PAGES + 2);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(BTreeScanTest.class);
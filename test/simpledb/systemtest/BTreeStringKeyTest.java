@@ -0,0 +1,158 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+/**
+ * Builds B+ trees keyed on strings sharing a long prefix and checks that the
+ * compact internal pages keep the tree well formed and searchable.
+ */
+public class BTreeStringKeyTest extends SimpleDbTestBase {
+
+    private static final String PREFIX = "http://www.example.com/customers/by-id/";
+
+    private static final TupleDesc TD = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE});
+
+    /** n distinct random ids */
+    private static ArrayList<Integer> randomIds(int n, long seed) {
+        Random r = new Random(seed);
+        HashSet<Integer> seen = new HashSet<Integer>();
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        while (ids.size() < n) {
+            int id = r.nextInt(1000000);
+            if (seen.add(id))
+                ids.add(id);
+        }
+        return ids;
+    }
+
+    private static Tuple tuple(int id) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new StringField(PREFIX + String.format("%08d", id), Type.STRING_LEN));
+        t.setField(1, new IntField(id));
+        return t;
+    }
+
+    /**
+     * Scan the whole tree in key order and look up some of the ids.
+     */
+    private void validate(BTreeFile bf, ArrayList<Integer> ids) throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        int n = 0;
+        String prev = "";
+        while (it.hasNext()) {
+            String key = ((StringField) it.next().getField(0)).getValue();
+            assertTrue(key.compareTo(prev) >= 0);
+            prev = key;
+            n++;
+        }
+        it.close();
+        assertEquals(ids.size(), n);
+
+        for (int i = 0; i < ids.size(); i += ids.size() / 50) {
+            int id = ids.get(i);
+            IndexPredicate ipred = new IndexPredicate(Op.EQUALS, tuple(id).getField(0));
+            DbFileIterator search = bf.indexIterator(tid, ipred);
+            search.open();
+            assertTrue(search.hasNext());
+            assertEquals(new IntField(id), search.next().getField(1));
+            assertFalse(search.hasNext());
+            search.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The internal pages hold many more separators than full-length string keys
+     * would allow, and the pages below the root store the common prefix once.
+     */
+    private void checkFanOut(BTreeFile bf) throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+                rootPtr.getRootId(), Permissions.READ_ONLY);
+        int fullKeyEntries = (BufferPool.getPageSize() * 8 - 73) / ((Type.STRING_TYPE.getLen() + 4) * 8 + 1);
+        boolean prefixed = false;
+        int most = root.getNumEntries();
+        Iterator<BTreeEntry> it = root.iterator();
+        while (it.hasNext()) {
+            BTreeEntry e = it.next();
+            if (e.getLeftChild().pgcateg() != BTreePageId.INTERNAL)
+                break;
+            BTreeInternalPage child = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+                    e.getLeftChild(), Permissions.READ_ONLY);
+            most = Math.max(most, child.getNumEntries());
+            prefixed |= child.getKeyPrefix().startsWith(PREFIX);
+        }
+        assertTrue(most > 2 * fullKeyEntries);
+        assertTrue(prefixed);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testSeparator() {
+        assertEquals(new StringField("abz", Type.STRING_LEN), BTreeInternalPage.separator(
+                new StringField("abcd", Type.STRING_LEN), new StringField("abzzz", Type.STRING_LEN)));
+        assertEquals(new StringField("abc", Type.STRING_LEN), BTreeInternalPage.separator(
+                new StringField("ab", Type.STRING_LEN), new StringField("abcd", Type.STRING_LEN)));
+        assertEquals(new StringField("same", Type.STRING_LEN), BTreeInternalPage.separator(
+                new StringField("same", Type.STRING_LEN), new StringField("same", Type.STRING_LEN)));
+        assertEquals(new IntField(7), BTreeInternalPage.separator(new IntField(3), new IntField(7)));
+    }
+
+    @Test public void testInsert() throws Exception {
+        File f = File.createTempFile("strkey", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = new BTreeFile(f, 0, TD);
+        Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+        Database.resetBufferPool(1000);
+
+        ArrayList<Integer> ids = randomIds(20000, 34);
+        TransactionId tid = new TransactionId();
+        for (int id : ids) {
+            Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(id));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        // read the compact pages back from disk
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(1000);
+
+        validate(bf, ids);
+        checkFanOut(bf);
+    }
+
+    @Test public void testBulkLoad() throws Exception {
+        ArrayList<Integer> ids = randomIds(40000, 35);
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int id : ids) {
+            tuples.add(tuple(id));
+        }
+        File f = File.createTempFile("strkey", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = BTreeFileEncoder.bulkLoad(tuples, f, TD, 0, 0.8);
+        Database.resetBufferPool(1000);
+
+        validate(bf, ids);
+        checkFanOut(bf);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeStringKeyTest.class);
+    }
+}
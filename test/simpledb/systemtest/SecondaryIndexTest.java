@@ -0,0 +1,315 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+/**
+ * Builds a secondary index over a heap file, keeps it up to date through
+ * Insert and Delete, and checks that the planner reads covered queries from
+ * the index alone.
+ */
+public class SecondaryIndexTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile table;
+    private SecondaryIndex index;
+
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        // few distinct keys, so equal keys run across several leaves
+        table = SystemTestUtil.createRandomHeapFile(3, 3000, 50, null, tuples, "c");
+        File f = File.createTempFile("index", ".dat");
+        f.deleteOnExit();
+        index = new SecondaryIndex("t_c1_c2", table.getId(), new int[] {1, 2}, new int[0], f);
+        Database.getCatalog().addIndex(index);
+        TransactionId tid = new TransactionId();
+        index.build(tid);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** The index entries, as (c1, c2) pairs, checked against the heap tuples they point to */
+    private ArrayList<ArrayList<Integer>> indexContents(TransactionId tid) throws Exception {
+        HashMap<RecordId, ArrayList<Integer>> heap = new HashMap<RecordId, ArrayList<Integer>>();
+        DbFileIterator hit = table.iterator(tid);
+        hit.open();
+        while (hit.hasNext()) {
+            Tuple t = hit.next();
+            heap.put(t.getRecordId(), SystemTestUtil.tupleToList(t));
+        }
+        hit.close();
+
+        ArrayList<ArrayList<Integer>> entries = new ArrayList<ArrayList<Integer>>();
+        IndexScan scan = new IndexScan(tid, index, "t", null);
+        assertEquals(2, scan.getTupleDesc().numFields());
+        assertEquals("t.c1", scan.getTupleDesc().getFieldName(0));
+        scan.open();
+        int prev = Integer.MIN_VALUE;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            ArrayList<Integer> l = SystemTestUtil.tupleToList(t);
+            assertTrue(l.get(0) >= prev);
+            prev = l.get(0);
+            ArrayList<Integer> row = heap.remove(t.getRecordId());
+            assertNotNull(row);
+            assertEquals(row.subList(1, 3), l);
+            entries.add(l);
+        }
+        scan.close();
+        assertTrue(heap.isEmpty());
+        return entries;
+    }
+
+    private static ArrayList<ArrayList<Integer>> project(List<ArrayList<Integer>> rows, int... fields) {
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> row : rows) {
+            ArrayList<Integer> l = new ArrayList<Integer>();
+            for (int f : fields) {
+                l.add(row.get(f));
+            }
+            out.add(l);
+        }
+        return out;
+    }
+
+    private static void assertSameRows(List<ArrayList<Integer>> expected, List<ArrayList<Integer>> actual) {
+        ArrayList<String> e = new ArrayList<String>();
+        for (ArrayList<Integer> l : expected) {
+            e.add(l.toString());
+        }
+        ArrayList<String> a = new ArrayList<String>();
+        for (ArrayList<Integer> l : actual) {
+            a.add(l.toString());
+        }
+        Collections.sort(e);
+        Collections.sort(a);
+        assertEquals(e, a);
+    }
+
+    private static IndexScan findIndexScan(OpIterator op) {
+        if (op instanceof IndexScan)
+            return (IndexScan) op;
+        if (op instanceof Operator) {
+            for (OpIterator child : ((Operator) op).getChildren()) {
+                IndexScan s = findIndexScan(child);
+                if (s != null)
+                    return s;
+            }
+        }
+        return null;
+    }
+
+    @Test public void testBuild() throws Exception {
+        TransactionId tid = new TransactionId();
+        assertSameRows(project(tuples, 1, 2), indexContents(tid));
+        assertEquals(1, Database.getCatalog().getIndexes(table.getId()).size());
+        assertEquals(index.getFile().getTupleDesc(),
+                Database.getCatalog().getTupleDesc(index.getFile().getId()));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testInsertDelete() throws Exception {
+        TransactionId tid = new TransactionId();
+        ArrayList<Tuple> rows = new ArrayList<Tuple>();
+        for (int i = 0; i < 500; i++) {
+            Tuple t = new Tuple(table.getTupleDesc());
+            ArrayList<Integer> l = new ArrayList<Integer>();
+            for (int j = 0; j < 3; j++) {
+                t.setField(j, new IntField(i * (j + 1) % 60));
+                l.add(i * (j + 1) % 60);
+            }
+            rows.add(t);
+            tuples.add(l);
+        }
+        Insert insert = new Insert(tid, new TupleIterator(table.getTupleDesc(), rows), table.getId());
+        insert.open();
+        assertEquals(new IntField(500), insert.next().getField(0));
+        insert.close();
+
+        Filter sevens = new Filter(new Predicate(1, Op.EQUALS, new IntField(7)),
+                new SeqScan(tid, table.getId(), "t"));
+        Delete delete = new Delete(tid, sevens);
+        delete.open();
+        delete.next();
+        delete.close();
+        ArrayList<ArrayList<Integer>> left = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> l : tuples) {
+            if (l.get(1) != 7)
+                left.add(l);
+        }
+
+        assertSameRows(project(left, 1, 2), indexContents(tid));
+        IndexScan sevenScan = new IndexScan(tid, index, "t", new IndexPredicate(Op.EQUALS, new IntField(7)));
+        sevenScan.open();
+        assertFalse(sevenScan.hasNext());
+        sevenScan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Entries sharing a key are ordered by RecordId, even when rows inserted
+     * later fill slots freed before the ones still there, and deleting some
+     * of them removes exactly those entries.
+     */
+    @Test public void testEqualKeys() throws Exception {
+        TransactionId tid = new TransactionId();
+        Filter someSevens = new Filter(new Predicate(1, Op.EQUALS, new IntField(7)),
+                new Filter(new Predicate(0, Op.LESS_THAN, new IntField(25)),
+                        new SeqScan(tid, table.getId(), "t")));
+        Delete delete = new Delete(tid, someSevens);
+        delete.open();
+        delete.next();
+        delete.close();
+        ArrayList<ArrayList<Integer>> left = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> l : tuples) {
+            if (l.get(1) != 7 || l.get(0) >= 25)
+                left.add(l);
+        }
+
+        ArrayList<Tuple> rows = new ArrayList<Tuple>();
+        for (int i = 0; i < 300; i++) {
+            Tuple t = new Tuple(table.getTupleDesc());
+            ArrayList<Integer> l = new ArrayList<Integer>();
+            for (int j = 0; j < 3; j++) {
+                int v = j == 1 ? 7 : i;
+                t.setField(j, new IntField(v));
+                l.add(v);
+            }
+            rows.add(t);
+            left.add(l);
+        }
+        Insert insert = new Insert(tid, new TupleIterator(table.getTupleDesc(), rows), table.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+        assertSameRows(project(left, 1, 2), indexContents(tid));
+
+        IndexScan scan = new IndexScan(tid, index, "t", new IndexPredicate(Op.EQUALS, new IntField(7)));
+        scan.open();
+        RecordId prev = null;
+        int n = 0;
+        while (scan.hasNext()) {
+            RecordId rid = scan.next().getRecordId();
+            assertTrue(prev == null || prev.getPageId().getPageNumber() < rid.getPageId().getPageNumber()
+                    || (prev.getPageId().equals(rid.getPageId()) && prev.getTupleNumber() < rid.getTupleNumber()));
+            prev = rid;
+            n++;
+        }
+        scan.close();
+        assertTrue(n > 300);
+        BTreeChecker.checkRep(index.getFile(), tid, new HashMap<PageId, Page>(), false);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testIndexOnlyPlan() throws Exception {
+        String name = Database.getCatalog().getTableName(table.getId());
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(table.getId(), 1000));
+        TransactionId tid = new TransactionId();
+
+        // every referenced field is in the index
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.c1", Op.EQUALS, "5");
+        lp.addProjectField("t.c2", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertNotNull(findIndexScan(plan));
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> l : tuples) {
+            if (l.get(1) == 5)
+                expected.add(l);
+        }
+        SystemTestUtil.matchTuples(plan, project(expected, 2));
+
+        // c0 is not in the index
+        lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.c1", Op.EQUALS, "5");
+        lp.addProjectField("t.c0", null);
+        plan = lp.physicalPlan(tid, stats, false);
+        assertNull(findIndexScan(plan));
+        SystemTestUtil.matchTuples(plan, project(expected, 0));
+
+        // neither is SELECT *
+        lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addProjectField("*", null);
+        assertNull(findIndexScan(lp.physicalPlan(tid, stats, false)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static boolean hasOrderBy(OpIterator op) {
+        if (op instanceof OrderBy)
+            return true;
+        if (op instanceof Operator) {
+            for (OpIterator child : ((Operator) op).getChildren()) {
+                if (hasOrderBy(child))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    @Test public void testOrderedRangePlan() throws Exception {
+        String name = Database.getCatalog().getTableName(table.getId());
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(table.getId(), 1000));
+        TransactionId tid = new TransactionId();
+
+        for (boolean asc : new boolean[] {true, false}) {
+            LogicalPlan lp = new LogicalPlan();
+            lp.addScan(table.getId(), "t");
+            lp.addFilter("t.c1", Op.GREATER_THAN, "10");
+            lp.addFilter("t.c1", Op.LESS_THAN_OR_EQ, "20");
+            lp.addProjectField("t.c1", null);
+            lp.addProjectField("t.c2", null);
+            lp.addOrderBy("t.c1", asc);
+            OpIterator plan = lp.physicalPlan(tid, stats, false);
+            assertNotNull(findIndexScan(plan));
+            assertEquals(!asc, findIndexScan(plan).isDescending());
+            assertFalse(hasOrderBy(plan));
+
+            ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+            for (ArrayList<Integer> l : tuples) {
+                if (l.get(1) > 10 && l.get(1) <= 20)
+                    expected.add(l);
+            }
+            plan.open();
+            ArrayList<ArrayList<Integer>> actual = new ArrayList<ArrayList<Integer>>();
+            int prev = asc ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+            while (plan.hasNext()) {
+                ArrayList<Integer> l = SystemTestUtil.tupleToList(plan.next());
+                assertTrue(asc ? l.get(0) >= prev : l.get(0) <= prev);
+                prev = l.get(0);
+                actual.add(l);
+            }
+            plan.close();
+            assertSameRows(project(expected, 1, 2), actual);
+        }
+
+        // ordering on a field the index isn't ordered on still sorts
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addProjectField("t.c2", null);
+        lp.addOrderBy("t.c2", true);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertNotNull(findIndexScan(plan));
+        assertTrue(hasOrderBy(plan));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}